@@ -0,0 +1,6 @@
+@echo off
+setlocal enabledelayedexpansion
+
+:: lists the user and mailbox addresses that are taken more than once (ignoring the case),
+:: which is prevented by unique indexes since migration V12
+call %0\..\shell.cmd "select 'users' as owner, lower(mail) as address, count(*) as count from users group by lower(mail) having count(*) > 1 union all select 'mailboxes', lower(concat(address, '@', domain)), count(*) from mailboxes group by lower(concat(address, '@', domain)) having count(*) > 1;"
@@ -0,0 +1,11 @@
+#!/bin/sh
+set -e
+_dir=`realpath -m $(dirname $0)`
+
+# lists the user and mailbox addresses that are taken more than once (ignoring the case),
+# which is prevented by unique indexes since migration V12
+VERIFY_SQL="select 'users' as owner, lower(mail) as address, count(*) as count from users group by lower(mail) having count(*) > 1
+ union all
+ select 'mailboxes', lower(concat(address, '@', domain)), count(*) from mailboxes group by lower(concat(address, '@', domain)) having count(*) > 1;"
+
+exec $_dir/shell.sh "$VERIFY_SQL"
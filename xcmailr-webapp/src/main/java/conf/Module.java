@@ -20,8 +20,14 @@ import org.slf4j.bridge.SLF4JBridgeHandler;
 import com.google.inject.AbstractModule;
 
 import ninja.ebean.NinjaEbeanModule;
-import services.CheckDBForMailAddressDuplicates;
+import services.EntityCacheStatistics;
+import services.MailProcessingStatistics;
 import services.MailService;
+import services.MailWriter;
+import services.MailrMessageSenderFactory;
+import services.MessageRecompressor;
+import services.MessageStoreService;
+import services.MetadataBackfill;
 
 public class Module extends AbstractModule
 {
@@ -38,8 +44,14 @@ public class Module extends AbstractModule
         bind(XCMailrConf.class);
 
         // bind services and jobs
+        bind(MessageStoreService.class);
         bind(MailService.class);
-        bind(CheckDBForMailAddressDuplicates.class);
+        bind(MailrMessageSenderFactory.class);
+        bind(MailWriter.class);
+        bind(MessageRecompressor.class);
+        bind(MetadataBackfill.class);
+        bind(EntityCacheStatistics.class);
+        bind(MailProcessingStatistics.class);
     }
 
     private static class JulToSlf4jModule extends AbstractModule
@@ -15,6 +15,7 @@
  */
 package conf;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.function.BiFunction;
 
@@ -122,6 +123,60 @@ public class XCMailrConf
      */
     public final Boolean MB_REQUIRE_TLS;
 
+    /**
+     * The maximum number of concurrent connections to the inbound SMTP server, specified with mbox.smtp.maxconnections
+     */
+    public final int MB_MAX_CONNECTIONS;
+
+    /**
+     * The time in milliseconds the inbound SMTP server waits for a client before closing the connection, specified
+     * with mbox.smtp.connectiontimeout
+     */
+    public final int MB_CONNECTION_TIMEOUT;
+
+    /**
+     * The maximum number of recipients per mail accepted by the inbound SMTP server, specified with
+     * mbox.smtp.maxrecipients
+     */
+    public final int MB_MAX_RECIPIENTS;
+
+    /**
+     * The fill level of the mail write queue or the forward queue, in percent of its capacity, from which on the
+     * inbound SMTP server rejects new mails with a temporary failure, specified with mbox.smtp.highwatermark. 0 if
+     * mails are never rejected.
+     */
+    public final int MB_HIGH_WATER_MARK;
+
+    /**
+     * The maximum number of recipients per minute accepted from one client IP address, specified with
+     * mbox.ratelimit.client. 0 if not limited.
+     */
+    public final int MB_RATE_LIMIT_CLIENT;
+
+    /**
+     * The maximum number of recipients per minute accepted from one sender domain, specified with
+     * mbox.ratelimit.sender. 0 if not limited.
+     */
+    public final int MB_RATE_LIMIT_SENDER;
+
+    /**
+     * The maximum number of mails per minute accepted for one recipient address, specified with
+     * mbox.ratelimit.recipient. 0 if not limited.
+     */
+    public final int MB_RATE_LIMIT_RECIPIENT;
+
+    /**
+     * The time in milliseconds to wait before deferring a throttled recipient, specified with mbox.ratelimit.tarpit
+     */
+    public final int MB_RATE_LIMIT_TARPIT;
+
+    /**
+     * Whether or not the inbound SMTP server rejects recipients that don't belong to an existing and active mailbox
+     * already at RCPT TO, specified with mbox.rejectUnknownRecipients. Otherwise the mail is received completely and
+     * dropped afterwards.
+     */
+    public final Boolean MB_REJECT_UNKNOWN_RECIPIENTS;
+
     /**
      * specified with memcached.host
      */
@@ -145,6 +200,16 @@ public class XCMailrConf
      */
     public final Integer MTX_MAX_AGE;
 
+    /**
+     * The number of MTXs stored or deleted with one batch, specified with mailtransaction.batchsize
+     */
+    public final int MTX_BATCH_SIZE;
+
+    /**
+     * The maximum number of MTXs waiting to be stored, specified with mailtransaction.queuesize
+     */
+    public final int MTX_QUEUE_SIZE;
+
     /**
      * specified with mail.smtp.auth
      */
@@ -185,6 +250,48 @@ public class XCMailrConf
      */
     public final String OUT_SMTP_USER;
 
+    /**
+     * The number of connections to the outbound SMTP server that are kept open and reused, specified with
+     * mail.smtp.pool.size. 0 disables pooling, so each mail is sent using a new connection.
+     */
+    public final int OUT_SMTP_POOL_SIZE;
+
+    /**
+     * The number of mails after which a pooled connection is closed, specified with mail.smtp.pool.maxmessages
+     */
+    public final int OUT_SMTP_POOL_MAX_MESSAGES;
+
+    /**
+     * The number of seconds after which an unused pooled connection is closed, specified with mail.smtp.pool.maxidle
+     */
+    public final int OUT_SMTP_POOL_MAX_IDLE;
+
+    /**
+     * The maximum number of mails that are forwarded concurrently, specified with mail.forward.threads
+     */
+    public final int FORWARD_THREADS;
+
+    /**
+     * The maximum number of mails waiting to be forwarded, specified with mail.forward.queuesize
+     */
+    public final int FORWARD_QUEUE_SIZE;
+
+    /**
+     * What to do with a mail to forward if the forward queue is full, specified with mail.forward.rejectionpolicy.
+     * Either {@link #FORWARD_REJECTION_CALLER_RUNS} (default) or {@link #FORWARD_REJECTION_DROP}.
+     */
+    public final String FORWARD_REJECTION_POLICY;
+
+    /**
+     * Rejection policy: forward the mail in the thread that received it (slows down the sending client).
+     */
+    public static final String FORWARD_REJECTION_CALLER_RUNS = "callerruns";
+
+    /**
+     * Rejection policy: do not forward the mail at all (the mail is still stored).
+     */
+    public static final String FORWARD_REJECTION_DROP = "drop";
+
     /**
      * specified with pw.length
      */
@@ -200,6 +307,102 @@ public class XCMailrConf
      */
     public final int MAX_MAIL_SIZE;
 
+    /**
+     * The number of bytes of a received mail that are kept in memory, larger mails are written to a spool file.
+     * Specified with mbox.mail.spool.threshold.
+     */
+    public final int MAIL_SPOOL_THRESHOLD;
+
+    /**
+     * The directory for spool files of received mails, specified with mbox.mail.spool.dir. <code>null</code> if the
+     * default temp directory is used.
+     */
+    public final File MAIL_SPOOL_DIR;
+
+    /**
+     * The maximum number of received mails waiting to be stored, specified with mbox.mail.write.queuesize
+     */
+    public final int MAIL_WRITE_QUEUE_SIZE;
+
+    /**
+     * The maximum number of received mails stored in one batch, specified with mbox.mail.write.batchsize
+     */
+    public final int MAIL_WRITE_BATCH_SIZE;
+
+    /**
+     * Whether or not a received mail is acknowledged only after it was stored, specified with mbox.mail.write.sync
+     */
+    public final boolean MAIL_WRITE_SYNC;
+
+    /**
+     * The interval in minutes in which the batch sizes and commit times of the mail writer and the number of mails
+     * waiting to be forwarded and being forwarded are logged (0 = never), specified with mbox.mail.statisticsinterval
+     */
+    public final int MAIL_PROCESSING_STATISTICS_INTERVAL;
+
+    /**
+     * The deflate level (1-9) used to compress stored mails, 0 to store them uncompressed, specified with
+     * mbox.mail.compression.level
+     */
+    public final int MAIL_COMPRESSION_LEVEL;
+
+    /**
+     * The minimum size in bytes of a mail to be compressed, specified with mbox.mail.compression.minsize
+     */
+    public final int MAIL_COMPRESSION_MIN_SIZE;
+
+    /**
+     * Whether or not mails stored uncompressed are compressed in the background, specified with
+     * mbox.mail.compression.recompress
+     */
+    public final boolean MAIL_COMPRESSION_RECOMPRESS;
+
+    /**
+     * The minimum size in bytes of a MIME part to be stored only once for all mails containing it, specified with
+     * mbox.mail.dedup.minsize. 0 if parts are not shared.
+     */
+    public final int MAIL_DEDUP_MIN_SIZE;
+
+    /**
+     * Whether or not the metadata of mails stored without it is extracted in the background, specified with
+     * mbox.mail.metadata.backfill
+     */
+    public final boolean MAIL_METADATA_BACKFILL;
+
+    /**
+     * Where new messages are stored, specified with mbox.mail.store. Either {@link #MAIL_STORE_DATABASE} (default) or
+     * {@link #MAIL_STORE_SEGMENTS}.
+     */
+    public final String MAIL_STORE;
+
+    /**
+     * Message store: store the messages in the database.
+     */
+    public static final String MAIL_STORE_DATABASE = "database";
+
+    /**
+     * Message store: append the messages to segment files and store only their location in the database.
+     */
+    public static final String MAIL_STORE_SEGMENTS = "segments";
+
+    /**
+     * The directory for the segment files of the message store, specified with mbox.mail.store.dir. Defaults to
+     * xcmailrStore in the user's home directory.
+     */
+    public final File MAIL_STORE_DIR;
+
+    /**
+     * The size in bytes after which a segment file of the message store is sealed, specified with
+     * mbox.mail.store.segmentsize
+     */
+    public final int MAIL_STORE_SEGMENT_SIZE;
+
+    /**
+     * The interval in seconds in which the forward and suppression counts of the mailboxes are written to the
+     * database, specified with mbox.counters.flushinterval
+     */
+    public final int MB_COUNTER_FLUSH_INTERVAL;
+
     /**
      * The maximum time a temporary mail can be valid
      */
@@ -210,12 +413,24 @@ public class XCMailrConf
      */
     public final int APITOKEN_EXPIRATION;
 
+    /**
+     * The interval in minutes in which the statistics of the entity caches are logged (0 = never), specified with
+     * application.cache.statisticsinterval
+     */
+    public final int CACHE_STATISTICS_INTERVAL;
+
     /**
      * The amount of minutes an email should be preserved before being deleted. NOTE: this only accounts for emails that
      * were sent to an user defined email address that also has to be active
      */
     public final int MAIL_RETENTION_PERIOD;
 
+    /**
+     * The maximum number of rows the expiration task deletes or updates with one statement, specified with
+     * mbox.expiration.batchsize
+     */
+    public final int EXPIRATION_BATCH_SIZE;
+
     /**
      * The maximum number of days (including today) for which XCMailr maintains drop/forward mail statistics. Not
      * configurable.
@@ -243,10 +458,21 @@ public class XCMailrConf
         MB_HOST = ninjaProp.getOrDie("mbox.host");
         MB_ENABLE_TLS = ninjaProp.getBooleanWithDefault("mbox.enableTls", true);
         MB_REQUIRE_TLS = MB_ENABLE_TLS && ninjaProp.getBooleanWithDefault("mbox.requireTls", false);
+        MB_MAX_CONNECTIONS = ninjaProp.getIntegerWithDefault("mbox.smtp.maxconnections", 1000);
+        MB_CONNECTION_TIMEOUT = ninjaProp.getIntegerWithDefault("mbox.smtp.connectiontimeout", 60000);
+        MB_MAX_RECIPIENTS = ninjaProp.getIntegerWithDefault("mbox.smtp.maxrecipients", 1000);
+        MB_HIGH_WATER_MARK = ninjaProp.getIntegerWithDefault("mbox.smtp.highwatermark", 0);
+        MB_RATE_LIMIT_CLIENT = ninjaProp.getIntegerWithDefault("mbox.ratelimit.client", 0);
+        MB_RATE_LIMIT_SENDER = ninjaProp.getIntegerWithDefault("mbox.ratelimit.sender", 0);
+        MB_RATE_LIMIT_RECIPIENT = ninjaProp.getIntegerWithDefault("mbox.ratelimit.recipient", 0);
+        MB_RATE_LIMIT_TARPIT = ninjaProp.getIntegerWithDefault("mbox.ratelimit.tarpit", 0);
+        MB_REJECT_UNKNOWN_RECIPIENTS = ninjaProp.getBooleanWithDefault("mbox.rejectUnknownRecipients", false);
         MB_INTERVAL = ninjaProp.getIntegerOrDie("mbox.interval");
 
         MTX_LIMIT = ninjaProp.getIntegerWithDefault("mailtransaction.displaylimit", 0);
         MTX_MAX_AGE = ninjaProp.getIntegerWithDefault("mailtransaction.maxage", -1);
+        MTX_BATCH_SIZE = ninjaProp.getIntegerWithDefault("mailtransaction.batchsize", 1000);
+        MTX_QUEUE_SIZE = ninjaProp.getIntegerWithDefault("mailtransaction.queuesize", 100000);
         MEMCA_HOST = ninjaProp.getOrDie("memcached.host");
         MSG_REWRITE = ninjaProp.getBooleanWithDefault("mail.msg.rewrite", false);
 
@@ -267,13 +493,43 @@ public class XCMailrConf
         OUT_SMTP_STARTTLS = ninjaProp.getBooleanWithDefault("mail.smtp.starttls", false);
         OUT_SMTP_DEBUG = ninjaProp.getBooleanWithDefault("mail.smtp.debug", false);
 
+        OUT_SMTP_POOL_SIZE = ninjaProp.getIntegerWithDefault("mail.smtp.pool.size", 4);
+        OUT_SMTP_POOL_MAX_MESSAGES = ninjaProp.getIntegerWithDefault("mail.smtp.pool.maxmessages", 100);
+        OUT_SMTP_POOL_MAX_IDLE = ninjaProp.getIntegerWithDefault("mail.smtp.pool.maxidle", 60);
+
+        FORWARD_THREADS = ninjaProp.getIntegerWithDefault("mail.forward.threads", 4);
+        FORWARD_QUEUE_SIZE = ninjaProp.getIntegerWithDefault("mail.forward.queuesize", 1000);
+        FORWARD_REJECTION_POLICY = ninjaProp.getWithDefault("mail.forward.rejectionpolicy",
+                                                            FORWARD_REJECTION_CALLER_RUNS)
+                                            .trim().toLowerCase();
+
         PW_LENGTH = ninjaProp.getIntegerOrDie("pw.length");
         SESSION_EXPIRETIME = COOKIE_EXPIRETIME + "s";
         MAX_MAIL_SIZE = ninjaProp.getIntegerOrDie("mbox.mail.maxsize");
+        MAIL_SPOOL_THRESHOLD = ninjaProp.getIntegerWithDefault("mbox.mail.spool.threshold", 262144);
+        final String spoolDir = StringUtils.trimToNull(ninjaProp.get("mbox.mail.spool.dir"));
+        MAIL_SPOOL_DIR = (spoolDir == null) ? null : new File(spoolDir);
+        MAIL_WRITE_QUEUE_SIZE = ninjaProp.getIntegerWithDefault("mbox.mail.write.queuesize", 1000);
+        MAIL_WRITE_BATCH_SIZE = ninjaProp.getIntegerWithDefault("mbox.mail.write.batchsize", 100);
+        MAIL_WRITE_SYNC = ninjaProp.getBooleanWithDefault("mbox.mail.write.sync", true);
+        MAIL_PROCESSING_STATISTICS_INTERVAL = ninjaProp.getIntegerWithDefault("mbox.mail.statisticsinterval", 60);
+        MAIL_COMPRESSION_LEVEL = ninjaProp.getIntegerWithDefault("mbox.mail.compression.level", 6);
+        MAIL_COMPRESSION_MIN_SIZE = ninjaProp.getIntegerWithDefault("mbox.mail.compression.minsize", 1024);
+        MAIL_COMPRESSION_RECOMPRESS = ninjaProp.getBooleanWithDefault("mbox.mail.compression.recompress", true);
+        MAIL_DEDUP_MIN_SIZE = ninjaProp.getIntegerWithDefault("mbox.mail.dedup.minsize", 4096);
+        MAIL_METADATA_BACKFILL = ninjaProp.getBooleanWithDefault("mbox.mail.metadata.backfill", true);
+        MAIL_STORE = ninjaProp.getWithDefault("mbox.mail.store", MAIL_STORE_DATABASE).trim().toLowerCase();
+        final String storeDir = StringUtils.trimToNull(ninjaProp.get("mbox.mail.store.dir"));
+        MAIL_STORE_DIR = (storeDir == null) ? new File(System.getProperty("user.home"), "xcmailrStore")
+                                            : new File(storeDir);
+        MAIL_STORE_SEGMENT_SIZE = ninjaProp.getIntegerWithDefault("mbox.mail.store.segmentsize", 268435456);
+        MB_COUNTER_FLUSH_INTERVAL = ninjaProp.getIntegerWithDefault("mbox.counters.flushinterval", 10);
         MAIL_RETENTION_PERIOD = ninjaProp.getIntegerOrDie("mbox.mail.retentionperiod");
+        EXPIRATION_BATCH_SIZE = ninjaProp.getIntegerWithDefault("mbox.expiration.batchsize", 1000);
         TEMPORARY_MAIL_MAX_VALID_TIME = ninjaProp.getIntegerOrDie("application.temporarymail.maximumvalidtime");
 
         APITOKEN_EXPIRATION = ninjaProp.getIntegerOrDie("application.api.tokenexpirationtime");
+        CACHE_STATISTICS_INTERVAL = ninjaProp.getIntegerWithDefault("application.cache.statisticsinterval", 60);
 
         /*
          * Verify that required settings are valid.
@@ -296,6 +552,113 @@ public class XCMailrConf
                                        + "Otherwise this app will not work");
         }
 
+        if (MB_MAX_CONNECTIONS < 1 || MB_CONNECTION_TIMEOUT < 1 || MB_MAX_RECIPIENTS < 1)
+        {
+            throw new RuntimeException("Keys 'mbox.smtp.maxconnections', 'mbox.smtp.connectiontimeout' and 'mbox.smtp.maxrecipients' must be positive numbers.");
+        }
+
+        if (MB_HIGH_WATER_MARK < 0 || MB_HIGH_WATER_MARK > 100)
+        {
+            throw new RuntimeException("Key 'mbox.smtp.highwatermark' must be a number between 0 and 100.");
+        }
+
+        if (MB_RATE_LIMIT_CLIENT < 0 || MB_RATE_LIMIT_SENDER < 0 || MB_RATE_LIMIT_RECIPIENT < 0
+            || MB_RATE_LIMIT_TARPIT < 0)
+        {
+            throw new RuntimeException("Keys 'mbox.ratelimit.client', 'mbox.ratelimit.sender', 'mbox.ratelimit.recipient' and 'mbox.ratelimit.tarpit' must not be negative.");
+        }
+
+        if (FORWARD_THREADS < 1 || FORWARD_QUEUE_SIZE < 1)
+        {
+            throw new RuntimeException("Keys 'mail.forward.threads' and 'mail.forward.queuesize' must be positive numbers.");
+        }
+
+        if (MAIL_SPOOL_THRESHOLD < 0)
+        {
+            throw new RuntimeException("Key 'mbox.mail.spool.threshold' must not be negative.");
+        }
+
+        if (MAIL_SPOOL_DIR != null && !MAIL_SPOOL_DIR.isDirectory() && !MAIL_SPOOL_DIR.mkdirs())
+        {
+            throw new RuntimeException("Key 'mbox.mail.spool.dir' does not denote a directory and the directory cannot be created: "
+                                       + MAIL_SPOOL_DIR.getAbsolutePath());
+        }
+
+        if (MAIL_WRITE_QUEUE_SIZE < 1 || MAIL_WRITE_BATCH_SIZE < 1)
+        {
+            throw new RuntimeException("Keys 'mbox.mail.write.queuesize' and 'mbox.mail.write.batchsize' must be positive numbers.");
+        }
+
+        if (MAIL_PROCESSING_STATISTICS_INTERVAL < 0)
+        {
+            throw new RuntimeException("Key 'mbox.mail.statisticsinterval' must not be negative.");
+        }
+
+        if (MTX_BATCH_SIZE < 1)
+        {
+            throw new RuntimeException("Key 'mailtransaction.batchsize' must be a positive number.");
+        }
+
+        if (MTX_QUEUE_SIZE < 1)
+        {
+            throw new RuntimeException("Key 'mailtransaction.queuesize' must be a positive number.");
+        }
+
+        if (EXPIRATION_BATCH_SIZE < 1)
+        {
+            throw new RuntimeException("Key 'mbox.expiration.batchsize' must be a positive number.");
+        }
+
+        if (MAIL_COMPRESSION_LEVEL < 0 || MAIL_COMPRESSION_LEVEL > 9)
+        {
+            throw new RuntimeException("Key 'mbox.mail.compression.level' must be a number between 0 and 9.");
+        }
+
+        if (MAIL_COMPRESSION_MIN_SIZE < 0)
+        {
+            throw new RuntimeException("Key 'mbox.mail.compression.minsize' must not be negative.");
+        }
+
+        if (!MAIL_STORE_DATABASE.equals(MAIL_STORE) && !MAIL_STORE_SEGMENTS.equals(MAIL_STORE))
+        {
+            throw new RuntimeException("Key 'mbox.mail.store' is set to an invalid value. Use either '"
+                                       + MAIL_STORE_DATABASE + "' or '" + MAIL_STORE_SEGMENTS + "'.");
+        }
+
+        if (MAIL_STORE_SEGMENT_SIZE < 1)
+        {
+            throw new RuntimeException("Key 'mbox.mail.store.segmentsize' must be a positive number.");
+        }
+
+        if (MAIL_DEDUP_MIN_SIZE < 0)
+        {
+            throw new RuntimeException("Key 'mbox.mail.dedup.minsize' must not be negative.");
+        }
+
+        if (MB_COUNTER_FLUSH_INTERVAL < 1)
+        {
+            throw new RuntimeException("Key 'mbox.counters.flushinterval' must be a positive number.");
+        }
+
+        if (CACHE_STATISTICS_INTERVAL < 0)
+        {
+            throw new RuntimeException("Key 'application.cache.statisticsinterval' must not be negative.");
+        }
+
+        if (OUT_SMTP_POOL_SIZE < 0 || OUT_SMTP_POOL_MAX_MESSAGES < 1 || OUT_SMTP_POOL_MAX_IDLE < 0)
+        {
+            throw new RuntimeException("Key 'mail.smtp.pool.size' must not be negative, 'mail.smtp.pool.maxmessages' "
+                                       + "must be a positive number and 'mail.smtp.pool.maxidle' must not be negative.");
+        }
+
+        if (!FORWARD_REJECTION_CALLER_RUNS.equals(FORWARD_REJECTION_POLICY)
+            && !FORWARD_REJECTION_DROP.equals(FORWARD_REJECTION_POLICY))
+        {
+            throw new RuntimeException("Key 'mail.forward.rejectionpolicy' is set to an invalid value. "
+                                       + "Use either '" + FORWARD_REJECTION_CALLER_RUNS + "' or '"
+                                       + FORWARD_REJECTION_DROP + "'.");
+        }
+
         if (!APP_BASEPATH.isBlank())
         {
             if (!APP_BASEPATH.startsWith("/") || APP_BASEPATH.endsWith("/"))
@@ -169,13 +169,13 @@ public class AdminHandler
     {
         if (time < 0)
         { // all entries will be deleted
-            MailTransaction.deleteTxInPeriod(null);
+            MailTransaction.deleteTxInPeriod(null, xcmConfiguration.MTX_BATCH_SIZE);
         }
         else
         {
             // calculate the time and delete all entries before
             DateTime dt = DateTime.now().minusDays(time);
-            MailTransaction.deleteTxInPeriod(dt.getMillis());
+            MailTransaction.deleteTxInPeriod(dt.getMillis(), xcmConfiguration.MTX_BATCH_SIZE);
         }
 
         return Results.redirect(context.getContextPath() + "/admin/mtxs");
@@ -481,6 +481,7 @@ public class AdminHandler
         // daily top for dropped mail sender
         StringBuilder sql = new StringBuilder();
         sql.append("select ms.FROM_DOMAIN as \"fromDomain\", sum(ms.DROP_COUNT) as \"droppedCount\", sum(ms.FORWARD_COUNT) as \"forwardedCount\"");
+        sql.append(", coalesce(sum(ms.THROTTLE_COUNT), 0) as \"throttledCount\"");
         sql.append("  from MAIL_STATISTICS ms");
         sql.append(" where ms.DATE >= CURRENT_DATE() - ").append(Math.max(lastNDays, 0));
         sql.append(" group by ms.FROM_DOMAIN");
@@ -499,6 +500,7 @@ public class AdminHandler
             ms.id = rowIdx++;
             ms.droppedCount = row.getInteger("droppedCount");
             ms.forwardedCount = row.getInteger("forwardedCount");
+            ms.throttledCount = row.getInteger("throttledCount");
             ms.fromDomain = row.getString("fromDomain");
 
             droppedMailSender.add(ms);
@@ -515,6 +517,7 @@ public class AdminHandler
         validColumns.add("fromDomain");
         validColumns.add("droppedCount");
         validColumns.add("forwardedCount");
+        validColumns.add("throttledCount");
 
         if (validColumns.contains(orderBy))
             orderColumn = orderBy;
@@ -16,7 +16,6 @@
 package controllers;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -33,32 +32,29 @@ import java.util.Optional;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
-import javax.activation.DataSource;
-import javax.mail.internet.MimeMessage;
-
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.RandomStringUtils;
-import org.apache.commons.mail.util.MimeMessageParser;
-import org.apache.commons.mail.util.MimeMessageUtils;
 import org.hibernate.validator.internal.constraintvalidators.EmailValidator;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 
 import io.ebean.DB;
+import io.ebean.Query;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import conf.XCMailrConf;
+import etc.AttachmentDownload;
 import etc.HelperUtils;
+import etc.MailSearch;
 import etc.MailboxEntry;
 import etc.TypeRef;
 import filters.JsonSecureFilter;
 import filters.SecureFilter;
 import models.MBox;
 import models.Mail;
+import models.MailMetadata;
 import models.User;
 import ninja.Context;
 import ninja.FilterWith;
@@ -82,6 +78,11 @@ public class BoxHandler
 {
     private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy");
 
+    /**
+     * the properties of a mail needed to list it
+     */
+    private static final String MAIL_LIST_PROPERTIES = "sender, subject, receiveTime, mailbox, uuid, contentId";
+
     @Inject
     XCMailrConf xcmConfiguration;
 
@@ -667,9 +668,7 @@ public class BoxHandler
         if (!mailBox.belongsTo(user.getId()))
             return result.render("success", false);
 
-        mailBox.resetForwards();
-        mailBox.resetSuppressions();
-        mailBox.update();
+        mailBox.resetCounters();
         return result.render("success", true);
     }
 
@@ -926,12 +925,13 @@ public class BoxHandler
             return ninja.getBadRequestResult(context, null);
         }
 
+        final Map<Long, MailMetadata> metadata = MailMetadata.findForMails(emails);
         final List<MailboxEntry> entries = new LinkedList<>();
         for (int i = 0; i < emails.size(); i++)
         {
             final Mail email = emails.get(i);
 
-            final MailboxEntry mailboxEntry = new MailboxEntry(mailAddress, email);
+            final MailboxEntry mailboxEntry = new MailboxEntry(mailAddress, email, metadata.get(email.getId()));
             final MailboxEntry.Content mailContent = mailboxEntry.mailContent;
             if ((senderPattern == null || senderPattern.matcher(mailboxEntry.sender).find()) //
                 && (subjectPattern == null || subjectPattern.matcher(mailboxEntry.subject).find()) //
@@ -987,10 +987,16 @@ public class BoxHandler
         }
     }
 
+    /**
+     * Lists the mails of all mailboxes of the current user. Without a search phrase, the mails are sorted and paged by
+     * the database. If the mails are sorted by receive time, the position of the last returned mail is passed back as
+     * "next" and can be passed as "after" to get the next page without counting the preceding mails again.
+     */
     @FilterWith(SecureFilter.class)
     public Result queryAllMailboxes(Context context, @Param("offset") final Optional<Integer> offset,
                                     @Param("limit") final Optional<Integer> limit, @Param("sort")final Optional<String> sort,
-                                    @Param("order") final Optional<String> order, @Param("search") final Optional<String> search)
+                                    @Param("order") final Optional<String> order, @Param("search") final Optional<String> search,
+                                    @Param("after") final Optional<String> after)
         throws Exception
     {
         final String formatParameter = context.getParameter("format", "html").toLowerCase();
@@ -1012,44 +1018,92 @@ public class BoxHandler
             final User user = context.getAttribute("user", User.class);
 
             // #61: look up mail boxes freshly
-            final List<?> mailboxIds = DB.find(MBox.class).where().eq("usr_id", user.getId()).findIds();
+            final Map<Long, String> mailboxAddresses = new HashMap<>();
+            for (final MBox mailbox : DB.find(MBox.class).where().eq("usr_id", user.getId()).findList())
+            {
+                mailboxAddresses.put(mailbox.getId(), mailbox.getFullAddress());
+            }
 
-            final List<Mail> mails = DB.find(Mail.class).where().in("mailbox_id", mailboxIds)
-                                          .orderBy(_sort + " " + _order).findList();
+            // never load the messages, the metadata of the visible mails is loaded separately
+            final Query<Mail> query = DB.find(Mail.class).select(MAIL_LIST_PROPERTIES).where()
+                                        .in("mailbox_id", mailboxAddresses.keySet()).query()
+                                        .orderBy(_sort + " " + _order + ", id " + _order);
 
-            final List<MailboxEntry> matches = new ArrayList<>();
+            final int total;
+            final List<Mail> page;
+            String next = null;
+            if (StringUtils.isBlank(_search))
+            {
+                total = query.findCount();
 
-            // there is a searchphrase. prefilter the results
-            // apparent we can't do this in the db since messages are stored encoded
+                if (iLimit == 0)
+                {
+                    page = Collections.emptyList();
+                }
+                else if (after.isPresent())
+                {
+                    // keyset paging: continue after the given mail
+                    final long[] position = parseMailPosition(after.get());
+                    if (position == null || !"receive_time".equals(_sort))
+                    {
+                        return ninja.getBadRequestResult(context, null);
+                    }
+                    final String comparison = "asc".equals(_order) ? ">" : "<";
+                    page = query.where()
+                                .raw("(receive_time " + comparison + " ? OR (receive_time = ? AND id " + comparison
+                                     + " ?))", position[0], position[0], position[1])
+                                .setMaxRows(iLimit).findList();
+                }
+                else
+                {
+                    page = query.setFirstRow(iOffset).setMaxRows(iLimit).findList();
+                }
 
-            for (Mail mail : mails)
+                if (!page.isEmpty() && "receive_time".equals(_sort))
+                {
+                    final Mail last = page.get(page.size() - 1);
+                    next = last.getReceiveTime() + "-" + last.getId();
+                }
+            }
+            else
             {
-                final MBox mailbox = mail.getMailbox();
-                
-                // check if the mailbox of this mail has just been deleted, and, if so, ignore this mail
-                if (mailbox != null)
+                // there is a searchphrase. filter, rank and page the results in the database using the search index
+                final MailSearch mailSearch = new MailSearch(mailboxAddresses.keySet(), _search);
+                total = mailSearch.count();
+                final List<Long> ids = (iOffset < total) ? mailSearch.findIds(_sort, _order, iOffset, iLimit)
+                                                         : Collections.<Long>emptyList();
+
+                // load just that page and keep the ranking
+                final Map<Long, Mail> mails = new HashMap<>();
+                if (!ids.isEmpty())
                 {
-                    final MailboxEntry mailboxEntry = new MailboxEntry(mailbox.getFullAddress(), mail);
-    
-                    if (StringUtils.isBlank(_search) || mailboxEntry.matchesSearchPhrase(_search))
+                    for (final Mail mail : query.where().idIn(ids).findList())
                     {
-                        matches.add(mailboxEntry);
+                        mails.put(mail.getId(), mail);
+                    }
+                }
+                page = new ArrayList<>(ids.size());
+                for (final Long id : ids)
+                {
+                    final Mail mail = mails.get(id);
+                    if (mail != null)
+                    {
+                        page.add(mail);
                     }
                 }
             }
 
-            final int nbMatches = matches.size();
-            final List<MailboxEntry> result;
-            if (iOffset >= nbMatches || iLimit == 0)
-            {
-                result = Collections.emptyList();
-            }
-            else
+            // only the requested page needs the metadata
+            final Map<Long, MailMetadata> metadata = MailMetadata.findForMails(page);
+            final List<MailboxEntry> result = new ArrayList<>(page.size());
+            for (final Mail mail : page)
             {
-                result = matches.subList(iOffset, Math.min(iOffset + iLimit, nbMatches));
+                result.add(new MailboxEntry(mailboxAddresses.get(mail.getMailboxId()), mail,
+                                            metadata.get(mail.getId())));
             }
 
-            return Results.json().render("rows", result).render("total", mails.size());
+            final Result json = Results.json().render("rows", result).render("total", total);
+            return (next == null) ? json : json.render("next", next);
         }
         else
         {
@@ -1057,6 +1111,28 @@ public class BoxHandler
         }
     }
 
+    /**
+     * Parses a position in the mail list as returned by {@link #queryAllMailboxes}, i.e. the receive time and the ID of
+     * a mail separated by a dash.
+     *
+     * @return the receive time and the ID, or <code>null</code> if the position is invalid
+     */
+    private static long[] parseMailPosition(String position)
+    {
+        final int separator = position.lastIndexOf('-');
+        try
+        {
+            return new long[]
+                {
+                    Long.parseLong(position.substring(0, separator)), Long.parseLong(position.substring(separator + 1))
+                };
+        }
+        catch (NumberFormatException | IndexOutOfBoundsException e)
+        {
+            return null;
+        }
+    }
+
     private String getOrderColumn(String orderBy)
     {
         return ("subject".equals(orderBy) || "sender".equals(orderBy)) ? orderBy : "receive_time";
@@ -1072,7 +1148,7 @@ public class BoxHandler
                                          @PathParam("filename") String filename)
         throws Exception
     {
-        List<Mail> foundMails = DB.find(Mail.class).where().eq("uuid", downloadToken).findList();
+        List<Mail> foundMails = Mail.findByUuid(downloadToken);
 
         if (foundMails.isEmpty())
         {
@@ -1080,32 +1156,8 @@ public class BoxHandler
         }
         Mail mail = foundMails.get(0);
 
-        MimeMessage mimeMessage = MimeMessageUtils.createMimeMessage(null, mail.getMessage());
-        MimeMessageParser mimeMessageParser = new MimeMessageParser(mimeMessage);
-        mimeMessageParser.parse();
-
-        DataSource foundAttachment = null;
-        for (DataSource attachment : mimeMessageParser.getAttachmentList())
-        {
-            if (attachment.getName().equals(filename))
-            {
-                foundAttachment = attachment;
-                break;
-            }
-        }
-
-        if (foundAttachment == null)
-        {
-            return ninja.getNotFoundResult(context);
-        }
-
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
-        try (final InputStream is = foundAttachment.getInputStream())
-        {
-            IOUtils.copy(is, baos);
-        }
-
-        return Results.ok().contentType(foundAttachment.getContentType()).renderRaw(baos.toByteArray());
+        final Result result = AttachmentDownload.serve(context, mail, filename);
+        return (result != null) ? result : ninja.getNotFoundResult(context);
     }
 
     @SuppressWarnings("unchecked")
@@ -15,9 +15,7 @@
  */
 package controllers.restapi;
 
-import java.io.IOException;
-
-import javax.activation.DataSource;
+import models.MailAttachment;
 
 /**
  * The data object that represents the details of a mail attachment.
@@ -30,10 +28,10 @@ public class AttachmentData
 
     public final int size;
 
-    public AttachmentData(final DataSource attachment) throws IOException
+    public AttachmentData(final MailAttachment attachment)
     {
         name = attachment.getName();
         contentType = attachment.getContentType();
-        size = attachment.getInputStream().available();
+        size = attachment.getSize();
     }
 }
@@ -17,15 +17,11 @@ package controllers.restapi;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
-import javax.activation.DataSource;
-import javax.mail.internet.MimeMessage;
-
-import org.apache.commons.mail.util.MimeMessageParser;
-import org.apache.commons.mail.util.MimeMessageUtils;
 import org.hibernate.validator.constraints.NotBlank;
 import org.slf4j.Logger;
 
@@ -35,10 +31,11 @@ import controllers.restapi.util.AbstractApiController;
 import controllers.restapi.util.ApiResults;
 import controllers.restapi.util.DbId;
 import controllers.restapi.util.Email;
-import etc.StreamRenderable;
+import etc.AttachmentDownload;
 import filters.ApiTokenFilter;
 import models.MBox;
 import models.Mail;
+import models.MailMetadata;
 import ninja.Context;
 import ninja.Result;
 import ninja.Results;
@@ -252,10 +249,11 @@ public class MailApiController extends AbstractApiController
         final List<Mail> mails = Mail.findAndSort(mailbox.getId());
 
         // filter mails
+        final Map<Long, MailMetadata> metadata = MailMetadata.findForMails(mails);
         List<MailData> filteredMails = new LinkedList<>();
         for (final Mail mail : mails)
         {
-            final MailData mailData = new MailData(mail);
+            final MailData mailData = new MailData(mail, mailbox.getFullAddress(), metadata.get(mail.getId()));
 
             if ((senderPattern == null || senderPattern.matcher(mailData.sender).find()) //
                 && (subjectPattern == null || subjectPattern.matcher(mailData.subject).find()) //
@@ -324,20 +322,8 @@ public class MailApiController extends AbstractApiController
     {
         try
         {
-            final MimeMessage mimeMessage = MimeMessageUtils.createMimeMessage(null, mail.getMessage());
-            final MimeMessageParser mimeMessageParser = new MimeMessageParser(mimeMessage);
-            mimeMessageParser.parse();
-
-            for (final DataSource attachment : mimeMessageParser.getAttachmentList())
-            {
-                if (attachment.getName().equals(attachmentName))
-                {
-                    return Results.ok().render(new StreamRenderable(attachment.getInputStream(),
-                                                                    attachment.getContentType()));
-                }
-            }
-
-            return ApiResults.notFound();
+            final Result result = AttachmentDownload.serve(context, mail, attachmentName);
+            return (result != null) ? result : ApiResults.notFound();
         }
         catch (final Exception e)
         {
@@ -18,15 +18,11 @@ package controllers.restapi;
 import java.util.LinkedList;
 import java.util.List;
 
-import javax.activation.DataSource;
-import javax.mail.internet.MimeMessage;
-
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.mail.util.MimeMessageParser;
-import org.apache.commons.mail.util.MimeMessageUtils;
 
-import etc.HelperUtils;
 import models.Mail;
+import models.MailAttachment;
+import models.MailMetadata;
 
 /**
  * The data object that represents the details of a mail.
@@ -52,27 +48,26 @@ public class MailData
     public final String headers;
 
     public MailData(final Mail mail) throws Exception
+    {
+        this(mail, mail.getMailbox().getFullAddress(), MailMetadata.findForMail(mail));
+    }
+
+    public MailData(final Mail mail, final String recipient, final MailMetadata metadata)
     {
         id = mail.getId();
-        recipient = mail.getMailbox().getFullAddress();
+        this.recipient = recipient;
         sender = mail.getSender();
         subject = StringUtils.defaultString(mail.getSubject());
         receivedTime = mail.getReceiveTime();
 
-        final byte[] rawContent = mail.getMessage();
-
-        if (rawContent != null && rawContent.length > 0)
+        if (metadata != null)
         {
-            final MimeMessage mimeMessage = MimeMessageUtils.createMimeMessage(null, rawContent);
-            final MimeMessageParser mimeMessageParser = new MimeMessageParser(mimeMessage);
-            mimeMessageParser.parse();
-
-            headers = HelperUtils.getHeaderText(mimeMessage);
+            headers = metadata.getHeaders();
 
-            textContent = mimeMessageParser.getPlainContent();
-            htmlContent = mimeMessageParser.getHtmlContent();
+            textContent = metadata.getTextContent();
+            htmlContent = metadata.getHtmlContent();
 
-            for (final DataSource attachment : mimeMessageParser.getAttachmentList())
+            for (final MailAttachment attachment : metadata.getAttachments())
             {
                 attachments.add(new AttachmentData(attachment));
             }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package db.migration;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces the indexes on the normalized addresses of users and mailboxes with unique ones, so an address can't be
+ * taken twice, not even in a different case.
+ * <p>
+ * If some addresses are already taken twice, the conflicts are logged and the migration fails without changing
+ * anything. Resolve the conflicts (e.g. by renaming or deleting one of the users or mailboxes) and start the
+ * application again with <code>ninja.migration.repairOnMigrate=true</code>.
+ */
+public class V12__Add_Unique_Address_Indexes extends BaseJavaMigration
+{
+    private static final Logger log = LoggerFactory.getLogger(V12__Add_Unique_Address_Indexes.class);
+
+    private static final String USER_CONFLICTS = "SELECT normalized_mail, LISTAGG(id, ',') WITHIN GROUP (ORDER BY id) FROM users "
+                                                 + "WHERE normalized_mail IS NOT NULL GROUP BY normalized_mail HAVING COUNT(*) > 1";
+
+    private static final String MAILBOX_CONFLICTS = "SELECT normalized_address, LISTAGG(id, ',') WITHIN GROUP (ORDER BY id) FROM mailboxes "
+                                                    + "WHERE normalized_address IS NOT NULL GROUP BY normalized_address HAVING COUNT(*) > 1";
+
+    @Override
+    public void migrate(Context context) throws Exception
+    {
+        final Connection connection = context.getConnection();
+
+        final StringBuilder report = new StringBuilder();
+        final int userConflicts = findConflicts(connection, USER_CONFLICTS, "users", report);
+        final int mailboxConflicts = findConflicts(connection, MAILBOX_CONFLICTS, "mailboxes", report);
+        if (userConflicts + mailboxConflicts > 0)
+        {
+            log.error("The following addresses are taken more than once:" + report);
+            throw new RuntimeException("Found " + userConflicts + " user and " + mailboxConflicts
+                                       + " mailbox address(es) that are taken more than once");
+        }
+
+        try (final Statement statement = connection.createStatement())
+        {
+            statement.execute("DROP INDEX IF EXISTS ix_users_normalized_mail");
+            statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS uq_users_normalized_mail ON users (normalized_mail)");
+            statement.execute("DROP INDEX IF EXISTS ix_mailboxes_normalized_address");
+            statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS uq_mailboxes_normalized_address ON mailboxes (normalized_address)");
+        }
+    }
+
+    /**
+     * Appends the addresses found by the given query and the IDs of their owners to the report.
+     *
+     * @return the number of conflicting addresses
+     */
+    private static int findConflicts(Connection connection, String query, String table, StringBuilder report)
+        throws SQLException
+    {
+        int count = 0;
+        try (final Statement statement = connection.createStatement();
+             final ResultSet rs = statement.executeQuery(query))
+        {
+            while (rs.next())
+            {
+                report.append("\n    ").append(table).append("    Mail-Address: ").append(rs.getString(1))
+                      .append("    IDs: ").append(rs.getString(2));
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.mail.util.MimeMessageParser;
+import org.apache.commons.mail.util.MimeMessageUtils;
+
+import io.ebean.DB;
+import models.Mail;
+import models.MailAttachment;
+import models.MailContent;
+import ninja.Context;
+import ninja.Result;
+import ninja.Results;
+import ninja.utils.NoHttpBody;
+
+/**
+ * Serves the attachments of mails. If the offset of an attachment in the message is known, its body is streamed from
+ * the stored message and decoded on the fly, so neither the message nor the attachment is held in memory. The length,
+ * encoding and decoded size of the body are stored when the mail is received, so the body is decoded only once per
+ * request. Single byte ranges (Range and If-Range) and conditional requests (If-None-Match) are supported. The
+ * attachment is identified by an ETag derived from the content and the index of the attachment, as stored contents
+ * never change.
+ */
+public final class AttachmentDownload
+{
+    private AttachmentDownload()
+    {
+    }
+
+    /**
+     * Returns the result that serves the attachment with the given name of the given mail.
+     *
+     * @param context
+     *            the current context
+     * @param mail
+     *            the mail
+     * @param name
+     *            the name of the attachment
+     * @return the result, or <code>null</code> if the mail has no such attachment
+     * @throws Exception
+     *             if the message could not be read or parsed
+     */
+    public static Result serve(final Context context, final Mail mail, final String name) throws Exception
+    {
+        final Long contentId = mail.getContentId();
+        if (contentId != null)
+        {
+            final MailAttachment attachment = DB.find(MailAttachment.class).where().eq("contentId", contentId)
+                                                .eq("name", name).orderBy("attachmentIndex").setMaxRows(1).findOne();
+            if (attachment != null && attachment.getPartOffset() >= 0)
+            {
+                final String etag = "\"" + contentId + "-" + attachment.getAttachmentIndex() + "\"";
+                if (attachment.getPartLength() != null && isKnownEncoding(attachment.getPartEncoding()))
+                {
+                    // everything was determined when the mail was received
+                    return render(context, etag, attachment.getContentType(), attachment.getSize(),
+                                  () -> openPart(contentId, attachment.getPartOffset(), attachment.getPartLength(),
+                                                 attachment.getPartEncoding()));
+                }
+
+                // stored before the part length was recorded, so look the part up in the message
+                final MessageSplitter.Part part;
+                try (final InputStream in = MailContent.openMessage(contentId))
+                {
+                    part = (in == null) ? null : MessageSplitter.locate(in, attachment.getPartOffset());
+                }
+                if (part != null && isKnownEncoding(part.getEncoding()))
+                {
+                    return render(context, etag, attachment.getContentType(), -1,
+                                  () -> openPart(contentId, part.getStart(), part.getLength(), part.getEncoding()));
+                }
+            }
+        }
+
+        // the attachment can't be located in the stored message, so parse the whole message
+        final MimeMessage mimeMessage = MimeMessageUtils.createMimeMessage(null, mail.getMessage());
+        final MimeMessageParser mimeMessageParser = new MimeMessageParser(mimeMessage);
+        mimeMessageParser.parse();
+
+        final List<DataSource> attachments = mimeMessageParser.getAttachmentList();
+        for (int i = 0; i < attachments.size(); i++)
+        {
+            final DataSource attachment = attachments.get(i);
+            if (name.equals(attachment.getName()))
+            {
+                final String etag = "\"m" + mail.getId() + "-" + i + "\"";
+                return render(context, etag, attachment.getContentType(), -1, attachment::getInputStream);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens the decoded body of the part at the given position of the message of the content with the given ID.
+     */
+    private static InputStream openPart(final long contentId, final long start, final long length,
+                                        final String encoding)
+        throws IOException
+    {
+        final InputStream message = MailContent.openMessage(contentId);
+        if (message == null)
+        {
+            throw new IOException("Mail content " + contentId + " was removed");
+        }
+        try
+        {
+            IOUtils.skipFully(message, start);
+            final InputStream body = new BoundedInputStream(message, length);
+            return MimeUtility.decode(body, StringUtils.defaultIfEmpty(encoding, "7bit"));
+        }
+        catch (IOException | MessagingException | RuntimeException e)
+        {
+            message.close();
+            throw new IOException("Failed to open the attachment of mail content " + contentId, e);
+        }
+    }
+
+    private static boolean isKnownEncoding(final String encoding)
+    {
+        return encoding == null || encoding.isEmpty()
+               || List.of("base64", "quoted-printable", "7bit", "8bit", "binary").contains(encoding);
+    }
+
+    /**
+     * Renders the content provided by the given opener, or the requested range of it. If the size of the content is
+     * unknown, it is sent chunked. Only if a range is requested, the size is determined by decoding the content once
+     * without keeping it.
+     */
+    private static Result render(final Context context, final String etag, final String contentType,
+                                 final long knownSize, final StreamOpener opener)
+        throws IOException
+    {
+        final String ifNoneMatch = context.getHeader("If-None-Match");
+        if (ifNoneMatch != null && matches(ifNoneMatch, etag))
+        {
+            return Results.status(Result.SC_304_NOT_MODIFIED).addHeader("ETag", etag).render(new NoHttpBody());
+        }
+
+        final String ifRange = context.getHeader("If-Range");
+        final String rangeHeader = (ifRange == null || ifRange.trim().equals(etag)) ? context.getHeader("Range") : null;
+        if (rangeHeader == null)
+        {
+            final InputStream content = (knownSize < 0) ? opener.open() : new BoundedInputStream(opener.open(), knownSize);
+            return Results.ok().addHeader("Accept-Ranges", "bytes").addHeader("ETag", etag)
+                          .render(new StreamRenderable(content, contentType, knownSize));
+        }
+
+        final long size;
+        if (knownSize >= 0)
+        {
+            size = knownSize;
+        }
+        else
+        {
+            try (final InputStream in = opener.open())
+            {
+                size = IOUtils.consume(in);
+            }
+        }
+        final long[] range = parseRange(rangeHeader, size);
+        if (range != null && range.length == 0)
+        {
+            return Results.status(416).addHeader("Content-Range", "bytes */" + size).addHeader("ETag", etag)
+                          .render(new NoHttpBody());
+        }
+
+        final InputStream stream = opener.open();
+        final Result result;
+        final long length;
+        if (range == null)
+        {
+            result = Results.ok();
+            length = size;
+        }
+        else
+        {
+            try
+            {
+                IOUtils.skipFully(stream, range[0]);
+            }
+            catch (IOException e)
+            {
+                stream.close();
+                throw e;
+            }
+            length = range[1] - range[0] + 1;
+            result = Results.status(206).addHeader("Content-Range",
+                                                   "bytes " + range[0] + "-" + range[1] + "/" + size);
+        }
+
+        final InputStream content = new BoundedInputStream(stream, length);
+        return result.addHeader("Accept-Ranges", "bytes").addHeader("ETag", etag)
+                     .render(new StreamRenderable(content, contentType, length));
+    }
+
+    private static boolean matches(final String ifNoneMatch, final String etag)
+    {
+        for (final String tag : ifNoneMatch.split(","))
+        {
+            final String trimmed = StringUtils.removeStart(tag.trim(), "W/");
+            if (trimmed.equals("*") || trimmed.equals(etag))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the given Range header. Only a single byte range is supported, other headers are ignored.
+     *
+     * @param header
+     *            the header value, may be <code>null</code>
+     * @param size
+     *            the size of the content
+     * @return the first and last byte of the range, <code>null</code> if the whole content is to be served, or an
+     *         empty array if the range can't be satisfied
+     */
+    static long[] parseRange(final String header, final long size)
+    {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0)
+        {
+            return null;
+        }
+
+        final String spec = header.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0)
+        {
+            return null;
+        }
+
+        final long first;
+        final long last;
+        try
+        {
+            if (dash == 0)
+            {
+                // the last n bytes
+                final long suffixLength = Long.parseLong(spec.substring(1));
+                if (suffixLength == 0)
+                {
+                    return new long[0];
+                }
+                first = Math.max(0, size - suffixLength);
+                last = size - 1;
+            }
+            else
+            {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = (dash == spec.length() - 1) ? size - 1
+                                                   : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+                if (last < first && first < size)
+                {
+                    return null;
+                }
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+
+        if (first >= size)
+        {
+            return new long[0];
+        }
+        return new long[]
+            {
+                first, last
+            };
+    }
+
+    /**
+     * Opens the stream of the content to serve.
+     */
+    private interface StreamOpener
+    {
+        InputStream open() throws IOException;
+    }
+}
@@ -15,17 +15,15 @@
  */
 package etc;
 
-import java.io.IOException;
-
-import javax.activation.DataSource;
+import models.MailAttachment;
 
 public class AttachmentEntry
 {
-    public AttachmentEntry(DataSource attachment) throws IOException
+    public AttachmentEntry(MailAttachment attachment)
     {
         this.name = attachment.getName();
         this.contentType = attachment.getContentType();
-        this.size = attachment.getInputStream().available();
+        this.size = attachment.getSize();
     }
 
     public String name;
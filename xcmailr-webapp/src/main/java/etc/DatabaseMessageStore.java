@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.io.InputStream;
+
+/**
+ * A {@link MessageStore} that keeps the data in the database rows, i.e. the messages are stored as BLOBs like any
+ * other column.
+ */
+public class DatabaseMessageStore implements MessageStore
+{
+    @Override
+    public Location write(InputStream data)
+    {
+        return null;
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.mail.util.MimeMessageParser;
+
+import models.MailAttachment;
+import models.MailMetadata;
+
+/**
+ * Extracts the {@link MailMetadata} from a raw message.
+ */
+public final class MailMetadataExtractor
+{
+    private MailMetadataExtractor()
+    {
+    }
+
+    /**
+     * Parses the given raw message and returns its metadata.
+     *
+     * @param message
+     *            the raw message
+     * @return the metadata, or <code>null</code> if the message is empty
+     * @throws Exception
+     *             if the message could not be parsed
+     */
+    public static MailMetadata extract(byte[] message) throws Exception
+    {
+        if (message == null || message.length == 0)
+        {
+            return null;
+        }
+        try (final MailSpool spool = MailSpool.spool(new ByteArrayInputStream(message), Integer.MAX_VALUE,
+                                                     Integer.MAX_VALUE, null))
+        {
+            return extract(spool);
+        }
+    }
+
+    /**
+     * Parses the raw message in the given spool and returns its metadata.
+     *
+     * @param spool
+     *            the raw message
+     * @return the metadata, or <code>null</code> if the message is empty
+     * @throws Exception
+     *             if the message could not be parsed
+     */
+    public static MailMetadata extract(MailSpool spool) throws Exception
+    {
+        if (spool.getSize() == 0)
+        {
+            return null;
+        }
+
+        try (final InputStream in = spool.getInputStream())
+        {
+            final MimeMessage mimeMessage = new MimeMessage((Session) null, in);
+            final MimeMessageParser mimeMessageParser = new MimeMessageParser(mimeMessage);
+            mimeMessageParser.parse();
+
+            final List<DataSource> attachmentList = mimeMessageParser.getAttachmentList();
+            final List<MessageSplitter.Part> parts = getAttachmentParts(mimeMessage, spool);
+
+            final List<MailAttachment> attachments = new ArrayList<>(attachmentList.size());
+            for (int i = 0; i < attachmentList.size(); i++)
+            {
+                final DataSource attachment = attachmentList.get(i);
+                final MessageSplitter.Part part = (parts.size() == attachmentList.size()) ? parts.get(i) : null;
+                final long decodedLength = (part != null) ? getDecodedLength(part, spool) : -1;
+                if (decodedLength >= 0 && decodedLength <= Integer.MAX_VALUE)
+                {
+                    // the download streams the body from the located part and needs its exact size
+                    attachments.add(new MailAttachment(attachment.getName(), attachment.getContentType(),
+                                                       (int) decodedLength,
+                                                       part.getStart(), part.getLength(), part.getEncoding()));
+                }
+                else
+                {
+                    attachments.add(new MailAttachment(attachment.getName(), attachment.getContentType(),
+                                                       attachment.getInputStream().available(),
+                                                       (part != null) ? part.getStart() : -1));
+                }
+            }
+
+            return new MailMetadata(mimeMessageParser.getPlainContent(), mimeMessageParser.getHtmlContent(),
+                                    HelperUtils.getHeaderText(mimeMessage), attachments);
+        }
+    }
+
+    /**
+     * Returns the decoded size of the given part body, as served by {@link AttachmentDownload}.
+     *
+     * @return the number of bytes, or -1 if the body can't be decoded
+     */
+    private static long getDecodedLength(MessageSplitter.Part part, MailSpool spool)
+    {
+        try (final InputStream in = MimeUtility.decode(spool.getInputStream(part.getStart(), part.getEnd()),
+                                                       StringUtils.defaultIfEmpty(part.getEncoding(), "7bit")))
+        {
+            return IOUtils.consume(in);
+        }
+        catch (IOException | MessagingException | RuntimeException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the attachment bodies in the raw message. The leaf parts are classified the same way as
+     * {@link MimeMessageParser} does it, i.e. the first inline text and HTML part are the content, all other leaf parts
+     * are attachments.
+     *
+     * @return the attachments in the order they appear in the message, or an empty list if the message structure could
+     *         not be located in the raw message
+     */
+    private static List<MessageSplitter.Part> getAttachmentParts(MimeMessage mimeMessage, MailSpool spool)
+        throws Exception
+    {
+        final List<Part> leaves = new ArrayList<>();
+        collectLeaves(mimeMessage, leaves);
+
+        final List<MessageSplitter.Part> ranges = MessageSplitter.locate(spool);
+        final List<MessageSplitter.Part> attachments = new ArrayList<>();
+        if (ranges.size() != leaves.size())
+        {
+            return attachments;
+        }
+
+        boolean plainFound = false;
+        boolean htmlFound = false;
+        for (int i = 0; i < leaves.size(); i++)
+        {
+            final Part leaf = leaves.get(i);
+            final boolean inline = !Part.ATTACHMENT.equalsIgnoreCase(leaf.getDisposition());
+            if (!plainFound && inline && leaf.isMimeType("text/plain"))
+            {
+                plainFound = true;
+            }
+            else if (!htmlFound && inline && leaf.isMimeType("text/html"))
+            {
+                htmlFound = true;
+            }
+            else
+            {
+                attachments.add(ranges.get(i));
+            }
+        }
+        return attachments;
+    }
+
+    private static void collectLeaves(Part part, List<Part> leaves) throws Exception
+    {
+        if (part.isMimeType("multipart/*"))
+        {
+            final Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++)
+            {
+                collectLeaves(multipart.getBodyPart(i), leaves);
+            }
+        }
+        else
+        {
+            leaves.add(part);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import io.ebean.DB;
+import io.ebean.SqlQuery;
+import models.MailSearchTerm;
+
+/**
+ * Searches the mails of a user. The search phrase is split into terms, see {@link SearchTerms}, and every term has to
+ * match, so the order of the terms doesn't matter. A term matches if it is contained in the subject, the sender or
+ * the mailbox address of a mail, or if a term of the text or HTML content starts with it, see
+ * {@link MailSearchTerm}. Terms longer than {@link SearchTerms#MAX_LENGTH} are cut for the content lookup, as they
+ * are in the index. The matches are ranked by where the terms were found.
+ * <p>
+ * Matching, ranking, counting and paging are all done by the database, only the IDs of the requested page of mails
+ * are returned.
+ */
+public final class MailSearch
+{
+    private static final double SUBJECT_WEIGHT = 4;
+
+    private static final double SENDER_WEIGHT = 2;
+
+    private static final double ADDRESS_WEIGHT = 1;
+
+    private final Collection<Long> mailboxIds;
+
+    /**
+     * the tables to search in, including one aggregated lookup in the search index per term
+     */
+    private final StringBuilder from = new StringBuilder("mail m JOIN mailboxes b ON b.id = m.mailbox_id");
+
+    /**
+     * the condition that all terms match
+     */
+    private final StringBuilder where = new StringBuilder("m.mailbox_id IN (:mailboxIds)");
+
+    /**
+     * the expression ranking a mail, the higher the better
+     */
+    private final StringBuilder score = new StringBuilder("0");
+
+    private final Map<String, Object> parameters = new HashMap<>();
+
+    /**
+     * Prepares a search for the given phrase in the given mailboxes.
+     *
+     * @param mailboxIds
+     *            the IDs of the mailboxes to search in
+     * @param phrase
+     *            the search phrase
+     */
+    public MailSearch(Collection<Long> mailboxIds, String phrase)
+    {
+        this.mailboxIds = mailboxIds;
+        parameters.put("mailboxIds", mailboxIds);
+
+        final Set<String> terms = new LinkedHashSet<>(SearchTerms.tokenize(phrase));
+        if (terms.isEmpty())
+        {
+            // nothing to look up in the index, e.g. just punctuation
+            terms.add(phrase.toLowerCase(Locale.ROOT));
+        }
+
+        int i = 0;
+        for (final String term : terms)
+        {
+            final String contained = "l" + i;
+            final String prefix = "p" + i;
+            final String body = "t" + i;
+            parameters.put(contained, "%" + escapeLike(term) + "%");
+            // the index holds terms cut to their maximum length, so longer terms have to be cut the same way
+            parameters.put(prefix, escapeLike(StringUtils.left(term, SearchTerms.MAX_LENGTH)) + "%");
+
+            from.append(" LEFT JOIN (SELECT t.content_id, SUM(t.frequency) AS frequency FROM mail_search_term t")
+                .append(" WHERE t.term LIKE :").append(prefix)
+                .append(" AND t.content_id IN (SELECT content_id FROM mail WHERE mailbox_id IN (:mailboxIds))")
+                .append(" GROUP BY t.content_id) ").append(body).append(" ON ").append(body)
+                .append(".content_id = m.content_id");
+
+            final String subjectMatch = "LOWER(m.subject) LIKE :" + contained;
+            final String senderMatch = "LOWER(m.sender) LIKE :" + contained;
+            final String addressMatch = "b.normalized_address LIKE :" + contained;
+            final String bodyMatch = body + ".frequency IS NOT NULL";
+
+            where.append(" AND (").append(subjectMatch).append(" OR ").append(senderMatch).append(" OR ")
+                 .append(addressMatch).append(" OR ").append(bodyMatch).append(')');
+
+            // more occurrences in the content count, but less and less
+            score.append(" + CASE WHEN ").append(subjectMatch).append(" THEN ").append(SUBJECT_WEIGHT).append(" ELSE 0 END")
+                 .append(" + CASE WHEN ").append(senderMatch).append(" THEN ").append(SENDER_WEIGHT).append(" ELSE 0 END")
+                 .append(" + CASE WHEN ").append(addressMatch).append(" THEN ").append(ADDRESS_WEIGHT).append(" ELSE 0 END")
+                 .append(" + CASE WHEN ").append(bodyMatch).append(" THEN 1 + LN(").append(body)
+                 .append(".frequency) ELSE 0 END");
+            i++;
+        }
+    }
+
+    /**
+     * @return the number of matching mails
+     */
+    public int count()
+    {
+        if (mailboxIds.isEmpty())
+        {
+            return 0;
+        }
+        return createQuery("SELECT COUNT(*) FROM " + from + " WHERE " + where).mapToScalar(Integer.class).findOne();
+    }
+
+    /**
+     * Returns the IDs of the matching mails, the best matches first. Mails that match equally well are sorted by the
+     * given column.
+     *
+     * @param sortColumn
+     *            the column of the mail table to sort equal matches by
+     * @param direction
+     *            the sort direction, either "asc" or "desc"
+     * @param offset
+     *            the number of matches to skip
+     * @param limit
+     *            the maximum number of matches to return
+     * @return the IDs of the matching mails
+     */
+    public List<Long> findIds(String sortColumn, String direction, int offset, int limit)
+    {
+        if (mailboxIds.isEmpty() || limit <= 0)
+        {
+            return Collections.emptyList();
+        }
+        final String sql = "SELECT m.id FROM " + from + " WHERE " + where + " ORDER BY " + score + " DESC, m."
+                           + sortColumn + " " + direction + ", m.id " + direction;
+        return new ArrayList<>(createQuery(sql).setFirstRow(offset).setMaxRows(limit).mapToScalar(Long.class)
+                                               .findList());
+    }
+
+    private SqlQuery createQuery(String sql)
+    {
+        final SqlQuery query = DB.sqlQuery(sql);
+        for (final Map.Entry<String, Object> parameter : parameters.entrySet())
+        {
+            query.setParameter(parameter.getKey(), parameter.getValue());
+        }
+        return query;
+    }
+
+    /**
+     * Escapes the wildcards of a LIKE pattern in the given text.
+     */
+    private static String escapeLike(String text)
+    {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the raw data of a received mail. Small mails are kept in memory, larger ones are written to a spool file, so
+ * the heap usage per SMTP session is bounded by the in-memory threshold instead of by the maximum mail size.
+ * <p>
+ * The streams returned by {@link #getInputStream()} implement {@link javax.mail.internet.SharedInputStream}, so a
+ * {@link javax.mail.internet.MimeMessage} created from them reads its content from the spool instead of copying it.
+ * Such a message must not be used anymore after the spool has been closed. All streams of a spool share one open spool
+ * file, no matter how many are handed out.
+ * <p>
+ * A spool may be used by several parties concurrently, each of them {@link #retain() retains} the spool and
+ * {@link #close() closes} it when done. The data is released when the last party closed the spool.
+ */
+public class MailSpool implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(MailSpool.class);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * the data if it is kept in memory, <code>null</code> otherwise
+     */
+    private final byte[] data;
+
+    /**
+     * the spool file if the data is not kept in memory, <code>null</code> otherwise
+     */
+    private final File file;
+
+    private final long size;
+
+    /**
+     * the stream all streams handed out are derived from, so they share one file descriptor, opened on first use and
+     * closed together with the spool
+     */
+    private InputStream root;
+
+    /**
+     * the number of parties using this spool
+     */
+    private int references = 1;
+
+    private boolean closed;
+
+    private MailSpool(byte[] data, File file, long size)
+    {
+        this.data = data;
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Reads the given stream into a new spool. Up to memoryThreshold bytes are kept in memory, if there's more data,
+     * everything is written to a file in the given directory instead. Reading stops as soon as more than maxSize bytes
+     * were read.
+     *
+     * @param data
+     *            the mail data
+     * @param maxSize
+     *            the maximum number of bytes to accept
+     * @param memoryThreshold
+     *            the maximum number of bytes to keep in memory
+     * @param spoolDir
+     *            the directory for the spool files, or <code>null</code> for the default temp directory
+     * @return the spool
+     * @throws SizeLimitExceededException
+     *             if the data exceeds maxSize bytes
+     * @throws IOException
+     *             if an I/O error occurred
+     */
+    public static MailSpool spool(InputStream data, int maxSize, int memoryThreshold, File spoolDir)
+        throws IOException
+    {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.min(BUFFER_SIZE, memoryThreshold));
+        OutputStream out = memory;
+        File file = null;
+        long count = 0;
+
+        try
+        {
+            int read;
+            while ((read = data.read(buffer)) != -1)
+            {
+                count += read;
+                if (count > maxSize)
+                {
+                    throw new SizeLimitExceededException("Data stream exceeds size limit of " + maxSize + " bytes");
+                }
+
+                if (file == null && count > memoryThreshold)
+                {
+                    // too large to keep in memory -> move what we have so far to a file
+                    file = File.createTempFile("xcmailr-", ".eml", spoolDir);
+                    out = new FileOutputStream(file);
+                    memory.writeTo(out);
+                    memory.reset();
+                }
+                out.write(buffer, 0, read);
+            }
+            out.close();
+        }
+        catch (IOException e)
+        {
+            IOUtils.closeQuietly(out);
+            deleteFile(file);
+            throw e;
+        }
+
+        return file == null ? new MailSpool(memory.toByteArray(), null, count) : new MailSpool(null, file, count);
+    }
+
+    /**
+     * @return the number of bytes in this spool
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return whether the data is kept in memory
+     */
+    public boolean isInMemory()
+    {
+        return file == null;
+    }
+
+    /**
+     * Registers another party using this spool, which has to {@link #close()} the spool when done.
+     *
+     * @return this spool
+     * @throws IllegalStateException
+     *             if the spool is already closed
+     */
+    public synchronized MailSpool retain()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Mail spool is already closed");
+        }
+        references++;
+        return this;
+    }
+
+    /**
+     * Returns a new stream for the data in this spool. The stream is closed when the spool is closed.
+     *
+     * @return the stream
+     * @throws IOException
+     *             if the spool file cannot be opened
+     */
+    public InputStream getInputStream() throws IOException
+    {
+        return getInputStream(0, -1);
+    }
+
+    /**
+     * Returns a new stream for the given range of the data in this spool. The stream is closed when the spool is
+     * closed.
+     *
+     * @param start
+     *            the offset of the first byte
+     * @param end
+     *            the offset of the first byte after the range, or -1 for the end of the data
+     * @return the stream
+     * @throws IOException
+     *             if the spool file cannot be opened
+     */
+    public synchronized InputStream getInputStream(long start, long end) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Mail spool is already closed");
+        }
+
+        if (root == null)
+        {
+            root = (file == null) ? new SharedByteArrayInputStream(data) : new SharedFileInputStream(file);
+        }
+        return ((SharedInputStream) root).newStream(start, end);
+    }
+
+    /**
+     * Releases the spool. If no other party uses it anymore, all streams of this spool are closed and the spool file,
+     * if any, is deleted.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (closed || --references > 0)
+        {
+            return;
+        }
+        closed = true;
+
+        // closing the root stream closes the file for all streams derived from it
+        if (root != null)
+        {
+            try
+            {
+                root.close();
+            }
+            catch (IOException e)
+            {
+                log.debug("Failed to close mail spool stream", e);
+            }
+            root = null;
+        }
+
+        deleteFile(file);
+    }
+
+    private static void deleteFile(File file)
+    {
+        if (file != null && !file.delete() && file.exists())
+        {
+            log.warn("Failed to delete mail spool file '{}'", file.getAbsolutePath());
+        }
+    }
+}
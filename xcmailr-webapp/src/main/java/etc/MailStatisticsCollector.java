@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.sql.Date;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import models.MailStatisticsKey;
+
+/**
+ * Counts dropped, forwarded and throttled mails per quarter hour, sender domain and target domain as they occur. The
+ * counts are taken by {@link #drain()} and added to the stored {@link models.MailStatistics} periodically, so the
+ * single events don't have to be kept until then.
+ */
+public class MailStatisticsCollector
+{
+    private final Map<MailStatisticsKey, StatisticsEntry> counts = new ConcurrentHashMap<>();
+
+    /**
+     * the quarter hour of the last counted event, most events fall into it
+     */
+    private volatile QuarterHour currentQuarterHour = new QuarterHour(0L);
+
+    /**
+     * Counts a mail transaction if it's relevant for the statistics, i.e. if it was dropped (status 100), forwarded
+     * (status 300) or throttled (status 700, 800 or 900). Transactions without a valid sender or target domain are
+     * ignored.
+     *
+     * @param status
+     *            the status of the transaction
+     * @param timestamp
+     *            the time of the transaction
+     * @param sourceAddress
+     *            the sender address
+     * @param relayAddress
+     *            the address of the mailbox
+     */
+    public void count(int status, long timestamp, String sourceAddress, String relayAddress)
+    {
+        if (status != 100 && status != 300 && status != 700 && status != 800 && status != 900)
+        {
+            return;
+        }
+
+        final String targetDomain = getDomainOfEmail(relayAddress);
+        final String sourceDomain = getDomainOfEmail(sourceAddress);
+        // neither 'targetDomain' nor 'sourceDomain' must be null
+        if (targetDomain == null || sourceDomain == null)
+        {
+            return;
+        }
+
+        QuarterHour quarterHour = currentQuarterHour;
+        if (!quarterHour.contains(timestamp))
+        {
+            quarterHour = new QuarterHour(timestamp);
+            currentQuarterHour = quarterHour;
+        }
+        final MailStatisticsKey key = new MailStatisticsKey(quarterHour.date, quarterHour.quarterHourOfDay,
+                                                            sourceDomain, targetDomain);
+
+        // the entry is changed while the map holds the lock of its key, so no count gets lost by a concurrent drain
+        counts.compute(key, (k, entry) -> {
+            if (entry == null)
+            {
+                entry = new StatisticsEntry();
+            }
+            if (status == 100)
+            {
+                entry.incrementDropCount();
+            }
+            else if (status == 300)
+            {
+                entry.incrementForwardCount();
+            }
+            else
+            {
+                entry.incrementThrottleCount();
+            }
+            return entry;
+        });
+    }
+
+    /**
+     * Returns the counts collected so far and starts over.
+     *
+     * @return the counts
+     */
+    public Map<MailStatisticsKey, StatisticsEntry> drain()
+    {
+        final Map<MailStatisticsKey, StatisticsEntry> drained = new HashMap<>();
+        for (final MailStatisticsKey key : counts.keySet())
+        {
+            final StatisticsEntry entry = counts.remove(key);
+            if (entry != null)
+            {
+                drained.put(key, entry);
+            }
+        }
+        return drained;
+    }
+
+    private static String getDomainOfEmail(String email)
+    {
+        final String[] parts = HelperUtils.splitMailAddress(email);
+        if (parts != null && parts.length > 1)
+        {
+            return parts[1];
+        }
+
+        return null;
+    }
+
+    /**
+     * A quarter hour of a day in the default time zone.
+     */
+    private static final class QuarterHour
+    {
+        private final long start;
+
+        private final long end;
+
+        private final Date date;
+
+        private final int quarterHourOfDay;
+
+        private QuarterHour(long timestamp)
+        {
+            final Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(timestamp);
+            quarterHourOfDay = calendar.get(Calendar.HOUR_OF_DAY) * 4 + calendar.get(Calendar.MINUTE) / 15;
+
+            calendar.set(Calendar.MINUTE, (calendar.get(Calendar.MINUTE) / 15) * 15);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            start = calendar.getTimeInMillis();
+            calendar.add(Calendar.MINUTE, 15);
+            end = calendar.getTimeInMillis();
+
+            calendar.setTimeInMillis(start);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            date = new Date(calendar.getTimeInMillis());
+        }
+
+        private boolean contains(long timestamp)
+        {
+            return timestamp >= start && timestamp < end;
+        }
+    }
+}
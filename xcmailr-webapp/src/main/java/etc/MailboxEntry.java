@@ -21,17 +21,14 @@ import java.util.Base64;
 import java.util.LinkedList;
 import java.util.List;
 
-import javax.activation.DataSource;
-import javax.mail.internet.MimeMessage;
-
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.mail.util.MimeMessageParser;
-import org.apache.commons.mail.util.MimeMessageUtils;
 
 import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import models.Mail;
+import models.MailAttachment;
+import models.MailMetadata;
 
 public class MailboxEntry
 {
@@ -49,7 +46,7 @@ public class MailboxEntry
     public final List<AttachmentEntry> attachments = new LinkedList<>();
 
     @JsonIgnore
-    private final byte[] rawContent;
+    private final Mail mail;
 
     @JsonIgnore
     public final String mailHeader;
@@ -57,29 +54,30 @@ public class MailboxEntry
     public final String downloadToken;
 
     public MailboxEntry(String mailAddress, Mail mail) throws Exception
+    {
+        this(mailAddress, mail, MailMetadata.findForMail(mail));
+    }
+
+    public MailboxEntry(String mailAddress, Mail mail, MailMetadata metadata)
     {
         this.mailAddress = mailAddress;
         this.sender = mail.getSender();
-        this.rawContent = mail.getMessage();
+        this.mail = mail;
 
         this.subject = StringUtils.defaultString(mail.getSubject());
         this.receivedTime = mail.getReceiveTime();
         this.downloadToken = mail.getUuid();
 
-        if (rawContent != null && rawContent.length > 0)
+        if (metadata != null)
         {
-            MimeMessage mimeMessage = MimeMessageUtils.createMimeMessage(null, rawContent);
-            MimeMessageParser mimeMessageParser = new MimeMessageParser(mimeMessage);
-            mimeMessageParser.parse();
+            this.mailHeader = metadata.getHeaders();
 
-            this.mailHeader = HelperUtils.getHeaderText(mimeMessage);
-
-            final String textContentDecoded = StringUtils.defaultString(mimeMessageParser.getPlainContent());
-            final String htmlContentDecoded = StringUtils.defaultString(mimeMessageParser.getHtmlContent());
+            final String textContentDecoded = StringUtils.defaultString(metadata.getTextContent());
+            final String htmlContentDecoded = StringUtils.defaultString(metadata.getHtmlContent());
 
             this.mailContent = new Content(textContentDecoded, htmlContentDecoded);
 
-            for (DataSource attachment : mimeMessageParser.getAttachmentList())
+            for (MailAttachment attachment : metadata.getAttachments())
             {
                 attachments.add(new AttachmentEntry(attachment));
             }
@@ -92,22 +90,7 @@ public class MailboxEntry
 
     }
 
-    public boolean matchesSearchPhrase(String phrase)
-    {
-        phrase = phrase.toLowerCase();
-        return mailAddress.toLowerCase().contains(phrase) || sender.toLowerCase().contains(phrase)
-               || subject.toLowerCase().contains(phrase) || contentContainsIgnoreCase(phrase);
-    }
-
-    private boolean contentContainsIgnoreCase(final String phrase)
-    {
-        if (mailContent != null)
-        {
-            return mailContent.text.toLowerCase().contains(phrase) || mailContent.html.toLowerCase().contains(phrase);
-        }
-        return false;
-    }
-
+    @JsonIgnore
     public String getRawContent()
     {
         return getRawContent(StandardCharsets.UTF_8);
@@ -115,7 +98,7 @@ public class MailboxEntry
 
     public String getRawContent(final Charset cs)
     {
-        return new String(rawContent, cs);
+        return new String(mail.getMessage(), cs);
     }
 
     @JsonGetter
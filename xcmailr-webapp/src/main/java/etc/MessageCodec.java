@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Encodes raw messages for storage in the database. An encoded message starts with a zero byte, which never starts an
+ * RFC 822 message, followed by a format byte and the compressed data. Messages that are not encoded are stored as
+ * they are, so messages stored before compression was introduced can still be read.
+ * <p>
+ * MIME part bodies may start with any byte, so a part is always stored with the marker and the format byte, which is
+ * {@link #FORMAT_NONE} if the part was not compressed. See {@link #encodePart(InputStream, long, int, int)} and
+ * {@link #decodePart(InputStream)}.
+ */
+public final class MessageCodec
+{
+    /**
+     * the first byte of an encoded message
+     */
+    private static final byte MARKER = 0;
+
+    /**
+     * the format byte of parts that are stored as they are
+     */
+    static final byte FORMAT_NONE = 0;
+
+    /**
+     * the format byte of deflate-compressed messages
+     */
+    static final byte FORMAT_DEFLATE = 1;
+
+    private static final int HEADER_LENGTH = 2;
+
+    /**
+     * the deflate level used by {@link #encode(byte[])}
+     */
+    private static volatile int defaultLevel = 6;
+
+    /**
+     * the minimum message size used by {@link #encode(byte[])}
+     */
+    private static volatile int defaultMinSize = 1024;
+
+    private MessageCodec()
+    {
+    }
+
+    /**
+     * @param data
+     *            the stored message
+     * @return whether or not the given message is encoded
+     */
+    public static boolean isEncoded(byte[] data)
+    {
+        return data != null && data.length >= HEADER_LENGTH && data[0] == MARKER;
+    }
+
+    /**
+     * Sets the compression settings used by {@link #encode(byte[])}.
+     *
+     * @param level
+     *            the deflate level (1-9), 0 to disable compression
+     * @param minSize
+     *            the minimum size of a message to be compressed
+     */
+    public static void setDefaults(int level, int minSize)
+    {
+        defaultLevel = level;
+        defaultMinSize = minSize;
+    }
+
+    /**
+     * Compresses the given raw message with the settings set via {@link #setDefaults(int, int)}.
+     *
+     * @param data
+     *            the raw message
+     * @return the message to store
+     */
+    public static byte[] encode(byte[] data)
+    {
+        return encode(data, defaultLevel, defaultMinSize);
+    }
+
+    /**
+     * Compresses the given raw message if compression is enabled and the message is large enough.
+     *
+     * @param data
+     *            the raw message
+     * @param level
+     *            the deflate level (1-9), 0 to disable compression
+     * @param minSize
+     *            the minimum size of a message to be compressed
+     * @return the message to store
+     */
+    public static byte[] encode(byte[] data, int level, int minSize)
+    {
+        if (data == null || level == 0 || data.length < minSize || isEncoded(data))
+        {
+            return data;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + HEADER_LENGTH);
+        out.write(MARKER);
+        out.write(FORMAT_DEFLATE);
+
+        final Deflater deflater = new Deflater(level);
+        try (final DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater))
+        {
+            deflaterOut.write(data);
+        }
+        catch (IOException e)
+        {
+            // cannot happen with an in-memory stream
+            throw new UncheckedIOException(e);
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        // don't bother if it doesn't save anything
+        return out.size() < data.length ? out.toByteArray() : data;
+    }
+
+    /**
+     * Like {@link #encode(byte[], int, int)}, but compresses the given stream into a spool, so large messages don't
+     * have to be held in memory. As with byte arrays, the compressed message is only used if it is smaller than the
+     * raw one.
+     *
+     * @param data
+     *            the raw message, which is closed when done
+     * @param size
+     *            the size of the raw message
+     * @param level
+     *            the deflate level (1-9), 0 to disable compression
+     * @param minSize
+     *            the minimum size of a message to be compressed
+     * @param memoryThreshold
+     *            the maximum number of bytes of the spool to keep in memory, see {@link MailSpool}
+     * @param spoolDir
+     *            the directory for the spool file, or <code>null</code> for the default temp directory
+     * @return the spool holding the message to store, or <code>null</code> if the raw message is to be stored as it
+     *         is
+     * @throws IOException
+     *             if the stream could not be read or the spool could not be written
+     */
+    public static MailSpool encode(InputStream data, long size, int level, int minSize, int memoryThreshold,
+                                   File spoolDir)
+        throws IOException
+    {
+        if (level == 0 || size < minSize)
+        {
+            return null;
+        }
+        return spoolIfSmaller(deflate(data, level), size, memoryThreshold, spoolDir);
+    }
+
+    /**
+     * Encodes the given MIME part body. Other than {@link #encode(InputStream, long, int, int)}, the returned stream
+     * always starts with the marker and the format byte, even if the part is not compressed. The returned stream must
+     * be closed to release the compressor.
+     *
+     * @param data
+     *            the part body
+     * @param size
+     *            the size of the part body
+     * @param level
+     *            the deflate level (1-9), 0 to disable compression
+     * @param minSize
+     *            the minimum size of a part to be compressed
+     * @return the stream providing the part to store
+     */
+    public static InputStream encodePart(InputStream data, long size, int level, int minSize)
+    {
+        if (level == 0 || size < minSize)
+        {
+            return new SequenceInputStream(new ByteArrayInputStream(new byte[]
+                {
+                    MARKER, FORMAT_NONE
+                }), data);
+        }
+        return deflate(data, level);
+    }
+
+    /**
+     * Like {@link #encodePart(InputStream, long, int, int)}, but compresses the given stream into a spool. The
+     * compressed part is only used if it is smaller than the raw one.
+     *
+     * @param data
+     *            the part body, which is closed when done
+     * @param size
+     *            the size of the part body
+     * @param level
+     *            the deflate level (1-9), 0 to disable compression
+     * @param minSize
+     *            the minimum size of a part to be compressed
+     * @param memoryThreshold
+     *            the maximum number of bytes of the spool to keep in memory, see {@link MailSpool}
+     * @param spoolDir
+     *            the directory for the spool file, or <code>null</code> for the default temp directory
+     * @return the spool holding the part to store, or <code>null</code> if the part is to be stored uncompressed, see
+     *         {@link #encodePart(InputStream, long, int, int)} with level 0
+     * @throws IOException
+     *             if the stream could not be read or the spool could not be written
+     */
+    public static MailSpool encodePart(InputStream data, long size, int level, int minSize, int memoryThreshold,
+                                       File spoolDir)
+        throws IOException
+    {
+        if (getEncodedPartLength(size, level, minSize) >= 0)
+        {
+            return null;
+        }
+        return spoolIfSmaller(deflate(data, level), size + HEADER_LENGTH, memoryThreshold, spoolDir);
+    }
+
+    /**
+     * Returns the number of bytes {@link #encodePart(InputStream, long, int, int)} produces for a part of the given
+     * size, if known in advance.
+     *
+     * @param size
+     *            the size of the part body
+     * @param level
+     *            the deflate level (1-9), 0 to disable compression
+     * @param minSize
+     *            the minimum size of a part to be compressed
+     * @return the size of the encoded part, or -1 if the part is compressed
+     */
+    public static long getEncodedPartLength(long size, int level, int minSize)
+    {
+        return (level == 0 || size < minSize) ? size + HEADER_LENGTH : -1;
+    }
+
+    /**
+     * Reads the given encoded data into a spool, unless it turns out to be at least as large as the given size.
+     */
+    private static MailSpool spoolIfSmaller(InputStream encoded, long size, int memoryThreshold, File spoolDir)
+        throws IOException
+    {
+        final MailSpool spool;
+        try (final InputStream in = encoded)
+        {
+            // don't bother if it doesn't save anything
+            spool = MailSpool.spool(new BoundedInputStream(in, size), Integer.MAX_VALUE, memoryThreshold, spoolDir);
+        }
+        if (spool.getSize() >= size)
+        {
+            spool.close();
+            return null;
+        }
+        return spool;
+    }
+
+    private static InputStream deflate(InputStream data, int level)
+    {
+        final Deflater deflater = new Deflater(level);
+        final InputStream compressed = new DeflaterInputStream(data, deflater)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                super.close();
+                deflater.end();
+            }
+        };
+        return new SequenceInputStream(new ByteArrayInputStream(new byte[]
+            {
+                MARKER, FORMAT_DEFLATE
+            }), compressed);
+    }
+
+    /**
+     * Returns the raw message of the given stored message.
+     *
+     * @param data
+     *            the stored message
+     * @return the raw message
+     * @throws UncheckedIOException
+     *             if the message is corrupt or has an unknown format
+     */
+    public static byte[] decode(byte[] data)
+    {
+        if (!isEncoded(data))
+        {
+            return data;
+        }
+        try (final InputStream in = decode(new ByteArrayInputStream(data)))
+        {
+            return IOUtils.toByteArray(in);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Failed to decompress message", e);
+        }
+    }
+
+    /**
+     * Returns the body of the given stored MIME part.
+     *
+     * @param data
+     *            the stored part
+     * @return the part body
+     * @throws UncheckedIOException
+     *             if the part is corrupt or has an unknown format
+     */
+    public static byte[] decodePart(byte[] data)
+    {
+        try (final InputStream in = decodePart(new ByteArrayInputStream(data)))
+        {
+            return IOUtils.toByteArray(in);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Failed to decode part", e);
+        }
+    }
+
+    /**
+     * Returns a stream of the body of the given stored MIME part, which is decompressed on the fly.
+     *
+     * @param data
+     *            the stream of the stored part
+     * @return the stream of the part body
+     * @throws IOException
+     *             if the stream cannot be read or the part has no header or an unknown format
+     */
+    public static InputStream decodePart(InputStream data) throws IOException
+    {
+        final int marker = data.read();
+        final int format = data.read();
+        if (marker != MARKER || format == -1)
+        {
+            throw new IOException("Part is not encoded");
+        }
+        return decode(data, format);
+    }
+
+    /**
+     * Returns a stream of the raw message of the given stored message, which is decompressed on the fly.
+     *
+     * @param data
+     *            the stream of the stored message
+     * @return the stream of the raw message
+     * @throws IOException
+     *             if the stream cannot be read or the message has an unknown format
+     */
+    public static InputStream decode(InputStream data) throws IOException
+    {
+        final BufferedInputStream in = new BufferedInputStream(data);
+        in.mark(HEADER_LENGTH);
+        final int marker = in.read();
+        final int format = in.read();
+        if (marker != MARKER || format == -1)
+        {
+            in.reset();
+            return in;
+        }
+        return decode(in, format);
+    }
+
+    /**
+     * Returns a stream of the raw data of the given stream, which is positioned right after the header.
+     */
+    private static InputStream decode(InputStream data, int format) throws IOException
+    {
+        switch (format)
+        {
+            case FORMAT_NONE:
+                return data;
+            case FORMAT_DEFLATE:
+                return new InflaterInputStream(data);
+            default:
+                throw new IOException("Unknown message format: " + format);
+        }
+    }
+}
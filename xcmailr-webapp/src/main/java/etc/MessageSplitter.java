@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.internet.ContentType;
+import javax.mail.internet.ParseException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Finds the bodies of the leaf MIME parts of a raw message, e.g. attachments, so they can be stored separately and
+ * shared by all messages containing the same part. The message is not decoded, a part is the exact byte range between
+ * the header of the part and the delimiter line following it, so the message can be reassembled byte by byte.
+ */
+public final class MessageSplitter
+{
+    /**
+     * the number of bytes of a line to keep for parsing, longer lines can't be headers or delimiters we're interested
+     * in
+     */
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private MessageSplitter()
+    {
+    }
+
+    /**
+     * Returns the leaf parts of the message in the given spool which are at least minPartSize bytes long, in the order
+     * they appear in the message.
+     *
+     * @param spool
+     *            the raw message
+     * @param minPartSize
+     *            the minimum size of a part
+     * @return the parts
+     * @throws IOException
+     *             if the spool cannot be read
+     */
+    public static List<Part> split(MailSpool spool, int minPartSize) throws IOException
+    {
+        final List<Part> ranges;
+        try (final InputStream in = spool.getInputStream())
+        {
+            ranges = new Scanner(in).scan(minPartSize, -1);
+        }
+
+        final List<Part> parts = new ArrayList<>(ranges.size());
+        for (final Part range : ranges)
+        {
+            try (final InputStream in = spool.getInputStream(range.start, range.end))
+            {
+                parts.add(new Part(range.start, range.end, range.encoding, sha256(in)));
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Returns all leaf parts of the message in the given spool, in the order they appear in the message. Other than
+     * {@link #split(MailSpool, int)}, no hashes are computed.
+     *
+     * @param spool
+     *            the raw message
+     * @return the parts
+     * @throws IOException
+     *             if the spool cannot be read
+     */
+    public static List<Part> locate(MailSpool spool) throws IOException
+    {
+        try (final InputStream in = spool.getInputStream())
+        {
+            return new Scanner(in).scan(0, -1);
+        }
+    }
+
+    /**
+     * Returns the leaf part of the given message whose body starts at the given offset. The message is read only up
+     * to the end of that part. Other than {@link #split(MailSpool, int)}, no hash is computed.
+     *
+     * @param message
+     *            the raw message
+     * @param start
+     *            the offset of the first byte of the part body in the message
+     * @return the part, or <code>null</code> if there's no leaf part starting at the given offset
+     * @throws IOException
+     *             if the message cannot be read
+     */
+    public static Part locate(InputStream message, long start) throws IOException
+    {
+        final List<Part> parts = new Scanner(message).scan(0, start);
+        final Part part = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+        return (part != null && part.start == start) ? part : null;
+    }
+
+    private static String sha256(InputStream in) throws IOException
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every JRE has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            digest.update(buffer, 0, read);
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * A leaf part of a message.
+     */
+    public static class Part
+    {
+        private final long start;
+
+        private final long end;
+
+        private final String encoding;
+
+        private final String hash;
+
+        Part(long start, long end, String encoding, String hash)
+        {
+            this.start = start;
+            this.end = end;
+            this.encoding = encoding;
+            this.hash = hash;
+        }
+
+        /**
+         * @return the offset of the first byte of the part body in the message
+         */
+        public long getStart()
+        {
+            return start;
+        }
+
+        /**
+         * @return the offset of the first byte after the part body in the message
+         */
+        public long getEnd()
+        {
+            return end;
+        }
+
+        /**
+         * @return the number of bytes in the part body
+         */
+        public long getLength()
+        {
+            return end - start;
+        }
+
+        /**
+         * @return the lower-cased content transfer encoding of the part body, <code>null</code> if not specified
+         */
+        public String getEncoding()
+        {
+            return encoding;
+        }
+
+        /**
+         * @return the hex encoded SHA-256 hash of the part body, <code>null</code> if not computed
+         */
+        public String getHash()
+        {
+            return hash;
+        }
+    }
+
+    /**
+     * Reads a message line by line and keeps track of the MIME structure.
+     */
+    private static class Scanner
+    {
+        private final InputStream in;
+
+        private final byte[] line = new byte[MAX_LINE_LENGTH];
+
+        /**
+         * the number of bytes of the current line kept in {@link #line}, without the line terminator
+         */
+        private int lineLength;
+
+        /**
+         * the offset of the current line in the message
+         */
+        private long lineStart;
+
+        /**
+         * the offset of the end of the current line's content, i.e. of its line terminator
+         */
+        private long lineContentEnd;
+
+        /**
+         * the offset of the next byte to read
+         */
+        private long position;
+
+        /**
+         * whether the header read by {@link #readHeader()} was terminated by an empty line
+         */
+        private boolean readHeaderEnded;
+
+        /**
+         * the content transfer encoding of the header read by {@link #readHeader()}, <code>null</code> if not specified
+         */
+        private String readHeaderEncoding;
+
+        private Scanner(InputStream in)
+        {
+            this.in = new BufferedInputStream(in);
+        }
+
+        /**
+         * @param stopAt
+         *            the offset of the part body after which the scan stops, or -1 to scan the whole message
+         */
+        private List<Part> scan(int minPartSize, long stopAt) throws IOException
+        {
+            final List<Part> ranges = new ArrayList<>();
+
+            // the boundaries of the enclosing multiparts, innermost first
+            final LinkedList<String> boundaries = new LinkedList<>();
+
+            String boundary = readHeader();
+            if (boundary == null)
+            {
+                // not a multipart, there's nothing to share
+                return ranges;
+            }
+            boundaries.push(boundary);
+
+            long partStart = -1;
+            long partEnd = -1;
+            String partEncoding = null;
+            while (readLine())
+            {
+                final int depth = findDelimiter(boundaries);
+                if (depth < 0)
+                {
+                    if (partStart >= 0)
+                    {
+                        partEnd = lineContentEnd;
+                    }
+                    continue;
+                }
+
+                // a delimiter ends the current part, the line break before it belongs to the delimiter
+                if (partStart >= 0 && partEnd - partStart >= minPartSize)
+                {
+                    ranges.add(new Part(partStart, partEnd, partEncoding, null));
+                    if (partStart == stopAt)
+                    {
+                        return ranges;
+                    }
+                }
+                partStart = -1;
+
+                for (int i = 0; i < depth; i++)
+                {
+                    // inner multiparts that were not closed properly
+                    boundaries.pop();
+                }
+                if (isCloseDelimiter(boundaries.peek()))
+                {
+                    boundaries.pop();
+                    continue;
+                }
+
+                boundary = readHeader();
+                if (!readHeaderEnded)
+                {
+                    break;
+                }
+                if (boundary != null)
+                {
+                    boundaries.push(boundary);
+                }
+                else
+                {
+                    partStart = position;
+                    partEnd = position;
+                    partEncoding = readHeaderEncoding;
+                }
+            }
+
+            if (partStart >= 0 && partEnd - partStart >= minPartSize)
+            {
+                // the message ended without a close delimiter
+                ranges.add(new Part(partStart, partEnd, partEncoding, null));
+            }
+            return ranges;
+        }
+
+        /**
+         * Reads the header of an entity up to and including the empty line.
+         *
+         * @return the boundary if the entity is a multipart, <code>null</code> otherwise
+         */
+        private String readHeader() throws IOException
+        {
+            readHeaderEnded = false;
+            readHeaderEncoding = null;
+            final StringBuilder contentType = new StringBuilder();
+            boolean inContentType = false;
+            while (readLine())
+            {
+                if (lineLength == 0)
+                {
+                    readHeaderEnded = true;
+                    break;
+                }
+
+                final String headerLine = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+                if (headerLine.startsWith(" ") || headerLine.startsWith("\t"))
+                {
+                    // folded header line
+                    if (inContentType)
+                    {
+                        contentType.append(headerLine);
+                    }
+                }
+                else
+                {
+                    final String lowerCaseLine = headerLine.toLowerCase(Locale.ROOT);
+                    inContentType = lowerCaseLine.startsWith("content-type:");
+                    if (inContentType)
+                    {
+                        contentType.setLength(0);
+                        contentType.append(headerLine.substring("content-type:".length()));
+                    }
+                    else if (lowerCaseLine.startsWith("content-transfer-encoding:"))
+                    {
+                        readHeaderEncoding = lowerCaseLine.substring("content-transfer-encoding:".length()).trim();
+                    }
+                }
+            }
+
+            if (contentType.length() == 0)
+            {
+                return null;
+            }
+            try
+            {
+                final ContentType type = new ContentType(contentType.toString().trim());
+                return type.match("multipart/*") ? type.getParameter("boundary") : null;
+            }
+            catch (ParseException e)
+            {
+                // treat it as a leaf, it's stored as it is anyway
+                return null;
+            }
+        }
+
+        /**
+         * @return the index of the boundary the current line is a delimiter for, or -1 if it's not a delimiter
+         */
+        private int findDelimiter(List<String> boundaries)
+        {
+            if (lineLength < 2 || line[0] != '-' || line[1] != '-')
+            {
+                return -1;
+            }
+
+            int depth = 0;
+            for (final String boundary : boundaries)
+            {
+                if (startsWithBoundary(boundary))
+                {
+                    return depth;
+                }
+                depth++;
+            }
+            return -1;
+        }
+
+        private boolean startsWithBoundary(String boundary)
+        {
+            final int length = boundary.length();
+            if (lineLength < length + 2)
+            {
+                return false;
+            }
+            for (int i = 0; i < length; i++)
+            {
+                if (line[i + 2] != (byte) boundary.charAt(i))
+                {
+                    return false;
+                }
+            }
+
+            // only "--" and whitespace may follow the boundary
+            for (int i = length + 2; i < lineLength; i++)
+            {
+                final byte b = line[i];
+                if (b != '-' && b != ' ' && b != '\t')
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isCloseDelimiter(String boundary)
+        {
+            final int length = boundary.length() + 2;
+            return lineLength >= length + 2 && line[length] == '-' && line[length + 1] == '-';
+        }
+
+        /**
+         * Reads the next line.
+         *
+         * @return <code>false</code> if the end of the message was reached
+         */
+        private boolean readLine() throws IOException
+        {
+            lineStart = position;
+            lineLength = 0;
+
+            int b;
+            boolean cr = false;
+            while ((b = in.read()) != -1)
+            {
+                position++;
+                if (b == '\n')
+                {
+                    lineContentEnd = position - (cr ? 2 : 1);
+                    return true;
+                }
+                if (cr)
+                {
+                    // a lone CR is part of the content
+                    append('\r');
+                }
+                cr = (b == '\r');
+                if (!cr)
+                {
+                    append(b);
+                }
+            }
+
+            if (cr)
+            {
+                append('\r');
+            }
+            lineContentEnd = position;
+            return position > lineStart;
+        }
+
+        private void append(int b)
+        {
+            if (lineLength < MAX_LINE_LENGTH)
+            {
+                line[lineLength] = (byte) b;
+            }
+            // count it anyway, so a long line doesn't look like an empty one
+            lineLength = Math.min(lineLength + 1, MAX_LINE_LENGTH);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stores the raw messages (see {@link models.MailContent}) and the shared MIME parts (see {@link models.MailPart}). A
+ * store either keeps the data in the database rows themselves or writes it somewhere else and returns a
+ * {@link Location}, which is saved in the row instead of the data.
+ * <p>
+ * Data written somewhere else is read, and its space reclaimed, by {@link SegmentMessageStore}, no matter which store
+ * new data is written to, so data stays readable when the store is changed.
+ */
+public interface MessageStore extends Closeable
+{
+    /**
+     * Writes the given data.
+     *
+     * @param data
+     *            the stream providing the data, it is read up to its end but not closed
+     * @return where the data was written to, or <code>null</code> if the data is to be stored in the database row
+     * @throws IOException
+     *             if the data could not be written
+     */
+    Location write(InputStream data) throws IOException;
+
+    /**
+     * Makes sure that all data written so far is on disk. Must be called before the locations of the data are
+     * committed to the database. Calling it once for a batch of written data is enough.
+     *
+     * @throws IOException
+     *             if the data could not be forced to disk
+     */
+    void flush() throws IOException;
+
+    /**
+     * The position of data written by a {@link MessageStore}.
+     */
+    public static class Location
+    {
+        private final long segment;
+
+        private final long offset;
+
+        private final long length;
+
+        public Location(long segment, long offset, long length)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return the ID of the segment holding the data
+         */
+        public long getSegment()
+        {
+            return segment;
+        }
+
+        /**
+         * @return the offset of the data in the segment
+         */
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        /**
+         * @return the number of bytes
+         */
+        public long getLength()
+        {
+            return length;
+        }
+    }
+}
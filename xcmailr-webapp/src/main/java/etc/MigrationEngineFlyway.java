@@ -27,7 +27,7 @@ import ninja.utils.NinjaProperties;
 /**
  * Code taken from {@link ninja.migrations.flyway.MigrationEngineFlyway}.
  * <p>
- * Customized to use EBean property values and to enable automatic baseline of DB.
+ * Customized to use EBean property values and to enable automatic baseline and repair of DB.
  */
 @Singleton
 public class MigrationEngineFlyway implements MigrationEngine
@@ -49,6 +49,7 @@ public class MigrationEngineFlyway implements MigrationEngine
         String connectionPassword = ninjaProperties.getOrDie(NinjaEbeanProperties.EBEAN_DATASOURCE_PASSWORD);
 
         boolean baselineOnMigrate = ninjaProperties.getBooleanWithDefault("ninja.migration.baselineOnMigrate", false);
+        boolean repairOnMigrate = ninjaProperties.getBooleanWithDefault("ninja.migration.repairOnMigrate", false);
 
         // We migrate automatically => if you do not want that (eg in production)
         // set ninja.migration.run=false in application.conf
@@ -62,6 +63,12 @@ public class MigrationEngineFlyway implements MigrationEngine
             flyway.clean();
         }
 
+        // remove the failed migrations from the history, so they are run again
+        if (repairOnMigrate)
+        {
+            flyway.repair();
+        }
+
         flyway.migrate();
     }
 
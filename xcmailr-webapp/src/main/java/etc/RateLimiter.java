@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of events per key with a token bucket for each key. A bucket holds up to the configured number of
+ * permits per minute and is refilled continuously, so short bursts up to that number are allowed, but on average only
+ * the configured rate is.
+ * <p>
+ * Buckets of keys that weren't used for a while are removed when the number of keys exceeds {@link #MAX_KEYS}, but at
+ * most once per {@link #SWEEP_INTERVAL}. If there are still {@link #HARD_MAX_KEYS} keys, e.g. because a flood brings
+ * in new keys faster than their buckets are refilled, the least recently used buckets are evicted until
+ * {@link #MAX_KEYS} are left. The evicted keys start over with a full bucket.
+ */
+public class RateLimiter
+{
+    /**
+     * the number of keys from which on unused buckets are removed
+     */
+    static final int MAX_KEYS = 10000;
+
+    /**
+     * the number of keys from which on the least recently used buckets are evicted
+     */
+    static final int HARD_MAX_KEYS = 2 * MAX_KEYS;
+
+    /**
+     * the minimum time between two removals of unused buckets, in nanoseconds
+     */
+    static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private final int permitsPerMinute;
+
+    private final double permitsPerNano;
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * whether the buckets were swept before, i.e. whether {@link #nextSweep} is set
+     */
+    private volatile boolean swept;
+
+    /**
+     * the time from which on the buckets may be swept again
+     */
+    private volatile long nextSweep;
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param permitsPerMinute
+     *            the number of permits per minute and key, 0 for no limit
+     */
+    public RateLimiter(int permitsPerMinute)
+    {
+        this.permitsPerMinute = permitsPerMinute;
+        this.permitsPerNano = permitsPerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+    }
+
+    /**
+     * @return whether or not this limiter limits anything at all
+     */
+    public boolean isEnabled()
+    {
+        return permitsPerMinute > 0;
+    }
+
+    /**
+     * Takes a permit for the given key.
+     *
+     * @param key
+     *            the key, e.g. an address
+     * @return <code>true</code> if a permit was available, <code>false</code> if the rate for the key is exceeded
+     */
+    public boolean tryAcquire(String key)
+    {
+        return tryAcquire(key, System.nanoTime());
+    }
+
+    boolean tryAcquire(String key, long now)
+    {
+        if (!isEnabled())
+        {
+            return true;
+        }
+
+        Bucket bucket = buckets.get(key);
+        if (bucket == null)
+        {
+            if (isSweepDue(now))
+            {
+                sweep(now);
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new Bucket(permitsPerMinute, now));
+        }
+        return bucket.tryAcquire(now);
+    }
+
+    /**
+     * @return the number of keys tracked by this limiter
+     */
+    public int size()
+    {
+        return buckets.size();
+    }
+
+    private boolean isSweepDue(long now)
+    {
+        final int size = buckets.size();
+        return size >= HARD_MAX_KEYS || (size > MAX_KEYS && (!swept || now - nextSweep >= 0));
+    }
+
+    /**
+     * Removes the buckets that were refilled completely, i.e. whose keys weren't limited lately. If there are still too
+     * many, the least recently used ones are evicted.
+     */
+    private synchronized void sweep(long now)
+    {
+        // another thread may have swept meanwhile
+        if (!isSweepDue(now))
+        {
+            return;
+        }
+        swept = true;
+        nextSweep = now + SWEEP_INTERVAL;
+
+        buckets.values().removeIf(bucket -> bucket.isFull(now));
+        if (buckets.size() < HARD_MAX_KEYS)
+        {
+            return;
+        }
+
+        // the last uses are copied first, as they may change while sorting
+        final List<Map.Entry<String, Long>> lastUses = new ArrayList<>(buckets.size());
+        for (final Map.Entry<String, Bucket> entry : buckets.entrySet())
+        {
+            lastUses.add(new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue().getLastUse()));
+        }
+        lastUses.sort(Map.Entry.comparingByValue());
+        for (int i = 0; i < lastUses.size() - MAX_KEYS; i++)
+        {
+            buckets.remove(lastUses.get(i).getKey());
+        }
+    }
+
+    /**
+     * The permits left for one key.
+     */
+    private class Bucket
+    {
+        private double permits;
+
+        private long lastRefill;
+
+        private Bucket(double permits, long now)
+        {
+            this.permits = permits;
+            this.lastRefill = now;
+        }
+
+        private synchronized boolean tryAcquire(long now)
+        {
+            refill(now);
+            if (permits < 1)
+            {
+                return false;
+            }
+            permits--;
+            return true;
+        }
+
+        private synchronized boolean isFull(long now)
+        {
+            refill(now);
+            return permits >= permitsPerMinute;
+        }
+
+        private synchronized long getLastUse()
+        {
+            return lastRefill;
+        }
+
+        private void refill(long now)
+        {
+            if (now > lastRefill)
+            {
+                permits = Math.min(permitsPerMinute, permits + (now - lastRefill) * permitsPerNano);
+                lastRefill = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Splits texts into the terms of the full-text search index. A term is a lower case sequence of letters and digits.
+ */
+public final class SearchTerms
+{
+    /**
+     * the minimum length of an indexed term, shorter terms are too common to be useful
+     */
+    public static final int MIN_LENGTH = 2;
+
+    /**
+     * the maximum length of an indexed term, longer terms are cut
+     */
+    public static final int MAX_LENGTH = 64;
+
+    /**
+     * the maximum number of distinct terms indexed for one message
+     */
+    public static final int MAX_TERMS = 5000;
+
+    private SearchTerms()
+    {
+    }
+
+    /**
+     * Splits the given text into terms.
+     *
+     * @param text
+     *            the text, may be <code>null</code>
+     * @return the terms in the order they appear in the text
+     */
+    public static List<String> tokenize(String text)
+    {
+        final List<String> terms = new ArrayList<>();
+        if (text == null)
+        {
+            return terms;
+        }
+
+        final String lowerCase = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lowerCase.length(); i++)
+        {
+            final boolean termChar = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (termChar && start < 0)
+            {
+                start = i;
+            }
+            else if (!termChar && start >= 0)
+            {
+                if (i - start >= MIN_LENGTH)
+                {
+                    terms.add(lowerCase.substring(start, Math.min(i, start + MAX_LENGTH)));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Counts how often each term occurs in the given texts. At most {@link #MAX_TERMS} distinct terms are counted.
+     *
+     * @param texts
+     *            the texts, may contain <code>null</code>
+     * @return the number of occurrences by term
+     */
+    public static Map<String, Integer> count(String... texts)
+    {
+        final Map<String, Integer> frequencies = new HashMap<>();
+        for (final String text : texts)
+        {
+            for (final String term : tokenize(text))
+            {
+                if (frequencies.size() < MAX_TERMS || frequencies.containsKey(term))
+                {
+                    frequencies.merge(term, 1, Integer::sum);
+                }
+            }
+        }
+        return frequencies;
+    }
+}
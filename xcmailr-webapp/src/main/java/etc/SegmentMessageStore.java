@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link MessageStore} that appends the data to large segment files in a directory and reads it with positional
+ * reads from one shared channel per segment, so reading neither moves a file position nor maps any memory. Only one
+ * segment is written at a time, once it exceeds the configured size, it is sealed and a new segment is started. On
+ * startup, all existing segments are sealed.
+ * <p>
+ * Written data is forced to disk by {@link #flush()}, which is called once per batch of written data before the
+ * locations are committed.
+ */
+public class SegmentMessageStore implements MessageStore
+{
+    private static final Logger log = LoggerFactory.getLogger(SegmentMessageStore.class);
+
+    private static final Pattern FILE_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+    private final Path directory;
+
+    private final long segmentSize;
+
+    /**
+     * the sizes of the sealed segments, keyed by their ID
+     */
+    private final Map<Long, Long> sealedSegments = new ConcurrentHashMap<>();
+
+    /**
+     * the segments to delete with the next call of {@link #deleteRetiredSegments()}
+     */
+    private final Set<Long> retiredSegments = ConcurrentHashMap.newKeySet();
+
+    /**
+     * the readers of the segments, keyed by the ID of the segment, guarded by itself
+     */
+    private final Map<Long, SegmentReader> readers = new HashMap<>();
+
+    /**
+     * the ID of the segment written to, guarded by this
+     */
+    private long activeSegment;
+
+    /**
+     * the channel to write to the active segment, guarded by this
+     */
+    private FileChannel activeChannel;
+
+    /**
+     * Opens the store in the given directory, the directory is created if it doesn't exist yet.
+     *
+     * @param directory
+     *            the directory of the segment files
+     * @param segmentSize
+     *            the number of bytes after which a segment is sealed
+     * @throws IOException
+     *             if the directory could not be read or the first segment could not be created
+     */
+    public SegmentMessageStore(Path directory, long segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+        long lastSegment = 0;
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.dat"))
+        {
+            for (final Path file : files)
+            {
+                final Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches())
+                {
+                    final long segment = Long.parseLong(matcher.group(1));
+                    sealedSegments.put(segment, Files.size(file));
+                    lastSegment = Math.max(lastSegment, segment);
+                }
+            }
+        }
+        startSegment(lastSegment + 1);
+
+        log.info("Opened message store in '{}' with {} segments", directory, sealedSegments.size() + 1);
+    }
+
+    @Override
+    public synchronized Location write(InputStream data) throws IOException
+    {
+        if (activeChannel.position() >= segmentSize)
+        {
+            // the locations of the data not flushed yet may already be known to the caller
+            activeChannel.force(false);
+            sealedSegments.put(activeSegment, activeChannel.position());
+            activeChannel.close();
+            startSegment(activeSegment + 1);
+        }
+
+        final long offset = activeChannel.position();
+        final byte[] buffer = new byte[8192];
+        long length = 0;
+        int read;
+        while ((read = data.read(buffer)) != -1)
+        {
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+            while (byteBuffer.hasRemaining())
+            {
+                activeChannel.write(byteBuffer);
+            }
+            length += read;
+        }
+        return new Location(activeSegment, offset, length);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        activeChannel.force(false);
+    }
+
+    /**
+     * Opens the data at the given location. The segment is not deleted as long as the returned stream is open.
+     *
+     * @param location
+     *            a location returned by {@link #write(InputStream)}, possibly by an earlier instance of the store
+     * @return the stream providing the data, which has to be closed
+     * @throws IOException
+     *             if the data could not be read
+     */
+    public InputStream read(Location location) throws IOException
+    {
+        final SegmentReader reader;
+        synchronized (readers)
+        {
+            SegmentReader existing = readers.get(location.getSegment());
+            if (existing == null)
+            {
+                existing = new SegmentReader(FileChannel.open(getFile(location.getSegment()),
+                                                              StandardOpenOption.READ));
+                readers.put(location.getSegment(), existing);
+            }
+            reader = existing;
+            reader.openStreams++;
+        }
+        return new SegmentInputStream(reader, location.getOffset(), location.getLength());
+    }
+
+    /**
+     * Returns the segments that are complete, i.e. not written to anymore, with the number of bytes they hold. Data
+     * that isn't referenced anymore is reclaimed by copying the still referenced data of mostly unused segments to new
+     * locations and retiring these segments.
+     *
+     * @return the sizes of the sealed segments, keyed by the ID of the segment
+     */
+    public Map<Long, Long> getSealedSegments()
+    {
+        return new HashMap<>(sealedSegments);
+    }
+
+    /**
+     * Retires the given segment after its still referenced data was copied somewhere else. The segment is deleted by
+     * the next call of {@link #deleteRetiredSegments()}, so readers that found the old location just before it was
+     * changed can still read it.
+     *
+     * @param segmentId
+     *            the ID of the segment
+     */
+    public void retireSegment(long segmentId)
+    {
+        sealedSegments.remove(segmentId);
+        retiredSegments.add(segmentId);
+    }
+
+    /**
+     * Deletes the segments retired since the last call. A segment that is still read from is kept until a later call,
+     * when its readers are gone.
+     *
+     * @return the number of deleted segments
+     */
+    public int deleteRetiredSegments()
+    {
+        int count = 0;
+        for (final Long segment : retiredSegments)
+        {
+            final SegmentReader reader;
+            synchronized (readers)
+            {
+                reader = readers.get(segment);
+                if (reader != null && reader.openStreams > 0)
+                {
+                    continue;
+                }
+                readers.remove(segment);
+            }
+            retiredSegments.remove(segment);
+            try
+            {
+                if (reader != null)
+                {
+                    reader.channel.close();
+                }
+                Files.deleteIfExists(getFile(segment));
+                count++;
+            }
+            catch (IOException e)
+            {
+                log.warn("Failed to delete segment " + segment, e);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        activeChannel.force(false);
+        activeChannel.close();
+        synchronized (readers)
+        {
+            for (final SegmentReader reader : readers.values())
+            {
+                reader.channel.close();
+            }
+            readers.clear();
+        }
+    }
+
+    private void startSegment(long segment) throws IOException
+    {
+        activeChannel = FileChannel.open(getFile(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        activeSegment = segment;
+    }
+
+    private Path getFile(long segment)
+    {
+        return directory.resolve("segment-" + segment + ".dat");
+    }
+
+    /**
+     * The channel to read a segment from, shared by all streams of the segment.
+     */
+    private static class SegmentReader
+    {
+        private final FileChannel channel;
+
+        /**
+         * the number of streams reading from the segment, guarded by {@link SegmentMessageStore#readers}
+         */
+        private int openStreams;
+
+        private SegmentReader(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Reads a range of a segment with positional reads.
+     */
+    private class SegmentInputStream extends InputStream
+    {
+        private final SegmentReader reader;
+
+        private long position;
+
+        private final long end;
+
+        private boolean closed;
+
+        private SegmentInputStream(SegmentReader reader, long offset, long length)
+        {
+            this.reader = reader;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (closed)
+            {
+                throw new IOException("Stream is closed");
+            }
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (position >= end)
+            {
+                return -1;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            final int read = reader.channel.read(buffer, position);
+            if (read == -1)
+            {
+                throw new EOFException("Segment ends before the end of the data");
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close()
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            synchronized (readers)
+            {
+                reader.openStreams--;
+            }
+        }
+    }
+}
@@ -21,6 +21,8 @@ public class StatisticsEntry
 
     private int forwardCount;
 
+    private int throttleCount;
+
     public void incrementDropCount()
     {
         dropCount++;
@@ -50,4 +52,19 @@ public class StatisticsEntry
     {
         this.forwardCount = newForwardCount;
     }
+
+    public void incrementThrottleCount()
+    {
+        throttleCount++;
+    }
+
+    public int getThrottleCount()
+    {
+        return throttleCount;
+    }
+
+    public void setThrottleCount(int newThrottleCount)
+    {
+        this.throttleCount = newThrottleCount;
+    }
 }
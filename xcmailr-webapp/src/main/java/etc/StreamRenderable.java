@@ -36,15 +36,31 @@ public class StreamRenderable implements Renderable
 
     private final String contentType;
 
+    private final long contentLength;
+
     public StreamRenderable(final InputStream stream)
     {
         this(stream, null);
     }
 
     public StreamRenderable(final InputStream stream, final String contentType)
+    {
+        this(stream, contentType, -1);
+    }
+
+    /**
+     * @param stream
+     *            the stream to read the content from
+     * @param contentType
+     *            the content type, may be <code>null</code>
+     * @param contentLength
+     *            the number of bytes in the stream, or -1 if unknown
+     */
+    public StreamRenderable(final InputStream stream, final String contentType, final long contentLength)
     {
         this.stream = stream;
         this.contentType = contentType;
+        this.contentLength = contentLength;
     }
 
     /**
@@ -57,6 +73,10 @@ public class StreamRenderable implements Renderable
         {
             result.contentType(contentType);
         }
+        if (contentLength >= 0)
+        {
+            result.addHeader("Content-Length", String.valueOf(contentLength));
+        }
 
         final ResponseStreams responseStreams = context.finalizeHeaders(result);
 
@@ -23,6 +23,7 @@ import jakarta.persistence.Table;
 
 import io.ebean.DB;
 import io.ebean.ExpressionList;
+import io.ebean.annotation.Cache;
 
 /**
  * Object to handle the allowed domains
@@ -30,6 +31,7 @@ import io.ebean.ExpressionList;
  * @author Patrick Thum, Xceptance Software Technologies GmbH, Germany
  */
 @Entity
+@Cache(enableQueryCache = true)
 @Table(name = "register_domains")
 public class Domain extends AbstractEntity implements Serializable
 {
@@ -109,7 +111,7 @@ public class Domain extends AbstractEntity implements Serializable
      */
     public static List<Domain> getAll()
     {
-        return DB.find(Domain.class).findList();
+        return DB.find(Domain.class).setUseQueryCache(true).findList();
     }
 
     /**
@@ -18,10 +18,13 @@ package models;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
 import jakarta.persistence.Table;
@@ -40,6 +43,8 @@ import io.ebean.Query;
 import io.ebean.RawSql;
 import io.ebean.RawSqlBuilder;
 import io.ebean.SqlUpdate;
+import io.ebean.annotation.Cache;
+import io.ebean.annotation.CacheBeanTuning;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -51,7 +56,13 @@ import etc.HelperUtils;
  * @author Patrick Thum, Xceptance Software Technologies GmbH, Germany
  */
 @Entity
-@Table(name = "mailboxes")
+@Cache(naturalKey = "normalizedAddress")
+@CacheBeanTuning(maxIdleSecs = 60, maxSecsToLive = 60, trimFrequency = 10)
+@Table(name = "mailboxes", indexes =
+    {
+        @Index(name = "uq_mailboxes_normalized_address", columnList = "normalized_address", unique = true),
+        @Index(name = "ix_mailboxes_ts_active", columnList = "ts_active")
+    })
 public class MBox extends AbstractEntity implements Serializable
 {
     /** UID to serialize this object */
@@ -76,6 +87,14 @@ public class MBox extends AbstractEntity implements Serializable
     @Length(min = 1, max = 255)
     private String domain;
 
+    /**
+     * the lower-cased full address, so case-insensitive lookups can use an index, see
+     * {@link #normalizeAddress(String, String)}
+     */
+    @JsonIgnore
+    @Column(name = "normalized_address", length = 511)
+    private String normalizedAddress;
+
     /** the number of forwards for this box */
     @JsonIgnore
     private int forwards;
@@ -106,6 +125,7 @@ public class MBox extends AbstractEntity implements Serializable
         this.ts_Active = 0L;
         this.expired = false;
         this.domain = "";
+        this.normalizedAddress = normalizeAddress(address, domain);
         this.forwards = 0;
         this.suppressions = 0;
     }
@@ -129,6 +149,7 @@ public class MBox extends AbstractEntity implements Serializable
         this.ts_Active = ts;
         this.expired = expired;
         this.domain = domain;
+        this.normalizedAddress = normalizeAddress(local, domain);
         this.forwards = 0;
         this.suppressions = 0;
         this.usr = usr;
@@ -153,6 +174,7 @@ public class MBox extends AbstractEntity implements Serializable
     public void setAddress(String address)
     {
         this.address = address;
+        this.normalizedAddress = normalizeAddress(address, domain);
     }
 
     /**
@@ -227,6 +249,14 @@ public class MBox extends AbstractEntity implements Serializable
         return domain;
     }
 
+    /**
+     * @return the lower-cased full address of this box
+     */
+    public String getNormalizedAddress()
+    {
+        return normalizedAddress;
+    }
+
     /**
      * @param domain
      *            the Domain-Part of this Mail-Forward to set
@@ -234,6 +264,7 @@ public class MBox extends AbstractEntity implements Serializable
     public void setDomain(String domain)
     {
         this.domain = domain;
+        this.normalizedAddress = normalizeAddress(address, domain);
     }
 
     /**
@@ -388,27 +419,65 @@ public class MBox extends AbstractEntity implements Serializable
     // EBean Functions
     // ---------------------------------------------
     /**
-     * increases the forward-count directly in the database
+     * Stores the box in the database and updates the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void save()
+    {
+        super.save();
+        MailboxRoutingIndex.put(this);
+    }
+
+    /**
+     * Updates the box in the database and in the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void update()
+    {
+        super.update();
+        MailboxRoutingIndex.put(this);
+    }
+
+    /**
+     * Deletes the box from the database and from the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void delete()
+    {
+        super.delete();
+        MailboxRoutingIndex.remove(getId());
+        MailboxCounters.discard(getId());
+    }
+
+    /**
+     * increases the forward-count, the new count is written to the database by the next
+     * {@link MailboxCounters#flush()}
      */
     public void increaseFwd()
     {
         increaseForwards();
-        DB.sqlUpdate("update mailboxes set forwards = ? where id = ?;") //
-             .setParameter(1, getForwards()) //
-             .setParameter(2, getId()) //
-             .execute();
+        MailboxCounters.increaseForwards(getId());
     }
 
     /**
-     * increases the suppression-count directly in the database
+     * increases the suppression-count, the new count is written to the database by the next
+     * {@link MailboxCounters#flush()}
      */
     public void increaseSup()
     {
         increaseSuppressions();
-        DB.sqlUpdate("update mailboxes set suppressions = ? where id = ?;") //
-             .setParameter(1, getSuppressions()) //
-             .setParameter(2, getId()) //
-             .execute();
+        MailboxCounters.increaseSuppressions(getId());
+    }
+
+    /**
+     * resets the forward- and suppression-count and updates the box in the database
+     */
+    public void resetCounters()
+    {
+        MailboxCounters.reset(List.of(getId()));
+        resetForwards();
+        resetSuppressions();
+        update();
     }
 
     /**
@@ -420,6 +489,8 @@ public class MBox extends AbstractEntity implements Serializable
     public static void delete(Long id)
     {
         DB.delete(MBox.class, id);
+        MailboxRoutingIndex.remove(id);
+        MailboxCounters.discard(id);
     }
 
     /**
@@ -457,9 +528,23 @@ public class MBox extends AbstractEntity implements Serializable
      *            the domain part
      * @return expression list
      */
-    private static ExpressionList<MBox> queryByName(String localPart, String domainPart)
+    static ExpressionList<MBox> queryByName(String localPart, String domainPart)
+    {
+        return DB.find(MBox.class).where().eq("normalizedAddress", normalizeAddress(localPart, domainPart));
+    }
+
+    /**
+     * Returns the normalized form of the given address, which is stored with each mailbox for case-insensitive lookups.
+     * 
+     * @param localPart
+     *            the local part of the address
+     * @param domain
+     *            the domain of the address
+     * @return the lower-cased full address
+     */
+    public static String normalizeAddress(String localPart, String domain)
     {
-        return DB.find(MBox.class).where().ieq("address", localPart).ieq("domain", domainPart);
+        return StringUtils.lowerCase(localPart + "@" + domain, Locale.ROOT);
     }
 
     /**
@@ -527,7 +612,19 @@ public class MBox extends AbstractEntity implements Serializable
      */
     public static List<MBox> allUser(Long id)
     {
-        return DB.find(MBox.class).where().eq("usr_id", id.toString()).findList();
+        return queryByUser(id).findList();
+    }
+
+    /**
+     * Creates an EBean expression list for the boxes of the given {@link User}.
+     * 
+     * @param userId
+     *            ID of the {@link User}
+     * @return expression list
+     */
+    static ExpressionList<MBox> queryByUser(long userId)
+    {
+        return DB.find(MBox.class).where().eq("usr_id", userId);
     }
 
     /**
@@ -614,8 +711,73 @@ public class MBox extends AbstractEntity implements Serializable
 
         // get a list of boxes, that are active, have a timestamp that is lower than the time to check for and not
         // unlimited
-        return DB.find(MBox.class).where().eq("expired", false).lt("ts_Active", dt.getMillis()).ne("ts_Active", 0)
-                    .findList();
+        return queryActiveUntilBefore(dt.getMillis()).findList();
+    }
+
+    /**
+     * Creates an EBean expression list for the active, not unlimited boxes that are valid until before the given time.
+     * 
+     * @param time
+     *            the time in milliseconds
+     * @return expression list
+     */
+    static ExpressionList<MBox> queryActiveUntilBefore(long time)
+    {
+        return DB.find(MBox.class).where().eq("expired", false).lt("ts_Active", time).ne("ts_Active", 0);
+    }
+
+    /**
+     * Marks all active boxes that were valid until before the given time as expired. The boxes are updated in chunks
+     * of the given size, each chunk with a single statement.
+     * 
+     * @param now
+     *            the current time in milliseconds
+     * @param batchSize
+     *            the maximum number of boxes updated at once
+     * @return the number of expired boxes
+     */
+    public static int expireAll(long now, int batchSize)
+    {
+        int expiredCount = 0;
+        List<Long> ids;
+        do
+        {
+            ids = queryActiveUntilBefore(now).orderBy("id").setMaxRows(batchSize).findIds();
+            if (ids.isEmpty())
+            {
+                break;
+            }
+
+            expiredCount += DB.sqlUpdate("UPDATE MAILBOXES SET EXPIRED = TRUE WHERE EXPIRED = FALSE AND ID IN (:ids)")
+                              .setParameter("ids", ids).execute();
+            MailboxRoutingIndex.reload(ids);
+        }
+        while (ids.size() == batchSize);
+
+        return expiredCount;
+    }
+
+    /**
+     * Marks the boxes with the given IDs as expired if they are active and their validity has ended before or at the
+     * given time.
+     * 
+     * @param boxIds
+     *            the IDs of the boxes
+     * @param now
+     *            the current time in milliseconds
+     * @return the number of expired boxes
+     */
+    public static int expire(List<Long> boxIds, long now)
+    {
+        if (boxIds.isEmpty())
+        {
+            return 0;
+        }
+
+        StringBuilder sqlSb = new StringBuilder();
+        sqlSb.append("UPDATE MAILBOXES SET EXPIRED = TRUE WHERE EXPIRED = FALSE");
+        sqlSb.append(" AND TS_ACTIVE <> 0 AND TS_ACTIVE <= ").append(now);
+        return appendIdsExecuteSqlAndReindex(sqlSb, boxIds);
     }
 
     /**
@@ -625,6 +787,7 @@ public class MBox extends AbstractEntity implements Serializable
     {
         this.setExpired(false);
         DB.update(this);
+        MailboxRoutingIndex.put(this);
     }
 
     /**
@@ -634,6 +797,7 @@ public class MBox extends AbstractEntity implements Serializable
     {
         this.setExpired(true);
         DB.update(this);
+        MailboxRoutingIndex.put(this);
     }
 
     /**
@@ -651,7 +815,7 @@ public class MBox extends AbstractEntity implements Serializable
         {
             return allUser(userId);
         }
-        ExpressionList<MBox> exList1 = DB.find(MBox.class).where().eq("usr_id", userId);
+        ExpressionList<MBox> exList1 = queryByUser(userId);
         if (input.contains("@"))
         { // check for a correct format of a box
             String[] split = input.split("@");
@@ -687,7 +851,7 @@ public class MBox extends AbstractEntity implements Serializable
      */
     public static MBox find(String localPart, String domain)
     {
-        return DB.find(MBox.class).where().ieq("address", localPart).ieq("domain", domain).findOne();
+        return queryByName(localPart, domain).findOne();
     }
 
     /**
@@ -784,7 +948,10 @@ public class MBox extends AbstractEntity implements Serializable
     {
         StringBuilder sqlSb = new StringBuilder();
         sqlSb.append("DELETE FROM MAILBOXES WHERE USR_ID=").append(userId);
-        return appendIdsAndExecuteSql(sqlSb, boxIds);
+        final List<Long> ownBoxIds = findBoxIdsOfUser(userId, boxIds);
+        final int processedCount = appendIdsExecuteSqlAndReindex(sqlSb, boxIds);
+        MailboxCounters.discard(ownBoxIds);
+        return processedCount;
     }
 
     /**
@@ -802,9 +969,29 @@ public class MBox extends AbstractEntity implements Serializable
     {
         StringBuilder sqlSb = new StringBuilder();
         sqlSb.append("UPDATE MAILBOXES SET SUPPRESSIONS = 0, FORWARDS = 0 WHERE USR_ID=").append(userId);
+        // zero the pending counts first, so they aren't added after the reset, but only those of the user's boxes
+        MailboxCounters.reset(findBoxIdsOfUser(userId, boxIds));
         return appendIdsAndExecuteSql(sqlSb, boxIds);
     }
 
+    /**
+     * @return those of the given box IDs that belong to the given user
+     */
+    private static List<Long> findBoxIdsOfUser(long userId, List<Long> boxIds)
+    {
+        final List<Long> ownBoxIds = new ArrayList<>();
+        processMailboxesInChunks("SELECT ID FROM MAILBOXES WHERE USR_ID=" + userId, boxIds,
+                                 // cannot use a lambda here as the EBean enhancer is unable to handle it :-(
+                                 new Consumer<String>()
+                                 {
+                                     public void accept(String stmt)
+                                     {
+                                         ownBoxIds.addAll(DB.sqlQuery(stmt).mapToScalar(Long.class).findList());
+                                     }
+                                 });
+        return ownBoxIds;
+    }
+
     /**
      * Takes the user-ID and Box-IDs, builds an SQL-Statement and disables the given Boxes. <strong> WARNING:</strong>
      * The Box-ID-String won't be checked again! The calling method has to self-check the correctness of the String
@@ -820,7 +1007,7 @@ public class MBox extends AbstractEntity implements Serializable
     {
         StringBuilder sqlSb = new StringBuilder();
         sqlSb.append("UPDATE MAILBOXES SET EXPIRED = TRUE WHERE USR_ID=").append(userId);
-        return appendIdsAndExecuteSql(sqlSb, boxIds);
+        return appendIdsExecuteSqlAndReindex(sqlSb, boxIds);
     }
 
     /**
@@ -839,7 +1026,7 @@ public class MBox extends AbstractEntity implements Serializable
         StringBuilder sqlSb = new StringBuilder();
         sqlSb.append("UPDATE MAILBOXES SET EXPIRED = FALSE WHERE USR_ID=").append(userId);
         sqlSb.append(" AND (TS_ACTIVE > ").append(DateTime.now().getMillis()).append(" OR TS_ACTIVE = 0) ");
-        return appendIdsAndExecuteSql(sqlSb, boxIds);
+        return appendIdsExecuteSqlAndReindex(sqlSb, boxIds);
     }
 
     /**
@@ -860,7 +1047,21 @@ public class MBox extends AbstractEntity implements Serializable
         StringBuilder sqlSb = new StringBuilder();
         sqlSb.append("UPDATE MAILBOXES SET EXPIRED = FALSE, TS_ACTIVE =").append(ts_Active);
         sqlSb.append(" WHERE USR_ID=").append(userId);
-        return appendIdsAndExecuteSql(sqlSb, boxIds);
+        return appendIdsExecuteSqlAndReindex(sqlSb, boxIds);
+    }
+
+    /**
+     * Like {@link #appendIdsAndExecuteSql(StringBuilder, List)}, but also refreshes the given boxes in the
+     * {@link MailboxRoutingIndex} afterwards.
+     */
+    private static int appendIdsExecuteSqlAndReindex(StringBuilder baseStmt, List<Long> boxIds)
+    {
+        final int processedCount = appendIdsAndExecuteSql(baseStmt, boxIds);
+        if (processedCount > 0)
+        {
+            MailboxRoutingIndex.reload(boxIds);
+        }
+        return processedCount;
     }
 
     private static int appendIdsAndExecuteSql(StringBuilder baseStmt, List<Long> boxIds)
@@ -20,17 +20,28 @@ import java.util.List;
 
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
 import jakarta.persistence.Lob;
 import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
 import javax.validation.constraints.NotNull;
 
 import org.hibernate.validator.constraints.Length;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import etc.MessageCodec;
 import io.ebean.DB;
+import io.ebean.Query;
+import io.ebean.Transaction;
 
 @Entity
-@Table
+@Table(indexes =
+    {
+        @Index(name = "ix_mail_mailbox_2", columnList = "mailbox_id"),
+        @Index(name = "ix_mail_content_id", columnList = "content_id"),
+        @Index(name = "ix_mail_uuid", columnList = "uuid"),
+        @Index(name = "ix_mail_receive_time", columnList = "receive_time")
+    })
 public class Mail extends AbstractEntity implements Serializable
 {
     /**
@@ -52,16 +63,32 @@ public class Mail extends AbstractEntity implements Serializable
     @NotNull
     private long receiveTime;
 
+    /**
+     * the message as stored (see {@link MessageCodec}), only set for mails that were stored without a
+     * {@link MailContent}
+     */
     @Lob
-    @NotNull
     private byte[] message;
 
+    /**
+     * the raw message, decoded when first requested
+     */
+    @Transient
+    private transient byte[] rawMessage;
+
     @NotNull
     @Column(name = "mailbox_id")
     private long mailbox;
 
     private String uuid;
 
+    /**
+     * the ID of the {@link MailContent} holding the raw message, <code>null</code> if the message is stored in this
+     * mail itself
+     */
+    @Column(name = "content_id")
+    private Long contentId;
+
     public String getSender()
     {
         return sender;
@@ -92,14 +119,33 @@ public class Mail extends AbstractEntity implements Serializable
         this.receiveTime = receiveTime;
     }
 
+    /**
+     * @return the raw message, loaded from the {@link MailContent} and decompressed if necessary
+     */
     public byte[] getMessage()
     {
-        return message;
+        if (rawMessage == null)
+        {
+            if (message != null)
+            {
+                rawMessage = MessageCodec.decode(message);
+            }
+            else if (contentId != null)
+            {
+                rawMessage = MailContent.getMessage(contentId);
+            }
+        }
+        return rawMessage;
     }
 
+    /**
+     * @param message
+     *            the raw message, which is stored compressed if worthwhile, see {@link MessageCodec#encode(byte[])}
+     */
     public void setMessage(byte[] message)
     {
-        this.message = message;
+        this.message = MessageCodec.encode(message);
+        this.rawMessage = null;
     }
 
     public MBox getMailbox()
@@ -115,6 +161,53 @@ public class Mail extends AbstractEntity implements Serializable
         }
     }
 
+    /**
+     * @return the ID of the mailbox this mail belongs to
+     */
+    public long getMailboxId()
+    {
+        return mailbox;
+    }
+
+    /**
+     * @param mailboxId
+     *            the ID of the mailbox this mail belongs to
+     */
+    public void setMailboxId(long mailboxId)
+    {
+        this.mailbox = mailboxId;
+    }
+
+    /**
+     * @return the ID of the {@link MailContent} holding the raw message, or <code>null</code>
+     */
+    public Long getContentId()
+    {
+        return contentId;
+    }
+
+    /**
+     * @param contentId
+     *            the ID of the {@link MailContent} holding the raw message
+     */
+    public void setContentId(Long contentId)
+    {
+        this.contentId = contentId;
+    }
+
+    /**
+     * Deletes the mail and releases its {@link MailContent}
+     */
+    @Override
+    public void delete()
+    {
+        super.delete();
+        if (contentId != null)
+        {
+            MailContent.release(contentId);
+        }
+    }
+
     public String getUuid()
     {
         return uuid;
@@ -146,6 +239,88 @@ public class Mail extends AbstractEntity implements Serializable
      */
     public static List<Mail> findAndSort(long mailboxId)
     {
-        return DB.find(Mail.class).where().eq("mailbox_id", mailboxId).orderBy("receiveTime").findList();
+        return queryByMailbox(mailboxId).findList();
+    }
+
+    /**
+     * Creates a query for the mails in the mailbox with the given ID, sorted by receive time.
+     * 
+     * @param mailboxId
+     *            the ID of the mailbox
+     * @return the query
+     */
+    static Query<Mail> queryByMailbox(long mailboxId)
+    {
+        return DB.find(Mail.class).where().eq("mailbox_id", mailboxId).orderBy("receiveTime").query();
+    }
+
+    /**
+     * Finds all mails with the given download token.
+     * 
+     * @param uuid
+     *            the download token of the mail
+     * @return the list of mails found
+     */
+    public static List<Mail> findByUuid(String uuid)
+    {
+        return queryByUuid(uuid).findList();
+    }
+
+    /**
+     * Creates a query for the mails with the given download token.
+     * 
+     * @param uuid
+     *            the download token of the mail
+     * @return the query
+     */
+    static Query<Mail> queryByUuid(String uuid)
+    {
+        return DB.find(Mail.class).where().eq("uuid", uuid).query();
+    }
+
+    /**
+     * Deletes all mails received before the given time and releases their {@link MailContent}s. The mails are deleted
+     * in chunks of the given size, each chunk with a single statement in its own transaction.
+     * 
+     * @param receiveTime
+     *            the time in milliseconds
+     * @param batchSize
+     *            the maximum number of mails deleted at once
+     * @return the number of deleted mails
+     */
+    public static int deleteReceivedBefore(long receiveTime, int batchSize)
+    {
+        int deletedCount = 0;
+        List<Long> ids;
+        do
+        {
+            ids = queryReceivedBefore(receiveTime).setMaxRows(batchSize).findIds();
+            if (ids.isEmpty())
+            {
+                break;
+            }
+
+            try (final Transaction transaction = DB.beginTransaction())
+            {
+                MailContent.releaseAll(ids);
+                deletedCount += DB.sqlUpdate("DELETE FROM mail WHERE id IN (:ids)").setParameter("ids", ids).execute();
+                transaction.commit();
+            }
+        }
+        while (ids.size() == batchSize);
+
+        return deletedCount;
+    }
+
+    /**
+     * Creates a query for the mails received before the given time, sorted by ID.
+     * 
+     * @param receiveTime
+     *            the time in milliseconds
+     * @return the query
+     */
+    static Query<Mail> queryReceivedBefore(long receiveTime)
+    {
+        return DB.find(Mail.class).where().lt("receiveTime", receiveTime).orderBy("id").query();
     }
 }
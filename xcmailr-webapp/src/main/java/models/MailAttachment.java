@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.io.Serializable;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+/**
+ * An entry of the attachment manifest of a {@link MailContent}, extracted when the mail was received.
+ */
+@Entity
+@Table(name = "mail_attachment", indexes =
+    {
+        @Index(name = "ix_mail_attachment_content", columnList = "content_id")
+    })
+public class MailAttachment extends AbstractEntity implements Serializable
+{
+    private static final long serialVersionUID = 3419024570163375521L;
+
+    @NotNull
+    @Column(name = "content_id")
+    private long contentId;
+
+    /**
+     * the index of the attachment in the message
+     */
+    @NotNull
+    @Column(name = "attachment_index")
+    private int attachmentIndex;
+
+    @Column(length = 1024)
+    private String name;
+
+    @Column(name = "content_type", length = 1024)
+    private String contentType;
+
+    /**
+     * the decoded size of the attachment in bytes, exact if the body was located in the raw message (see
+     * {@link #partLength}), estimated otherwise
+     */
+    @NotNull
+    private int size;
+
+    /**
+     * the offset of the attachment body in the raw message, -1 if unknown
+     */
+    @NotNull
+    @Column(name = "part_offset")
+    private long partOffset;
+
+    /**
+     * the number of bytes of the attachment body in the raw message, <code>null</code> if it wasn't located
+     */
+    @Column(name = "part_length")
+    private Long partLength;
+
+    /**
+     * the lower-cased content transfer encoding of the attachment body, <code>null</code> if not specified
+     */
+    @Column(name = "part_encoding", length = 64)
+    private String partEncoding;
+
+    public MailAttachment()
+    {
+    }
+
+    public MailAttachment(String name, String contentType, int size, long partOffset)
+    {
+        this.name = name;
+        this.contentType = contentType;
+        this.size = size;
+        this.partOffset = partOffset;
+    }
+
+    public MailAttachment(String name, String contentType, int size, long partOffset, Long partLength,
+                          String partEncoding)
+    {
+        this(name, contentType, size, partOffset);
+        this.partLength = partLength;
+        this.partEncoding = partEncoding;
+    }
+
+    public long getContentId()
+    {
+        return contentId;
+    }
+
+    public void setContentId(long contentId)
+    {
+        this.contentId = contentId;
+    }
+
+    public int getAttachmentIndex()
+    {
+        return attachmentIndex;
+    }
+
+    public void setAttachmentIndex(int attachmentIndex)
+    {
+        this.attachmentIndex = attachmentIndex;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public long getPartOffset()
+    {
+        return partOffset;
+    }
+
+    public Long getPartLength()
+    {
+        return partLength;
+    }
+
+    public String getPartEncoding()
+    {
+        return partEncoding;
+    }
+}
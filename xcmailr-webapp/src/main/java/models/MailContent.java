@@ -0,0 +1,914 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Lob;
+import jakarta.persistence.PersistenceException;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.io.IOUtils;
+
+import etc.DatabaseMessageStore;
+import etc.MessageCodec;
+import etc.MessageStore;
+import etc.SegmentMessageStore;
+import io.ebean.DB;
+import io.ebean.RowMapper;
+import io.ebean.Transaction;
+
+/**
+ * The raw content of a received mail. A mail that was sent to several of our mailboxes at once is stored only once and
+ * all {@link Mail}s refer to the same content. The number of referring mails is counted, contents that are not
+ * referenced anymore are removed by {@link #deleteUnreferenced()}.
+ * <p>
+ * Large MIME parts, e.g. attachments, can be cut out of the message and stored as {@link MailPart}s, which are shared
+ * by all contents containing the same part.
+ * <p>
+ * The messages and parts are written to the configured {@link MessageStore}. Unless it keeps them in the database, only
+ * their location is stored in the rows. Data stored in segments is read from the {@link SegmentMessageStore} set via
+ * {@link #setSegmentStore(SegmentMessageStore)}, no matter which store new data is written to.
+ */
+@Entity
+@Table(name = "mail_content", indexes =
+    {
+        @Index(name = "ix_mail_content_segment", columnList = "segment_id")
+    })
+public class MailContent extends AbstractEntity implements Serializable
+{
+    private static final long serialVersionUID = -3342380950745932613L;
+
+    /**
+     * the segments with less than this share of referenced data are compacted
+     */
+    private static final double MIN_SEGMENT_USAGE = 0.5;
+
+    /**
+     * the store of the messages and parts
+     */
+    private static volatile MessageStore messageStore = new DatabaseMessageStore();
+
+    /**
+     * the store to read the data stored in segments from, <code>null</code> if there's no such data
+     */
+    private static volatile SegmentMessageStore segmentStore;
+
+    /**
+     * the message as stored, see {@link MessageCodec}, or <code>null</code> if it is stored in a segment
+     */
+    @Lob
+    private byte[] message;
+
+    /**
+     * the segment of the {@link MessageStore} holding the message, <code>null</code> if the message is stored in this
+     * row
+     */
+    @Column(name = "segment_id")
+    private Long segmentId;
+
+    @Column(name = "segment_offset")
+    private Long segmentOffset;
+
+    @Column(name = "segment_length")
+    private Long segmentLength;
+
+    /**
+     * the number of mails referring to this content
+     */
+    @NotNull
+    @Column(name = "ref_count")
+    private int refCount;
+
+    /**
+     * the stream to read the message from when the content is stored by {@link #insertAll(List)}
+     */
+    @Transient
+    private transient InputStream messageStream;
+
+    @Transient
+    private transient long messageLength;
+
+    /**
+     * the new mails referring to this content, stored together with it by {@link #insertAll(List)}
+     */
+    @Transient
+    private transient List<Mail> mails = new ArrayList<>();
+
+    /**
+     * the parts cut out of the message, stored together with it by {@link #insertAll(List)}
+     */
+    @Transient
+    private transient List<PendingPart> parts = new ArrayList<>();
+
+    /**
+     * the metadata extracted from the message, stored together with it by {@link #insertAll(List)}
+     */
+    @Transient
+    private transient MailMetadata metadata;
+
+    public byte[] getMessage()
+    {
+        return message;
+    }
+
+    public void setMessage(byte[] message)
+    {
+        this.message = message;
+    }
+
+    public int getRefCount()
+    {
+        return refCount;
+    }
+
+    public Long getSegmentId()
+    {
+        return segmentId;
+    }
+
+    /**
+     * Sets the store to write new messages and parts to. Messages already stored in segments are still read from the
+     * segment store.
+     *
+     * @param store
+     *            the store
+     */
+    public static void setMessageStore(MessageStore store)
+    {
+        messageStore = store;
+    }
+
+    /**
+     * Sets the store to read the messages and parts stored in segments from and to compact, see
+     * {@link #compactMessageStore()}. It has to be set whenever there is such data, even if new data is written to the
+     * database.
+     *
+     * @param store
+     *            the store, or <code>null</code> if there's no data stored in segments
+     */
+    public static void setSegmentStore(SegmentMessageStore store)
+    {
+        segmentStore = store;
+    }
+
+    /**
+     * @return whether any message or part is stored in a segment
+     */
+    public static boolean hasSegmentData()
+    {
+        return DB.sqlQuery("SELECT id FROM mail_content WHERE segment_id IS NOT NULL UNION ALL SELECT id FROM mail_part WHERE segment_id IS NOT NULL")
+                 .setMaxRows(1).findOne() != null;
+    }
+
+    /**
+     * @return the store to write new messages and parts to
+     */
+    static MessageStore getMessageStore()
+    {
+        return messageStore;
+    }
+
+    /**
+     * Sets a stream to read the message from when the content is stored via {@link #insertAll(List)}, instead of the
+     * message bytes. The stream provides the message as it is stored, i.e. encoded by {@link MessageCodec}.
+     *
+     * @param messageStream
+     *            the stream providing the raw message
+     * @param messageLength
+     *            the number of bytes in the stream, or -1 if unknown
+     */
+    public void setMessageStream(InputStream messageStream, long messageLength)
+    {
+        this.messageStream = messageStream;
+        this.messageLength = messageLength;
+    }
+
+    /**
+     * Adds a new mail that refers to this content.
+     *
+     * @param mail
+     *            the mail
+     */
+    public void addMail(Mail mail)
+    {
+        mails.add(mail);
+    }
+
+    /**
+     * Adds a part that was cut out of the message. The parts have to be added in the order they appear in the message.
+     *
+     * @param hash
+     *            the hash of the part body
+     * @param offset
+     *            the offset in the stored message to insert the part body at
+     * @param data
+     *            the stream providing the part body as it is stored, i.e. encoded by
+     *            {@link MessageCodec#encodePart(InputStream, long, int, int)}
+     * @param length
+     *            the number of bytes in the stream, or -1 if unknown
+     */
+    public void addPart(String hash, long offset, InputStream data, long length)
+    {
+        parts.add(new PendingPart(hash, offset, data, length));
+    }
+
+    /**
+     * Removes the parts added via {@link #addPart(String, long, InputStream, long)}.
+     */
+    public void clearParts()
+    {
+        parts.clear();
+    }
+
+    /**
+     * Sets the metadata extracted from the message, which is stored together with the content by
+     * {@link #insertAll(List)}.
+     *
+     * @param metadata
+     *            the metadata, or <code>null</code> if it wasn't extracted
+     */
+    public void setMetadata(MailMetadata metadata)
+    {
+        this.metadata = metadata;
+    }
+
+    /**
+     * @return the new mails referring to this content
+     */
+    public List<Mail> getMails()
+    {
+        return mails;
+    }
+
+    /**
+     * Inserts the given new contents together with the mails added to them in one transaction, using one batch
+     * statement for the contents and one for the mails. If a message stream was set, the message is streamed from it
+     * into the database, so the message doesn't have to be held in memory. Parts that were added are stored only if
+     * there's no part with the same hash yet. The metadata, if set, is stored as well. Contents and mails without an
+     * ID get one assigned.
+     *
+     * @param contents
+     *            the contents to insert
+     * @throws PersistenceException
+     *             if the contents could not be inserted, in this case none of them was inserted
+     */
+    public static void insertAll(List<MailContent> contents)
+    {
+        try (final Transaction transaction = DB.beginTransaction())
+        {
+            final Connection connection = transaction.connection();
+
+            final MessageStore store = messageStore;
+            try (final PreparedStatement stmt = connection.prepareStatement("INSERT INTO mail_content (id, message, ref_count, segment_id, segment_offset, segment_length) VALUES (?, ?, ?, ?, ?, ?)"))
+            {
+                for (final MailContent content : contents)
+                {
+                    if (content.getId() == 0)
+                    {
+                        content.setId(((Number) DB.nextId(MailContent.class)).longValue());
+                    }
+                    content.refCount = content.mails.size();
+
+                    stmt.setLong(1, content.getId());
+                    final MessageStore.Location location = store.write(content.messageStream != null ? content.messageStream
+                                                                                                     : new ByteArrayInputStream(content.getMessage()));
+                    if (location != null)
+                    {
+                        stmt.setNull(2, Types.BLOB);
+                    }
+                    else if (content.messageStream != null && content.messageLength < 0)
+                    {
+                        stmt.setBinaryStream(2, content.messageStream);
+                    }
+                    else if (content.messageStream != null)
+                    {
+                        stmt.setBinaryStream(2, content.messageStream, content.messageLength);
+                    }
+                    else
+                    {
+                        stmt.setBytes(2, content.getMessage());
+                    }
+                    stmt.setInt(3, content.refCount);
+                    setLocation(stmt, 4, location);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+
+            try (final PreparedStatement stmt = connection.prepareStatement("INSERT INTO mail_content_part (id, content_id, part_id, part_index, part_offset) VALUES (?, ?, ?, ?, ?)"))
+            {
+                boolean hasParts = false;
+                for (final MailContent content : contents)
+                {
+                    for (int i = 0; i < content.parts.size(); i++)
+                    {
+                        final PendingPart part = content.parts.get(i);
+                        final long partId = MailPart.acquire(connection, part.hash, part.data, part.length);
+
+                        stmt.setLong(1, ((Number) DB.nextId(MailContentPart.class)).longValue());
+                        stmt.setLong(2, content.getId());
+                        stmt.setLong(3, partId);
+                        stmt.setInt(4, i);
+                        stmt.setLong(5, part.offset);
+                        stmt.addBatch();
+                        hasParts = true;
+                    }
+                }
+                if (hasParts)
+                {
+                    stmt.executeBatch();
+                }
+            }
+
+            final List<MailMetadata> metadata = new ArrayList<>();
+            for (final MailContent content : contents)
+            {
+                if (content.metadata != null)
+                {
+                    content.metadata.setContentId(content.getId());
+                    metadata.add(content.metadata);
+                }
+            }
+            MailMetadata.insertAll(connection, metadata);
+
+            try (final PreparedStatement stmt = connection.prepareStatement("INSERT INTO mail (id, sender, subject, receive_time, mailbox_id, uuid, content_id) VALUES (?, ?, ?, ?, ?, ?, ?)"))
+            {
+                for (final MailContent content : contents)
+                {
+                    for (final Mail mail : content.mails)
+                    {
+                        if (mail.getId() == 0)
+                        {
+                            mail.setId(((Number) DB.nextId(Mail.class)).longValue());
+                        }
+                        mail.setContentId(content.getId());
+
+                        stmt.setLong(1, mail.getId());
+                        stmt.setString(2, mail.getSender());
+                        stmt.setString(3, mail.getSubject());
+                        stmt.setLong(4, mail.getReceiveTime());
+                        stmt.setLong(5, mail.getMailboxId());
+                        stmt.setString(6, mail.getUuid());
+                        stmt.setLong(7, content.getId());
+                        stmt.addBatch();
+                    }
+                }
+                stmt.executeBatch();
+            }
+
+            // the messages and parts of the whole batch are forced to disk at once, before their locations get visible
+            store.flush();
+            transaction.commit();
+        }
+        catch (SQLException | IOException e)
+        {
+            throw new PersistenceException("Failed to insert mails", e);
+        }
+    }
+
+    /**
+     * Returns the raw message of the content with the given ID, decompressed and reassembled from its parts if
+     * necessary.
+     *
+     * @param id
+     *            the ID of the content
+     * @return the raw message or <code>null</code> if there is no such content
+     */
+    public static byte[] getMessage(long id)
+    {
+        // cannot use a lambda here as the EBean enhancer is unable to handle it :-(
+        final StoredData content = DB.sqlQuery("SELECT 0, message, segment_id, segment_offset, segment_length FROM mail_content WHERE id = :id")
+                                     .setParameter("id", id).mapTo(new StoredDataMapper()).findOne();
+        if (content == null)
+        {
+            return null;
+        }
+        final byte[] message = MessageCodec.decode(content.load());
+
+        final List<StoredData> parts = DB.sqlQuery("SELECT cp.part_offset, p.data, p.segment_id, p.segment_offset, p.segment_length FROM mail_content_part cp JOIN mail_part p ON p.id = cp.part_id WHERE cp.content_id = :id ORDER BY cp.part_index")
+                                         .setParameter("id", id).mapTo(new StoredDataMapper()).findList();
+        if (parts.isEmpty())
+        {
+            return message;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(message.length * 2);
+        int position = 0;
+        for (final StoredData part : parts)
+        {
+            final int offset = (int) part.offset;
+            out.write(message, position, offset - position);
+            final byte[] data = MessageCodec.decodePart(part.load());
+            out.write(data, 0, data.length);
+            position = offset;
+        }
+        out.write(message, position, message.length - position);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a stream of the raw message of the content with the given ID. Other than {@link #getMessage(long)}, the
+     * parts are not copied into the message, each part is read only when the stream reaches it. Parts in the
+     * {@link MessageStore} are read from there directly, parts stored in the database are loaded one at a time.
+     *
+     * @param id
+     *            the ID of the content
+     * @return the stream of the raw message, or <code>null</code> if there's no such content
+     */
+    public static InputStream openMessage(long id)
+    {
+        // cannot use a lambda here as the EBean enhancer is unable to handle it :-(
+        final StoredData content = DB.sqlQuery("SELECT 0, message, segment_id, segment_offset, segment_length FROM mail_content WHERE id = :id")
+                                     .setParameter("id", id).mapTo(new StoredDataMapper()).findOne();
+        if (content == null)
+        {
+            return null;
+        }
+        final byte[] message = MessageCodec.decode(content.load());
+
+        // the part IDs are selected instead of the data, so the data is loaded only when needed
+        final List<StoredData> parts = DB.sqlQuery("SELECT cp.part_offset, NULL, p.segment_id, p.segment_offset, p.segment_length, p.id FROM mail_content_part cp JOIN mail_part p ON p.id = cp.part_id WHERE cp.content_id = :id ORDER BY cp.part_index")
+                                         .setParameter("id", id).mapTo(new StoredDataMapper()).findList();
+        return new SequenceInputStream(new MessagePieces(message, parts));
+    }
+
+    /**
+     * Moves the message of a mail that was stored without a content into a new content, together with the given
+     * metadata.
+     *
+     * @param mailId
+     *            the ID of the mail
+     * @param storedMessage
+     *            the message as stored in the mail
+     * @param metadata
+     *            the metadata of the message, may be <code>null</code>
+     * @return whether the message was moved, <code>false</code> if the mail was deleted or moved meanwhile
+     */
+    public static boolean adopt(long mailId, byte[] storedMessage, MailMetadata metadata)
+    {
+        try (final Transaction transaction = DB.beginTransaction())
+        {
+            final long id = ((Number) DB.nextId(MailContent.class)).longValue();
+            final int updated = DB.sqlUpdate("UPDATE mail SET content_id = :contentId, message = NULL WHERE id = :id AND content_id IS NULL")
+                                  .setParameter("contentId", id).setParameter("id", mailId).execute();
+            if (updated == 0)
+            {
+                return false;
+            }
+
+            final MessageStore.Location location = messageStore.write(new ByteArrayInputStream(storedMessage));
+            try (final PreparedStatement stmt = transaction.connection()
+                                                           .prepareStatement("INSERT INTO mail_content (id, message, ref_count, segment_id, segment_offset, segment_length) VALUES (?, ?, 1, ?, ?, ?)"))
+            {
+                stmt.setLong(1, id);
+                stmt.setBytes(2, location == null ? storedMessage : null);
+                setLocation(stmt, 3, location);
+                stmt.executeUpdate();
+            }
+            if (metadata != null)
+            {
+                metadata.setContentId(id);
+                MailMetadata.insertAll(transaction.connection(), List.of(metadata));
+            }
+            messageStore.flush();
+            transaction.commit();
+            return true;
+        }
+        catch (SQLException | IOException e)
+        {
+            throw new PersistenceException("Failed to move the message of mail " + mailId, e);
+        }
+    }
+
+    /**
+     * Decreases the reference count of the content with the given ID by one. The content itself is removed later by
+     * {@link #deleteUnreferenced()}.
+     *
+     * @param id
+     *            the ID of the content
+     */
+    public static void release(long id)
+    {
+        DB.sqlUpdate("UPDATE mail_content SET ref_count = ref_count - 1 WHERE id = ?").setParameter(1, id).execute();
+    }
+
+    /**
+     * Decreases the reference counts of the contents of the mails with the given IDs by the number of these mails
+     * referring to them. Must be called before the mails are deleted.
+     *
+     * @param mailIds
+     *            the IDs of the mails
+     */
+    static void releaseAll(List<Long> mailIds)
+    {
+        DB.sqlUpdate("UPDATE mail_content SET ref_count = ref_count - (SELECT COUNT(*) FROM mail m WHERE m.content_id = mail_content.id AND m.id IN (:ids)) "
+                     + "WHERE id IN (SELECT content_id FROM mail WHERE id IN (:ids))")
+          .setParameter("ids", mailIds).execute();
+    }
+
+    /**
+     * Deletes all contents that aren't referenced by any mail anymore and releases their parts. The parts themselves
+     * are removed later by {@link MailPart#deleteUnreferenced()}.
+     *
+     * @return the number of deleted contents
+     */
+    public static int deleteUnreferenced()
+    {
+        try (final Transaction transaction = DB.beginTransaction())
+        {
+            DB.sqlUpdate("UPDATE mail_part SET ref_count = ref_count - (SELECT COUNT(*) FROM mail_content_part cp JOIN mail_content c ON c.id = cp.content_id WHERE cp.part_id = mail_part.id AND c.ref_count <= 0) "
+                         + "WHERE id IN (SELECT cp.part_id FROM mail_content_part cp JOIN mail_content c ON c.id = cp.content_id WHERE c.ref_count <= 0)")
+              .execute();
+            DB.sqlUpdate("DELETE FROM mail_content_part WHERE content_id IN (SELECT id FROM mail_content WHERE ref_count <= 0)")
+              .execute();
+            DB.sqlUpdate("DELETE FROM mail_attachment WHERE content_id IN (SELECT id FROM mail_content WHERE ref_count <= 0)")
+              .execute();
+            DB.sqlUpdate("DELETE FROM mail_search_term WHERE content_id IN (SELECT id FROM mail_content WHERE ref_count <= 0)")
+              .execute();
+            DB.sqlUpdate("DELETE FROM mail_metadata WHERE content_id IN (SELECT id FROM mail_content WHERE ref_count <= 0)")
+              .execute();
+            final int count = DB.sqlUpdate("DELETE FROM mail_content WHERE ref_count <= 0").execute();
+            transaction.commit();
+            return count;
+        }
+    }
+
+    /**
+     * Reclaims the space of the messages and parts that were removed from the {@link SegmentMessageStore}, if any. The
+     * referenced data of the sealed segments that are mostly unused is copied to the current segment, afterwards these
+     * segments are retired. Segments retired by the previous call are deleted.
+     *
+     * @return the number of retired segments
+     */
+    public static int compactMessageStore()
+    {
+        final SegmentMessageStore store = segmentStore;
+        if (store == null)
+        {
+            return 0;
+        }
+        store.deleteRetiredSegments();
+
+        final Map<Long, Long> segmentSizes = store.getSealedSegments();
+        if (segmentSizes.isEmpty())
+        {
+            return 0;
+        }
+
+        // cannot use a lambda here as the EBean enhancer is unable to handle it :-(
+        final List<long[]> rows = DB.sqlQuery("SELECT segment_id, SUM(segment_length) FROM (SELECT segment_id, segment_length FROM mail_content WHERE segment_id IS NOT NULL "
+                                              + "UNION ALL SELECT segment_id, segment_length FROM mail_part WHERE segment_id IS NOT NULL) GROUP BY segment_id")
+                                    .mapTo(new RowMapper<long[]>()
+                                    {
+                                        @Override
+                                        public long[] map(ResultSet rs, int rowNum) throws SQLException
+                                        {
+                                            return new long[]
+                                                {
+                                                    rs.getLong(1), rs.getLong(2)
+                                                };
+                                        }
+                                    }).findList();
+        final Map<Long, Long> usedSizes = new HashMap<>();
+        for (final long[] row : rows)
+        {
+            usedSizes.put(row[0], row[1]);
+        }
+
+        int count = 0;
+        for (final Map.Entry<Long, Long> segment : segmentSizes.entrySet())
+        {
+            final long usedSize = usedSizes.getOrDefault(segment.getKey(), 0L);
+            if (usedSize == 0 || usedSize < segment.getValue() * MIN_SEGMENT_USAGE)
+            {
+                relocate(store, "mail_content", segment.getKey());
+                relocate(store, "mail_part", segment.getKey());
+                store.retireSegment(segment.getKey());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies the data of the rows of the given table that is stored in the given segment to a new location in the
+     * same store. The copies are forced to disk at once before the rows are updated.
+     */
+    private static void relocate(SegmentMessageStore store, String table, long segmentId)
+    {
+        // cannot use a lambda here as the EBean enhancer is unable to handle it :-(
+        final List<StoredData> rows = DB.sqlQuery("SELECT 0, NULL, segment_id, segment_offset, segment_length, id FROM " + table
+                                                  + " WHERE segment_id = :segmentId")
+                                        .setParameter("segmentId", segmentId).mapTo(new StoredDataMapper()).findList();
+        final List<MessageStore.Location> locations = new ArrayList<>(rows.size());
+        for (final StoredData row : rows)
+        {
+            try (final InputStream in = store.read(row.location))
+            {
+                locations.add(store.write(in));
+            }
+            catch (IOException e)
+            {
+                throw new PersistenceException("Failed to relocate the data of " + table + " " + row.id, e);
+            }
+        }
+        if (rows.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            store.flush();
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Failed to relocate the data of " + table + " in segment " + segmentId, e);
+        }
+
+        for (int i = 0; i < rows.size(); i++)
+        {
+            final StoredData row = rows.get(i);
+            final MessageStore.Location location = locations.get(i);
+            DB.sqlUpdate("UPDATE " + table
+                         + " SET segment_id = :segmentId, segment_offset = :offset WHERE id = :id AND segment_id = :oldSegmentId AND segment_offset = :oldOffset")
+              .setParameter("segmentId", location.getSegment()).setParameter("offset", location.getOffset())
+              .setParameter("id", row.id).setParameter("oldSegmentId", segmentId)
+              .setParameter("oldOffset", row.location.getOffset()).execute();
+        }
+    }
+
+    /**
+     * Sets the three parameters starting at the given index to the segment, offset and length of the given location,
+     * or to <code>null</code> if there's no location.
+     */
+    static void setLocation(PreparedStatement stmt, int index, MessageStore.Location location) throws SQLException
+    {
+        if (location == null)
+        {
+            stmt.setNull(index, Types.BIGINT);
+            stmt.setNull(index + 1, Types.BIGINT);
+            stmt.setNull(index + 2, Types.BIGINT);
+        }
+        else
+        {
+            stmt.setLong(index, location.getSegment());
+            stmt.setLong(index + 1, location.getOffset());
+            stmt.setLong(index + 2, location.getLength());
+        }
+    }
+
+    /**
+     * Data stored either in a row or in the {@link MessageStore}.
+     */
+    private static class StoredData
+    {
+        /**
+         * a number that comes with the data, e.g. the offset of a part in the message
+         */
+        private final long offset;
+
+        private final byte[] data;
+
+        private final MessageStore.Location location;
+
+        /**
+         * the ID of the row, 0 if not selected. The data of a part that wasn't selected is streamed by this ID when
+         * needed.
+         */
+        private final long id;
+
+        private StoredData(long offset, byte[] data, MessageStore.Location location, long id)
+        {
+            this.offset = offset;
+            this.data = data;
+            this.location = location;
+            this.id = id;
+        }
+
+        /**
+         * Opens the decoded part body, which is streamed from where it is stored.
+         */
+        private InputStream open() throws IOException
+        {
+            if (location != null)
+            {
+                return MessageCodec.decodePart(read(location));
+            }
+            return MessageCodec.decodePart(data != null ? new ByteArrayInputStream(data) : openPartData(id));
+        }
+
+        private byte[] load()
+        {
+            if (location == null)
+            {
+                return data;
+            }
+            try (final InputStream in = read(location))
+            {
+                return IOUtils.toByteArray(in, location.getLength());
+            }
+            catch (IOException e)
+            {
+                throw new PersistenceException("Failed to read stored data", e);
+            }
+        }
+    }
+
+    /**
+     * Opens the data at the given location in the segment store.
+     */
+    private static InputStream read(MessageStore.Location location) throws IOException
+    {
+        final SegmentMessageStore store = segmentStore;
+        if (store == null)
+        {
+            throw new IOException("Data is stored in segment " + location.getSegment()
+                                  + ", but the segment store isn't open");
+        }
+        return store.read(location);
+    }
+
+    /**
+     * Opens the data of the part with the given ID, which is streamed from the database row. The stream holds its own
+     * transaction, and so a connection, until it is closed.
+     */
+    private static InputStream openPartData(long id) throws IOException
+    {
+        final Transaction transaction = DB.createTransaction();
+        try
+        {
+            final PreparedStatement stmt = transaction.connection()
+                                                      .prepareStatement("SELECT data FROM mail_part WHERE id = ?");
+            stmt.setLong(1, id);
+            final ResultSet rs = stmt.executeQuery();
+            final InputStream in = rs.next() ? rs.getBinaryStream(1) : null;
+            if (in == null)
+            {
+                throw new IOException("Mail part " + id + " was removed");
+            }
+            return new FilterInputStream(in)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try
+                    {
+                        super.close();
+                        rs.close();
+                        stmt.close();
+                    }
+                    catch (SQLException e)
+                    {
+                        throw new IOException("Failed to close mail part " + id, e);
+                    }
+                    finally
+                    {
+                        transaction.end();
+                    }
+                }
+            };
+        }
+        catch (SQLException | IOException | RuntimeException e)
+        {
+            transaction.end();
+            throw (e instanceof IOException) ? (IOException) e : new IOException("Failed to read mail part " + id, e);
+        }
+    }
+
+    /**
+     * Maps rows of a number, the data, the segment, offset and length of the data, and optionally the ID of the row to
+     * {@link StoredData}.
+     */
+    private static class StoredDataMapper implements RowMapper<StoredData>
+    {
+        @Override
+        public StoredData map(ResultSet rs, int rowNum) throws SQLException
+        {
+            final long segment = rs.getLong(3);
+            final MessageStore.Location location = rs.wasNull() ? null
+                                                                : new MessageStore.Location(segment, rs.getLong(4),
+                                                                                            rs.getLong(5));
+            return new StoredData(rs.getLong(1), rs.getBytes(2), location,
+                                  rs.getMetaData().getColumnCount() > 5 ? rs.getLong(6) : 0);
+        }
+    }
+
+    /**
+     * The slices of a message between its parts and the parts themselves, in the order they appear in the raw message.
+     * The parts are opened when they are reached.
+     */
+    private static class MessagePieces implements Enumeration<InputStream>
+    {
+        private final byte[] message;
+
+        private final List<StoredData> parts;
+
+        /**
+         * the index of the next piece, even indexes are slices of the message and odd ones parts
+         */
+        private int index;
+
+        /**
+         * the offset of the next slice in the message
+         */
+        private int position;
+
+        private MessagePieces(byte[] message, List<StoredData> parts)
+        {
+            this.message = message;
+            this.parts = parts;
+        }
+
+        @Override
+        public boolean hasMoreElements()
+        {
+            return index <= 2 * parts.size();
+        }
+
+        @Override
+        public InputStream nextElement()
+        {
+            if (!hasMoreElements())
+            {
+                throw new NoSuchElementException();
+            }
+
+            final int pieceIndex = index++;
+            if (pieceIndex % 2 == 1)
+            {
+                try
+                {
+                    return parts.get(pieceIndex / 2).open();
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            final int end = (pieceIndex / 2 < parts.size()) ? (int) parts.get(pieceIndex / 2).offset : message.length;
+            final InputStream slice = new ByteArrayInputStream(message, position, end - position);
+            position = end;
+            return slice;
+        }
+    }
+
+    /**
+     * A part cut out of the message, waiting to be stored.
+     */
+    private static class PendingPart
+    {
+        private final String hash;
+
+        private final long offset;
+
+        private final InputStream data;
+
+        private final long length;
+
+        private PendingPart(String hash, long offset, InputStream data, long length)
+        {
+            this.hash = hash;
+            this.offset = offset;
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
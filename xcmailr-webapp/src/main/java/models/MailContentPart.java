@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.io.Serializable;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Links a {@link MailContent} to a {@link MailPart} that was cut out of its message. The part body has to be inserted
+ * at the given offset of the stored message to get the raw message back.
+ */
+@Entity
+@Table(name = "mail_content_part", indexes =
+    {
+        @Index(name = "ix_mail_content_part_content", columnList = "content_id"),
+        @Index(name = "ix_mail_content_part_part", columnList = "part_id")
+    })
+public class MailContentPart extends AbstractEntity implements Serializable
+{
+    private static final long serialVersionUID = -1904405364287361170L;
+
+    @NotNull
+    @Column(name = "content_id")
+    private long contentId;
+
+    @NotNull
+    @Column(name = "part_id")
+    private long partId;
+
+    /**
+     * the index of the part in the message
+     */
+    @NotNull
+    @Column(name = "part_index")
+    private int partIndex;
+
+    /**
+     * the offset in the stored message to insert the part body at
+     */
+    @NotNull
+    @Column(name = "part_offset")
+    private long partOffset;
+
+    public long getContentId()
+    {
+        return contentId;
+    }
+
+    public long getPartId()
+    {
+        return partId;
+    }
+
+    public int getPartIndex()
+    {
+        return partIndex;
+    }
+
+    public long getPartOffset()
+    {
+        return partOffset;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Lob;
+import jakarta.persistence.PersistenceException;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import javax.validation.constraints.NotNull;
+
+import etc.MailMetadataExtractor;
+import etc.SearchTerms;
+import io.ebean.DB;
+import io.ebean.Transaction;
+
+/**
+ * The data of a {@link MailContent} that is shown to the users, i.e. the decoded text and HTML content, the header text
+ * and the attachment manifest. It is extracted once when the mail is received, so the mails can be listed without
+ * parsing their raw messages again.
+ */
+@Entity
+@Table(name = "mail_metadata")
+public class MailMetadata extends AbstractEntity implements Serializable
+{
+    private static final long serialVersionUID = -6307452263581232095L;
+
+    @NotNull
+    @Column(name = "content_id", unique = true)
+    private long contentId;
+
+    @Lob
+    @Column(name = "text_content")
+    private String textContent;
+
+    @Lob
+    @Column(name = "html_content")
+    private String htmlContent;
+
+    @Lob
+    private String headers;
+
+    /**
+     * the attachments, stored as {@link MailAttachment}s
+     */
+    @Transient
+    private transient List<MailAttachment> attachments = new ArrayList<>();
+
+    /**
+     * the terms of the text and HTML content with their frequencies, counted on first use
+     */
+    @Transient
+    private transient Map<String, Integer> searchTerms;
+
+    public MailMetadata()
+    {
+    }
+
+    public MailMetadata(String textContent, String htmlContent, String headers, List<MailAttachment> attachments)
+    {
+        this.textContent = textContent;
+        this.htmlContent = htmlContent;
+        this.headers = headers;
+        this.attachments = attachments;
+    }
+
+    public long getContentId()
+    {
+        return contentId;
+    }
+
+    public void setContentId(long contentId)
+    {
+        this.contentId = contentId;
+    }
+
+    /**
+     * @return the decoded plain text content, or <code>null</code> if there is none
+     */
+    public String getTextContent()
+    {
+        return textContent;
+    }
+
+    /**
+     * @return the decoded HTML content, or <code>null</code> if there is none
+     */
+    public String getHtmlContent()
+    {
+        return htmlContent;
+    }
+
+    /**
+     * @return all header lines of the message, separated by CRLF
+     */
+    public String getHeaders()
+    {
+        return headers;
+    }
+
+    /**
+     * @return the attachments in the order they appear in the message
+     */
+    public List<MailAttachment> getAttachments()
+    {
+        return attachments;
+    }
+
+    /**
+     * Returns the terms of the text and HTML content to add to the search index, see {@link MailSearchTerm}. They are
+     * counted on the first call, so this can be done before the metadata is stored.
+     *
+     * @return the number of occurrences by term
+     */
+    public Map<String, Integer> getSearchTerms()
+    {
+        if (searchTerms == null)
+        {
+            searchTerms = SearchTerms.count(textContent, htmlContent);
+        }
+        return searchTerms;
+    }
+
+    /**
+     * Stores this metadata for the content with the given ID.
+     *
+     * @param contentId
+     *            the ID of the content
+     */
+    public void insert(long contentId)
+    {
+        setContentId(contentId);
+        try (final Transaction transaction = DB.beginTransaction())
+        {
+            insertAll(transaction.connection(), List.of(this));
+            transaction.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new PersistenceException("Failed to insert mail metadata", e);
+        }
+    }
+
+    /**
+     * Inserts the given metadata together with their attachments and search terms, using one batch statement for
+     * each. The content IDs have to be set via {@link #setContentId(long)} already.
+     *
+     * @param connection
+     *            the connection of the current transaction
+     * @param metadata
+     *            the metadata to insert
+     * @throws SQLException
+     *             if a database error occurred
+     */
+    static void insertAll(Connection connection, Collection<MailMetadata> metadata) throws SQLException
+    {
+        if (metadata.isEmpty())
+        {
+            return;
+        }
+
+        boolean hasAttachments = false;
+        try (final PreparedStatement stmt = connection.prepareStatement("INSERT INTO mail_metadata (id, content_id, text_content, html_content, headers) VALUES (?, ?, ?, ?, ?)"))
+        {
+            for (final MailMetadata data : metadata)
+            {
+                data.setId(((Number) DB.nextId(MailMetadata.class)).longValue());
+
+                stmt.setLong(1, data.getId());
+                stmt.setLong(2, data.contentId);
+                stmt.setString(3, data.textContent);
+                stmt.setString(4, data.htmlContent);
+                stmt.setString(5, data.headers);
+                stmt.addBatch();
+
+                hasAttachments |= !data.attachments.isEmpty();
+            }
+            stmt.executeBatch();
+        }
+
+        MailSearchTerm.insertAll(connection, metadata);
+
+        if (!hasAttachments)
+        {
+            return;
+        }
+        try (final PreparedStatement stmt = connection.prepareStatement("INSERT INTO mail_attachment (id, content_id, attachment_index, name, content_type, size, part_offset, part_length, part_encoding) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"))
+        {
+            for (final MailMetadata data : metadata)
+            {
+                for (int i = 0; i < data.attachments.size(); i++)
+                {
+                    final MailAttachment attachment = data.attachments.get(i);
+                    attachment.setId(((Number) DB.nextId(MailAttachment.class)).longValue());
+                    attachment.setContentId(data.contentId);
+                    attachment.setAttachmentIndex(i);
+
+                    stmt.setLong(1, attachment.getId());
+                    stmt.setLong(2, data.contentId);
+                    stmt.setInt(3, i);
+                    stmt.setString(4, attachment.getName());
+                    stmt.setString(5, attachment.getContentType());
+                    stmt.setInt(6, attachment.getSize());
+                    stmt.setLong(7, attachment.getPartOffset());
+                    if (attachment.getPartLength() == null)
+                    {
+                        stmt.setNull(8, Types.BIGINT);
+                    }
+                    else
+                    {
+                        stmt.setLong(8, attachment.getPartLength());
+                    }
+                    stmt.setString(9, attachment.getPartEncoding());
+                    stmt.addBatch();
+                }
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+     * Returns the stored metadata of the contents with the given IDs, including their attachments.
+     *
+     * @param contentIds
+     *            the IDs of the contents
+     * @return the metadata by content ID, contents without metadata are missing
+     */
+    public static Map<Long, MailMetadata> findByContentIds(Collection<Long> contentIds)
+    {
+        final Map<Long, MailMetadata> result = new HashMap<>();
+        if (contentIds.isEmpty())
+        {
+            return result;
+        }
+
+        for (final MailMetadata data : DB.find(MailMetadata.class).where().in("contentId", contentIds).findList())
+        {
+            result.put(data.contentId, data);
+        }
+        for (final MailAttachment attachment : DB.find(MailAttachment.class).where().in("contentId", contentIds)
+                                                 .orderBy("contentId, attachmentIndex").findList())
+        {
+            final MailMetadata data = result.get(attachment.getContentId());
+            if (data != null)
+            {
+                data.attachments.add(attachment);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the metadata of the given mails. The metadata is read from the database, it is extracted from the raw
+     * message only for mails that were not processed yet.
+     *
+     * @param mails
+     *            the mails
+     * @return the metadata by mail ID, <code>null</code> for mails with an empty message
+     * @throws Exception
+     *             if a message could not be parsed
+     */
+    public static Map<Long, MailMetadata> findForMails(Collection<Mail> mails) throws Exception
+    {
+        final Set<Long> contentIds = new HashSet<>();
+        for (final Mail mail : mails)
+        {
+            if (mail.getContentId() != null)
+            {
+                contentIds.add(mail.getContentId());
+            }
+        }
+        final Map<Long, MailMetadata> stored = findByContentIds(contentIds);
+
+        final Map<Long, MailMetadata> result = new HashMap<>();
+        for (final Mail mail : mails)
+        {
+            MailMetadata data = (mail.getContentId() != null) ? stored.get(mail.getContentId()) : null;
+            if (data == null)
+            {
+                data = MailMetadataExtractor.extract(mail.getMessage());
+            }
+            result.put(mail.getId(), data);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the metadata of the given mail, see {@link #findForMails(Collection)}.
+     *
+     * @param mail
+     *            the mail
+     * @return the metadata, <code>null</code> if the mail has an empty message
+     * @throws Exception
+     *             if the message could not be parsed
+     */
+    public static MailMetadata findForMail(Mail mail) throws Exception
+    {
+        return findForMails(List.of(mail)).get(mail.getId());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Lob;
+import jakarta.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+import etc.MessageStore;
+import io.ebean.DB;
+
+/**
+ * A MIME part body shared by several {@link MailContent}s, e.g. an attachment that is sent again and again. Parts are
+ * identified by the SHA-256 hash of their body and stored only once. The number of contents referring to a part is
+ * counted, parts that are not referenced anymore are removed by {@link #deleteUnreferenced()}.
+ */
+@Entity
+@Table(name = "mail_part", indexes =
+    {
+        @Index(name = "ix_mail_part_segment", columnList = "segment_id")
+    })
+public class MailPart extends AbstractEntity implements Serializable
+{
+    private static final long serialVersionUID = 5213085960461874571L;
+
+    /**
+     * the hex encoded SHA-256 hash of the part body
+     */
+    @NotNull
+    @Column(length = 64, unique = true)
+    private String hash;
+
+    /**
+     * the part body as stored, see {@link etc.MessageCodec#encodePart(InputStream, long, int, int)}, or <code>null</code> if it is stored in a segment
+     */
+    @Lob
+    private byte[] data;
+
+    /**
+     * the segment of the {@link MessageStore} holding the part body, <code>null</code> if the body is stored in this
+     * row
+     */
+    @Column(name = "segment_id")
+    private Long segmentId;
+
+    @Column(name = "segment_offset")
+    private Long segmentOffset;
+
+    @Column(name = "segment_length")
+    private Long segmentLength;
+
+    /**
+     * the number of references to this part
+     */
+    @NotNull
+    @Column(name = "ref_count")
+    private int refCount;
+
+    public String getHash()
+    {
+        return hash;
+    }
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    public int getRefCount()
+    {
+        return refCount;
+    }
+
+    public Long getSegmentId()
+    {
+        return segmentId;
+    }
+
+    /**
+     * Adds a reference to the part with the given hash. If there's no such part yet, it is inserted with the data
+     * from the given stream, otherwise the stream is not read at all. A part that isn't referenced anymore is not
+     * reused, since {@link #deleteUnreferenced()} may remove it at any time. It is replaced by a new one instead.
+     *
+     * @param connection
+     *            the connection of the current transaction
+     * @param hash
+     *            the hash of the part body
+     * @param data
+     *            the part body as it is stored
+     * @param length
+     *            the number of bytes in the stream, or -1 if unknown
+     * @return the ID of the part
+     * @throws SQLException
+     *             if a database error occurred
+     * @throws IOException
+     *             if the part body could not be written to the message store
+     */
+    static long acquire(Connection connection, String hash, InputStream data, long length)
+        throws SQLException, IOException
+    {
+        // checking and incrementing the count in one statement locks the row, so it can't be deleted meanwhile
+        try (final PreparedStatement update = connection.prepareStatement("UPDATE mail_part SET ref_count = ref_count + 1 WHERE hash = ? AND ref_count > 0"))
+        {
+            update.setString(1, hash);
+            if (update.executeUpdate() == 1)
+            {
+                try (final PreparedStatement select = connection.prepareStatement("SELECT id FROM mail_part WHERE hash = ?"))
+                {
+                    select.setString(1, hash);
+                    try (final ResultSet rs = select.executeQuery())
+                    {
+                        rs.next();
+                        return rs.getLong(1);
+                    }
+                }
+            }
+        }
+
+        // remove an unreferenced part that wasn't deleted yet, so the hash is free again
+        try (final PreparedStatement delete = connection.prepareStatement("DELETE FROM mail_part WHERE hash = ? AND ref_count <= 0"))
+        {
+            delete.setString(1, hash);
+            delete.executeUpdate();
+        }
+
+        final long id = ((Number) DB.nextId(MailPart.class)).longValue();
+        final MessageStore.Location location = MailContent.getMessageStore().write(data);
+        try (final PreparedStatement insert = connection.prepareStatement("INSERT INTO mail_part (id, hash, data, ref_count, segment_id, segment_offset, segment_length) VALUES (?, ?, ?, 1, ?, ?, ?)"))
+        {
+            insert.setLong(1, id);
+            insert.setString(2, hash);
+            if (location != null)
+            {
+                insert.setNull(3, Types.BLOB);
+            }
+            else if (length < 0)
+            {
+                insert.setBinaryStream(3, data);
+            }
+            else
+            {
+                insert.setBinaryStream(3, data, length);
+            }
+            MailContent.setLocation(insert, 4, location);
+            insert.executeUpdate();
+        }
+        return id;
+    }
+
+    /**
+     * Deletes all parts that aren't referenced by any content anymore.
+     *
+     * @return the number of deleted parts
+     */
+    public static int deleteUnreferenced()
+    {
+        return DB.sqlUpdate("DELETE FROM mail_part WHERE ref_count <= 0").execute();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.PersistenceException;
+import jakarta.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+import etc.SearchTerms;
+import io.ebean.DB;
+import io.ebean.Transaction;
+
+/**
+ * An entry of the full-text search index: a term occurring in the text or HTML content of a {@link MailContent}. The
+ * entries are written together with the {@link MailMetadata} and removed together with the content. The index is
+ * queried by {@link etc.MailSearch}.
+ */
+@Entity
+@Table(name = "mail_search_term", indexes =
+    {
+        @Index(name = "ix_mail_search_term_term", columnList = "term"),
+        @Index(name = "ix_mail_search_term_content", columnList = "content_id")
+    })
+public class MailSearchTerm extends AbstractEntity implements Serializable
+{
+    private static final long serialVersionUID = 8312465460349117063L;
+
+    @NotNull
+    @Column(name = "content_id")
+    private long contentId;
+
+    @NotNull
+    @Column(length = SearchTerms.MAX_LENGTH)
+    private String term;
+
+    /**
+     * the number of occurrences of the term in the content
+     */
+    @NotNull
+    private int frequency;
+
+    public long getContentId()
+    {
+        return contentId;
+    }
+
+    public String getTerm()
+    {
+        return term;
+    }
+
+    public int getFrequency()
+    {
+        return frequency;
+    }
+
+    /**
+     * Adds the terms of the given stored metadata to the index.
+     *
+     * @param metadata
+     *            the metadata to index
+     */
+    public static void insert(Collection<MailMetadata> metadata)
+    {
+        try (final Transaction transaction = DB.beginTransaction())
+        {
+            insertAll(transaction.connection(), metadata);
+            transaction.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new PersistenceException("Failed to index mail metadata", e);
+        }
+    }
+
+    /**
+     * Adds the terms of the given metadata to the index, using one batch statement.
+     *
+     * @param connection
+     *            the connection of the current transaction
+     * @param metadata
+     *            the metadata to index, their content IDs have to be set already
+     * @throws SQLException
+     *             if a database error occurred
+     */
+    static void insertAll(Connection connection, Collection<MailMetadata> metadata) throws SQLException
+    {
+        try (final PreparedStatement stmt = connection.prepareStatement("INSERT INTO mail_search_term (id, content_id, term, frequency) VALUES (?, ?, ?, ?)"))
+        {
+            boolean hasTerms = false;
+            for (final MailMetadata data : metadata)
+            {
+                final Map<String, Integer> terms = data.getSearchTerms();
+                for (final Map.Entry<String, Integer> entry : terms.entrySet())
+                {
+                    stmt.setLong(1, ((Number) DB.nextId(MailSearchTerm.class)).longValue());
+                    stmt.setLong(2, data.getContentId());
+                    stmt.setString(3, entry.getKey());
+                    stmt.setInt(4, entry.getValue());
+                    stmt.addBatch();
+                    hasTerms = true;
+                }
+            }
+            if (hasTerms)
+            {
+                stmt.executeBatch();
+            }
+        }
+    }
+}
@@ -16,16 +16,23 @@
 package models;
 
 import java.io.Serializable;
+import java.sql.Connection;
 import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.Map;
 
 import jakarta.persistence.Column;
 import jakarta.persistence.EmbeddedId;
 import jakarta.persistence.Entity;
+import jakarta.persistence.PersistenceException;
 import jakarta.persistence.Table;
 
+import etc.StatisticsEntry;
 import io.ebean.DB;
+import io.ebean.Transaction;
 
 @Entity
 @Table(name = "MAIL_STATISTICS")
@@ -36,6 +43,18 @@ public class MailStatistics implements Serializable
      */
     private static final long serialVersionUID = 6489599509883330752L;
 
+    /**
+     * adds the counts of one entry to the stored ones or creates the entry
+     */
+    private static final String MERGE_SQL = "MERGE INTO MAIL_STATISTICS s USING (SELECT CAST(? AS DATE) AS STAT_DATE, CAST(? AS INTEGER) AS QUARTER_HOUR, "
+                                            + "CAST(? AS VARCHAR(255)) AS FROM_DOMAIN, CAST(? AS VARCHAR(255)) AS TARGET_DOMAIN, "
+                                            + "CAST(? AS INTEGER) AS DROP_COUNT, CAST(? AS INTEGER) AS FORWARD_COUNT, CAST(? AS INTEGER) AS THROTTLE_COUNT) c "
+                                            + "ON (s.date = c.STAT_DATE AND s.QUARTER_HOUR = c.QUARTER_HOUR AND s.FROM_DOMAIN = c.FROM_DOMAIN AND s.TARGET_DOMAIN = c.TARGET_DOMAIN) "
+                                            + "WHEN MATCHED THEN UPDATE SET DROP_COUNT = COALESCE(s.DROP_COUNT, 0) + c.DROP_COUNT, "
+                                            + "FORWARD_COUNT = COALESCE(s.FORWARD_COUNT, 0) + c.FORWARD_COUNT, THROTTLE_COUNT = COALESCE(s.THROTTLE_COUNT, 0) + c.THROTTLE_COUNT "
+                                            + "WHEN NOT MATCHED THEN INSERT (date, QUARTER_HOUR, FROM_DOMAIN, TARGET_DOMAIN, DROP_COUNT, FORWARD_COUNT, THROTTLE_COUNT) "
+                                            + "VALUES (c.STAT_DATE, c.QUARTER_HOUR, c.FROM_DOMAIN, c.TARGET_DOMAIN, c.DROP_COUNT, c.FORWARD_COUNT, c.THROTTLE_COUNT)";
+
     @EmbeddedId
     private MailStatisticsKey key;
 
@@ -45,6 +64,9 @@ public class MailStatistics implements Serializable
     @Column(name = "FORWARD_COUNT")
     private int forwardCount;
 
+    @Column(name = "THROTTLE_COUNT")
+    private int throttleCount;
+
     public MailStatisticsKey getKey()
     {
         return key;
@@ -75,6 +97,16 @@ public class MailStatistics implements Serializable
         this.forwardCount = forwardCount;
     }
 
+    public int getThrottleCount()
+    {
+        return throttleCount;
+    }
+
+    public void setThrottleCount(int throttleCount)
+    {
+        this.throttleCount = throttleCount;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -87,6 +119,7 @@ public class MailStatistics implements Serializable
         int result = 1;
         result = prime * result + dropCount;
         result = prime * result + forwardCount;
+        result = prime * result + throttleCount;
         result = prime * result + ((key == null) ? 0 : key.hashCode());
         return result;
     }
@@ -120,6 +153,10 @@ public class MailStatistics implements Serializable
         {
             return false;
         }
+        if (throttleCount != other.throttleCount)
+        {
+            return false;
+        }
         if (key == null)
         {
             if (other.key != null)
@@ -142,9 +179,9 @@ public class MailStatistics implements Serializable
     @Override
     public String toString()
     {
-        return String.format("MailStatistics [date=%s, quarterHour=%s, fromDomain=%s, targetDomain=%s, dropCount=%s, forwardCount=%s]",
+        return String.format("MailStatistics [date=%s, quarterHour=%s, fromDomain=%s, targetDomain=%s, dropCount=%s, forwardCount=%s, throttleCount=%s]",
                              key.getDate(), key.getQuarterHour(), key.getFromDomain(), key.getTargetDomain(), dropCount,
-                             forwardCount);
+                             forwardCount, throttleCount);
     }
 
     public static String format(int value)
@@ -158,6 +195,47 @@ public class MailStatistics implements Serializable
         return formatter.format(value);
     }
 
+    /**
+     * Adds the given counts to the stored {@link MailStatistics} entries, missing entries are created. All counts are
+     * written with one batch of MERGE statements, each of which adds its counts atomically in the database.
+     * 
+     * @param counts
+     *            the counts to add, keyed by the entry they belong to
+     */
+    public static void addAll(Map<MailStatisticsKey, StatisticsEntry> counts)
+    {
+        if (counts.isEmpty())
+        {
+            return;
+        }
+
+        try (final Transaction transaction = DB.beginTransaction())
+        {
+            final Connection connection = transaction.connection();
+            try (final PreparedStatement stmt = connection.prepareStatement(MERGE_SQL))
+            {
+                for (final Map.Entry<MailStatisticsKey, StatisticsEntry> entry : counts.entrySet())
+                {
+                    final MailStatisticsKey key = entry.getKey();
+                    stmt.setDate(1, key.getDate());
+                    stmt.setInt(2, key.getQuarterHour());
+                    stmt.setString(3, key.getFromDomain());
+                    stmt.setString(4, key.getTargetDomain());
+                    stmt.setInt(5, entry.getValue().getDropCount());
+                    stmt.setInt(6, entry.getValue().getForwardCount());
+                    stmt.setInt(7, entry.getValue().getThrottleCount());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            transaction.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new PersistenceException("Failed to store " + counts.size() + " mail statistics entries", e);
+        }
+    }
+
     /**
      * Deletes all {@link MailStatistics} entries with a date value older than the given date.
      * 
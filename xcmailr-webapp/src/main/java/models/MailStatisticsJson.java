@@ -24,4 +24,6 @@ public class MailStatisticsJson
     public int droppedCount;
 
     public int forwardedCount;
+
+    public int throttledCount;
 }
@@ -15,7 +15,12 @@
  */
 package models;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -23,6 +28,8 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.PersistenceException;
 import jakarta.persistence.Table;
 
 import org.joda.time.DateTime;
@@ -32,7 +39,7 @@ import io.ebean.DB;
 import io.ebean.Query;
 import io.ebean.RawSql;
 import io.ebean.RawSqlBuilder;
-import io.ebean.SqlUpdate;
+import io.ebean.Transaction;
 
 /**
  * This Class is used to save all Actions on the Mailserver
@@ -40,7 +47,13 @@ import io.ebean.SqlUpdate;
  * @author Patrick Thum, Xceptance Software Technologies GmbH, Germany
  */
 @Entity
-@Table(name = "mailtransactions")
+@Table(name = "mailtransactions", indexes =
+    {
+        @Index(name = "ix_mailtransactions_ts", columnList = "ts"),
+        @Index(name = "ix_mailtransactions_targetaddr", columnList = "targetaddr"),
+        @Index(name = "ix_mailtransactions_relayaddr", columnList = "relayaddr"),
+        @Index(name = "ix_mailtransactions_sourceaddr", columnList = "sourceaddr")
+    })
 public class MailTransaction
 {
     @Id
@@ -79,6 +92,9 @@ public class MailTransaction
      * 400 - the Mail can't be forwarded (target not reachable)<br/>
      * 500 - Relay denied (recipient's address does not belong to this server)<br/>
      * 600 - User is inactive</br>
+     * 700 - Throttled, the client exceeded its rate<br/>
+     * 800 - Throttled, the sender domain exceeded its rate<br/>
+     * 900 - Throttled, the recipient exceeded its rate<br/>
      * 
      * @param stat
      *            Statuscode of the Transaction
@@ -149,6 +165,9 @@ public class MailTransaction
      * 400 - the Mail can't be forwarded (target not reachable)<br/>
      * 500 - Relay denied (recipient's address does not belong to this server)<br/>
      * 600 - User is inactive</br>
+     * 700 - Throttled, the client exceeded its rate<br/>
+     * 800 - Throttled, the sender domain exceeded its rate<br/>
+     * 900 - Throttled, the recipient exceeded its rate<br/>
      * 
      * @return a Statuscode
      */
@@ -166,6 +185,9 @@ public class MailTransaction
      * 400 - the Mail can't be forwarded (target not reachable)<br/>
      * 500 - Relay denied (recipient's address does not belong to this server)<br/>
      * 600 - User is inactive</br>
+     * 700 - Throttled, the client exceeded its rate<br/>
+     * 800 - Throttled, the sender domain exceeded its rate<br/>
+     * 900 - Throttled, the recipient exceeded its rate<br/>
      * 
      * @param status
      *            the Status to set
@@ -260,7 +282,19 @@ public class MailTransaction
      */
     public static List<MailTransaction> getAllInPeriod(Period period)
     {
-        return DB.find(MailTransaction.class).where().gt("ts", DateTime.now().minus(period).getMillis()).findList();
+        return querySince(DateTime.now().minus(period).getMillis()).findList();
+    }
+
+    /**
+     * Creates a query for the MailTransactions stored after the given time.
+     * 
+     * @param ts
+     *            the time in milliseconds
+     * @return the query
+     */
+    static Query<MailTransaction> querySince(long ts)
+    {
+        return DB.find(MailTransaction.class).where().gt("ts", ts).query();
     }
 
     /**
@@ -286,9 +320,7 @@ public class MailTransaction
      */
     public static List<MailTransaction> getForTarget(final String targetAddr)
     {
-        List<MailTransaction> list = DB.find(MailTransaction.class).where().eq("targetaddr", targetAddr)
-                                          .orderBy("ts desc").findList();
-        return list;
+        return queryByAddress("targetaddr", targetAddr).findList();
     }
 
     /**
@@ -300,9 +332,7 @@ public class MailTransaction
      */
     public static List<MailTransaction> getForRelay(final String relayAddr)
     {
-        List<MailTransaction> list = DB.find(MailTransaction.class).where().eq("relayaddr", relayAddr)
-                                          .orderBy("ts desc").findList();
-        return list;
+        return queryByAddress("relayaddr", relayAddr).findList();
     }
 
     /**
@@ -314,26 +344,52 @@ public class MailTransaction
      */
     public static List<MailTransaction> getForSource(final String sourceAddr)
     {
-        List<MailTransaction> list = DB.find(MailTransaction.class).where().eq("sourceaddr", sourceAddr)
-                                          .orderBy("ts desc").findList();
-        return list;
+        return queryByAddress("sourceaddr", sourceAddr).findList();
+    }
+
+    /**
+     * Creates a query for the MailTransactions with the given address in the given column, sorted descending.
+     * 
+     * @param column
+     *            the address column, one of targetaddr, relayaddr and sourceaddr
+     * @param address
+     *            the address
+     * @return the query
+     */
+    static Query<MailTransaction> queryByAddress(final String column, final String address)
+    {
+        return DB.find(MailTransaction.class).where().eq(column, address).orderBy("ts desc").query();
     }
 
     /**
-     * Deletes all Transactions that have been stored before the given Timestamp
+     * Deletes all Transactions that have been stored before the given Timestamp. The transactions are deleted in chunks
+     * of the given size, each with its own statement, so the table isn't locked for the whole time.
      * 
      * @param ts
-     *            the Timestamp in milliseconds
+     *            the Timestamp in milliseconds, or <code>null</code> to delete all transactions
+     * @param batchSize
+     *            the maximum number of transactions deleted at once
+     * @return the number of deleted transactions
      */
-    public static void deleteTxInPeriod(Long ts)
+    public static int deleteTxInPeriod(Long ts, int batchSize)
     {
         String sql = "DELETE FROM MAILTRANSACTIONS";
         if (ts != null)
         { // there's a timestamp, add
             sql += " WHERE ts < " + ts;
         }
-        SqlUpdate down = DB.sqlUpdate(sql);
-        down.execute();
+        sql += " FETCH FIRST " + batchSize + " ROWS ONLY";
+
+        int deletedCount = 0;
+        int count;
+        do
+        {
+            count = DB.sqlUpdate(sql).execute();
+            deletedCount += count;
+        }
+        while (count == batchSize);
+
+        return deletedCount;
     }
 
     /**
@@ -375,12 +431,60 @@ public class MailTransaction
     }
 
     /**
-     * saves multiple elements
+     * Saves multiple elements with JDBC batches of the given size. The IDs of each batch are taken from the sequence
+     * with a single query. Note that <code>SELECT NEXT VALUE FOR ... FROM SYSTEM_RANGE(1, ?)</code> is specific to H2
+     * and has to be replaced when running on another database.
      * 
      * @param mtxList
+     *            the transactions to save
+     * @param batchSize
+     *            the maximum number of transactions inserted with one batch
      */
-    public static void saveMultipleTx(List<MailTransaction> mtxList)
+    public static void saveMultipleTx(List<MailTransaction> mtxList, int batchSize)
     {
-        DB.saveAll(mtxList);
+        for (int i = 0; i < mtxList.size(); i = i + batchSize)
+        {
+            final List<MailTransaction> batch = mtxList.subList(i, Math.min(i + batchSize, mtxList.size()));
+            try (final Transaction transaction = DB.beginTransaction())
+            {
+                final Connection connection = transaction.connection();
+
+                final List<Long> ids = new ArrayList<>(batch.size());
+                try (final PreparedStatement stmt = connection.prepareStatement("SELECT NEXT VALUE FOR mailtransactions_seq FROM SYSTEM_RANGE(1, ?)"))
+                {
+                    stmt.setInt(1, batch.size());
+                    try (final ResultSet rs = stmt.executeQuery())
+                    {
+                        while (rs.next())
+                        {
+                            ids.add(rs.getLong(1));
+                        }
+                    }
+                }
+
+                try (final PreparedStatement stmt = connection.prepareStatement("INSERT INTO mailtransactions (id, ts, status, sourceaddr, relayaddr, targetaddr) VALUES (?, ?, ?, ?, ?, ?)"))
+                {
+                    for (int j = 0; j < batch.size(); j++)
+                    {
+                        final MailTransaction mtx = batch.get(j);
+                        mtx.setId(ids.get(j));
+
+                        stmt.setLong(1, mtx.getId());
+                        stmt.setLong(2, mtx.getTs());
+                        stmt.setInt(3, mtx.getStatus());
+                        stmt.setString(4, mtx.getSourceaddr());
+                        stmt.setString(5, mtx.getRelayaddr());
+                        stmt.setString(6, mtx.getTargetaddr());
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                transaction.commit();
+            }
+            catch (SQLException e)
+            {
+                throw new PersistenceException("Failed to store " + batch.size() + " mail transactions", e);
+            }
+        }
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ebean.DB;
+import io.ebean.SqlUpdate;
+import io.ebean.Transaction;
+
+/**
+ * Collects the forward and suppression counts of the mailboxes in memory. The SMTP threads only increment a
+ * {@link LongAdder} per mailbox, the counts are written to the database by {@link #flush()}, which adds the deltas
+ * collected since the last flush to the stored values in one batch.
+ * <p>
+ * Hence the counters shown to the user lag behind by up to one flush interval. The deltas of a mailbox are tracked
+ * until the mailbox is deleted, resetting its counters only zeroes them, so an SMTP thread that already holds them
+ * doesn't increment counts that are lost. A flush evicts only the flushed mailboxes from the bean cache
+ * instead of invalidating the whole table, so the cached address lookups of the other mailboxes stay intact.
+ */
+public final class MailboxCounters
+{
+    private static final Logger log = LoggerFactory.getLogger(MailboxCounters.class);
+
+    /**
+     * the pending deltas, keyed by the ID of the mailbox
+     */
+    private static final Map<Long, Deltas> deltasById = new ConcurrentHashMap<>();
+
+    private MailboxCounters()
+    {
+    }
+
+    /**
+     * Increases the forward count of the mailbox with the given ID by one.
+     *
+     * @param id
+     *            the ID of the mailbox
+     */
+    public static void increaseForwards(long id)
+    {
+        deltasById.computeIfAbsent(id, k -> new Deltas()).forwards.increment();
+    }
+
+    /**
+     * Increases the suppression count of the mailbox with the given ID by one.
+     *
+     * @param id
+     *            the ID of the mailbox
+     */
+    public static void increaseSuppressions(long id)
+    {
+        deltasById.computeIfAbsent(id, k -> new Deltas()).suppressions.increment();
+    }
+
+    /**
+     * @param id
+     *            the ID of the mailbox
+     * @return the number of forwards of the given mailbox that were not flushed yet
+     */
+    public static long getPendingForwards(long id)
+    {
+        final Deltas deltas = deltasById.get(id);
+        return deltas == null ? 0 : deltas.forwards.sum();
+    }
+
+    /**
+     * @param id
+     *            the ID of the mailbox
+     * @return the number of suppressions of the given mailbox that were not flushed yet
+     */
+    public static long getPendingSuppressions(long id)
+    {
+        final Deltas deltas = deltasById.get(id);
+        return deltas == null ? 0 : deltas.suppressions.sum();
+    }
+
+    /**
+     * Zeroes the pending deltas of the given mailboxes because their counters are reset. Waits for a running flush, so
+     * call this before resetting the counters in the database to make sure no older deltas are added afterwards.
+     *
+     * @param ids
+     *            the IDs of the mailboxes
+     */
+    public static synchronized void reset(Collection<Long> ids)
+    {
+        for (final Long id : ids)
+        {
+            final Deltas deltas = deltasById.get(id);
+            if (deltas != null)
+            {
+                deltas.forwards.sumThenReset();
+                deltas.suppressions.sumThenReset();
+            }
+        }
+    }
+
+    /**
+     * Drops the pending deltas of the given mailboxes because they were deleted.
+     *
+     * @param ids
+     *            the IDs of the mailboxes
+     */
+    public static synchronized void discard(Collection<Long> ids)
+    {
+        deltasById.keySet().removeAll(ids);
+    }
+
+    /**
+     * Drops the pending deltas of the given mailbox because it was deleted.
+     *
+     * @param id
+     *            the ID of the mailbox
+     */
+    public static synchronized void discard(long id)
+    {
+        deltasById.remove(id);
+    }
+
+    /**
+     * Adds the pending deltas to the counters in the database. Increments that happen while flushing are kept for the
+     * next flush. If the update fails, the deltas are added back so they are not lost.
+     *
+     * @return the number of mailboxes whose counters were updated
+     */
+    public static synchronized int flush()
+    {
+        if (deltasById.isEmpty())
+        {
+            return 0;
+        }
+
+        final Map<Long, long[]> flushed = new HashMap<>();
+        for (final Map.Entry<Long, Deltas> entry : deltasById.entrySet())
+        {
+            final long forwards = entry.getValue().forwards.sumThenReset();
+            final long suppressions = entry.getValue().suppressions.sumThenReset();
+            if (forwards != 0 || suppressions != 0)
+            {
+                flushed.put(entry.getKey(), new long[]
+                    {
+                        forwards, suppressions
+                    });
+            }
+        }
+        if (flushed.isEmpty())
+        {
+            return 0;
+        }
+
+        try (final Transaction transaction = DB.beginTransaction())
+        {
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(100);
+
+            // don't let the update clear the whole mailbox cache, only the flushed mailboxes are evicted below
+            final SqlUpdate update = DB.sqlUpdate("UPDATE mailboxes SET forwards = forwards + ?, suppressions = suppressions + ? WHERE id = ?")
+                                       .setAutoTableMod(false);
+            for (final Map.Entry<Long, long[]> entry : flushed.entrySet())
+            {
+                update.setParameter(1, entry.getValue()[0]) //
+                      .setParameter(2, entry.getValue()[1]) //
+                      .setParameter(3, entry.getKey()) //
+                      .addBatch();
+            }
+            update.executeBatch();
+            transaction.commit();
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("Failed to flush the counters of {} mailboxes, will retry", flushed.size(), e);
+            for (final Map.Entry<Long, long[]> entry : flushed.entrySet())
+            {
+                final Deltas deltas = deltasById.computeIfAbsent(entry.getKey(), k -> new Deltas());
+                deltas.forwards.add(entry.getValue()[0]);
+                deltas.suppressions.add(entry.getValue()[1]);
+            }
+            return 0;
+        }
+
+        final Set<Object> cacheKeys = new HashSet<>();
+        for (final Long id : flushed.keySet())
+        {
+            cacheKeys.add(id.toString());
+        }
+        DB.cacheManager().beanCache(MBox.class).removeAll(cacheKeys);
+
+        log.debug("Flushed the counters of {} mailboxes", flushed.size());
+        return flushed.size();
+    }
+
+    /**
+     * The forward and suppression deltas of a mailbox.
+     */
+    private static class Deltas
+    {
+        private final LongAdder forwards = new LongAdder();
+
+        private final LongAdder suppressions = new LongAdder();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The deadlines of all active mailboxes with a limited validity, ordered by time. The queue is fed by the
+ * {@link MailboxRoutingIndex}, so it follows every change of a mailbox that is visible to the index, e.g. a new
+ * validity set by the user. A single worker takes the mailboxes whose deadline has passed via
+ * {@link #expireDue(int)} and disables them right away, instead of polling the database for expired mailboxes.
+ */
+public final class MailboxExpiryQueue
+{
+    /**
+     * the time to wait before retrying mailboxes that couldn't be expired, in milliseconds
+     */
+    private static final long RETRY_DELAY = 10000;
+
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * signalled whenever the earliest deadline changes
+     */
+    private static final Condition changed = lock.newCondition();
+
+    /**
+     * the deadlines, earliest first
+     */
+    private static final TreeSet<Deadline> deadlines = new TreeSet<>();
+
+    /**
+     * the deadlines, keyed by the ID of the mailbox
+     */
+    private static final Map<Long, Deadline> deadlinesById = new HashMap<>();
+
+    private MailboxExpiryQueue()
+    {
+    }
+
+    /**
+     * Waits until the deadline of at least one mailbox has passed and marks up to the given number of such mailboxes
+     * as expired.
+     *
+     * @param batchSize
+     *            the maximum number of mailboxes to expire
+     * @return the number of expired mailboxes
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting
+     */
+    public static int expireDue(int batchSize) throws InterruptedException
+    {
+        final List<Long> ids = awaitDue(batchSize);
+        try
+        {
+            return MBox.expire(ids, System.currentTimeMillis());
+        }
+        catch (RuntimeException e)
+        {
+            // try again later, unless the mailboxes were changed in the meantime
+            lock.lock();
+            try
+            {
+                for (final Long id : ids)
+                {
+                    if (!deadlinesById.containsKey(id))
+                    {
+                        add(id, System.currentTimeMillis() + RETRY_DELAY);
+                    }
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of mailboxes waiting for their deadline
+     */
+    public static int size()
+    {
+        lock.lock();
+        try
+        {
+            return deadlines.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules the expiry of the given mailbox at the end of its validity, replacing a previous deadline. Unlimited
+     * and already expired mailboxes are removed from the queue.
+     *
+     * @param box
+     *            the mailbox
+     */
+    static void schedule(final MBox box)
+    {
+        lock.lock();
+        try
+        {
+            remove(box.getId());
+            if (!box.isExpired() && box.getTs_Active() != 0)
+            {
+                add(box.getId(), box.getTs_Active());
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the mailbox with the given ID from the queue.
+     *
+     * @param boxId
+     *            the ID of the mailbox
+     */
+    static void cancel(final long boxId)
+    {
+        lock.lock();
+        try
+        {
+            remove(boxId);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empties the queue.
+     */
+    static void clear()
+    {
+        lock.lock();
+        try
+        {
+            deadlines.clear();
+            deadlinesById.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static List<Long> awaitDue(final int maxCount) throws InterruptedException
+    {
+        lock.lockInterruptibly();
+        try
+        {
+            while (true)
+            {
+                if (deadlines.isEmpty())
+                {
+                    changed.await();
+                    continue;
+                }
+
+                final long now = System.currentTimeMillis();
+                final long delay = deadlines.first().time - now;
+                if (delay > 0)
+                {
+                    changed.await(delay, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+
+                final List<Long> ids = new ArrayList<>();
+                while (ids.size() < maxCount && !deadlines.isEmpty() && deadlines.first().time <= now)
+                {
+                    final Deadline deadline = deadlines.pollFirst();
+                    deadlinesById.remove(deadline.boxId);
+                    ids.add(deadline.boxId);
+                }
+                return ids;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static void add(final long boxId, final long time)
+    {
+        final Deadline deadline = new Deadline(boxId, time);
+        deadlines.add(deadline);
+        deadlinesById.put(boxId, deadline);
+        if (deadlines.first() == deadline)
+        {
+            changed.signalAll();
+        }
+    }
+
+    private static void remove(final long boxId)
+    {
+        final Deadline deadline = deadlinesById.remove(boxId);
+        if (deadline != null)
+        {
+            deadlines.remove(deadline);
+        }
+    }
+
+    /**
+     * The end of the validity of a mailbox.
+     */
+    private static final class Deadline implements Comparable<Deadline>
+    {
+        private final long boxId;
+
+        private final long time;
+
+        private Deadline(final long boxId, final long time)
+        {
+            this.boxId = boxId;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(final Deadline other)
+        {
+            final int result = Long.compare(time, other.time);
+            return result != 0 ? result : Long.compare(boxId, other.boxId);
+        }
+    }
+}
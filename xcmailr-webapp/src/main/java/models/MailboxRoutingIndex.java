@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ebean.DB;
+
+/**
+ * In-memory index of all mailboxes, keyed by their lower-cased full address. It holds everything that is needed to
+ * decide whether a mail for a certain address can be accepted and where it has to be forwarded to, so the SMTP server
+ * does not need to query the database for each recipient.
+ * <p>
+ * The index is loaded on startup and kept up to date by the persistence methods of {@link MBox} and {@link User}.
+ * Changes that bypass these methods are not visible to the index. As long as the index is not loaded, lookups are
+ * answered directly from the database.
+ * <p>
+ * The index feeds the {@link MailboxExpiryQueue}, so each mailbox is disabled as soon as its validity has ended.
+ */
+public final class MailboxRoutingIndex
+{
+    private static final Logger log = LoggerFactory.getLogger(MailboxRoutingIndex.class);
+
+    /**
+     * the routes, keyed by the lower-cased full address of the mailbox
+     */
+    private static final Map<String, Route> routesByAddress = new ConcurrentHashMap<>();
+
+    /**
+     * the keys of the routes, keyed by the ID of the mailbox (needed if the address of a mailbox changes)
+     */
+    private static final Map<Long, String> addressesById = new ConcurrentHashMap<>();
+
+    /**
+     * the owners of the mailboxes, keyed by the ID of the user
+     */
+    private static final Map<Long, Owner> ownersById = new ConcurrentHashMap<>();
+
+    private static volatile boolean loaded;
+
+    private MailboxRoutingIndex()
+    {
+    }
+
+    /**
+     * (Re-)Loads the index with all mailboxes from the database.
+     */
+    public static synchronized void load()
+    {
+        routesByAddress.clear();
+        addressesById.clear();
+        ownersById.clear();
+        MailboxExpiryQueue.clear();
+
+        final List<MBox> boxes = DB.find(MBox.class).fetch("usr", "mail,active").findList();
+        for (final MBox box : boxes)
+        {
+            putRoute(box, true);
+        }
+        loaded = true;
+
+        log.info("Loaded {} mailboxes into the routing index", routesByAddress.size());
+    }
+
+    /**
+     * Empties the index. Until it is loaded again, all lookups are answered from the database.
+     */
+    public static synchronized void clear()
+    {
+        loaded = false;
+        routesByAddress.clear();
+        addressesById.clear();
+        ownersById.clear();
+        MailboxExpiryQueue.clear();
+    }
+
+    /**
+     * @return whether or not the index is loaded
+     */
+    public static boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * @return the number of mailboxes in the index
+     */
+    public static int size()
+    {
+        return routesByAddress.size();
+    }
+
+    /**
+     * Returns the route for the mailbox with the given address. The lookup is case-insensitive.
+     *
+     * @param localPart
+     *            the local part of the address
+     * @param domain
+     *            the domain part of the address
+     * @return the route or <code>null</code> if there is no such mailbox
+     */
+    public static Route lookup(final String localPart, final String domain)
+    {
+        if (!loaded)
+        {
+            final MBox box = MBox.getByName(localPart, domain);
+            return box == null ? null : new Route(box, box.getUsr() == null ? null : new Owner(box.getUsr()));
+        }
+        return routesByAddress.get(toKey(localPart, domain));
+    }
+
+    /**
+     * Adds or updates the given mailbox. If its owner isn't known yet, it is added too.
+     *
+     * @param box
+     *            the mailbox
+     */
+    static synchronized void put(final MBox box)
+    {
+        if (loaded)
+        {
+            putRoute(box, false);
+        }
+    }
+
+    /**
+     * Removes the mailbox with the given ID.
+     *
+     * @param boxId
+     *            the ID of the mailbox
+     */
+    static synchronized void remove(final long boxId)
+    {
+        if (loaded)
+        {
+            removeRoute(boxId);
+        }
+    }
+
+    /**
+     * Re-reads the mailboxes with the given IDs from the database, e.g. after they were changed by a bulk statement.
+     * Mailboxes that don't exist anymore are removed.
+     *
+     * @param boxIds
+     *            the IDs of the mailboxes
+     */
+    static synchronized void reload(final Collection<Long> boxIds)
+    {
+        if (!loaded || boxIds.isEmpty())
+        {
+            return;
+        }
+
+        final List<Long> ids = new ArrayList<>(boxIds);
+        final int chunkSize = 1000;
+        for (int i = 0; i < ids.size(); i = i + chunkSize)
+        {
+            final List<Long> chunk = ids.subList(i, Math.min(i + chunkSize, ids.size()));
+            final List<MBox> boxes = DB.find(MBox.class).fetch("usr", "mail,active").where().idIn(chunk).findList();
+
+            final Set<Long> removedIds = new HashSet<>(chunk);
+            for (final MBox box : boxes)
+            {
+                putRoute(box, true);
+                removedIds.remove(box.getId());
+            }
+            for (final Long id : removedIds)
+            {
+                removeRoute(id);
+            }
+        }
+    }
+
+    /**
+     * Updates the owner data of the mailboxes of the given user.
+     *
+     * @param user
+     *            the user
+     */
+    static synchronized void putOwner(final User user)
+    {
+        if (loaded)
+        {
+            final Owner owner = ownersById.get(user.getId());
+            if (owner != null)
+            {
+                owner.update(user);
+            }
+        }
+    }
+
+    /**
+     * Removes the given user and all its mailboxes.
+     *
+     * @param userId
+     *            the ID of the user
+     */
+    static synchronized void removeOwner(final long userId)
+    {
+        if (loaded && ownersById.remove(userId) != null)
+        {
+            final List<Long> boxIds = new ArrayList<>();
+            for (final Route route : routesByAddress.values())
+            {
+                if (route.getOwnerId() == userId)
+                {
+                    boxIds.add(route.getId());
+                }
+            }
+            for (final Long boxId : boxIds)
+            {
+                removeRoute(boxId);
+            }
+        }
+    }
+
+    private static void putRoute(final MBox box, final boolean updateOwner)
+    {
+        Owner owner = null;
+        final User usr = box.getUsr();
+        if (usr != null)
+        {
+            owner = ownersById.get(usr.getId());
+            if (owner == null)
+            {
+                owner = new Owner(usr);
+                ownersById.put(usr.getId(), owner);
+            }
+            else if (updateOwner)
+            {
+                owner.update(usr);
+            }
+        }
+
+        // replace the route in place, so concurrent lookups never miss the mailbox
+        final String key = toKey(box.getAddress(), box.getDomain());
+        routesByAddress.put(key, new Route(box, owner));
+        final String oldKey = addressesById.put(box.getId(), key);
+        if (oldKey != null && !oldKey.equals(key))
+        {
+            final Route oldRoute = routesByAddress.get(oldKey);
+            if (oldRoute != null && oldRoute.getId() == box.getId())
+            {
+                routesByAddress.remove(oldKey);
+            }
+        }
+        MailboxExpiryQueue.schedule(box);
+    }
+
+    private static void removeRoute(final long boxId)
+    {
+        final String key = addressesById.remove(boxId);
+        if (key != null)
+        {
+            routesByAddress.remove(key);
+        }
+        MailboxExpiryQueue.cancel(boxId);
+    }
+
+    private static String toKey(final String localPart, final String domain)
+    {
+        return StringUtils.lowerCase(localPart + "@" + domain, Locale.ROOT);
+    }
+
+    /**
+     * The routing information of a single mailbox. Instances are immutable, except for the data of the owner which is
+     * shared by all mailboxes of a user.
+     */
+    public static final class Route
+    {
+        private final long id;
+
+        private final String fullAddress;
+
+        private final boolean expired;
+
+        private final boolean forwardEmails;
+
+        private final long tsActive;
+
+        private final Owner owner;
+
+        private Route(final MBox box, final Owner owner)
+        {
+            this.id = box.getId();
+            this.fullAddress = box.getFullAddress();
+            this.expired = box.isExpired();
+            this.forwardEmails = box.isForwardEmails();
+            this.tsActive = box.getTs_Active();
+            this.owner = owner;
+        }
+
+        /**
+         * @return the ID of the mailbox
+         */
+        public long getId()
+        {
+            return id;
+        }
+
+        /**
+         * @return the full address of the mailbox as stored
+         */
+        public String getFullAddress()
+        {
+            return fullAddress;
+        }
+
+        /**
+         * @return whether the mailbox is expired (inactive)
+         */
+        public boolean isExpired()
+        {
+            return expired;
+        }
+
+        /**
+         * @return whether mails should be forwarded to the owner of the mailbox
+         */
+        public boolean isForwardEmails()
+        {
+            return forwardEmails;
+        }
+
+        /**
+         * @return the timestamp at which the mailbox expires, 0 if unlimited
+         */
+        public long getTsActive()
+        {
+            return tsActive;
+        }
+
+        /**
+         * @return whether the mailbox has an owner
+         */
+        public boolean hasOwner()
+        {
+            return owner != null;
+        }
+
+        /**
+         * @return the ID of the owner, or -1 if there's no owner
+         */
+        public long getOwnerId()
+        {
+            return owner == null ? -1 : owner.id;
+        }
+
+        /**
+         * @return the mail address of the owner (the forward target), or an empty string if there's no owner
+         */
+        public String getOwnerMail()
+        {
+            return owner == null ? "" : owner.mail;
+        }
+
+        /**
+         * @return whether the owner of the mailbox exists and is active
+         */
+        public boolean isOwnerActive()
+        {
+            return owner != null && owner.active;
+        }
+    }
+
+    /**
+     * The data of a mailbox owner that is relevant for routing.
+     */
+    private static final class Owner
+    {
+        private final long id;
+
+        private volatile String mail;
+
+        private volatile boolean active;
+
+        private Owner(final User user)
+        {
+            this.id = user.getId();
+            update(user);
+        }
+
+        private void update(final User user)
+        {
+            this.mail = user.getMail();
+            this.active = user.isActive();
+        }
+    }
+}
@@ -18,20 +18,26 @@ package models;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
 import jakarta.persistence.OneToMany;
 import jakarta.persistence.PersistenceException;
 import jakarta.persistence.Table;
 
+import org.apache.commons.lang3.StringUtils;
 import org.hibernate.validator.constraints.Email;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.mindrot.jbcrypt.BCrypt;
 
 import io.ebean.DB;
 import io.ebean.ExpressionList;
+import io.ebean.annotation.Cache;
+import io.ebean.annotation.CacheBeanTuning;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonManagedReference;
 
 /**
@@ -40,7 +46,13 @@ import com.fasterxml.jackson.annotation.JsonManagedReference;
  * @author Patrick Thum, Xceptance Software Technologies GmbH, Germany
  */
 @Entity
-@Table(name = "users")
+@Cache(naturalKey = "apiToken")
+@CacheBeanTuning(maxIdleSecs = 60, maxSecsToLive = 60, trimFrequency = 10)
+@Table(name = "users", indexes =
+    {
+        @Index(name = "uq_users_normalized_mail", columnList = "normalized_mail", unique = true),
+        @Index(name = "ix_users_apitoken", columnList = "apitoken")
+    })
 public class User extends AbstractEntity implements Serializable
 {
     /**
@@ -66,6 +78,13 @@ public class User extends AbstractEntity implements Serializable
     @Email
     private String mail;
 
+    /**
+     * the lower-cased email address, so case-insensitive lookups can use an index
+     */
+    @JsonIgnore
+    @Column(name = "normalized_mail")
+    private String normalizedMail;
+
     /**
      * Password
      */
@@ -126,6 +145,7 @@ public class User extends AbstractEntity implements Serializable
         forename = "";
         surname = "";
         mail = "";
+        normalizedMail = "";
         passwd = "";
         language = "";
         boxes = new ArrayList<MBox>();
@@ -224,6 +244,7 @@ public class User extends AbstractEntity implements Serializable
     public void setMail(String mail)
     {
         this.mail = mail;
+        this.normalizedMail = StringUtils.lowerCase(mail, Locale.ROOT);
     }
 
     /**
@@ -440,9 +461,9 @@ public class User extends AbstractEntity implements Serializable
      *            the user's mail address
      * @return query for an user with the given mail address
      */
-    private static ExpressionList<User> queryByMail(String mail)
+    static ExpressionList<User> queryByMail(String mail)
     {
-        return DB.find(User.class).where().ieq("mail", mail);
+        return DB.find(User.class).where().eq("normalizedMail", StringUtils.lowerCase(mail, Locale.ROOT));
     }
 
     /**
@@ -499,6 +520,7 @@ public class User extends AbstractEntity implements Serializable
     public static void delete(Long id)
     {
         DB.delete(User.class, id);
+        MailboxRoutingIndex.removeOwner(id);
     }
 
     /**
@@ -525,6 +547,7 @@ public class User extends AbstractEntity implements Serializable
         final User usr = getById(id);
         usr.setActive(!usr.isActive());
         DB.update(usr);
+        MailboxRoutingIndex.putOwner(usr);
         return usr.isActive();
 
     }
@@ -549,7 +572,42 @@ public class User extends AbstractEntity implements Serializable
      */
     public static void deleteUsersOfDomain(String domainName)
     {
-        DB.delete(getUsersOfDomain(domainName));
+        final List<User> users = getUsersOfDomain(domainName);
+        DB.delete(users);
+        for (final User user : users)
+        {
+            MailboxRoutingIndex.removeOwner(user.getId());
+        }
+    }
+
+    /**
+     * Updates the user in the database and the owner data in the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void update()
+    {
+        super.update();
+        MailboxRoutingIndex.putOwner(this);
+    }
+
+    /**
+     * Stores the user in the database and updates the owner data in the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void save()
+    {
+        super.save();
+        MailboxRoutingIndex.putOwner(this);
+    }
+
+    /**
+     * Deletes the user (and its mailboxes) from the database and the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void delete()
+    {
+        super.delete();
+        MailboxRoutingIndex.removeOwner(getId());
     }
 
     /**
@@ -590,7 +648,9 @@ public class User extends AbstractEntity implements Serializable
     {
         try
         {
-            return DB.find(User.class).where().eq("APITOKEN", apiToken).eq("active", true).findOne();
+            // look up the token only, so the natural key cache can answer it
+            final User user = queryByToken(apiToken).findOne();
+            return (user != null && user.isActive()) ? user : null;
         }
         catch (PersistenceException e)
         {
@@ -599,4 +659,46 @@ public class User extends AbstractEntity implements Serializable
             return null;
         }
     }
+
+    /**
+     * Creates and returns a query for the user with the given API token.
+     * 
+     * @param apiToken
+     *            the API token
+     * @return query for the user with the given API token
+     */
+    static ExpressionList<User> queryByToken(String apiToken)
+    {
+        return DB.find(User.class).where().eq("apiToken", apiToken);
+    }
+
+    /**
+     * Revokes all API tokens that were created before the given time, in chunks of the given size.
+     * 
+     * @param createdBefore
+     *            the time in milliseconds
+     * @param batchSize
+     *            the maximum number of tokens revoked at once
+     * @return the number of revoked tokens
+     */
+    public static int expireApiTokens(long createdBefore, int batchSize)
+    {
+        int expiredCount = 0;
+        List<Long> ids;
+        do
+        {
+            ids = DB.find(User.class).where().between("API_TOKEN_CREATION_TIMESTAMP", 1, createdBefore).orderBy("id")
+                    .setMaxRows(batchSize).findIds();
+            if (ids.isEmpty())
+            {
+                break;
+            }
+
+            expiredCount += DB.sqlUpdate("UPDATE users SET apitoken = NULL, api_token_creation_timestamp = 0 WHERE id IN (:ids)")
+                              .setParameter("ids", ids).execute();
+        }
+        while (ids.size() == batchSize);
+
+        return expiredCount;
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import io.ebean.DB;
+import io.ebean.cache.ServerCacheManager;
+import io.ebean.cache.ServerCacheStatistics;
+import models.Domain;
+import models.MBox;
+import models.User;
+import ninja.lifecycle.Dispose;
+import ninja.lifecycle.Start;
+
+/**
+ * Logs the hit and miss counts of the Ebean caches for users, mailboxes and domains periodically and at shutdown.
+ * Users are also cached by API token and mailboxes by address (natural key caches), domains are cached as a list
+ * (query cache).
+ */
+@Singleton
+public class EntityCacheStatistics
+{
+    @Inject
+    XCMailrConf xcmConfiguration;
+
+    @Inject
+    Logger log;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Starts to log the statistics in the configured interval.
+     */
+    @Start(order = 20)
+    public synchronized void start()
+    {
+        final long interval = xcmConfiguration.CACHE_STATISTICS_INTERVAL;
+        if (interval == 0)
+        {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "cache-statistics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::logStatistics, interval, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops logging the statistics and logs them a last time.
+     */
+    @Dispose(order = 20)
+    public synchronized void stop()
+    {
+        if (executor == null)
+        {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+        logStatistics();
+    }
+
+    /**
+     * @return the current statistics of the entity caches
+     */
+    public static List<ServerCacheStatistics> getStatistics()
+    {
+        final ServerCacheManager cacheManager = DB.cacheManager();
+
+        final List<ServerCacheStatistics> statistics = new ArrayList<>();
+        statistics.add(cacheManager.beanCache(User.class).statistics(false));
+        statistics.add(cacheManager.naturalKeyCache(User.class).statistics(false));
+        statistics.add(cacheManager.beanCache(MBox.class).statistics(false));
+        statistics.add(cacheManager.naturalKeyCache(MBox.class).statistics(false));
+        statistics.add(cacheManager.beanCache(Domain.class).statistics(false));
+        statistics.add(cacheManager.queryCache(Domain.class).statistics(false));
+        return statistics;
+    }
+
+    private void logStatistics()
+    {
+        final StringBuilder sb = new StringBuilder("Entity cache statistics:");
+        for (final ServerCacheStatistics cache : getStatistics())
+        {
+            sb.append("\n    ").append(cache.getCacheName()).append(" [hits: ").append(cache.getHitCount())
+              .append(", misses: ").append(cache.getMissCount()).append(", hit ratio: ").append(cache.getHitRatio())
+              .append("%, size: ").append(cache.getSize()).append(']');
+        }
+        log.info(sb.toString());
+    }
+}
@@ -17,25 +17,19 @@ package services;
 
 import java.sql.Date;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.ebean.DB;
-
 import conf.XCMailrConf;
-import etc.HelperUtils;
 import etc.StatisticsEntry;
-import models.MBox;
 import models.Mail;
+import models.MailContent;
+import models.MailPart;
 import models.MailStatistics;
 import models.MailStatisticsKey;
 import models.MailTransaction;
@@ -45,18 +39,17 @@ public class ExpirationService implements Runnable
 {
     Logger log = LoggerFactory.getLogger(ExpirationService.class);
 
-    private ConcurrentLinkedQueue<MailTransaction> mtxQueue;
+    private MailService jobController;
 
     private boolean deleteTransactions;
 
     private XCMailrConf xcmConfiguration;
 
-    public ExpirationService(ConcurrentLinkedQueue<MailTransaction> mtxQueue, boolean deleteTransactions,
-        XCMailrConf xcmConfiguration)
+    public ExpirationService(MailService jobController, boolean deleteTransactions, XCMailrConf xcmConfiguration)
     {
         log.info("ExpirationService initialized");
         this.xcmConfiguration = xcmConfiguration;
-        this.mtxQueue = mtxQueue;
+        this.jobController = jobController;
         this.deleteTransactions = deleteTransactions;
     }
 
@@ -77,137 +70,56 @@ public class ExpirationService implements Runnable
     {
         log.info("Emailaddress Expiration Task run");
 
-        // get the number of MBox-Elements that will expire in the next "MB_INT"-minutes
-        List<MBox> expiringMailBoxesList = MBox.getNextBoxes(xcmConfiguration.MB_INTERVAL);
-        ListIterator<MBox> mailBoxIterator = expiringMailBoxesList.listIterator();
+        final DateTime dt = new DateTime();
+        final int batchSize = xcmConfiguration.EXPIRATION_BATCH_SIZE;
 
-        DateTime dt = new DateTime();
-        MBox mailBox;
-        // disable expired mail-addresses
-        while (mailBoxIterator.hasNext())
-        {
-            mailBox = mailBoxIterator.next();
-            if (dt.isAfter(mailBox.getTs_Active()) && (mailBox.getTs_Active() != 0))
-            { // this element is now expired
-                mailBox.disable();
-                log.debug("Mailbox '{}' expired", mailBox.getFullAddress());
-            }
-        }
+        // delete expired mails (expired mailboxes are disabled by the MailboxExpiryQueue)
+        long phaseStart = System.currentTimeMillis();
+        final long olderThanRetentionPolicy = dt.getMillis() - (xcmConfiguration.MAIL_RETENTION_PERIOD * 60 * 1000);
+        final int removedMails = Mail.deleteReceivedBefore(olderThanRetentionPolicy, batchSize);
+        log.info("Removed {} expired mails in {} ms", removedMails, System.currentTimeMillis() - phaseStart);
 
-        // delete expired mails
-        long olderThanRetentionPolicy = System.currentTimeMillis()
-                                        - (xcmConfiguration.MAIL_RETENTION_PERIOD * 60 * 1000);
-        List<Mail> findList = DB.find(Mail.class).where().lt("receiveTime", olderThanRetentionPolicy).findList();
+        // remove the contents that are not referenced by any mail anymore
+        phaseStart = System.currentTimeMillis();
+        final int removedContents = MailContent.deleteUnreferenced();
+        final int removedParts = MailPart.deleteUnreferenced();
+        log.info("Removed {} unreferenced mail contents and {} unreferenced mail parts in {} ms", removedContents,
+                 removedParts, System.currentTimeMillis() - phaseStart);
 
-        if (findList.size() > 0)
-        {
-            findList.forEach((mail) -> {
-                mail.delete();
-            });
-            log.info("Removed {} expired mails", findList.size());
-        }
+        // reclaim the space of the removed messages in the segment files
+        phaseStart = System.currentTimeMillis();
+        final int compactedSegments = MailContent.compactMessageStore();
+        log.info("Compacted {} message store segments in {} ms", compactedSegments,
+                 System.currentTimeMillis() - phaseStart);
 
         // set token expiration
         Calendar tokenExpiration = Calendar.getInstance();
         tokenExpiration.add(Calendar.DAY_OF_MONTH, -1 * xcmConfiguration.APITOKEN_EXPIRATION);
 
         // delete expired API token
-        List<User> expiredUserToken = DB.find(User.class).where() //
-                                           .between("API_TOKEN_CREATION_TIMESTAMP", 1,
-                                                    tokenExpiration.getTimeInMillis())
-                                           .findList();
-
-        expiredUserToken.forEach((user) -> {
-            user.setApiToken(null);
-            user.setApiTokenCreationTimestamp(0);
-            user.save();
-            log.info("User API token expired for '{}'", user.getMail());
-        });
+        phaseStart = System.currentTimeMillis();
+        final int expiredTokens = User.expireApiTokens(tokenExpiration.getTimeInMillis(), batchSize);
+        log.info("Expired {} API tokens in {} ms", expiredTokens, System.currentTimeMillis() - phaseStart);
 
         // add the new Mailtransactions
         final List<MailTransaction> mtxToSave = new LinkedList<MailTransaction>();
+        jobController.mtxQueue.drainTo(mtxToSave);
 
-        final Map<MailStatisticsKey, StatisticsEntry> statistics = new HashMap<>();
-
-        // add all transactions from the queue to a list
-        MailTransaction mt;
-        log.info("Start processing mail transaction queue [size: {}]", mtxQueue.size());
-        while ((mt = mtxQueue.poll()) != null)
+        final long droppedTransactions = jobController.droppedTransactions.getAndSet(0);
+        if (droppedTransactions > 0)
         {
-            final int status = mt.getStatus();
-            // mails will be silently dropped if there is no forward address but target address domain is
-            // configured to be valid / handled
-            if (status == 100 || status == 300)
-            {
-                final MailStatisticsKey mailStatisticsKey = createMailStatisticsKey(mt);
-                if (mailStatisticsKey != null)
-                {
-                    StatisticsEntry mailStats = statistics.get(mailStatisticsKey);
-                    if (mailStats == null)
-                    {
-                        mailStats = new StatisticsEntry();
-                        statistics.put(mailStatisticsKey, mailStats);
-                    }
-
-                    if (status == 100)
-                    {
-                        mailStats.incrementDropCount();
-                    }
-                    else if (status == 300)
-                    {
-                        mailStats.incrementForwardCount();
-                    }
-                }
-            }
-            else
-            {
-                mtxToSave.add(mt);
-            }
+            log.warn("Dropped {} mail transactions as the queue was full", droppedTransactions);
         }
-        log.info("Finished processing mail transaction queue [size: {}]", mtxQueue.size());
+
+        // the statistics were counted when the mails were processed
+        final Map<MailStatisticsKey, StatisticsEntry> statistics = jobController.statistics.drain();
 
         try
         {
-            log.info("Write mail statistics to DB [size: {}]", statistics.size());
-
-            for (Entry<MailStatisticsKey, StatisticsEntry> statisticEntry : statistics.entrySet())
-            {
-                MailStatisticsKey mailStatisticsKey = statisticEntry.getKey();
-                int additionalMailDropCount = statisticEntry.getValue().getDropCount();
-                int additionalMailForwardCount = statisticEntry.getValue().getForwardCount();
-
-                MailStatistics entry = DB.find(MailStatistics.class).where() //
-                                            .eq("DATE", mailStatisticsKey.getDate()) //
-                                            .eq("QUARTER_HOUR", mailStatisticsKey.getQuarterHour()) //
-                                            .eq("FROM_DOMAIN", mailStatisticsKey.getFromDomain()) //
-                                            .eq("TARGET_DOMAIN", mailStatisticsKey.getTargetDomain()) //
-                                            .findOne();
-
-                if (entry == null)
-                {
-                    // there is no entry, we need to create a new ones
-                    MailStatistics mailStatisticEntry = new MailStatistics();
-                    mailStatisticEntry.setKey(mailStatisticsKey);
-                    mailStatisticEntry.setDropCount(additionalMailDropCount);
-                    mailStatisticEntry.setForwardCount(additionalMailForwardCount);
-
-                    try
-                    {
-                        DB.save(mailStatisticEntry);
-                    }
-                    catch (Exception e)
-                    {
-                        log.error("Couldn't create new message statistics entry: " + statisticEntry.toString(), e);
-                    }
-                }
-                else
-                {
-                    entry.setDropCount(entry.getDropCount() + additionalMailDropCount);
-                    entry.setForwardCount(entry.getForwardCount() + additionalMailForwardCount);
-                    DB.update(entry);
-                }
-            }
-            log.info("Finished writing mail statistics to DB");
+            phaseStart = System.currentTimeMillis();
+            MailStatistics.addAll(statistics);
+            log.info("Wrote {} mail statistics entries to DB in {} ms", statistics.size(),
+                     System.currentTimeMillis() - phaseStart);
         }
         catch (Exception e)
         {
@@ -215,7 +127,7 @@ public class ExpirationService implements Runnable
         }
 
         // and save all entries of this list in one transaction to the list
-        MailTransaction.saveMultipleTx(mtxToSave);
+        MailTransaction.saveMultipleTx(mtxToSave, xcmConfiguration.MTX_BATCH_SIZE);
         log.info("Stored {} entries in the database", mtxToSave.size());
 
         // remove old MailTransactions
@@ -224,7 +136,7 @@ public class ExpirationService implements Runnable
             log.debug("Cleanup Mailtransaction-list");
             long removalTS = dt.minusHours(xcmConfiguration.MTX_MAX_AGE).getMillis();
 
-            MailTransaction.deleteTxInPeriod(removalTS);
+            MailTransaction.deleteTxInPeriod(removalTS, xcmConfiguration.MTX_BATCH_SIZE);
             log.debug("Finished Mailtransaction cleanup");
         }
 
@@ -247,44 +159,4 @@ public class ExpirationService implements Runnable
         
         log.debug("Finished MailStatistics cleanup ({} entries deleted)", deletedCount);
     }
-
-    private MailStatisticsKey createMailStatisticsKey(MailTransaction mt)
-    {
-        final String targetDomain = getDomainOfEmail(mt.getRelayaddr());
-        final String sourceDomain = getDomainOfEmail(mt.getSourceaddr());
-        // neither 'targetDomain' nor 'sourceDomain' must be null
-        if (targetDomain == null || sourceDomain == null)
-        {
-            return null;
-        }
-
-        final Date mailDate = new Date(mt.getTs());
-        final int quarterHourOfDay = getQuarterHour(mt.getTs());
-
-        return new MailStatisticsKey(mailDate, quarterHourOfDay, sourceDomain, targetDomain);
-
-    }
-
-    private String getDomainOfEmail(String email)
-    {
-        final String[] parts = HelperUtils.splitMailAddress(email);
-        if (parts != null && parts.length > 1)
-        {
-            return parts[1];
-        }
-
-        return null;
-    }
-
-    private int getQuarterHour(long timestamp)
-    {
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(timestamp);
-
-        int currentQuarterHour = calendar.get(Calendar.HOUR_OF_DAY) * 4;
-        currentQuarterHour += (calendar.get(Calendar.MINUTE) / 15);
-
-        return currentQuarterHour;
-    }
-
 }
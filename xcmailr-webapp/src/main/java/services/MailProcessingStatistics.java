@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import ninja.lifecycle.Dispose;
+import ninja.lifecycle.Start;
+
+/**
+ * Logs the batch sizes and commit times of the {@link MailWriter} periodically and at shutdown. Each report covers the
+ * period since the previous one. The current number of mails waiting to be forwarded and being sent by the
+ * {@link MailrMessageSenderFactory} is logged as well.
+ */
+@Singleton
+public class MailProcessingStatistics
+{
+    @Inject
+    XCMailrConf xcmConfiguration;
+
+    @Inject
+    MailWriter mailWriter;
+
+    @Inject
+    MailrMessageSenderFactory mailrSenderFactory;
+
+    @Inject
+    Logger log;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Starts to log the statistics in the configured interval.
+     */
+    @Start(order = 90)
+    public synchronized void start()
+    {
+        final long interval = xcmConfiguration.MAIL_PROCESSING_STATISTICS_INTERVAL;
+        if (interval == 0)
+        {
+            return;
+        }
+
+        // start a fresh period, the mails stored before the start don't belong to it
+        mailWriter.takeStatistics();
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "mail-statistics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::logStatistics, interval, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops logging the statistics and logs them a last time.
+     */
+    @Dispose(order = 90)
+    public synchronized void stop()
+    {
+        if (executor == null)
+        {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+        logStatistics();
+    }
+
+    private void logStatistics()
+    {
+        log.info("Mail writer statistics [queue: {}, {}]", mailWriter.getQueueSize(), mailWriter.takeStatistics());
+        log.info("Mail forward statistics [queue: {}, in flight: {}]", mailrSenderFactory.getForwardQueueSize(),
+                 mailrSenderFactory.getSendsInFlight());
+    }
+}
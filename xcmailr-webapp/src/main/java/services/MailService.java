@@ -17,19 +17,27 @@ package services;
 
 import java.io.IOException;
 import java.net.ServerSocket;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
-import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
 import org.subethamail.smtp.server.SMTPServer;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import conf.XCMailrConf;
+import etc.MailStatisticsCollector;
+import models.MBox;
+import models.MailboxCounters;
+import models.MailboxExpiryQueue;
+import models.MailboxRoutingIndex;
 import models.MailTransaction;
 import models.User;
 import ninja.lifecycle.Dispose;
@@ -46,6 +54,12 @@ public class MailService
 {
     private final ScheduledExecutorService expirationService = Executors.newSingleThreadScheduledExecutor();
 
+    private final ScheduledExecutorService counterFlushService = Executors.newSingleThreadScheduledExecutor();
+
+    private final ExecutorService mailboxExpiryService = Executors.newSingleThreadExecutor();
+
+    private ExecutorService smtpSessionExecutor;
+
     private SMTPServer smtpServer;
 
     private SMTPServer smtpServer2;
@@ -56,15 +70,34 @@ public class MailService
     @Inject
     NinjaProperties ninjaProperties;
 
-    @Inject
-    XCMailrConf xcmConfiguration;
+    final XCMailrConf xcmConfiguration;
 
     @Inject
     MessageListener messageListener;
 
     private boolean deleteTransactions;
 
-    ConcurrentLinkedQueue<MailTransaction> mtxQueue = new ConcurrentLinkedQueue<MailTransaction>();
+    /**
+     * the mail transactions waiting to be stored, transactions that don't fit in are counted as dropped only
+     */
+    final BlockingQueue<MailTransaction> mtxQueue;
+
+    /**
+     * the number of mail transactions not stored since the last run of the expiration task as the queue was full
+     */
+    final AtomicLong droppedTransactions = new AtomicLong();
+
+    /**
+     * the statistics of the mails dropped, forwarded and throttled since the last run of the expiration task
+     */
+    final MailStatisticsCollector statistics = new MailStatisticsCollector();
+
+    @Inject
+    public MailService(XCMailrConf xcmConfiguration)
+    {
+        this.xcmConfiguration = xcmConfiguration;
+        mtxQueue = new LinkedBlockingQueue<MailTransaction>(xcmConfiguration.MTX_QUEUE_SIZE);
+    }
 
     /**
      * Starts the mail-server, creates the Admin-Account specified in application.conf and threads to expire the
@@ -88,6 +121,47 @@ public class MailService
             user.save();
 
         }
+        // disable the mailboxes that expired while we were down, later ones are disabled by the expiry queue
+        final int expiredBoxes = MBox.expireAll(System.currentTimeMillis(), xcmConfiguration.EXPIRATION_BATCH_SIZE);
+        log.info("Expired {} mailboxes on startup", expiredBoxes);
+
+        // resolve recipients from memory instead of querying the database for each of them
+        MailboxRoutingIndex.load();
+
+        // disable each mailbox as soon as its validity has ended
+        final int expiryBatchSize = xcmConfiguration.EXPIRATION_BATCH_SIZE;
+        mailboxExpiryService.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (!Thread.currentThread().isInterrupted())
+                {
+                    try
+                    {
+                        final int expiredCount = MailboxExpiryQueue.expireDue(expiryBatchSize);
+                        log.debug("Expired {} mailboxes", expiredCount);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    catch (Exception e)
+                    {
+                        log.error("Failed to expire mailboxes", e);
+                    }
+                }
+            }
+        });
+
+        // the SMTP sessions of both servers share one pool, the number of sessions is limited by the servers
+        final AtomicInteger threadCount = new AtomicInteger();
+        smtpSessionExecutor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "smtp-session-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
         // create and start the main SMTP server for incoming mails
         // use a dynamic port in test-mode or the port specified in application.conf in all other modes
         int port = ninjaProperties.isTest() ? findAvailablePort(49152, 65535) : xcmConfiguration.MB_PORT;
@@ -105,10 +179,51 @@ public class MailService
             smtpServer2.start();
         }
 
-        // create the executor-service to check the mail-addresses which were expired since the last run and disable
-        // them and also all new MailTransactions will be stored here and old entries will be removed
-        expirationService.scheduleAtFixedRate(new ExpirationService(mtxQueue, deleteTransactions, xcmConfiguration), 0L,
+        // create the executor-service to delete the expired mails, all new MailTransactions will be stored here and
+        // old entries will be removed
+        expirationService.scheduleAtFixedRate(new ExpirationService(this, deleteTransactions, xcmConfiguration), 0L,
                                               xcmConfiguration.MB_INTERVAL.longValue(), TimeUnit.MINUTES);
+
+        // write the forward and suppression counts collected in memory to the database
+        final long flushInterval = xcmConfiguration.MB_COUNTER_FLUSH_INTERVAL;
+        counterFlushService.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    MailboxCounters.flush();
+                }
+                catch (Exception e)
+                {
+                    log.error("Failed to flush the mailbox counters", e);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records a mail transaction. Dropped, forwarded and throttled mails are counted for the statistics right away,
+     * all transactions but the dropped and forwarded ones are queued to be stored by the expiration task.
+     * 
+     * @param status
+     *            the status of the transaction, see {@link MailTransaction}
+     * @param source
+     *            the sender address
+     * @param relay
+     *            the address of the mailbox
+     * @param target
+     *            the forward target
+     */
+    public void addTransaction(int status, String source, String relay, String target)
+    {
+        statistics.count(status, System.currentTimeMillis(), source, relay);
+
+        if (status != 100 && status != 300 && !mtxQueue.offer(new MailTransaction(status, source, relay, target)))
+        {
+            droppedTransactions.incrementAndGet();
+        }
     }
 
     /**
@@ -131,8 +246,29 @@ public class MailService
             smtpServer2 = null;
         }
 
-        // stop the job to expire the mailboxes
+        if (smtpSessionExecutor != null)
+        {
+            smtpSessionExecutor.shutdown();
+            smtpSessionExecutor = null;
+        }
+
+        // stop the jobs to expire the mailboxes and mails
         expirationService.shutdown();
+        mailboxExpiryService.shutdownNow();
+
+        // stop the counter job and write what was counted since its last run
+        counterFlushService.shutdown();
+        try
+        {
+            counterFlushService.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        MailboxCounters.flush();
+
+        MailboxRoutingIndex.clear();
     }
 
     /**
@@ -142,10 +278,16 @@ public class MailService
      */
     private SMTPServer createSmtpServer(int port)
     {
-        SMTPServer smtpServer = new SMTPServer(new SimpleMessageListenerAdapter(messageListener));
+        SMTPServer smtpServer = new SMTPServer(new MessageListenerHandlerFactory(messageListener), null,
+                                               smtpSessionExecutor);
 
         smtpServer.setPort(port);
 
+        // limit the resources used by the SMTP clients
+        smtpServer.setMaxConnections(xcmConfiguration.MB_MAX_CONNECTIONS);
+        smtpServer.setConnectionTimeout(xcmConfiguration.MB_CONNECTION_TIMEOUT);
+        smtpServer.setMaxRecipients(xcmConfiguration.MB_MAX_RECIPIENTS);
+
         // configure TLS support
         smtpServer.setEnableTLS(xcmConfiguration.MB_ENABLE_TLS);
         smtpServer.setRequireTLS(xcmConfiguration.MB_REQUIRE_TLS);
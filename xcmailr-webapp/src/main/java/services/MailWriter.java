@@ -0,0 +1,793 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jakarta.persistence.PersistenceException;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import etc.MailMetadataExtractor;
+import etc.MailSpool;
+import etc.MessageCodec;
+import etc.MessageSplitter;
+import models.Mail;
+import models.MailContent;
+import models.MailMetadata;
+import ninja.lifecycle.Dispose;
+import ninja.lifecycle.Start;
+
+/**
+ * Stores received mails in the database. The mails are put into a bounded queue and are written by a background
+ * thread, which inserts all mails waiting in the queue (up to the configured batch size) in one batch and one
+ * transaction. So the commit latency of the database is shared by all SMTP sessions that deliver at the same time.
+ * <p>
+ * Everything but the database work is done by the caller before the mail is queued: the metadata is extracted, large
+ * MIME parts are cut out of the message to be stored only once (see {@link MessageSplitter}), and the message and the
+ * parts are compressed with {@link MessageCodec}. So this work is spread over the SMTP sessions instead of being done
+ * by the single writer thread.
+ * <p>
+ * If mbox.mail.write.sync is set, {@link #store(List, MailSpool)} waits until the mails were committed, so the SMTP
+ * DATA command is acknowledged only for mails that were stored. Otherwise it returns as soon as the mails were queued.
+ * If the queue is full, the caller waits until there is room again. If the mails weren't stored within
+ * {@link #SYNC_WAIT_TIMEOUT} seconds, they are taken out of the queue and the caller gets an error. Mails that are
+ * being written already at that time are waited for instead, since they may still be stored.
+ */
+@Singleton
+public class MailWriter
+{
+    @Inject
+    XCMailrConf xcmConfiguration;
+
+    @Inject
+    Logger log;
+
+    /**
+     * how many seconds a caller waits at most for its mails to be stored if storing synchronously
+     */
+    static final int SYNC_WAIT_TIMEOUT = 60;
+
+    private BlockingQueue<PendingMail> queue;
+
+    private Thread writerThread;
+
+    private volatile boolean running;
+
+    /**
+     * set once the writer thread is gone, from then on a caller writes its mails itself
+     */
+    private volatile boolean closed;
+
+    // metrics, guarded by statisticsLock
+
+    private final Object statisticsLock = new Object();
+
+    /**
+     * the metrics since the start
+     */
+    private final Statistics totalStatistics = new Statistics();
+
+    /**
+     * the metrics since the last call of {@link #takeStatistics()}
+     */
+    private Statistics currentStatistics = new Statistics();
+
+    /**
+     * Starts the writer thread and applies the compression settings to messages set via {@link Mail#setMessage(byte[])}.
+     */
+    @Start(order = 80)
+    public synchronized void start()
+    {
+        queue = new ArrayBlockingQueue<>(xcmConfiguration.MAIL_WRITE_QUEUE_SIZE);
+        MessageCodec.setDefaults(xcmConfiguration.MAIL_COMPRESSION_LEVEL, xcmConfiguration.MAIL_COMPRESSION_MIN_SIZE);
+        running = true;
+        closed = false;
+
+        writerThread = new Thread(this::writeLoop, "mail-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer thread after all queued mails have been written. Mails that are still queued after the writer
+     * thread finished are written here. If the writer thread didn't finish in time, they are failed instead, since the
+     * database apparently doesn't respond.
+     */
+    @Dispose(order = 85)
+    public synchronized void stop()
+    {
+        if (writerThread == null)
+        {
+            return;
+        }
+
+        running = false;
+        try
+        {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        final boolean finished = !writerThread.isAlive();
+        writerThread = null;
+
+        // from now on, whoever enqueues a mail takes it out again and writes it (see store())
+        closed = true;
+
+        // handle what was queued while the writer was stopping
+        final List<PendingMail> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.removeIf(pendingMail -> !pendingMail.claim());
+        if (!remaining.isEmpty())
+        {
+            if (finished)
+            {
+                write(remaining);
+            }
+            else
+            {
+                log.warn("Mail writer did not finish in time, {} messages were not stored", remaining.size());
+                final PersistenceException e = new PersistenceException("The mail writer was stopped");
+                for (final PendingMail pendingMail : remaining)
+                {
+                    fail(pendingMail, e);
+                    pendingMail.release();
+                }
+            }
+        }
+
+        log.info("Mail writer stopped [{}]", getStatistics());
+    }
+
+    /**
+     * Stores the given mails, which were received with the same message, together with the raw message from the given
+     * spool. The raw message is stored only once and is shared by the mails. The message is prepared for storage, i.e.
+     * parsed, split and compressed, by the calling thread. The spool is retained until the mails were written, so the
+     * caller may close it right after this method returned.
+     *
+     * @param mails
+     *            the new mails, which don't contain the raw message themselves
+     * @param spool
+     *            the raw message
+     * @throws PersistenceException
+     *             if the mails could not be stored or weren't stored in time (only if storing synchronously)
+     */
+    public void store(List<Mail> mails, MailSpool spool)
+    {
+        final MailContent content = new MailContent();
+        for (final Mail mail : mails)
+        {
+            content.addMail(mail);
+        }
+        final PendingMail pendingMail = new PendingMail(content, spool.retain());
+        try
+        {
+            prepare(pendingMail);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            countFailed();
+            pendingMail.release();
+            throw new PersistenceException("Failed to prepare mail for storage", e);
+        }
+
+        if (!running || !enqueue(pendingMail))
+        {
+            // the writer isn't running, so write it ourselves
+            writeNow(pendingMail);
+        }
+        else if (closed && queue.remove(pendingMail))
+        {
+            // the writer was stopped and the queue was drained before our mail arrived
+            writeNow(pendingMail);
+        }
+
+        if (xcmConfiguration.MAIL_WRITE_SYNC)
+        {
+            awaitStored(pendingMail);
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    public int getQueueSize()
+    {
+        final BlockingQueue<PendingMail> q = queue;
+        return q == null ? 0 : q.size();
+    }
+
+    /**
+     * @return the metrics since the start
+     */
+    public Statistics getStatistics()
+    {
+        synchronized (statisticsLock)
+        {
+            return new Statistics(totalStatistics);
+        }
+    }
+
+    /**
+     * Returns the metrics since the last call and starts a new period, so the minimum and maximum commit times of each
+     * report cover only its own period.
+     *
+     * @return the metrics since the last call, or since the start
+     */
+    public Statistics takeStatistics()
+    {
+        synchronized (statisticsLock)
+        {
+            final Statistics statistics = currentStatistics;
+            currentStatistics = new Statistics();
+            return statistics;
+        }
+    }
+
+    private void countBatch(int size, long commitNanos)
+    {
+        synchronized (statisticsLock)
+        {
+            totalStatistics.addBatch(size, commitNanos);
+            currentStatistics.addBatch(size, commitNanos);
+        }
+    }
+
+    private void countFailed()
+    {
+        synchronized (statisticsLock)
+        {
+            totalStatistics.failedCount++;
+            currentStatistics.failedCount++;
+        }
+    }
+
+    private boolean enqueue(PendingMail pendingMail)
+    {
+        try
+        {
+            // wait for room in the queue, but don't wait forever in case the writer was stopped meanwhile
+            while (running)
+            {
+                if (queue.offer(pendingMail, 1, TimeUnit.SECONDS))
+                {
+                    return true;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Writes the given mail right away, unless it was claimed by someone else already.
+     */
+    private void writeNow(PendingMail pendingMail)
+    {
+        if (pendingMail.claim())
+        {
+            write(Collections.singletonList(pendingMail));
+        }
+    }
+
+    /**
+     * Waits until the given mail was stored. If this takes too long and the writer didn't start to write the mail yet,
+     * the mail is cancelled, so it is not stored later on when the client already retries it. If the writer did, it
+     * is waited for the outcome.
+     *
+     * @throws PersistenceException
+     *             if the mail was not stored
+     */
+    private void awaitStored(PendingMail pendingMail)
+    {
+        try
+        {
+            try
+            {
+                pendingMail.done.get(SYNC_WAIT_TIMEOUT, TimeUnit.SECONDS);
+            }
+            catch (TimeoutException e)
+            {
+                if (cancel(pendingMail))
+                {
+                    throw new PersistenceException("Timed out waiting for the mail to be stored", e);
+                }
+                // the mail is being written, rejecting it now might cause the client to store it twice
+                log.warn("Storing mail '{}' takes longer than {} seconds",
+                         pendingMail.content.getMails().get(0).getUuid(), SYNC_WAIT_TIMEOUT);
+                pendingMail.done.get();
+            }
+        }
+        catch (ExecutionException e)
+        {
+            throw (e.getCause() instanceof PersistenceException) ? (PersistenceException) e.getCause()
+                                                                 : new PersistenceException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            if (cancel(pendingMail))
+            {
+                throw new PersistenceException("Interrupted while waiting for the mail to be stored", e);
+            }
+            // the mail is being written and will most likely be stored, so don't let the client send it again
+            log.warn("Interrupted while waiting for mail '{}' to be stored",
+                     pendingMail.content.getMails().get(0).getUuid());
+        }
+    }
+
+    /**
+     * Takes the given mail out of the queue, unless the writer claimed it already.
+     *
+     * @return whether the mail was cancelled, i.e. will not be stored
+     */
+    private boolean cancel(PendingMail pendingMail)
+    {
+        if (!pendingMail.claim())
+        {
+            return false;
+        }
+        queue.remove(pendingMail);
+        countFailed();
+        pendingMail.release();
+        return true;
+    }
+
+    private void writeLoop()
+    {
+        final List<PendingMail> batch = new ArrayList<>(xcmConfiguration.MAIL_WRITE_BATCH_SIZE);
+        while (running || !queue.isEmpty())
+        {
+            try
+            {
+                final PendingMail first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    continue;
+                }
+
+                // take whatever arrived meanwhile
+                batch.add(first);
+                queue.drainTo(batch, xcmConfiguration.MAIL_WRITE_BATCH_SIZE - 1);
+
+                // mails whose callers gave up waiting for them are not stored anymore
+                batch.removeIf(pendingMail -> !pendingMail.claim());
+                if (!batch.isEmpty())
+                {
+                    write(batch);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                log.warn("Mail writer was interrupted");
+            }
+            catch (Exception e)
+            {
+                log.error("Unexpected error while storing mails", e);
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the given mails, which have to be claimed already, in one batch. If that fails, they are written one by
+     * one, so a single bad mail doesn't cause the others to be lost.
+     */
+    private void write(List<PendingMail> batch)
+    {
+        try
+        {
+            insert(batch);
+            for (final PendingMail pendingMail : batch)
+            {
+                pendingMail.done.complete(null);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            if (batch.size() == 1)
+            {
+                fail(batch.get(0), e);
+            }
+            else
+            {
+                log.warn("Failed to store a batch of {} mails, storing them one by one", batch.size(), e);
+                for (final PendingMail pendingMail : batch)
+                {
+                    try
+                    {
+                        insert(Collections.singletonList(pendingMail));
+                        pendingMail.done.complete(null);
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        fail(pendingMail, ex);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            for (final PendingMail pendingMail : batch)
+            {
+                pendingMail.release();
+            }
+        }
+    }
+
+    private void insert(List<PendingMail> batch)
+    {
+        final List<MailContent> contents = new ArrayList<>(batch.size());
+        final List<InputStream> streams = new ArrayList<>();
+        try
+        {
+            for (final PendingMail pendingMail : batch)
+            {
+                contents.add(pendingMail.content);
+                pendingMail.setStreams(streams);
+            }
+
+            final long start = System.nanoTime();
+            MailContent.insertAll(contents);
+            final long duration = System.nanoTime() - start;
+
+            countBatch(contents.size(), duration);
+
+            log.debug("Stored {} messages in {} ms", contents.size(), TimeUnit.NANOSECONDS.toMillis(duration));
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Failed to read mail from spool", e);
+        }
+        finally
+        {
+            for (final InputStream stream : streams)
+            {
+                IOUtils.closeQuietly(stream);
+            }
+            for (final MailContent content : contents)
+            {
+                content.setMessageStream(null, 0);
+                content.clearParts();
+            }
+        }
+    }
+
+    /**
+     * Prepares the given mail for storage: extracts its metadata and counts its search terms, cuts large MIME parts out
+     * of the message, so they are stored only once, even if they are contained in many messages, and compresses the
+     * message and the parts into spools of their own.
+     */
+    private void prepare(PendingMail pendingMail) throws IOException
+    {
+        final MailSpool spool = pendingMail.spool;
+        final MailContent content = pendingMail.content;
+
+        try
+        {
+            final MailMetadata metadata = MailMetadataExtractor.extract(spool);
+            if (metadata != null)
+            {
+                metadata.getSearchTerms();
+            }
+            content.setMetadata(metadata);
+        }
+        catch (Exception e)
+        {
+            // store the mail anyway, the metadata is extracted again when the mail is read
+            log.warn("Failed to extract the metadata of mail '{}'", content.getMails().get(0).getUuid(), e);
+        }
+
+        pendingMail.parts = (xcmConfiguration.MAIL_DEDUP_MIN_SIZE > 0)
+            ? MessageSplitter.split(spool, xcmConfiguration.MAIL_DEDUP_MIN_SIZE) : Collections.emptyList();
+
+        // what is not compressed is read from the spool when written
+        for (final MessageSplitter.Part part : pendingMail.parts)
+        {
+            try (final InputStream partData = spool.getInputStream(part.getStart(), part.getEnd()))
+            {
+                pendingMail.encodedParts.add(MessageCodec.encodePart(partData, part.getLength(),
+                                                                     xcmConfiguration.MAIL_COMPRESSION_LEVEL,
+                                                                     xcmConfiguration.MAIL_COMPRESSION_MIN_SIZE,
+                                                                     xcmConfiguration.MAIL_SPOOL_THRESHOLD,
+                                                                     xcmConfiguration.MAIL_SPOOL_DIR));
+            }
+        }
+        try (final InputStream message = pendingMail.openRemainder())
+        {
+            pendingMail.encodedMessage = MessageCodec.encode(message, pendingMail.getRemainderLength(),
+                                                             xcmConfiguration.MAIL_COMPRESSION_LEVEL,
+                                                             xcmConfiguration.MAIL_COMPRESSION_MIN_SIZE,
+                                                             xcmConfiguration.MAIL_SPOOL_THRESHOLD,
+                                                             xcmConfiguration.MAIL_SPOOL_DIR);
+        }
+    }
+
+    private void fail(PendingMail pendingMail, RuntimeException e)
+    {
+        countFailed();
+        if (!xcmConfiguration.MAIL_WRITE_SYNC)
+        {
+            // nobody waits for the result, so at least log it
+            for (final Mail mail : pendingMail.content.getMails())
+            {
+                log.error("Failed to store mail '{}' for mailbox {}", mail.getUuid(), mail.getMailboxId(), e);
+            }
+        }
+        // whatever went wrong, the caller gets a PersistenceException
+        pendingMail.done.completeExceptionally((e instanceof PersistenceException) ? e : new PersistenceException(e));
+    }
+
+    /**
+     * A message and its mails waiting to be written, together with the message prepared for storage.
+     */
+    private static class PendingMail
+    {
+        private final MailContent content;
+
+        private final MailSpool spool;
+
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        /**
+         * set by whoever is going to handle the mail, i.e. the thread writing it or the caller cancelling it
+         */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        /**
+         * the parts cut out of the message
+         */
+        private List<MessageSplitter.Part> parts = Collections.emptyList();
+
+        /**
+         * the compressed parts in the same order, <code>null</code> for a part that is stored as it is
+         */
+        private final List<MailSpool> encodedParts = new ArrayList<>();
+
+        /**
+         * the message without the parts as it is stored, or <code>null</code> if it is stored as it is
+         */
+        private MailSpool encodedMessage;
+
+        private PendingMail(MailContent content, MailSpool spool)
+        {
+            this.content = content;
+            this.spool = spool;
+        }
+
+        /**
+         * Claims this mail for writing or cancelling it.
+         *
+         * @return whether the mail was claimed, <code>false</code> if somebody else claimed it already
+         */
+        private boolean claim()
+        {
+            return claimed.compareAndSet(false, true);
+        }
+
+        /**
+         * Opens the raw message without the parts.
+         */
+        private InputStream openRemainder() throws IOException
+        {
+            final List<InputStream> remainder = new ArrayList<>(parts.size() + 1);
+            long position = 0;
+            for (final MessageSplitter.Part part : parts)
+            {
+                remainder.add(spool.getInputStream(position, part.getStart()));
+                position = part.getEnd();
+            }
+            remainder.add(spool.getInputStream(position, spool.getSize()));
+            return (remainder.size() == 1) ? remainder.get(0)
+                                           : new SequenceInputStream(Collections.enumeration(remainder));
+        }
+
+        /**
+         * @return the size of the raw message without the parts
+         */
+        private long getRemainderLength()
+        {
+            long length = spool.getSize();
+            for (final MessageSplitter.Part part : parts)
+            {
+                length -= part.getLength();
+            }
+            return length;
+        }
+
+        /**
+         * Sets the streams to read the message and the parts from as they are stored to the content. The streams are
+         * added to the given list to be closed after the mail was written.
+         */
+        private void setStreams(List<InputStream> streams) throws IOException
+        {
+            long removed = 0;
+            for (int i = 0; i < parts.size(); i++)
+            {
+                final MessageSplitter.Part part = parts.get(i);
+                final MailSpool encodedPart = encodedParts.get(i);
+
+                // parts always get a header, since their body may start with anything
+                final InputStream data = (encodedPart != null) ? encodedPart.getInputStream()
+                                                               : MessageCodec.encodePart(spool.getInputStream(part.getStart(),
+                                                                                                              part.getEnd()),
+                                                                                         part.getLength(), 0, 0);
+                streams.add(data);
+                content.addPart(part.getHash(), part.getStart() - removed, data,
+                                (encodedPart != null) ? encodedPart.getSize()
+                                                      : MessageCodec.getEncodedPartLength(part.getLength(), 0, 0));
+                removed += part.getLength();
+            }
+
+            final InputStream message = (encodedMessage != null) ? encodedMessage.getInputStream() : openRemainder();
+            streams.add(message);
+            content.setMessageStream(message, (encodedMessage != null) ? encodedMessage.getSize()
+                                                                       : getRemainderLength());
+        }
+
+        /**
+         * Releases the spool of the mail and the spools of the prepared data.
+         */
+        private void release()
+        {
+            spool.close();
+            for (final MailSpool encodedPart : encodedParts)
+            {
+                if (encodedPart != null)
+                {
+                    encodedPart.close();
+                }
+            }
+            if (encodedMessage != null)
+            {
+                encodedMessage.close();
+            }
+        }
+    }
+
+    /**
+     * The batch sizes and commit times of the writer for a period of time.
+     */
+    public static class Statistics
+    {
+        private long batchCount;
+
+        private long writtenCount;
+
+        private long failedCount;
+
+        private long commitNanos;
+
+        private long minCommitNanos = Long.MAX_VALUE;
+
+        private long maxCommitNanos;
+
+        private Statistics()
+        {
+        }
+
+        private Statistics(Statistics other)
+        {
+            batchCount = other.batchCount;
+            writtenCount = other.writtenCount;
+            failedCount = other.failedCount;
+            commitNanos = other.commitNanos;
+            minCommitNanos = other.minCommitNanos;
+            maxCommitNanos = other.maxCommitNanos;
+        }
+
+        private void addBatch(int size, long nanos)
+        {
+            batchCount++;
+            writtenCount += size;
+            commitNanos += nanos;
+            minCommitNanos = Math.min(minCommitNanos, nanos);
+            maxCommitNanos = Math.max(maxCommitNanos, nanos);
+        }
+
+        /**
+         * @return the number of batches written
+         */
+        public long getBatchCount()
+        {
+            return batchCount;
+        }
+
+        /**
+         * @return the number of messages written
+         */
+        public long getWrittenCount()
+        {
+            return writtenCount;
+        }
+
+        /**
+         * @return the number of messages that could not be written
+         */
+        public long getFailedCount()
+        {
+            return failedCount;
+        }
+
+        /**
+         * @return the average number of messages per batch
+         */
+        public double getAverageBatchSize()
+        {
+            return batchCount == 0 ? 0 : (double) writtenCount / batchCount;
+        }
+
+        /**
+         * @return the average time in milliseconds it took to insert and commit a batch
+         */
+        public double getAverageCommitMillis()
+        {
+            return batchCount == 0 ? 0 : commitNanos / 1_000_000.0 / batchCount;
+        }
+
+        /**
+         * @return the minimum time in milliseconds it took to insert and commit a batch, 0 if there was no batch
+         */
+        public long getMinCommitMillis()
+        {
+            return batchCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(minCommitNanos);
+        }
+
+        /**
+         * @return the maximum time in milliseconds it took to insert and commit a batch
+         */
+        public long getMaxCommitMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(maxCommitNanos);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.ROOT,
+                                 "batches: %d, messages: %d, failed: %d, avg batch size: %.1f, avg commit: %.1f ms, min commit: %d ms, max commit: %d ms",
+                                 batchCount, writtenCount, failedCount, getAverageBatchSize(), getAverageCommitMillis(),
+                                 getMinCommitMillis(), getMaxCommitMillis());
+        }
+    }
+}
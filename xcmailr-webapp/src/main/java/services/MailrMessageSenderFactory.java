@@ -15,8 +15,16 @@
  */
 package services;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -33,9 +41,11 @@ import com.google.inject.Singleton;
 
 import conf.XCMailrConf;
 import models.MBox;
-import models.MailTransaction;
+import models.MailboxCounters;
+import models.MailboxRoutingIndex;
 import models.User;
 import ninja.i18n.Messages;
+import ninja.lifecycle.Dispose;
 import ninja.utils.NinjaProperties;
 
 /**
@@ -63,6 +73,21 @@ public class MailrMessageSenderFactory
 
     private Session session;
 
+    /**
+     * the executor that sends all outgoing mails, created on first use
+     */
+    private volatile ThreadPoolExecutor forwardExecutor;
+
+    /**
+     * the number of mails that are currently being sent
+     */
+    private final AtomicInteger sendsInFlight = new AtomicInteger();
+
+    /**
+     * the pooled connections to the outbound SMTP server, created on first use
+     */
+    private SmtpTransportPool transportPool;
+
     /**
      * Reads the Configuration-File and creates the Session for the Mail-Transport
      * 
@@ -129,9 +154,8 @@ public class MailrMessageSenderFactory
             message.setText(content);
             message.saveChanges();
 
-            // send the mail in an own thread
-            ThreadedMailSend tms = new ThreadedMailSend(message);
-            tms.start();
+            // send the mail asynchronously
+            submit(new ThreadedMailSend(message));
         }
         catch (MessagingException e)
         {
@@ -219,35 +243,257 @@ public class MailrMessageSenderFactory
         sendMail(from, to, body, subject);
     }
 
-    public void addMtxToJCList(MailTransaction mtx)
+    public void addMtxToJCList(int status, String source, String relay, String target)
+    {
+        jobController.addTransaction(status, source, relay, target);
+    }
+
+    /**
+     * Forwards the given mail asynchronously.
+     * 
+     * @param mail
+     *            the mail to forward, with the recipient already set
+     * @param mailBox
+     *            the route of the {@link MBox} that received the mail
+     * @param resources
+     *            resources the mail depends on (e.g. its spool), closed once the mail was sent or dropped; may be
+     *            <code>null</code>
+     */
+    public void forwardMail(MimeMessage mail, MailboxRoutingIndex.Route mailBox, Closeable resources)
+    {
+        submit(new ThreadedMailSend(mail, mailBox, resources));
+    }
+
+    /**
+     * Hands the given send-task over to the forward executor. If the executor's queue is full, the configured
+     * rejection policy is applied.
+     * 
+     * @param mailSend
+     *            the task to run
+     */
+    void submit(ThreadedMailSend mailSend)
+    {
+        getForwardExecutor().execute(mailSend);
+    }
+
+    /**
+     * @return the number of mails waiting to be sent
+     */
+    public int getForwardQueueSize()
+    {
+        final ThreadPoolExecutor executor = forwardExecutor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of mails that are currently being sent
+     */
+    public int getSendsInFlight()
+    {
+        return sendsInFlight.get();
+    }
+
+    /**
+     * Returns the executor that sends the outgoing mails and creates it if necessary. The executor uses a fixed number
+     * of threads and a bounded work queue, both sizes are taken from the application.conf.
+     * 
+     * @return the forward executor
+     */
+    private synchronized ThreadPoolExecutor getForwardExecutor()
+    {
+        if (forwardExecutor == null)
+        {
+            // a task rejected because the executor was shut down is dropped with either policy, so its spool is
+            // released (the CallerRunsPolicy would discard it silently)
+            final boolean drop = XCMailrConf.FORWARD_REJECTION_DROP.equals(xcmConfiguration.FORWARD_REJECTION_POLICY);
+            final RejectedExecutionHandler rejectionHandler = (task, executor) -> {
+                if (drop || executor.isShutdown())
+                {
+                    ((ThreadedMailSend) task).reject(executor.isShutdown());
+                }
+                else
+                {
+                    task.run();
+                }
+            };
+
+            final AtomicInteger threadCount = new AtomicInteger();
+            final ThreadFactory threadFactory = runnable -> {
+                final Thread thread = new Thread(runnable, "mail-forward-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+
+            forwardExecutor = new ThreadPoolExecutor(xcmConfiguration.FORWARD_THREADS,
+                                                     xcmConfiguration.FORWARD_THREADS, 60L, TimeUnit.SECONDS,
+                                                     new ArrayBlockingQueue<>(xcmConfiguration.FORWARD_QUEUE_SIZE),
+                                                     threadFactory, rejectionHandler);
+            forwardExecutor.allowCoreThreadTimeOut(true);
+        }
+        return forwardExecutor;
+    }
+
+    /**
+     * Sends the given mail via the outbound SMTP server. If pooling is enabled, one of the pooled connections is used,
+     * otherwise a new connection is opened.
+     * 
+     * @param mail
+     *            the mail to send
+     * @throws MessagingException
+     *             if the mail could not be sent
+     */
+    private void transportMail(MimeMessage mail) throws MessagingException
     {
-        jobController.mtxQueue.add(mtx);
+        if (xcmConfiguration.OUT_SMTP_POOL_SIZE > 0)
+        {
+            getTransportPool().send(mail);
+        }
+        else
+        {
+            Transport.send(mail);
+        }
     }
 
-    public class ThreadedMailSend extends Thread
+    private synchronized SmtpTransportPool getTransportPool()
+    {
+        if (transportPool == null)
+        {
+            transportPool = new SmtpTransportPool(getSession(), xcmConfiguration);
+        }
+        return transportPool;
+    }
+
+    /**
+     * Stops the forward executor and closes the pooled connections. Mails that are still queued will be sent before,
+     * as long as this doesn't take too long.
+     */
+    @Dispose(order = 80)
+    public synchronized void shutdown()
+    {
+        if (forwardExecutor != null)
+        {
+            forwardExecutor.shutdown();
+            try
+            {
+                if (!forwardExecutor.awaitTermination(30, TimeUnit.SECONDS))
+                {
+                    log.warn("Forward executor did not terminate in time, {} mails were not sent",
+                             forwardExecutor.shutdownNow().size());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                forwardExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            forwardExecutor = null;
+        }
+
+        if (transportPool != null)
+        {
+            transportPool.close();
+            transportPool = null;
+        }
+    }
+
+    public class ThreadedMailSend implements Runnable
     {
         private MimeMessage mail;
 
-        private MBox mailBox;
+        private MailboxRoutingIndex.Route mailBox;
 
-        private MailTransaction mtx;
+        private Closeable resources;
 
         public ThreadedMailSend(MimeMessage mail)
         {
-            this(mail, null);
+            this(mail, null, null);
         }
 
-        public ThreadedMailSend(MimeMessage mail, MBox mailBox)
+        public ThreadedMailSend(MimeMessage mail, MailboxRoutingIndex.Route mailBox, Closeable resources)
         {
             this.mailBox = mailBox;
             this.mail = mail;
+            this.resources = resources;
         }
 
         /**
-         * Sends the mail in a new thread
+         * Releases the resources the mail depends on.
+         */
+        private void closeResources()
+        {
+            if (resources != null)
+            {
+                try
+                {
+                    resources.close();
+                }
+                catch (IOException e)
+                {
+                    log.warn("Failed to release resources of forwarded mail", e);
+                }
+                resources = null;
+            }
+        }
+
+        /**
+         * Called if the mail cannot be queued for sending. Logs the mail as not forwarded and releases its resources.
+         * 
+         * @param shutdown
+         *            whether the mail was rejected because the forward executor was shut down, otherwise its queue
+         *            was full
+         */
+        void reject(boolean shutdown)
+        {
+            String recipient = "";
+            String from = "";
+            try
+            {
+                if (mail.getFrom().length > 0 && mail.getRecipients(Message.RecipientType.TO).length > 0)
+                {
+                    recipient = mail.getRecipients(Message.RecipientType.TO)[0].toString();
+                    from = mail.getFrom()[0].toString();
+                }
+            }
+            catch (MessagingException e)
+            {
+                // ignore, we just log what we have
+            }
+
+            if (xcmConfiguration.MTX_MAX_AGE != 0 && mailBox != null)
+            { // if mailtransaction.maxage is set to 0 -> log nothing
+                addMtxToJCList(400, from, mailBox.getFullAddress(), recipient);
+            }
+            if (shutdown)
+            {
+                log.warn("Forward executor is shut down, dropped mail From: {} To: {}", from, recipient);
+            }
+            else
+            {
+                log.warn("Forward queue is full [size: {}, in-flight: {}], dropped mail From: {} To: {}",
+                         getForwardQueueSize(), getSendsInFlight(), from, recipient);
+            }
+            closeResources();
+        }
+
+        /**
+         * Sends the mail
          */
         @Override
         public void run()
+        {
+            sendsInFlight.incrementAndGet();
+            try
+            {
+                send();
+            }
+            finally
+            {
+                sendsInFlight.decrementAndGet();
+                closeResources();
+            }
+        }
+
+        private void send()
         {
             String recipient = "";
             String from = "";
@@ -262,20 +508,17 @@ public class MailrMessageSenderFactory
                 }
                 if (!ninjaProperties.isTest()) // no messages will be sent when running in test-mode
                 {
-                    Transport.send(mail);
+                    transportMail(mail);
                     if (xcmConfiguration.MTX_MAX_AGE != 0)
                     {// if mailtransaction.maxage is set to 0 -> log nothing
                      // log the transaction
-                        mtx = new MailTransaction(300, from, mailBox == null ? null : mailBox.getFullAddress(),
-                                                  recipient);
-
-                        addMtxToJCList(mtx);
+                        addMtxToJCList(300, from, mailBox == null ? null : mailBox.getFullAddress(), recipient);
                     }
                     log.info("Message sent, From: " + from + " To:" + recipient);
 
                     if (mailBox != null)
                     { // the message belongs to one of our mailboxes
-                        mailBox.increaseFwd();
+                        MailboxCounters.increaseForwards(mailBox.getId());
                     }
                 }
             }
@@ -285,8 +528,7 @@ public class MailrMessageSenderFactory
                 // log it
                 if (xcmConfiguration.MTX_MAX_AGE != 0 && mailBox != null)
                 { // if mailtransaction.maxage is set to 0 -> log nothing
-                    mtx = new MailTransaction(400, from, mailBox.getFullAddress(), recipient);
-                    addMtxToJCList(mtx);
+                    addMtxToJCList(400, from, mailBox.getFullAddress(), recipient);
                 }
                 log.error("Failed to send mail", e);
             }
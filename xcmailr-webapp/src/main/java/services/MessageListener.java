@@ -17,6 +17,13 @@ package services;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.mail.Address;
@@ -28,22 +35,27 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMessage.RecipientType;
 
+import jakarta.persistence.PersistenceException;
+
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.mail.util.MimeMessageUtils;
 import org.slf4j.Logger;
+import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.helper.SimpleMessageListener;
 
-import io.ebean.DB;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import conf.XCMailrConf;
 import etc.HelperUtils;
+import etc.MailSpool;
 import etc.MessageComposer;
+import etc.RateLimiter;
 import etc.SizeLimitExceededException;
 import models.MBox;
 import models.Mail;
 import models.MailTransaction;
+import models.MailboxCounters;
+import models.MailboxRoutingIndex;
 import models.User;
 
 /**
@@ -63,6 +75,9 @@ public class MessageListener implements SimpleMessageListener
     @Inject
     MailService jobController;
 
+    @Inject
+    MailWriter mailWriter;
+
     @Inject
     Logger log;
 
@@ -70,6 +85,121 @@ public class MessageListener implements SimpleMessageListener
 
     static final String LOOP_HEADER_VALUE_PREFIX = "loopbreaker";
 
+    /**
+     * the rate limiters, created on first use as the configuration is injected into the fields
+     */
+    private volatile RateLimiter[] rateLimiters;
+
+    /**
+     * Checks whether the mails received so far cannot be processed fast enough, i.e. whether the queue of mails
+     * waiting to be stored or the queue of mails waiting to be forwarded is filled up to the configured high-water
+     * mark. In this case new mails should be rejected with a temporary failure, so the sending server retries later.
+     * 
+     * @return whether or not new mails should be rejected
+     */
+    public boolean isOverloaded()
+    {
+        final int highWaterMark = xcmConfiguration.MB_HIGH_WATER_MARK;
+        if (highWaterMark == 0)
+        {
+            return false;
+        }
+
+        return mailWriter.getQueueSize() * 100L >= (long) highWaterMark * xcmConfiguration.MAIL_WRITE_QUEUE_SIZE
+               || mailrSenderFactory.getForwardQueueSize() * 100L >= (long) highWaterMark
+                                                                         * xcmConfiguration.FORWARD_QUEUE_SIZE;
+    }
+
+    /**
+     * Checks whether another recipient may be accepted from the given client and sender, i.e. whether neither the
+     * client, the sender domain nor the recipient exceeded its rate. Throttled recipients are logged as
+     * {@link MailTransaction} with status 700 (client), 800 (sender domain) or 900 (recipient). Only recipients that
+     * were {@link #accept(String, String) accepted} should be checked, so rejected ones don't use up the rates.
+     * 
+     * @param clientAddress
+     *            the IP address of the SMTP client, may be <code>null</code>
+     * @param from
+     *            the sender address, may be empty
+     * @param recipient
+     *            the recipient address
+     * @return <code>true</code> if the recipient may be accepted, <code>false</code> if it is throttled
+     */
+    public boolean checkRateLimits(String clientAddress, String from, String recipient)
+    {
+        final RateLimiter[] limiters = getRateLimiters();
+
+        final String[] splitFrom = HelperUtils.splitMailAddress(from);
+        final String senderDomain = (splitFrom != null && splitFrom.length > 1) ? splitFrom[1].toLowerCase(Locale.ROOT)
+                                                                                : null;
+
+        final int status;
+        if (clientAddress != null && !limiters[0].tryAcquire(clientAddress))
+        {
+            status = 700;
+        }
+        else if (senderDomain != null && !limiters[1].tryAcquire(senderDomain))
+        {
+            status = 800;
+        }
+        else if (!limiters[2].tryAcquire(recipient.toLowerCase(Locale.ROOT)))
+        {
+            status = 900;
+        }
+        else
+        {
+            return true;
+        }
+
+        log.info("Throttled mail [status: {}, client: {}, from: {}, to: {}]", status, clientAddress, from, recipient);
+        createMtxAndAddToQueue(status, from, recipient, null);
+        return false;
+    }
+
+    /**
+     * Delays the response to a throttled client by the configured tarpit delay, which slows down clients that flood
+     * us with mails.
+     */
+    public void tarpit()
+    {
+        if (xcmConfiguration.MB_RATE_LIMIT_TARPIT > 0)
+        {
+            try
+            {
+                Thread.sleep(xcmConfiguration.MB_RATE_LIMIT_TARPIT);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the rate limiters per client address, sender domain and recipient
+     */
+    private RateLimiter[] getRateLimiters()
+    {
+        RateLimiter[] limiters = rateLimiters;
+        if (limiters == null)
+        {
+            synchronized (this)
+            {
+                limiters = rateLimiters;
+                if (limiters == null)
+                {
+                    limiters = new RateLimiter[]
+                        {
+                            new RateLimiter(xcmConfiguration.MB_RATE_LIMIT_CLIENT),
+                            new RateLimiter(xcmConfiguration.MB_RATE_LIMIT_SENDER),
+                            new RateLimiter(xcmConfiguration.MB_RATE_LIMIT_RECIPIENT)
+                        };
+                    rateLimiters = limiters;
+                }
+            }
+        }
+        return limiters;
+    }
+
     @Override
     public boolean accept(String from, String recipient)
     {
@@ -77,15 +207,21 @@ public class MessageListener implements SimpleMessageListener
         final String[] splitaddress = HelperUtils.splitMailAddress(recipient);
 
         if (HelperUtils.checkEmailAddressValidness(splitaddress, xcmConfiguration.DOMAIN_LIST))
-            return true;
+        {
+            if (!xcmConfiguration.MB_REJECT_UNKNOWN_RECIPIENTS)
+                return true;
+
+            // reject the recipient before the mail data is transferred if there's no active mailbox for it, the drop
+            // is logged the same way as it would be after receiving the mail
+            return doMboxPreconditionChecks(from, recipient) != null;
+        }
 
         // the mailaddress has a strange form or has an recipient with a domain-part that does not belong to our
         // domains
         // log status 500 (relay denied)
         if (xcmConfiguration.MTX_MAX_AGE != 0)
         { // if mailtransaction.maxage is set to 0 -> log nothing
-            MailTransaction mtx = new MailTransaction(500, from, recipient, null);
-            jobController.mtxQueue.add(mtx);
+            jobController.addTransaction(500, from, recipient, null);
         }
         return false;
     }
@@ -205,9 +341,9 @@ public class MessageListener implements SimpleMessageListener
      *            the from address
      * @param recipient
      *            the recipient
-     * @return the linked {@link MBox} for that recipient address, or null if any precondition failed
+     * @return the route of the linked {@link MBox} for that recipient address, or null if any precondition failed
      */
-    protected MBox doMboxPreconditionChecks(final String from, final String recipient)
+    protected MailboxRoutingIndex.Route doMboxPreconditionChecks(final String from, final String recipient)
     {
         final String[] splitAddress = HelperUtils.splitMailAddress(recipient);
         if (splitAddress == null || splitAddress.length != 2)
@@ -216,24 +352,24 @@ public class MessageListener implements SimpleMessageListener
             return null;
         }
 
-        final MBox mailBox = MBox.getByName(splitAddress[0], splitAddress[1]);
+        final MailboxRoutingIndex.Route mailBox = MailboxRoutingIndex.lookup(splitAddress[0], splitAddress[1]);
         if (mailBox == null)
         { // mailaddress/forward does not exist
             createMtxAndAddToQueue(100, from, recipient, null);
             return null;
         }
-        final String forwardTarget = (mailBox.getUsr() != null) ? mailBox.getUsr().getMail() : "";
+        final String forwardTarget = mailBox.getOwnerMail();
 
-        if (mailBox.isActive() == false)
+        if (mailBox.isExpired())
         { // there's a mailaddress, but the forward is inactive
             createMtxAndAddToQueue(200, from, recipient, forwardTarget);
-            mailBox.increaseSup();
+            MailboxCounters.increaseSuppressions(mailBox.getId());
             return null;
         }
-        if (mailBox.getUsr() == null || mailBox.getUsr().isActive() == false)
+        if (!mailBox.isOwnerActive())
         { // either the user does not exist or the user is set to inactive
             createMtxAndAddToQueue(600, from, recipient, forwardTarget);
-            mailBox.increaseSup();
+            MailboxCounters.increaseSuppressions(mailBox.getId());
             return null;
         }
         return mailBox;
@@ -247,110 +383,97 @@ public class MessageListener implements SimpleMessageListener
     @Override
     public void deliver(final String from, final String recipient, final InputStream data)
     {
-        try
-        {
-            final MBox mailBox = doMboxPreconditionChecks(from, recipient);
+        deliver(from, Collections.singletonList(recipient), data);
+    }
 
-            if (mailBox == null)
+    /**
+     * Handles a mail that was sent to the given recipients. The mail is read and stored only once, no matter how many
+     * of the recipients are mailboxes of ours, and is forwarded to the owners of these mailboxes.
+     * 
+     * @param from
+     *            the envelope sender
+     * @param recipients
+     *            the accepted envelope recipients
+     * @param data
+     *            the mail data
+     * @throws RejectException
+     *             with a transient 451 reply if the mail could not be stored, so the client tries again later
+     */
+    public void deliver(final String from, final List<String> recipients, final InputStream data)
+    {
+        final Map<String, MailboxRoutingIndex.Route> mailBoxes = new LinkedHashMap<>();
+        for (final String recipient : recipients)
+        {
+            final MailboxRoutingIndex.Route mailBox = doMboxPreconditionChecks(from, recipient);
+            if (mailBox != null)
             {
-                return;
+                mailBoxes.put(recipient, mailBox);
             }
+        }
+        if (mailBoxes.isEmpty())
+        {
+            return;
+        }
 
-            final Address forwardAddress;
-            final String forwardTarget = mailBox.getUsr().getMail();
-
+        try
+        {
             final Session session = mailrSenderFactory.getSession();
             session.setDebug(xcmConfiguration.OUT_SMTP_DEBUG);
 
-            byte[] rawContent = null;
+            final MailSpool spool;
             try
             {
-                rawContent = HelperUtils.readLimitedAmount(data, xcmConfiguration.MAX_MAIL_SIZE);
+                spool = MailSpool.spool(data, xcmConfiguration.MAX_MAIL_SIZE, xcmConfiguration.MAIL_SPOOL_THRESHOLD,
+                                        xcmConfiguration.MAIL_SPOOL_DIR);
             }
-            catch (IOException e)
+            catch (SizeLimitExceededException e)
             {
-                if (e instanceof SizeLimitExceededException)
-                {
-                    log.error("Dropped mail '{} => {}' since its size exceed configured limit of {} bytes", new Object[]
-                        {
-                          from, recipient, Integer.toString(xcmConfiguration.MAX_MAIL_SIZE)
-                        });
-                    return;
-                }
-                throw e;
-            }
-
-            MimeMessage mail = MimeMessageUtils.createMimeMessage(session, rawContent);
-
-            // determine the author(s) of the mail (who wrote us?)
-            final String originator = StringUtils.defaultIfBlank(StringUtils.join(mail.getFrom(), ','),from);
-
-            // write to mail table
-            persistMail(mailBox, originator, StringUtils.defaultString(mail.getSubject()), rawContent);
-
-            // check if the mail address is configured to forward emails
-            // the mail is still persisted (see above)
-            if (!mailBox.isForwardEmails())
-                return;
-
-            // check for a possible loop ...
-            String loopError = checkForLoop(mail);
-            if (loopError != null)
-            {
-                log.info("Broke a possible loop");
-                log.info("Email was not forwarded");
-                log.info("From: " + from + " To:" + recipient);
-                log.info(loopError);
+                log.error("Dropped mail '{} => {}' since its size exceed configured limit of {} bytes", new Object[]
+                    {
+                      from, StringUtils.join(mailBoxes.keySet(), ','), Integer.toString(xcmConfiguration.MAX_MAIL_SIZE)
+                    });
                 return;
             }
-            // there's an existing and active mail-address
-            // add the target-address to the list
+
+            // the writer and the forwarder retain the spool as long as they need it
             try
             {
-                forwardAddress = new InternetAddress(forwardTarget);
-                // rewrite the message body and wrap the original message in a new one if mail.msg.rewrite is
-                // set to true
-                if (xcmConfiguration.MSG_REWRITE)
-                {
-                    mail = MessageComposer.createQuotedMessage(mail);
-                }
-                mail.setRecipient(Message.RecipientType.TO, forwardAddress);
-                mail.removeHeader("Cc");
-                mail.removeHeader("BCC");
+                // the message reads its content from the spool instead of copying it
+                final MimeMessage mail = new MimeMessage(session, spool.getInputStream());
 
-                mail.setSender(new InternetAddress(recipient));
-                mail.setFrom(new InternetAddress(recipient));
+                // determine the author(s) of the mail (who wrote us?)
+                final String originator = StringUtils.defaultIfBlank(StringUtils.join(mail.getFrom(), ','), from);
 
-                // intention: set 'from' to the incoming email address, set the sender to xcmailers one
-                // for clarity. Unfortunately it doesn't work because the SMTP server refuses to send these mails
-                // mail.setFrom(new InternetAddress(from));
+                // write to mail table, the raw data is stored once for all mailboxes
+                persistMail(mailBoxes.values(), originator, StringUtils.defaultString(mail.getSubject()), spool);
 
-                // set the Reply-To header to the incoming email address, the semantic one of the original sender
-                mail.setReplyTo(InternetAddress.parse(from));
-                mail.addHeader("X-FORWARDED-FROM", from);
+                // check for a possible loop ...
+                final String loopError = checkForLoop(mail);
 
-                // Set headers to break loops
-                String loopHeaderContent = LOOP_HEADER_VALUE_PREFIX + recipient;
-                mail.addHeader(LOOP_HEADER_NAME, loopHeaderContent);
-                mail.addHeader("Auto-Submitted", "auto-forwarded");
+                for (final Map.Entry<String, MailboxRoutingIndex.Route> entry : mailBoxes.entrySet())
+                {
+                    // check if the mail address is configured to forward emails
+                    // the mail is still persisted (see above)
+                    if (!entry.getValue().isForwardEmails())
+                        continue;
 
-                // send the mail in a separate thread
-                MailrMessageSenderFactory.ThreadedMailSend tms = mailrSenderFactory.new ThreadedMailSend(mail, mailBox);
-                tms.start();
-            }
-            catch (AddressException e)
-            {
-                log.error(e.getMessage());
-                // the message can't be forwarded (has not the correct format)
-                // this SHOULD never be the case...
-                createMtxAndAddToQueue(400, from, recipient, forwardTarget);
+                    if (loopError != null)
+                    {
+                        log.info("Broke a possible loop");
+                        log.info("Email was not forwarded");
+                        log.info("From: " + from + " To:" + entry.getKey());
+                        log.info(loopError);
+                        continue;
+                    }
+
+                    // each forward gets its own message, since the headers are changed per recipient
+                    forwardMail(new MimeMessage(session, spool.getInputStream()), from, entry.getKey(),
+                                entry.getValue(), spool);
+                }
             }
-            catch (IOException e)
+            finally
             {
-                log.error(e.getMessage());
-                // the message can't be forwarded (has not the correct format)
-                // this SHOULD never be the case...
-                createMtxAndAddToQueue(400, from, recipient, forwardTarget);
+                spool.close();
             }
         }
         catch (MessagingException e)
@@ -363,19 +486,90 @@ public class MessageListener implements SimpleMessageListener
         {
             log.error(e.getMessage());
         }
+        catch (PersistenceException e)
+        {
+            // the mail was not stored (only reported if storing synchronously), let the client retry
+            log.error("Failed to store mail '{} => {}'", from, StringUtils.join(mailBoxes.keySet(), ','), e);
+            throw new RejectException(451, "4.3.0 Failed to store the mail, try again later");
+        }
+    }
+
+    /**
+     * Rewrites the given mail and hands it over to the forwarder.
+     */
+    private void forwardMail(MimeMessage mail, final String from, final String recipient,
+                             final MailboxRoutingIndex.Route mailBox, final MailSpool spool)
+        throws MessagingException
+    {
+        // there's an existing and active mail-address
+        // add the target-address to the list
+        final String forwardTarget = mailBox.getOwnerMail();
+        try
+        {
+            final Address forwardAddress = new InternetAddress(forwardTarget);
+            // rewrite the message body and wrap the original message in a new one if mail.msg.rewrite is
+            // set to true
+            if (xcmConfiguration.MSG_REWRITE)
+            {
+                mail = MessageComposer.createQuotedMessage(mail);
+            }
+            mail.setRecipient(Message.RecipientType.TO, forwardAddress);
+            mail.removeHeader("Cc");
+            mail.removeHeader("BCC");
+
+            mail.setSender(new InternetAddress(recipient));
+            mail.setFrom(new InternetAddress(recipient));
+
+            // intention: set 'from' to the incoming email address, set the sender to xcmailers one
+            // for clarity. Unfortunately it doesn't work because the SMTP server refuses to send these mails
+            // mail.setFrom(new InternetAddress(from));
+
+            // set the Reply-To header to the incoming email address, the semantic one of the original sender
+            mail.setReplyTo(InternetAddress.parse(from));
+            mail.addHeader("X-FORWARDED-FROM", from);
+
+            // Set headers to break loops
+            String loopHeaderContent = LOOP_HEADER_VALUE_PREFIX + recipient;
+            mail.addHeader(LOOP_HEADER_NAME, loopHeaderContent);
+            mail.addHeader("Auto-Submitted", "auto-forwarded");
+
+            // send the mail asynchronously, the forwarder releases the spool when done
+            mailrSenderFactory.forwardMail(mail, mailBox, spool.retain());
+        }
+        catch (AddressException e)
+        {
+            log.error(e.getMessage());
+            // the message can't be forwarded (has not the correct format)
+            // this SHOULD never be the case...
+            createMtxAndAddToQueue(400, from, recipient, forwardTarget);
+        }
+        catch (IOException e)
+        {
+            log.error(e.getMessage());
+            // the message can't be forwarded (has not the correct format)
+            // this SHOULD never be the case...
+            createMtxAndAddToQueue(400, from, recipient, forwardTarget);
+        }
     }
 
-    private void persistMail(MBox mailBox, String from, final String subject, byte[] rawData) throws MessagingException
+    private void persistMail(Collection<MailboxRoutingIndex.Route> mailBoxes, String from, final String subject,
+                             MailSpool spool)
     {
-        Mail newMail = new Mail();
-        newMail.setMailbox(mailBox);
-        newMail.setSender(from);
-        newMail.setSubject(subject);
-        newMail.setMessage(rawData);
-        newMail.setReceiveTime(System.currentTimeMillis());
-        newMail.setUuid(UUID.randomUUID().toString());
-
-        DB.save(newMail);
+        final long receiveTime = System.currentTimeMillis();
+        final List<Mail> newMails = new ArrayList<>(mailBoxes.size());
+        for (final MailboxRoutingIndex.Route mailBox : mailBoxes)
+        {
+            Mail newMail = new Mail();
+            newMail.setMailboxId(mailBox.getId());
+            newMail.setSender(from);
+            newMail.setSubject(subject);
+            newMail.setReceiveTime(receiveTime);
+            newMail.setUuid(UUID.randomUUID().toString());
+            newMails.add(newMail);
+        }
+
+        // the raw data is streamed from the spool into the database
+        mailWriter.store(newMails, spool);
     }
 
     private void createMtxAndAddToQueue(final int status, final String from, final String recipient,
@@ -383,8 +577,7 @@ public class MessageListener implements SimpleMessageListener
     {
         if (xcmConfiguration.MTX_MAX_AGE != 0)
         {// if mailtransaction.maxage is set to 0 -> log nothing
-            final MailTransaction mtx = new MailTransaction(status, from, recipient, forwardTarget);
-            jobController.mtxQueue.add(mtx);
+            jobController.addTransaction(status, from, recipient, forwardTarget);
         }
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.subethamail.smtp.DropConnectionException;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
+
+/**
+ * Connects the SMTP server to the {@link MessageListener}. Unlike {@link SimpleMessageListenerAdapter}, which delivers
+ * a mail once per recipient, all accepted recipients of a mail are delivered at once, so the mail data is read and
+ * stored only once.
+ * <p>
+ * While the {@link MessageListener#isOverloaded() listener is overloaded}, new mails are rejected with a temporary
+ * failure at MAIL FROM, which also closes the connection, or, if the overload started later, at DATA. Recipients
+ * exceeding one of the {@link MessageListener#checkRateLimits(String, String, String) rate limits} are deferred after
+ * the tarpit delay.
+ */
+class MessageListenerHandlerFactory implements MessageHandlerFactory
+{
+    private final MessageListener messageListener;
+
+    MessageListenerHandlerFactory(MessageListener messageListener)
+    {
+        this.messageListener = messageListener;
+    }
+
+    @Override
+    public MessageHandler create(MessageContext ctx)
+    {
+        final SocketAddress remoteAddress = ctx.getRemoteAddress();
+        final String clientAddress = (remoteAddress instanceof InetSocketAddress)
+            ? ((InetSocketAddress) remoteAddress).getAddress().getHostAddress() : null;
+
+        return new Handler(clientAddress);
+    }
+
+    private class Handler implements MessageHandler
+    {
+        private final String clientAddress;
+
+        private String from;
+
+        private final List<String> recipients = new ArrayList<>();
+
+        private Handler(String clientAddress)
+        {
+            this.clientAddress = clientAddress;
+        }
+
+        @Override
+        public void from(String from) throws RejectException
+        {
+            if (messageListener.isOverloaded())
+            {
+                // RFC 5321: the connection is closed after a 421 reply
+                throw new DropConnectionException(421, "4.3.2 Service temporarily unavailable, closing transmission channel");
+            }
+            this.from = from;
+        }
+
+        @Override
+        public void recipient(String recipient) throws RejectException
+        {
+            if (!messageListener.accept(from, recipient))
+            {
+                // same response as SimpleMessageListenerAdapter
+                throw new RejectException(553, "<" + recipient + "> address unknown.");
+            }
+            // only recipients we'd accept count towards the rate limits
+            if (!messageListener.checkRateLimits(clientAddress, from, recipient))
+            {
+                messageListener.tarpit();
+                throw new RejectException(450, "4.7.1 <" + recipient + "> too many mails, try again later");
+            }
+            recipients.add(recipient);
+        }
+
+        @Override
+        public void data(InputStream data) throws RejectException, IOException
+        {
+            if (messageListener.isOverloaded())
+            {
+                // the queues filled up while the recipients were sent
+                throw new RejectException(451, "4.3.2 Service temporarily unavailable, try again later");
+            }
+            if (!recipients.isEmpty())
+            {
+                messageListener.deliver(from, recipients, data);
+            }
+        }
+
+        @Override
+        public void done()
+        {
+        }
+    }
+}
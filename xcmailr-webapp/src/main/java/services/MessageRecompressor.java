@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import etc.MessageCodec;
+import io.ebean.DB;
+import ninja.lifecycle.Dispose;
+import ninja.lifecycle.Start;
+
+/**
+ * Compresses the messages that were stored uncompressed, e.g. before compression was enabled, in the background. The
+ * messages are processed once after startup, in small batches to keep the load on the database low. Messages that are
+ * read meanwhile are decoded either way.
+ */
+@Singleton
+public class MessageRecompressor
+{
+    private static final int BATCH_SIZE = 20;
+
+    @Inject
+    XCMailrConf xcmConfiguration;
+
+    @Inject
+    Logger log;
+
+    private Thread thread;
+
+    private volatile boolean running;
+
+    /**
+     * Starts recompressing the stored messages if enabled.
+     */
+    @Start(order = 85)
+    public synchronized void start()
+    {
+        if (!xcmConfiguration.MAIL_COMPRESSION_RECOMPRESS || xcmConfiguration.MAIL_COMPRESSION_LEVEL == 0)
+        {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(this::recompressAll, "message-recompressor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops recompressing. Messages that were not processed yet are processed after the next startup.
+     */
+    @Dispose(order = 85)
+    public synchronized void stop()
+    {
+        if (thread == null)
+        {
+            return;
+        }
+
+        running = false;
+        thread.interrupt();
+        try
+        {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private void recompressAll()
+    {
+        try
+        {
+            final int contents = recompress("mail_content");
+            final int mails = recompress("mail");
+            if (contents > 0 || mails > 0)
+            {
+                log.info("Compressed {} stored messages", contents + mails);
+            }
+        }
+        catch (Exception e)
+        {
+            if (running)
+            {
+                log.error("Failed to compress stored messages", e);
+            }
+        }
+    }
+
+    /**
+     * Compresses the uncompressed messages in the given table.
+     *
+     * @return the number of compressed messages
+     */
+    int recompress(String table)
+    {
+        final String selectSql = "SELECT id, message FROM " + table
+                                 + " WHERE id > :lastId AND message IS NOT NULL ORDER BY id LIMIT " + BATCH_SIZE;
+        final String updateSql = "UPDATE " + table + " SET message = :message WHERE id = :id";
+
+        int count = 0;
+        long lastId = 0;
+        while (running)
+        {
+            final List<StoredMessage> rows = DB.sqlQuery(selectSql).setParameter("lastId", lastId)
+                                               .mapTo((rs, rowNum) -> new StoredMessage(rs.getLong(1), rs.getBytes(2)))
+                                               .findList();
+            if (rows.isEmpty())
+            {
+                break;
+            }
+
+            for (final StoredMessage row : rows)
+            {
+                lastId = row.id;
+
+                final byte[] message = row.message;
+                if (MessageCodec.isEncoded(message))
+                {
+                    continue;
+                }
+
+                final byte[] encoded = MessageCodec.encode(message, xcmConfiguration.MAIL_COMPRESSION_LEVEL,
+                                                           xcmConfiguration.MAIL_COMPRESSION_MIN_SIZE);
+                if (encoded != message)
+                {
+                    DB.sqlUpdate(updateSql).setParameter("message", encoded).setParameter("id", lastId).execute();
+                    count++;
+                }
+            }
+
+            // leave some room for the actual work
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private static class StoredMessage
+    {
+        private final long id;
+
+        private final byte[] message;
+
+        private StoredMessage(long id, byte[] message)
+        {
+            this.id = id;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import etc.DatabaseMessageStore;
+import etc.MessageStore;
+import etc.SegmentMessageStore;
+import models.MailContent;
+import ninja.lifecycle.Dispose;
+import ninja.lifecycle.Start;
+
+/**
+ * Opens the configured {@link MessageStore} before any mail is received and closes it after the last one was stored.
+ * The {@link SegmentMessageStore} is opened as well if messages are stored in the database, but some were stored in
+ * segments before, so they can still be read.
+ */
+@Singleton
+public class MessageStoreService
+{
+    @Inject
+    XCMailrConf xcmConfiguration;
+
+    @Inject
+    Logger log;
+
+    private SegmentMessageStore store;
+
+    /**
+     * Opens the segment store if needed and makes the configured store the one new messages are written to.
+     */
+    @Start(order = 70)
+    public synchronized void start()
+    {
+        final boolean writeSegments = XCMailrConf.MAIL_STORE_SEGMENTS.equals(xcmConfiguration.MAIL_STORE);
+        if (!writeSegments && !MailContent.hasSegmentData())
+        {
+            return;
+        }
+
+        try
+        {
+            store = new SegmentMessageStore(xcmConfiguration.MAIL_STORE_DIR.toPath(),
+                                            xcmConfiguration.MAIL_STORE_SEGMENT_SIZE);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Failed to open the message store in "
+                                       + xcmConfiguration.MAIL_STORE_DIR.getAbsolutePath(), e);
+        }
+        MailContent.setSegmentStore(store);
+        if (writeSegments)
+        {
+            MailContent.setMessageStore(store);
+        }
+        else
+        {
+            log.info("New messages are stored in the database, the message store is opened to read the messages stored there before");
+        }
+    }
+
+    /**
+     * Closes the message store.
+     */
+    @Dispose(order = 70)
+    public synchronized void stop()
+    {
+        if (store == null)
+        {
+            return;
+        }
+
+        MailContent.setMessageStore(new DatabaseMessageStore());
+        MailContent.setSegmentStore(null);
+        try
+        {
+            store.close();
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to close the message store", e);
+        }
+        store = null;
+    }
+}
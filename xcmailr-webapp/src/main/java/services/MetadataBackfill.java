@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import etc.MailMetadataExtractor;
+import etc.MessageCodec;
+import io.ebean.DB;
+import models.MailContent;
+import models.MailMetadata;
+import models.MailSearchTerm;
+import ninja.lifecycle.Dispose;
+import ninja.lifecycle.Start;
+
+/**
+ * Extracts the {@link MailMetadata} of the mails that were stored before it was extracted at delivery, in the
+ * background. Mails that were stored without a {@link MailContent} are moved to one, so their metadata can be stored
+ * as well. The mails are processed once after startup, in small batches to keep the load on the database low. Mails
+ * that are read meanwhile are parsed on the fly. Finally, contents whose metadata was stored before the search index
+ * was introduced are added to the index.
+ */
+@Singleton
+public class MetadataBackfill
+{
+    private static final int BATCH_SIZE = 20;
+
+    @Inject
+    XCMailrConf xcmConfiguration;
+
+    @Inject
+    Logger log;
+
+    private Thread thread;
+
+    private volatile boolean running;
+
+    /**
+     * Starts extracting the missing metadata if enabled.
+     */
+    @Start(order = 86)
+    public synchronized void start()
+    {
+        if (!xcmConfiguration.MAIL_METADATA_BACKFILL)
+        {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(this::backfillAll, "metadata-backfill");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops extracting. Mails that were not processed yet are processed after the next startup.
+     */
+    @Dispose(order = 86)
+    public synchronized void stop()
+    {
+        if (thread == null)
+        {
+            return;
+        }
+
+        running = false;
+        thread.interrupt();
+        try
+        {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private void backfillAll()
+    {
+        try
+        {
+            final int mails = moveMails();
+            final int contents = backfillContents();
+            if (mails > 0 || contents > 0)
+            {
+                log.info("Extracted the metadata of {} stored messages", mails + contents);
+            }
+
+            final int indexed = indexContents();
+            if (indexed > 0)
+            {
+                log.info("Added {} stored messages to the search index", indexed);
+            }
+        }
+        catch (Exception e)
+        {
+            if (running)
+            {
+                log.error("Failed to extract the metadata of stored messages", e);
+            }
+        }
+    }
+
+    /**
+     * Moves the messages of the mails stored without a content to new contents, together with their metadata.
+     *
+     * @return the number of moved messages
+     */
+    int moveMails()
+    {
+        int count = 0;
+        long lastId = 0;
+        while (running)
+        {
+            final List<StoredMessage> rows = DB.sqlQuery("SELECT id, message FROM mail WHERE id > :lastId AND content_id IS NULL AND message IS NOT NULL ORDER BY id LIMIT "
+                                                         + BATCH_SIZE)
+                                               .setParameter("lastId", lastId)
+                                               .mapTo((rs, rowNum) -> new StoredMessage(rs.getLong(1), rs.getBytes(2)))
+                                               .findList();
+            if (rows.isEmpty())
+            {
+                break;
+            }
+
+            for (final StoredMessage row : rows)
+            {
+                lastId = row.id;
+                if (MailContent.adopt(row.id, row.message, extract(row.id, MessageCodec.decode(row.message))))
+                {
+                    count++;
+                }
+            }
+
+            if (!pause())
+            {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Extracts the metadata of the contents stored without it.
+     *
+     * @return the number of processed contents
+     */
+    int backfillContents()
+    {
+        int count = 0;
+        long lastId = 0;
+        while (running)
+        {
+            final List<Long> ids = DB.sqlQuery("SELECT c.id FROM mail_content c WHERE c.id > :lastId AND NOT EXISTS (SELECT 1 FROM mail_metadata m WHERE m.content_id = c.id) ORDER BY c.id LIMIT "
+                                               + BATCH_SIZE)
+                                     .setParameter("lastId", lastId).mapToScalar(Long.class).findList();
+            if (ids.isEmpty())
+            {
+                break;
+            }
+
+            for (final Long id : ids)
+            {
+                lastId = id;
+                final MailMetadata metadata = extract(id, MailContent.getMessage(id));
+                if (metadata != null)
+                {
+                    metadata.insert(id);
+                    count++;
+                }
+            }
+
+            if (!pause())
+            {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the contents whose metadata was stored before the search index was introduced to the index.
+     *
+     * @return the number of indexed contents
+     */
+    int indexContents()
+    {
+        int count = 0;
+        long lastId = 0;
+        while (running)
+        {
+            final List<Long> ids = DB.sqlQuery("SELECT md.content_id FROM mail_metadata md WHERE md.content_id > :lastId AND NOT EXISTS (SELECT 1 FROM mail_search_term t WHERE t.content_id = md.content_id) ORDER BY md.content_id LIMIT "
+                                               + BATCH_SIZE)
+                                     .setParameter("lastId", lastId).mapToScalar(Long.class).findList();
+            if (ids.isEmpty())
+            {
+                break;
+            }
+            lastId = ids.get(ids.size() - 1);
+
+            final Collection<MailMetadata> metadata = MailMetadata.findByContentIds(ids).values();
+            MailSearchTerm.insert(metadata);
+            count += metadata.size();
+
+            if (!pause())
+            {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private MailMetadata extract(long id, byte[] message)
+    {
+        try
+        {
+            return MailMetadataExtractor.extract(message);
+        }
+        catch (Exception e)
+        {
+            // leave it to the readers, they report it
+            log.debug("Failed to extract the metadata of message {}", id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Leaves some room for the actual work.
+     *
+     * @return <code>false</code> if interrupted
+     */
+    private boolean pause()
+    {
+        try
+        {
+            Thread.sleep(100);
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            return false;
+        }
+    }
+
+    private static class StoredMessage
+    {
+        private final long id;
+
+        private final byte[] message;
+
+        private StoredMessage(long id, byte[] message)
+        {
+            this.id = id;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+import conf.XCMailrConf;
+
+/**
+ * Keeps a number of connected and authenticated {@link Transport}s to the outbound SMTP server open and reuses them for
+ * sending mails. A transport is reset (RSET) before it is reused, which validates the connection as well. It is closed
+ * after it has sent the configured number of messages or has been idle for too long, idle transports are checked
+ * periodically in the background.
+ */
+class SmtpTransportPool
+{
+    private final Logger log = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+    private final Session session;
+
+    private final XCMailrConf xcmConfiguration;
+
+    /**
+     * the idle transports, the most recently used one first
+     */
+    private final LinkedBlockingDeque<PooledTransport> idleTransports = new LinkedBlockingDeque<>();
+
+    /**
+     * limits the number of open transports to the pool size
+     */
+    private final Semaphore permits;
+
+    /**
+     * closes the transports that have been idle for too long
+     */
+    private final ScheduledExecutorService idleReaper;
+
+    private volatile boolean closed;
+
+    SmtpTransportPool(Session session, XCMailrConf xcmConfiguration)
+    {
+        this.session = session;
+        this.xcmConfiguration = xcmConfiguration;
+        this.permits = new Semaphore(xcmConfiguration.OUT_SMTP_POOL_SIZE, true);
+
+        idleReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "smtp-pool-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long interval = Math.max(1, xcmConfiguration.OUT_SMTP_POOL_MAX_IDLE / 2);
+        idleReaper.scheduleWithFixedDelay(this::closeExpired, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends the given mail to all its recipients using one of the pooled transports. If all transports are busy, the
+     * calling thread waits until one becomes available.
+     *
+     * @param mail
+     *            the mail to send
+     * @throws MessagingException
+     *             if the mail could not be sent
+     */
+    void send(MimeMessage mail) throws MessagingException
+    {
+        // Transport.send() does this implicitly
+        mail.saveChanges();
+        final Address[] recipients = mail.getAllRecipients();
+
+        permits.acquireUninterruptibly();
+        PooledTransport pooledTransport = null;
+        try
+        {
+            pooledTransport = borrow();
+            pooledTransport.transport.sendMessage(mail, recipients);
+            pooledTransport.messageCount++;
+        }
+        catch (MessagingException | RuntimeException e)
+        {
+            // the state of the connection is unknown, so don't reuse it
+            if (pooledTransport != null)
+            {
+                pooledTransport.close();
+                pooledTransport = null;
+            }
+            throw e;
+        }
+        finally
+        {
+            if (pooledTransport != null)
+            {
+                release(pooledTransport);
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle transports. Transports that are currently in use are closed when they are returned.
+     */
+    void close()
+    {
+        closed = true;
+        idleReaper.shutdownNow();
+
+        PooledTransport pooledTransport;
+        while ((pooledTransport = idleTransports.pollFirst()) != null)
+        {
+            pooledTransport.close();
+        }
+    }
+
+    /**
+     * @return the number of open transports that are currently not in use
+     */
+    int getIdleCount()
+    {
+        return idleTransports.size();
+    }
+
+    /**
+     * Closes the idle transports that have been idle for too long.
+     *
+     * @return the number of closed transports
+     */
+    int closeExpired()
+    {
+        int count = 0;
+        for (final PooledTransport pooledTransport : idleTransports)
+        {
+            // a transport that was borrowed meanwhile isn't idle anymore
+            if (pooledTransport.isExpired() && idleTransports.remove(pooledTransport))
+            {
+                pooledTransport.close();
+                count++;
+            }
+        }
+        if (count > 0)
+        {
+            log.debug("Closed {} idle pooled SMTP transports", count);
+        }
+        return count;
+    }
+
+    private PooledTransport borrow() throws MessagingException
+    {
+        // reuse an idle transport if it is still usable
+        PooledTransport pooledTransport;
+        while ((pooledTransport = idleTransports.pollFirst()) != null)
+        {
+            if (pooledTransport.isExpired())
+            {
+                pooledTransport.close();
+            }
+            else if (pooledTransport.reset())
+            {
+                return pooledTransport;
+            }
+            else
+            {
+                log.debug("Dropped pooled SMTP transport that was disconnected by the server");
+                pooledTransport.close();
+            }
+        }
+
+        // no idle transport left -> open a new one
+        final Transport transport = session.getTransport("smtp");
+        if (xcmConfiguration.OUT_SMTP_AUTH)
+        {
+            transport.connect(xcmConfiguration.OUT_SMTP_HOST, xcmConfiguration.OUT_SMTP_PORT,
+                              xcmConfiguration.OUT_SMTP_USER, xcmConfiguration.OUT_SMTP_PASS);
+        }
+        else
+        {
+            transport.connect();
+        }
+        return new PooledTransport(transport);
+    }
+
+    private void release(PooledTransport pooledTransport)
+    {
+        if (closed || pooledTransport.messageCount >= xcmConfiguration.OUT_SMTP_POOL_MAX_MESSAGES)
+        {
+            pooledTransport.close();
+        }
+        else
+        {
+            pooledTransport.lastUsed = System.currentTimeMillis();
+            idleTransports.offerFirst(pooledTransport);
+        }
+    }
+
+    private class PooledTransport
+    {
+        private final Transport transport;
+
+        private int messageCount;
+
+        private long lastUsed = System.currentTimeMillis();
+
+        private PooledTransport(Transport transport)
+        {
+            this.transport = transport;
+        }
+
+        private boolean isExpired()
+        {
+            return System.currentTimeMillis() - lastUsed > xcmConfiguration.OUT_SMTP_POOL_MAX_IDLE * 1000L;
+        }
+
+        /**
+         * Resets the SMTP session, so no state of the previous mail is left. Transports other than SMTP are only
+         * checked to be connected.
+         *
+         * @return whether the transport is still usable
+         */
+        private boolean reset()
+        {
+            if (!(transport instanceof SMTPTransport))
+            {
+                // isConnected() sends a NOOP to the server
+                return transport.isConnected();
+            }
+            try
+            {
+                ((SMTPTransport) transport).issueCommand("RSET", 250);
+                return true;
+            }
+            catch (MessagingException e)
+            {
+                return false;
+            }
+        }
+
+        private void close()
+        {
+            try
+            {
+                transport.close();
+            }
+            catch (MessagingException e)
+            {
+                log.debug("Failed to close pooled SMTP transport", e);
+            }
+        }
+    }
+}
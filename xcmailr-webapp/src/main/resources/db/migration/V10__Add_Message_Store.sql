@@ -0,0 +1,11 @@
+alter table mail_content alter column message set null;
+alter table mail_content add column IF NOT EXISTS segment_id bigint;
+alter table mail_content add column IF NOT EXISTS segment_offset bigint;
+alter table mail_content add column IF NOT EXISTS segment_length bigint;
+create index IF NOT EXISTS ix_mail_content_segment on mail_content (segment_id);
+
+alter table mail_part alter column data set null;
+alter table mail_part add column IF NOT EXISTS segment_id bigint;
+alter table mail_part add column IF NOT EXISTS segment_offset bigint;
+alter table mail_part add column IF NOT EXISTS segment_length bigint;
+create index IF NOT EXISTS ix_mail_part_segment on mail_part (segment_id);
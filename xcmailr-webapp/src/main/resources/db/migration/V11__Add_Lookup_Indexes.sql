@@ -0,0 +1,16 @@
+-- lower-cased copies of the addresses, so case-insensitive lookups can use an index
+alter table mailboxes add column IF NOT EXISTS normalized_address varchar(511);
+update mailboxes set normalized_address = lower(address || '@' || domain);
+create index IF NOT EXISTS ix_mailboxes_normalized_address on mailboxes (normalized_address);
+
+alter table users add column IF NOT EXISTS normalized_mail varchar(255);
+update users set normalized_mail = lower(mail);
+create index IF NOT EXISTS ix_users_normalized_mail on users (normalized_mail);
+
+create index IF NOT EXISTS ix_users_apitoken on users (apitoken);
+create index IF NOT EXISTS ix_mailboxes_ts_active on mailboxes (ts_active);
+create index IF NOT EXISTS ix_mail_uuid on mail (uuid);
+create index IF NOT EXISTS ix_mail_receive_time on mail (receive_time);
+create index IF NOT EXISTS ix_mailtransactions_targetaddr on mailtransactions (targetaddr);
+create index IF NOT EXISTS ix_mailtransactions_relayaddr on mailtransactions (relayaddr);
+create index IF NOT EXISTS ix_mailtransactions_sourceaddr on mailtransactions (sourceaddr);
@@ -0,0 +1,2 @@
+alter table mail_attachment add column IF NOT EXISTS part_length bigint;
+alter table mail_attachment add column IF NOT EXISTS part_encoding varchar(64);
@@ -0,0 +1,12 @@
+create sequence IF NOT EXISTS mail_content_seq;
+
+create table IF NOT EXISTS mail_content (
+  id                        bigint not null,
+  message                   blob not null,
+  ref_count                 integer not null,
+  constraint pk_mail_content primary key (id))
+;
+
+ALTER TABLE mail ALTER COLUMN message SET NULL;
+ALTER TABLE mail ADD COLUMN IF NOT EXISTS content_id BIGINT;
+create index IF NOT EXISTS ix_mail_content_id on mail (content_id);
@@ -0,0 +1 @@
+ALTER TABLE MAIL_STATISTICS ADD COLUMN IF NOT EXISTS THROTTLE_COUNT INTEGER DEFAULT 0;
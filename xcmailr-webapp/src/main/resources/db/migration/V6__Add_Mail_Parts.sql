@@ -0,0 +1,24 @@
+create sequence IF NOT EXISTS mail_part_seq;
+
+create table IF NOT EXISTS mail_part (
+  id                        bigint not null,
+  hash                      varchar(64) not null,
+  data                      blob not null,
+  ref_count                 integer not null,
+  constraint uq_mail_part_hash unique (hash),
+  constraint pk_mail_part primary key (id))
+;
+
+create sequence IF NOT EXISTS mail_content_part_seq;
+
+create table IF NOT EXISTS mail_content_part (
+  id                        bigint not null,
+  content_id                bigint not null,
+  part_id                   bigint not null,
+  part_index                integer not null,
+  part_offset               bigint not null,
+  constraint pk_mail_content_part primary key (id))
+;
+
+create index IF NOT EXISTS ix_mail_content_part_content on mail_content_part (content_id);
+create index IF NOT EXISTS ix_mail_content_part_part on mail_content_part (part_id);
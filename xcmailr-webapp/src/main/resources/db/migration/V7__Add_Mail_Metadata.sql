@@ -0,0 +1,26 @@
+create sequence IF NOT EXISTS mail_metadata_seq;
+
+create table IF NOT EXISTS mail_metadata (
+  id                        bigint not null,
+  content_id                bigint not null,
+  text_content              clob,
+  html_content              clob,
+  headers                   clob,
+  constraint uq_mail_metadata_content_id unique (content_id),
+  constraint pk_mail_metadata primary key (id))
+;
+
+create sequence IF NOT EXISTS mail_attachment_seq;
+
+create table IF NOT EXISTS mail_attachment (
+  id                        bigint not null,
+  content_id                bigint not null,
+  attachment_index          integer not null,
+  name                      varchar(1024),
+  content_type              varchar(1024),
+  size                      integer not null,
+  part_offset               bigint not null,
+  constraint pk_mail_attachment primary key (id))
+;
+
+create index IF NOT EXISTS ix_mail_attachment_content on mail_attachment (content_id);
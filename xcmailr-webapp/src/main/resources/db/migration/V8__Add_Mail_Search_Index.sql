@@ -0,0 +1,12 @@
+create sequence IF NOT EXISTS mail_search_term_seq;
+
+create table IF NOT EXISTS mail_search_term (
+  id                        bigint not null,
+  content_id                bigint not null,
+  term                      varchar(64) not null,
+  frequency                 integer not null,
+  constraint pk_mail_search_term primary key (id))
+;
+
+create index IF NOT EXISTS ix_mail_search_term_term on mail_search_term (term);
+create index IF NOT EXISTS ix_mail_search_term_content on mail_search_term (content_id);
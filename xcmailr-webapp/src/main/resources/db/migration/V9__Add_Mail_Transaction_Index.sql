@@ -0,0 +1,5 @@
+create index IF NOT EXISTS ix_mailtransactions_ts on mailtransactions (ts);
+
+-- the bulk writer takes the IDs of a whole batch at once, so the sequence caches a fixed number of 1000 values,
+-- which is the default of mailtransaction.batchsize, but doesn't follow that setting
+alter sequence mailtransactions_seq cache 1000;
@@ -36,6 +36,8 @@ public class XCMailrConfTest
 
     private static final String APP_LANG_PROP = "application.languages";
 
+    private static final String FORWARD_REJECTION_PROP = "mail.forward.rejectionpolicy";
+
     private NinjaPropertiesImpl ninjaProperties;
 
     @Before
@@ -169,6 +171,23 @@ public class XCMailrConfTest
             }, conf.APP_LANGS);
     }
 
+    @Test
+    public void testForwardRejectionPolicy()
+    {
+        ninjaProperties.setProperty(FORWARD_REJECTION_PROP, " Drop ");
+
+        final XCMailrConf conf = new XCMailrConf(ninjaProperties);
+        Assert.assertEquals(XCMailrConf.FORWARD_REJECTION_DROP, conf.FORWARD_REJECTION_POLICY);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testForwardRejectionPolicyInvalid()
+    {
+        ninjaProperties.setProperty(FORWARD_REJECTION_PROP, "discard");
+
+        new XCMailrConf(ninjaProperties);
+    }
+
     private void disableDelimiterParsing() throws Throwable
     {
         final Field field = NinjaPropertiesImpl.class.getDeclaredField("compositeConfiguration");
@@ -458,7 +458,7 @@ public class AdminHandlerTest extends FreshNinjaServerTester
 
         result = ninjaTestBrowser.makeJsonRequest(withBaseUrl("/admin/emailSenderPage?scope=day&offset=0&limit=10"));
 
-        assertTrue("{\"total\":1,\"rows\":[{\"id\":0,\"fromDomain\":\"fromdomain.com\",\"droppedCount\":13,\"forwardedCount\":5}]}".equals(result));
+        assertTrue("{\"total\":1,\"rows\":[{\"id\":0,\"fromDomain\":\"fromdomain.com\",\"droppedCount\":13,\"forwardedCount\":5,\"throttledCount\":0}]}".equals(result));
         assertFalse(result.contains("FreeMarker template error"));
         assertFalse(result.contains("<title>404 - not found</title>"));
 
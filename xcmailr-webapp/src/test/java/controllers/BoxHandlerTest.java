@@ -514,7 +514,7 @@ public class BoxHandlerTest extends FreshNinjaServerTester
          */
         // create a new mail address(mbox) to expire
         DateTime dt = DateTime.now().minusHours(2);
-        MBox mailbox2 = new MBox("abcdefg", "xcmailr.test", dt.getMillis(), false, user);
+        MBox mailbox2 = new MBox("hijklmn", "xcmailr.test", dt.getMillis(), false, user);
         mailbox2.save();
         formParams.clear();
         // we want to reactivate the box and expect the edit-page then (because its expired)
@@ -969,9 +969,64 @@ public class BoxHandlerTest extends FreshNinjaServerTester
          * TEST: search the mailbox
          */
         result = ninjaTestBrowser.makeRequest(withBaseUrl("/mails?format=json&search=something"));
+        assertEquals("{\"total\":0,\"rows\":[]}", result);
+
+        result = ninjaTestBrowser.makeRequest(withBaseUrl("/mails?format=json&search=notyou"));
         assertEquals("{\"total\":1,\"rows\":[]}", result);
     }
 
+    @Test
+    public void testQueryAllMailboxesPaging() throws Exception
+    {
+        user.setApiToken("validToken");
+        user.save();
+        ninjaTestBrowser.makeRequest(withBaseUrl("/create/temporaryMail/" + user.getApiToken()
+                                                 + "/pagingmails@xcmailr.test/11"));
+        user = User.getById(user.getId());
+        final MBox tempMBox = user.getBoxes().get(0);
+
+        // all mails are received at the same time, so they are ordered by ID
+        for (int i = 0; i < 5; i++)
+        {
+            createMail(tempMBox, null, "Mail " + i, new byte[0]);
+        }
+
+        /*
+         * TEST: page by offset
+         */
+        result = ninjaTestBrowser.makeRequest(withBaseUrl("/mails?format=json&offset=1&limit=2"));
+        JsonNode node = new ObjectMapper().readTree(result);
+        assertEquals(5, node.get("total").asInt());
+        assertEquals(2, node.get("rows").size());
+        assertEquals("Mail 3", node.get("rows").get(0).get("subject").asText());
+        assertEquals("Mail 2", node.get("rows").get(1).get("subject").asText());
+
+        /*
+         * TEST: continue after the last mail of the page
+         */
+        result = ninjaTestBrowser.makeRequest(withBaseUrl("/mails?format=json&limit=2&after="
+                                                          + node.get("next").asText()));
+        node = new ObjectMapper().readTree(result);
+        assertEquals(5, node.get("total").asInt());
+        assertEquals(2, node.get("rows").size());
+        assertEquals("Mail 1", node.get("rows").get(0).get("subject").asText());
+        assertEquals("Mail 0", node.get("rows").get(1).get("subject").asText());
+
+        result = ninjaTestBrowser.makeRequest(withBaseUrl("/mails?format=json&limit=2&order=asc&after="
+                                                          + node.get("next").asText()));
+        node = new ObjectMapper().readTree(result);
+        assertEquals(2, node.get("rows").size());
+        assertEquals("Mail 1", node.get("rows").get(0).get("subject").asText());
+
+        /*
+         * TEST: invalid positions
+         */
+        result = ninjaTestBrowser.makeRequest(withBaseUrl("/mails?format=json&limit=2&after=foo"));
+        assertTrue(result.contains(NinjaConstant.I18N_NINJA_SYSTEM_BAD_REQUEST_TEXT_DEFAULT.replace("''", "&#39;")));
+        result = ninjaTestBrowser.makeRequest(withBaseUrl("/mails?format=json&limit=2&sort=subject&after=1-1"));
+        assertTrue(result.contains(NinjaConstant.I18N_NINJA_SYSTEM_BAD_REQUEST_TEXT_DEFAULT.replace("''", "&#39;")));
+    }
+
     @Test
     public void testQueryMailbox() throws Exception
     {
@@ -15,7 +15,13 @@
  */
 package controllers.restapi;
 
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHeader;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
@@ -27,6 +33,7 @@ import io.ebean.DB;
 import models.MBox;
 import models.Mail;
 import models.User;
+import services.MessageListener;
 import testutils.RestApiClient;
 import testutils.RestApiTestUtils;
 import testutils.StaticNinjaTest;
@@ -294,6 +301,76 @@ public class MailApiControllerTest extends StaticNinjaTest
         RestApiTestUtils.validateResponseContent(response, "image/png", 5799);
     }
 
+    /**
+     * Checks that an attachment of a mail stored with its metadata is streamed from the stored message, as a whole
+     * and in ranges.
+     */
+    @Test
+    public void getMailAttachment_streamed() throws Exception
+    {
+        final MBox otherMailbox = TestDataUtils.createMailbox(user);
+        final byte[] rawMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/MailWithAttachments.eml"));
+        ninjaTestServer.getInjector().getInstance(MessageListener.class)
+                       .deliver("sender@example.org", otherMailbox.getFullAddress(), new ByteArrayInputStream(rawMail));
+        final List<Mail> mails = Mail.findAndSort(otherMailbox.getId());
+        Assert.assertEquals(1, mails.size());
+        Assert.assertNotNull(mails.get(0).getContentId());
+        final String storedMailId = String.valueOf(mails.get(0).getId());
+
+        // the same content as parsed from the whole message
+        final byte[] expected = IOUtils.toByteArray(apiClient.getMailAttachment(mailId, "test.pdf").getEntity()
+                                                             .getContent());
+        HttpResponse response = apiClient.getMailAttachment(storedMailId, "test.pdf");
+        RestApiTestUtils.validateStatusCode(response, 200);
+        Assert.assertEquals(89399, expected.length);
+        Assert.assertArrayEquals(expected, IOUtils.toByteArray(response.getEntity().getContent()));
+        final String etag = response.getFirstHeader("ETag").getValue();
+
+        // the exact size was stored when the mail was received
+        Assert.assertEquals("89399", response.getFirstHeader("Content-Length").getValue());
+
+        // a range
+        response = apiClient.getMailAttachment(storedMailId, "test.pdf", new BasicHeader("Range", "bytes=1000-1999"));
+        RestApiTestUtils.validateStatusCode(response, 206);
+        Assert.assertEquals("bytes 1000-1999/89399", response.getFirstHeader("Content-Range").getValue());
+        Assert.assertEquals("1000", response.getFirstHeader("Content-Length").getValue());
+        Assert.assertArrayEquals(Arrays.copyOfRange(expected, 1000, 2000),
+                                 IOUtils.toByteArray(response.getEntity().getContent()));
+
+        // the last bytes, if the attachment is still the same
+        response = apiClient.getMailAttachment(storedMailId, "test.pdf", new BasicHeader("Range", "bytes=-100"),
+                                               new BasicHeader("If-Range", etag));
+        RestApiTestUtils.validateStatusCode(response, 206);
+        Assert.assertArrayEquals(Arrays.copyOfRange(expected, expected.length - 100, expected.length),
+                                 IOUtils.toByteArray(response.getEntity().getContent()));
+
+        // the whole attachment if it has changed
+        response = apiClient.getMailAttachment(storedMailId, "test.pdf", new BasicHeader("Range", "bytes=-100"),
+                                               new BasicHeader("If-Range", "\"other\""));
+        RestApiTestUtils.validateStatusCode(response, 200);
+        Assert.assertArrayEquals(expected, IOUtils.toByteArray(response.getEntity().getContent()));
+
+        response = apiClient.getMailAttachment(storedMailId, "test.pdf", new BasicHeader("Range", "bytes=89399-"));
+        RestApiTestUtils.validateStatusCode(response, 416);
+
+        response = apiClient.getMailAttachment(storedMailId, "test.pdf", new BasicHeader("If-None-Match", etag));
+        RestApiTestUtils.validateStatusCode(response, 304);
+
+        // the attachment can be located in the stored message even if its first bytes are requested only
+        response = apiClient.getMailAttachment(storedMailId, "test.png", new BasicHeader("Range", "bytes=0-7"));
+        RestApiTestUtils.validateStatusCode(response, 206);
+        Assert.assertEquals("bytes 0-7/5799", response.getFirstHeader("Content-Range").getValue());
+
+        // attachments stored before the part length was recorded are looked up in the message
+        DB.sqlUpdate("UPDATE mail_attachment SET part_length = NULL, part_encoding = NULL WHERE content_id = :id")
+          .setParameter("id", mails.get(0).getContentId()).execute();
+        response = apiClient.getMailAttachment(storedMailId, "test.pdf", new BasicHeader("Range", "bytes=1000-1999"));
+        RestApiTestUtils.validateStatusCode(response, 206);
+        Assert.assertEquals("bytes 1000-1999/89399", response.getFirstHeader("Content-Range").getValue());
+        Assert.assertArrayEquals(Arrays.copyOfRange(expected, 1000, 2000),
+                                 IOUtils.toByteArray(response.getEntity().getContent()));
+    }
+
     /**
      * Checks that retrieving an unknown attachment fails with an error
      */
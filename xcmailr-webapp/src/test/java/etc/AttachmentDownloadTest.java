@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class AttachmentDownloadTest
+{
+    @Test
+    public void testParseRange()
+    {
+        assertArrayEquals(new long[]
+            {
+                0, 99
+            }, AttachmentDownload.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[]
+            {
+                500, 999
+            }, AttachmentDownload.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[]
+            {
+                900, 999
+            }, AttachmentDownload.parseRange("bytes=-100", 1000));
+
+        // the range is cut at the end of the content
+        assertArrayEquals(new long[]
+            {
+                900, 999
+            }, AttachmentDownload.parseRange("bytes=900-2000", 1000));
+        assertArrayEquals(new long[]
+            {
+                0, 999
+            }, AttachmentDownload.parseRange("bytes=-2000", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiableRange()
+    {
+        assertEquals(0, AttachmentDownload.parseRange("bytes=1000-", 1000).length);
+        assertEquals(0, AttachmentDownload.parseRange("bytes=-0", 1000).length);
+    }
+
+    @Test
+    public void testIgnoredRange()
+    {
+        assertNull(AttachmentDownload.parseRange(null, 1000));
+        assertNull(AttachmentDownload.parseRange("items=0-99", 1000));
+        assertNull(AttachmentDownload.parseRange("bytes=0-9,20-29", 1000));
+        assertNull(AttachmentDownload.parseRange("bytes=99-0", 1000));
+        assertNull(AttachmentDownload.parseRange("bytes=abc", 1000));
+    }
+}
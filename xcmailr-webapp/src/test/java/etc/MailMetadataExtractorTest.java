@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import models.MailAttachment;
+import models.MailMetadata;
+
+public class MailMetadataExtractorTest
+{
+    @Test
+    public void testExtract() throws Exception
+    {
+        final byte[] rawMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/MailWithAttachments.eml"));
+        final String rawText = new String(rawMail, StandardCharsets.ISO_8859_1);
+
+        final MailMetadata metadata = MailMetadataExtractor.extract(rawMail);
+        assertTrue(metadata.getTextContent().contains("This is a test mail with some attachments."));
+        assertNull(metadata.getHtmlContent());
+        assertTrue(metadata.getHeaders().contains("Subject: Mail with attachments"));
+
+        final List<MailAttachment> attachments = metadata.getAttachments();
+        assertEquals(2, attachments.size());
+        assertAttachment("test.pdf", "application/pdf", rawText, attachments.get(0));
+        assertAttachment("test.png", "image/png", rawText, attachments.get(1));
+    }
+
+    @Test
+    public void testExtractWithoutAttachments() throws Exception
+    {
+        final byte[] rawMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/multiPart.eml"));
+
+        final MailMetadata metadata = MailMetadataExtractor.extract(rawMail);
+        assertNull(metadata.getTextContent());
+        assertTrue(metadata.getHtmlContent().contains("<html"));
+        assertTrue(metadata.getAttachments().isEmpty());
+    }
+
+    @Test
+    public void testExtractEmptyMessage() throws Exception
+    {
+        assertNull(MailMetadataExtractor.extract(new byte[0]));
+    }
+
+    private static void assertAttachment(String name, String contentType, String rawText, MailAttachment attachment)
+    {
+        assertEquals(name, attachment.getName());
+        assertEquals(contentType, attachment.getContentType());
+        assertTrue(attachment.getSize() > 0);
+
+        // the offset points to the body of the attachment right after its header
+        assertTrue(attachment.getPartOffset() > 0);
+        assertTrue(rawText.substring(0, (int) attachment.getPartOffset()).trim()
+                          .endsWith("filename=\"" + name + "\""));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Test;
+
+import conf.XCMailrConf;
+import io.ebean.DB;
+import models.MBox;
+import models.Mail;
+import models.MailContent;
+import models.MailSearchTerm;
+import models.User;
+import ninja.NinjaTest;
+import services.MessageListener;
+
+public class MailSearchTest extends NinjaTest
+{
+    @Test
+    public void testSearch() throws Exception
+    {
+        final MessageListener ml = getInjector().getInstance(MessageListener.class);
+        final String domain = getInjector().getInstance(XCMailrConf.class).DOMAIN_LIST[0];
+
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+        final MBox mbx = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), domain, 0, false, user);
+        mbx.save();
+        final byte[] attachmentMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/MailWithAttachments.eml"));
+        final byte[] htmlMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/multiPart.eml"));
+        final byte[] cheersMail = new String(attachmentMail, StandardCharsets.ISO_8859_1).replace("Subject: Mail with attachments",
+                                                                                             "Subject: Cheers")
+                                                                                    .getBytes(StandardCharsets.ISO_8859_1);
+        ml.deliver("sender@example.org", mbx.getFullAddress(), new ByteArrayInputStream(attachmentMail));
+        ml.deliver("sender@example.org", mbx.getFullAddress(), new ByteArrayInputStream(htmlMail));
+        ml.deliver("sender@example.org", mbx.getFullAddress(), new ByteArrayInputStream(cheersMail));
+
+        final List<Mail> mails = Mail.findAndSort(mbx.getId());
+        final Mail first = mails.get(0);
+        final Mail second = mails.get(1);
+        final Mail third = mails.get(2);
+
+        // the content is found by term prefix
+        assertEquals(List.of(second.getId()), search(mbx, "Warenkorbempf", 0, 10));
+
+        // all terms have to match
+        assertEquals(List.of(first.getId(), third.getId()), search(mbx, "some attachments", 0, 10));
+        assertEquals(2, new MailSearch(List.of(mbx.getId()), "some attachments").count());
+        assertTrue(search(mbx, "attachments unknownterm", 0, 10).isEmpty());
+        assertEquals(0, new MailSearch(List.of(mbx.getId()), "attachments unknownterm").count());
+
+        // a match in the subject ranks higher than one in the content only
+        assertEquals(List.of(third.getId(), first.getId()), search(mbx, "cheers", 0, 10));
+
+        // every mail is in the mailbox, equal matches are sorted as requested and paged
+        assertEquals(List.of(first.getId(), second.getId(), third.getId()), search(mbx, mbx.getAddress(), 0, 10));
+        assertEquals(List.of(second.getId()), search(mbx, mbx.getAddress(), 1, 1));
+        assertEquals(3, new MailSearch(List.of(mbx.getId()), mbx.getAddress()).count());
+
+        // wildcards are matched literally
+        assertEquals(0, new MailSearch(List.of(mbx.getId()), "%").count());
+
+        // nothing to search in
+        assertEquals(0, new MailSearch(List.of(), "cheers").count());
+
+        // the index is pruned together with the contents
+        final long contentId = first.getContentId();
+        assertTrue(DB.find(MailSearchTerm.class).where().eq("contentId", contentId).exists());
+        first.delete();
+        MailContent.deleteUnreferenced();
+        assertFalse(DB.find(MailSearchTerm.class).where().eq("contentId", contentId).exists());
+
+        // terms longer than the indexed ones are found as well
+        final String longTerm = RandomStringUtils.randomAlphabetic(SearchTerms.MAX_LENGTH + 20).toLowerCase();
+        final String longTermMail = "From: sender@example.org\r\nSubject: Long\r\n\r\nA " + longTerm + " word\r\n";
+        ml.deliver("sender@example.org", mbx.getFullAddress(),
+                   new ByteArrayInputStream(longTermMail.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(1, new MailSearch(List.of(mbx.getId()), longTerm).count());
+    }
+
+    private static List<Long> search(MBox mbx, String phrase, int offset, int limit)
+    {
+        return new MailSearch(List.of(mbx.getId()), phrase).findIds("receive_time", "asc", offset, limit);
+    }
+}
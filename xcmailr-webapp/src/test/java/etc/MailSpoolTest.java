@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MailSpoolTest
+{
+    private File spoolDir;
+
+    @Before
+    public void createSpoolDir() throws Exception
+    {
+        spoolDir = Files.createTempDirectory("mailspooltest").toFile();
+    }
+
+    @After
+    public void deleteSpoolDir() throws Exception
+    {
+        FileUtils.deleteDirectory(spoolDir);
+    }
+
+    @Test
+    public void testSmallMailStaysInMemory() throws Exception
+    {
+        final byte[] data = RandomUtils.nextBytes(1000);
+
+        try (final MailSpool spool = MailSpool.spool(new ByteArrayInputStream(data), 10000, 1000, spoolDir))
+        {
+            assertTrue(spool.isInMemory());
+            assertEquals(1000, spool.getSize());
+            assertArrayEquals(data, IOUtils.toByteArray(spool.getInputStream()));
+            assertEquals(0, spoolDir.list().length);
+        }
+    }
+
+    @Test
+    public void testLargeMailIsSpooledToFile() throws Exception
+    {
+        final byte[] data = RandomUtils.nextBytes(50000);
+
+        final MailSpool spool = MailSpool.spool(new ByteArrayInputStream(data), 100000, 1000, spoolDir);
+        assertFalse(spool.isInMemory());
+        assertEquals(50000, spool.getSize());
+        assertEquals(1, spoolDir.list().length);
+
+        // every stream returns the complete data
+        try (final InputStream in = spool.getInputStream())
+        {
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+        }
+        assertArrayEquals(data, IOUtils.toByteArray(spool.getInputStream()));
+
+        // the file is removed when the last party closed the spool
+        spool.retain();
+        spool.close();
+        assertEquals(1, spoolDir.list().length);
+        spool.close();
+        assertEquals(0, spoolDir.list().length);
+    }
+
+    @Test
+    public void testRangeStreams() throws Exception
+    {
+        final byte[] data = RandomUtils.nextBytes(50000);
+
+        try (final MailSpool spool = MailSpool.spool(new ByteArrayInputStream(data), 100000, 1000, spoolDir))
+        {
+            final InputStream first = spool.getInputStream(0, 20000);
+            final InputStream second = spool.getInputStream(20000, 50000);
+
+            // closing one stream doesn't affect the others
+            try (final InputStream in = spool.getInputStream(100, 200))
+            {
+                assertArrayEquals(Arrays.copyOfRange(data, 100, 200), IOUtils.toByteArray(in));
+            }
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 20000), IOUtils.toByteArray(first));
+            assertArrayEquals(Arrays.copyOfRange(data, 20000, 50000), IOUtils.toByteArray(second));
+            assertArrayEquals(data, IOUtils.toByteArray(spool.getInputStream()));
+        }
+        assertEquals(0, spoolDir.list().length);
+    }
+
+    @Test(expected = SizeLimitExceededException.class)
+    public void testSizeLimitExceeded() throws Exception
+    {
+        try
+        {
+            MailSpool.spool(new ByteArrayInputStream(RandomUtils.nextBytes(50000)), 20000, 1000, spoolDir);
+        }
+        finally
+        {
+            // the partially written file was removed
+            assertEquals(0, spoolDir.list().length);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Date;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import models.MailStatisticsKey;
+
+public class MailStatisticsCollectorTest
+{
+    @Test
+    public void testCountsPerQuarterHour()
+    {
+        final MailStatisticsCollector collector = new MailStatisticsCollector();
+        final long time = new DateTime(2023, 5, 17, 10, 20, 30).getMillis();
+
+        collector.count(100, time, "sender@example.org", "box@xcmailr.test");
+        collector.count(100, time + 60000, "other@Example.org", "box2@xcmailr.test");
+        collector.count(300, time, "sender@example.org", "box@xcmailr.test");
+        collector.count(800, time, "sender@example.org", "box@xcmailr.test");
+        // the next quarter hour
+        collector.count(100, new DateTime(2023, 5, 17, 10, 30).getMillis(), "sender@example.org",
+                        "box@xcmailr.test");
+
+        // neither dropped, forwarded nor throttled or without a domain
+        collector.count(200, time, "sender@example.org", "box@xcmailr.test");
+        collector.count(100, time, "sender", "box@xcmailr.test");
+
+        final Map<MailStatisticsKey, StatisticsEntry> statistics = collector.drain();
+        assertEquals(2, statistics.size());
+
+        final Date date = new Date(new DateTime(2023, 5, 17, 0, 0).getMillis());
+        final StatisticsEntry entry = statistics.get(new MailStatisticsKey(date, 41, "example.org", "xcmailr.test"));
+        assertEquals(2, entry.getDropCount());
+        assertEquals(1, entry.getForwardCount());
+        assertEquals(1, entry.getThrottleCount());
+
+        final StatisticsEntry next = statistics.get(new MailStatisticsKey(date, 42, "example.org", "xcmailr.test"));
+        assertEquals(1, next.getDropCount());
+
+        // the counts were taken
+        assertTrue(collector.drain().isEmpty());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+public class MessageCodecTest
+{
+    private static final byte[] MESSAGE = ("Subject: test\r\n\r\n"
+                                           + StringUtils.repeat("<p>Hello World</p>\r\n", 200)).getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        final byte[] encoded = MessageCodec.encode(MESSAGE, 6, 1024);
+        assertTrue(MessageCodec.isEncoded(encoded));
+        assertTrue(encoded.length < MESSAGE.length);
+        assertArrayEquals(MESSAGE, MessageCodec.decode(encoded));
+
+        // the streaming variant produces the same format
+        try (final MailSpool spool = MessageCodec.encode(new ByteArrayInputStream(MESSAGE), MESSAGE.length, 6, 1024,
+                                                         100000, null))
+        {
+            final byte[] streamEncoded = IOUtils.toByteArray(spool.getInputStream());
+            assertTrue(MessageCodec.isEncoded(streamEncoded));
+            assertArrayEquals(MESSAGE, MessageCodec.decode(streamEncoded));
+        }
+    }
+
+    @Test
+    public void testNotCompressedWhenStreaming() throws Exception
+    {
+        // disabled and too small
+        assertNull(MessageCodec.encode(new ByteArrayInputStream(MESSAGE), MESSAGE.length, 0, 1024, 100000, null));
+        assertNull(MessageCodec.encode(new ByteArrayInputStream(MESSAGE), MESSAGE.length, 6, MESSAGE.length + 1,
+                                       100000, null));
+
+        // not compressible
+        final byte[] random = RandomUtils.nextBytes(10000);
+        assertNull(MessageCodec.encode(new ByteArrayInputStream(random), random.length, 6, 1024, 100000, null));
+        assertNull(MessageCodec.encodePart(new ByteArrayInputStream(random), random.length, 6, 1024, 100000, null));
+    }
+
+    @Test
+    public void testNotCompressed()
+    {
+        // disabled
+        assertSame(MESSAGE, MessageCodec.encode(MESSAGE, 0, 1024));
+
+        // too small
+        assertSame(MESSAGE, MessageCodec.encode(MESSAGE, 6, MESSAGE.length + 1));
+
+        // not compressible
+        final byte[] random = RandomUtils.nextBytes(10000);
+        random[0] = 'X';
+        assertSame(random, MessageCodec.encode(random, 6, 1024));
+    }
+
+    @Test
+    public void testUncompressedMessagesAreDecodedAsTheyAre()
+    {
+        assertFalse(MessageCodec.isEncoded(MESSAGE));
+        assertSame(MESSAGE, MessageCodec.decode(MESSAGE));
+    }
+
+    @Test
+    public void testPartsAlwaysHaveAHeader() throws Exception
+    {
+        // a binary part that looks like an encoded one
+        final byte[] part = RandomUtils.nextBytes(5000);
+        part[0] = 0;
+        part[1] = MessageCodec.FORMAT_DEFLATE;
+
+        // not compressed
+        try (final InputStream in = MessageCodec.encodePart(new ByteArrayInputStream(part), part.length, 0, 1024))
+        {
+            final byte[] encoded = IOUtils.toByteArray(in);
+            assertEquals(MessageCodec.getEncodedPartLength(part.length, 0, 1024), encoded.length);
+            assertEquals(MessageCodec.FORMAT_NONE, encoded[1]);
+            assertArrayEquals(part, MessageCodec.decodePart(encoded));
+            assertArrayEquals(part, IOUtils.toByteArray(MessageCodec.decodePart(new ByteArrayInputStream(encoded))));
+        }
+
+        // compressed
+        try (final InputStream in = MessageCodec.encodePart(new ByteArrayInputStream(part), part.length, 6, 1024))
+        {
+            final byte[] encoded = IOUtils.toByteArray(in);
+            assertEquals(-1, MessageCodec.getEncodedPartLength(part.length, 6, 1024));
+            assertEquals(MessageCodec.FORMAT_DEFLATE, encoded[1]);
+            assertArrayEquals(part, MessageCodec.decodePart(encoded));
+        }
+    }
+}
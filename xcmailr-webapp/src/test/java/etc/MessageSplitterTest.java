@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+public class MessageSplitterTest
+{
+    private static final String TEXT = StringUtils.repeat("Hello World\r\n", 10) + "Bye";
+
+    private static final String ATTACHMENT = StringUtils.repeat("SGVsbG8gV29ybGQ=\r\n", 20) + "SGVsbG8=";
+
+    private static final String MESSAGE = "Subject: test\r\n" //
+                                          + "Content-Type: multipart/mixed;\r\n" //
+                                          + "\tboundary=\"outer\"\r\n" //
+                                          + "\r\n" //
+                                          + "preamble\r\n" //
+                                          + "--outer\r\n" //
+                                          + "Content-Type: multipart/alternative; boundary=inner\r\n" //
+                                          + "\r\n" //
+                                          + "--inner\r\n" //
+                                          + "Content-Type: text/plain\r\n" //
+                                          + "\r\n" //
+                                          + TEXT + "\r\n" //
+                                          + "--inner--\r\n" //
+                                          + "\r\n" //
+                                          + "--outer\r\n" //
+                                          + "Content-Type: application/octet-stream\r\n" //
+                                          + "Content-Transfer-Encoding: base64\r\n" //
+                                          + "\r\n" //
+                                          + ATTACHMENT + "\r\n" //
+                                          + "--outer--\r\n" //
+                                          + "epilogue\r\n";
+
+    @Test
+    public void testSplit() throws Exception
+    {
+        final byte[] message = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+        try (final MailSpool spool = spool(message))
+        {
+            final List<MessageSplitter.Part> parts = MessageSplitter.split(spool, 1);
+            assertEquals(2, parts.size());
+            assertPart(MESSAGE, TEXT, parts.get(0));
+            assertPart(MESSAGE, ATTACHMENT, parts.get(1));
+
+            // small parts are ignored
+            final List<MessageSplitter.Part> largeParts = MessageSplitter.split(spool, TEXT.length() + 1);
+            assertEquals(1, largeParts.size());
+            assertPart(MESSAGE, ATTACHMENT, largeParts.get(0));
+        }
+    }
+
+    @Test
+    public void testSplitLineFeedsOnly() throws Exception
+    {
+        final String message = MESSAGE.replace("\r\n", "\n");
+        try (final MailSpool spool = spool(message.getBytes(StandardCharsets.US_ASCII)))
+        {
+            final List<MessageSplitter.Part> parts = MessageSplitter.split(spool, 1);
+            assertEquals(2, parts.size());
+            assertPart(message, TEXT.replace("\r\n", "\n"), parts.get(0));
+            assertPart(message, ATTACHMENT.replace("\r\n", "\n"), parts.get(1));
+        }
+    }
+
+    @Test
+    public void testSameContentSameHash() throws Exception
+    {
+        final String otherMessage = MESSAGE.replace("Subject: test", "Subject: other").replace(TEXT, "changed");
+        try (final MailSpool spool = spool(MESSAGE.getBytes(StandardCharsets.US_ASCII));
+             final MailSpool otherSpool = spool(otherMessage.getBytes(StandardCharsets.US_ASCII)))
+        {
+            final List<MessageSplitter.Part> parts = MessageSplitter.split(spool, 1);
+            final List<MessageSplitter.Part> otherParts = MessageSplitter.split(otherSpool, 1);
+
+            assertNotEquals(parts.get(0).getHash(), otherParts.get(0).getHash());
+            assertEquals(parts.get(1).getHash(), otherParts.get(1).getHash());
+            assertNotEquals(parts.get(1).getStart(), otherParts.get(1).getStart());
+        }
+    }
+
+    @Test
+    public void testNotMultipart() throws Exception
+    {
+        final String message = "Subject: test\r\nContent-Type: text/plain\r\n\r\n" + ATTACHMENT + "\r\n";
+        try (final MailSpool spool = spool(message.getBytes(StandardCharsets.US_ASCII)))
+        {
+            assertTrue(MessageSplitter.split(spool, 1).isEmpty());
+        }
+    }
+
+    @Test
+    public void testLocate() throws Exception
+    {
+        final byte[] message = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+        final long start = MESSAGE.indexOf(ATTACHMENT);
+
+        final MessageSplitter.Part part = MessageSplitter.locate(new ByteArrayInputStream(message), start);
+        assertEquals(start, part.getStart());
+        assertEquals(ATTACHMENT.length(), part.getLength());
+        assertEquals("base64", part.getEncoding());
+        assertNull(part.getHash());
+
+        assertNull(MessageSplitter.locate(new ByteArrayInputStream(message), start + 1));
+    }
+
+    private static MailSpool spool(byte[] message) throws Exception
+    {
+        return MailSpool.spool(new ByteArrayInputStream(message), Integer.MAX_VALUE, Integer.MAX_VALUE, null);
+    }
+
+    private static void assertPart(String message, String expectedContent, MessageSplitter.Part part)
+    {
+        assertEquals(expectedContent, message.substring((int) part.getStart(), (int) part.getEnd()));
+        assertEquals(expectedContent.length(), part.getLength());
+        assertEquals(DigestUtils.sha256Hex(expectedContent), part.getHash());
+    }
+}
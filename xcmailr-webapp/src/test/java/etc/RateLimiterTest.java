@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest
+{
+    @Test
+    public void testBurstAndRefill()
+    {
+        final RateLimiter limiter = new RateLimiter(3);
+        final long start = 0;
+
+        // a full bucket allows a burst
+        assertTrue(limiter.tryAcquire("a", start));
+        assertTrue(limiter.tryAcquire("a", start));
+        assertTrue(limiter.tryAcquire("a", start));
+        assertFalse(limiter.tryAcquire("a", start));
+
+        // other keys are not affected
+        assertTrue(limiter.tryAcquire("b", start));
+
+        // one permit per 20 seconds is refilled
+        assertFalse(limiter.tryAcquire("a", start + TimeUnit.SECONDS.toNanos(19)));
+        assertTrue(limiter.tryAcquire("a", start + TimeUnit.SECONDS.toNanos(20)));
+        assertFalse(limiter.tryAcquire("a", start + TimeUnit.SECONDS.toNanos(20)));
+
+        // never more than the burst size
+        final long later = start + TimeUnit.HOURS.toNanos(1);
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(limiter.tryAcquire("a", later));
+        }
+        assertFalse(limiter.tryAcquire("a", later));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        final RateLimiter limiter = new RateLimiter(0);
+        assertFalse(limiter.isEnabled());
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(limiter.tryAcquire("a", 0));
+        }
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    public void testUnusedKeysAreRemoved()
+    {
+        final RateLimiter limiter = new RateLimiter(60);
+        for (int i = 0; i <= RateLimiter.MAX_KEYS; i++)
+        {
+            limiter.tryAcquire("key" + i, 0);
+        }
+        assertEquals(RateLimiter.MAX_KEYS + 1, limiter.size());
+
+        // one minute later all buckets are full again and will be dropped
+        limiter.tryAcquire("new", TimeUnit.MINUTES.toNanos(1));
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    public void testKeysAreBoundedWhileBucketsAreNotFull()
+    {
+        final RateLimiter limiter = new RateLimiter(60);
+        for (int i = 0; i < 3 * RateLimiter.HARD_MAX_KEYS; i++)
+        {
+            // one key per millisecond, so no bucket is ever refilled completely
+            assertTrue(limiter.tryAcquire("key" + i, TimeUnit.MILLISECONDS.toNanos(i)));
+            assertTrue(limiter.size() <= RateLimiter.HARD_MAX_KEYS);
+        }
+
+        // the most recently used keys are kept
+        final long now = TimeUnit.MILLISECONDS.toNanos(3 * RateLimiter.HARD_MAX_KEYS);
+        final String lastKey = "key" + (3 * RateLimiter.HARD_MAX_KEYS - 1);
+        for (int i = 1; i < 60; i++)
+        {
+            assertTrue(limiter.tryAcquire(lastKey, now));
+        }
+        assertFalse(limiter.tryAcquire(lastKey, now));
+    }
+}
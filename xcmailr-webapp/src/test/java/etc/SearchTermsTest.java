@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+public class SearchTermsTest
+{
+    @Test
+    public void testTokenize()
+    {
+        assertEquals(Arrays.asList("hello", "wörld", "foo", "example", "org", "42"),
+                     SearchTerms.tokenize("Hello, Wörld! <b>foo@Example.org</b> a 42"));
+        assertTrue(SearchTerms.tokenize(null).isEmpty());
+        assertTrue(SearchTerms.tokenize(" - ").isEmpty());
+
+        // long terms are cut
+        assertEquals(SearchTerms.MAX_LENGTH, SearchTerms.tokenize(StringUtils.repeat('x', 100)).get(0).length());
+    }
+
+    @Test
+    public void testCount()
+    {
+        final Map<String, Integer> terms = SearchTerms.count("Hello hello world", null, "<div>Hello</div>");
+        assertEquals(3, terms.get("hello").intValue());
+        assertEquals(1, terms.get("world").intValue());
+        assertEquals(2, terms.get("div").intValue());
+    }
+}
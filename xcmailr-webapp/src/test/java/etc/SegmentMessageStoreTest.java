@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package etc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentMessageStoreTest
+{
+    private File storeDir;
+
+    @Before
+    public void createStoreDir() throws Exception
+    {
+        storeDir = Files.createTempDirectory("segmentstoretest").toFile();
+    }
+
+    @After
+    public void deleteStoreDir() throws Exception
+    {
+        FileUtils.deleteDirectory(storeDir);
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception
+    {
+        final byte[] first = RandomUtils.nextBytes(600);
+        final byte[] second = RandomUtils.nextBytes(600);
+        final byte[] third = RandomUtils.nextBytes(100);
+
+        try (final SegmentMessageStore store = new SegmentMessageStore(storeDir.toPath(), 1000))
+        {
+            final MessageStore.Location firstLocation = store.write(new ByteArrayInputStream(first));
+            final MessageStore.Location secondLocation = store.write(new ByteArrayInputStream(second));
+            final MessageStore.Location thirdLocation = store.write(new ByteArrayInputStream(third));
+
+            assertEquals(0, firstLocation.getOffset());
+            assertEquals(600, firstLocation.getLength());
+            assertEquals(firstLocation.getSegment(), secondLocation.getSegment());
+            assertEquals(600, secondLocation.getOffset());
+
+            // the first segment exceeded its size, so the third data starts a new one
+            assertEquals(secondLocation.getSegment() + 1, thirdLocation.getSegment());
+            assertEquals(0, thirdLocation.getOffset());
+            assertEquals(1, store.getSealedSegments().size());
+            assertEquals(1200L, (long) store.getSealedSegments().get(firstLocation.getSegment()));
+
+            assertArrayEquals(first, read(store, firstLocation));
+            assertArrayEquals(second, read(store, secondLocation));
+            assertArrayEquals(third, read(store, thirdLocation));
+        }
+    }
+
+    @Test
+    public void testReopenSealsAllSegments() throws Exception
+    {
+        final byte[] data = RandomUtils.nextBytes(100);
+
+        final MessageStore.Location location;
+        try (final SegmentMessageStore store = new SegmentMessageStore(storeDir.toPath(), 1000))
+        {
+            location = store.write(new ByteArrayInputStream(data));
+            assertTrue(store.getSealedSegments().isEmpty());
+        }
+
+        try (final SegmentMessageStore store = new SegmentMessageStore(storeDir.toPath(), 1000))
+        {
+            assertEquals(100L, (long) store.getSealedSegments().get(location.getSegment()));
+            assertArrayEquals(data, read(store, location));
+
+            final MessageStore.Location newLocation = store.write(new ByteArrayInputStream(data));
+            assertEquals(location.getSegment() + 1, newLocation.getSegment());
+        }
+    }
+
+    @Test
+    public void testRetiredSegmentsAreDeleted() throws Exception
+    {
+        try (final SegmentMessageStore store = new SegmentMessageStore(storeDir.toPath(), 10))
+        {
+            final MessageStore.Location location = store.write(new ByteArrayInputStream(RandomUtils.nextBytes(20)));
+            store.write(new ByteArrayInputStream(RandomUtils.nextBytes(20)));
+            final File file = new File(storeDir, "segment-" + location.getSegment() + ".dat");
+
+            store.retireSegment(location.getSegment());
+            assertTrue(store.getSealedSegments().isEmpty());
+            assertTrue(file.exists());
+
+            assertEquals(1, store.deleteRetiredSegments());
+            assertFalse(file.exists());
+            assertEquals(0, store.deleteRetiredSegments());
+        }
+    }
+
+    @Test
+    public void testRetiredSegmentIsKeptWhileRead() throws Exception
+    {
+        try (final SegmentMessageStore store = new SegmentMessageStore(storeDir.toPath(), 10))
+        {
+            final byte[] data = RandomUtils.nextBytes(20);
+            final MessageStore.Location location = store.write(new ByteArrayInputStream(data));
+            store.write(new ByteArrayInputStream(RandomUtils.nextBytes(20)));
+            store.flush();
+            final File file = new File(storeDir, "segment-" + location.getSegment() + ".dat");
+
+            store.retireSegment(location.getSegment());
+            try (final InputStream in = store.read(location))
+            {
+                assertEquals(0, store.deleteRetiredSegments());
+                assertTrue(file.exists());
+                assertArrayEquals(data, IOUtils.toByteArray(in));
+            }
+
+            assertEquals(1, store.deleteRetiredSegments());
+            assertFalse(file.exists());
+        }
+    }
+
+    private static byte[] read(SegmentMessageStore store, MessageStore.Location location) throws Exception
+    {
+        try (final InputStream in = store.read(location))
+        {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ebean.DB;
+import io.ebean.cache.ServerCache;
+import ninja.NinjaTest;
+
+public class EntityCacheTest extends NinjaTest
+{
+    private User user;
+
+    private MBox mailbox;
+
+    @Before
+    public void setUp()
+    {
+        user = new User("forename", "surname", "cache@localhost.com", "1234", "en");
+        user.setActive(true);
+        user.setApiToken("cachetesttoken");
+        user.setApiTokenCreationTimestamp(System.currentTimeMillis());
+        user.save();
+
+        mailbox = new MBox("cached", "xcmailr.test", 0, false, user);
+        mailbox.save();
+    }
+
+    @Test
+    public void testUserIsCachedByToken()
+    {
+        final ServerCache cache = DB.cacheManager().naturalKeyCache(User.class);
+        assertEquals(user.getId(), User.findUserByToken("cachetesttoken").getId());
+        final long hits = cache.statistics(false).getHitCount();
+
+        assertEquals(user.getId(), User.findUserByToken("cachetesttoken").getId());
+        assertEquals(hits + 1, cache.statistics(false).getHitCount());
+
+        // an inactive user is still cached but not accepted
+        user.setActive(false);
+        user.update();
+        assertNull(User.findUserByToken("cachetesttoken"));
+        user.setActive(true);
+        user.update();
+
+        // revoked by a bulk update
+        User.expireApiTokens(System.currentTimeMillis(), 100);
+        assertNull(User.findUserByToken("cachetesttoken"));
+    }
+
+    @Test
+    public void testMailboxIsCachedByAddress()
+    {
+        final ServerCache cache = DB.cacheManager().naturalKeyCache(MBox.class);
+        assertEquals(mailbox.getId(), MBox.getByAddress("cached@xcmailr.test").getId());
+        final long hits = cache.statistics(false).getHitCount();
+
+        assertEquals(mailbox.getId(), MBox.getByAddress("Cached@xcmailr.test").getId());
+        assertEquals(hits + 1, cache.statistics(false).getHitCount());
+
+        // changed by a bulk update
+        assertFalse(MBox.getByAddress("cached@xcmailr.test").isExpired());
+        MBox.disableListOfBoxes(user.getId(), Arrays.asList(mailbox.getId()));
+        assertTrue(MBox.getByAddress("cached@xcmailr.test").isExpired());
+
+        // deleted by a bulk update
+        MBox.removeListOfBoxes(user.getId(), Arrays.asList(mailbox.getId()));
+        assertNull(MBox.getByAddress("cached@xcmailr.test"));
+    }
+
+    @Test
+    public void testCounterFlushEvictsOnlyTheFlushedMailboxes()
+    {
+        final MBox other = new MBox("other", "xcmailr.test", 0, false, user);
+        other.save();
+
+        final ServerCache cache = DB.cacheManager().beanCache(MBox.class);
+        MBox.getById(mailbox.getId());
+        MBox.getById(other.getId());
+
+        MailboxCounters.increaseForwards(mailbox.getId());
+        MailboxCounters.flush();
+
+        // the other mailbox is still served from the cache
+        final long hits = cache.statistics(false).getHitCount();
+        assertEquals(0, MBox.getById(other.getId()).getForwards());
+        assertEquals(hits + 1, cache.statistics(false).getHitCount());
+
+        // the flushed one is reloaded with its new count
+        assertEquals(1, MBox.getById(mailbox.getId()).getForwards());
+    }
+}
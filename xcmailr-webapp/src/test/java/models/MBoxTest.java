@@ -128,6 +128,39 @@ public class MBoxTest extends NinjaTest
 
     }
 
+    @Test
+    public void expireAllTest()
+    {
+        // without the routing index, past deadlines aren't picked up by the expiry queue
+        MailboxRoutingIndex.clear();
+        try
+        {
+            final long now = System.currentTimeMillis();
+            final MBox expired1 = new MBox("expired1", "xcmailr.test", now - 1000, false, user);
+            expired1.save();
+            final MBox expired2 = new MBox("expired2", "xcmailr.test", now - 2000, false, user);
+            expired2.save();
+            final MBox expired3 = new MBox("expired3", "xcmailr.test", now - 3000, false, user);
+            expired3.save();
+            final MBox valid = new MBox("valid", "xcmailr.test", now + 60000, false, user);
+            valid.save();
+
+            // three boxes in chunks of two, the unlimited box isn't touched
+            assertEquals(3, MBox.expireAll(now, 2));
+            assertTrue(MBox.getById(expired1.getId()).isExpired());
+            assertTrue(MBox.getById(expired2.getId()).isExpired());
+            assertTrue(MBox.getById(expired3.getId()).isExpired());
+            assertFalse(MBox.getById(valid.getId()).isExpired());
+            assertFalse(MBox.getById(mailbox.getId()).isExpired());
+
+            assertEquals(0, MBox.expireAll(now, 2));
+        }
+        finally
+        {
+            MailboxRoutingIndex.load();
+        }
+    }
+
     @Test
     public void boxToUserTest()
     {
@@ -157,4 +190,49 @@ public class MBoxTest extends NinjaTest
         assertTrue(mailbox.isExpiredByTimestamp());
     }
 
+    @Test
+    public void countersTest()
+    {
+        MailboxCounters.increaseForwards(mailbox.getId());
+        MailboxCounters.increaseForwards(mailbox.getId());
+        MailboxCounters.increaseSuppressions(mailbox.getId());
+
+        // nothing is written until the counters are flushed
+        assertEquals(0, MBox.getById(mailbox.getId()).getForwards());
+        assertEquals(2, MailboxCounters.getPendingForwards(mailbox.getId()));
+
+        assertEquals(1, MailboxCounters.flush());
+        MBox mailbox2 = MBox.getById(mailbox.getId());
+        assertEquals(2, mailbox2.getForwards());
+        assertEquals(1, mailbox2.getSuppressions());
+        assertEquals(0, MailboxCounters.getPendingForwards(mailbox.getId()));
+
+        // the deltas are added to the stored counts
+        MailboxCounters.increaseForwards(mailbox.getId());
+        assertEquals(1, MailboxCounters.flush());
+        assertEquals(3, MBox.getById(mailbox.getId()).getForwards());
+
+        // pending counts are dropped when the counters are reset
+        MailboxCounters.increaseSuppressions(mailbox.getId());
+        MBox.resetListOfBoxes(user.getId(), List.of(mailbox.getId()));
+        assertEquals(0, MailboxCounters.flush());
+        mailbox2 = MBox.getById(mailbox.getId());
+        assertEquals(0, mailbox2.getForwards());
+        assertEquals(0, mailbox2.getSuppressions());
+
+        // another user can't drop the pending counts of the mailbox
+        final User user2 = new User("forename2", "surname2", "counters2@localhost.com", "1234", "en");
+        user2.save();
+        MailboxCounters.increaseForwards(mailbox.getId());
+        assertEquals(0, MBox.resetListOfBoxes(user2.getId(), List.of(mailbox.getId())));
+        assertEquals(1, MailboxCounters.getPendingForwards(mailbox.getId()));
+
+        // the counts after a reset are kept
+        MBox.resetListOfBoxes(user.getId(), List.of(mailbox.getId()));
+        MailboxCounters.increaseSuppressions(mailbox.getId());
+        assertEquals(1, MailboxCounters.flush());
+        mailbox2 = MBox.getById(mailbox.getId());
+        assertEquals(0, mailbox2.getForwards());
+        assertEquals(1, mailbox2.getSuppressions());
+    }
 }
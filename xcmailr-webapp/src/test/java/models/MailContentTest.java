@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Test;
+
+import etc.DatabaseMessageStore;
+import etc.MessageCodec;
+import etc.SegmentMessageStore;
+import io.ebean.DB;
+import ninja.NinjaTest;
+
+public class MailContentTest extends NinjaTest
+{
+    @Test
+    public void testUnreferencedPartIsNotReused() throws Exception
+    {
+        final String hash = RandomStringUtils.randomAlphanumeric(64);
+        final byte[] message = RandomStringUtils.randomAlphanumeric(200).getBytes();
+        final byte[] part = RandomStringUtils.randomAlphanumeric(400).getBytes();
+
+        // a content without mails is unreferenced right away, and so is its part once the content was deleted
+        MailContent.insertAll(List.of(createContent(message, hash, part)));
+        MailContent.deleteUnreferenced();
+        final MailPart unreferenced = DB.find(MailPart.class).where().eq("hash", hash).findOne();
+        assertEquals(0, unreferenced.getRefCount());
+
+        // a new content with the same part gets a new part instead, which is not removed by the cleanup
+        final MailContent content = createContent(message, hash, part);
+        final Mail mail = new Mail();
+        mail.setSender("sender@xcmailr.test");
+        mail.setSubject("part");
+        mail.setMailboxId(1);
+        content.addMail(mail);
+        MailContent.insertAll(List.of(content));
+
+        final MailPart acquired = DB.find(MailPart.class).where().eq("hash", hash).findOne();
+        assertNotEquals(unreferenced.getId(), acquired.getId());
+        assertEquals(1, acquired.getRefCount());
+        assertEquals(0, MailPart.deleteUnreferenced());
+
+        final byte[] fullMessage = new byte[600];
+        System.arraycopy(message, 0, fullMessage, 0, 100);
+        System.arraycopy(part, 0, fullMessage, 100, 400);
+        System.arraycopy(message, 100, fullMessage, 500, 100);
+        assertArrayEquals(fullMessage, MailContent.getMessage(content.getId()));
+
+        DB.sqlUpdate("DELETE FROM mail WHERE content_id = :id").setParameter("id", content.getId()).execute();
+        MailContent.release(content.getId());
+        MailContent.deleteUnreferenced();
+        assertEquals(1, MailPart.deleteUnreferenced());
+    }
+
+    private static MailContent createContent(byte[] message, String hash, byte[] part)
+    {
+        final MailContent content = new MailContent();
+        content.setMessage(message);
+        content.addPart(hash, 100, MessageCodec.encodePart(new ByteArrayInputStream(part), part.length, 0, 0),
+                        MessageCodec.getEncodedPartLength(part.length, 0, 0));
+        return content;
+    }
+
+    @Test
+    public void testSegmentStoreRoundTripAndCompaction() throws Exception
+    {
+        final File storeDir = Files.createTempDirectory("mailcontenttest").toFile();
+        final SegmentMessageStore store = new SegmentMessageStore(storeDir.toPath(), 1000);
+        MailContent.setMessageStore(store);
+        MailContent.setSegmentStore(store);
+        try
+        {
+            // three messages of 400 bytes with a part of 400 bytes each, the messages fill the first segment and the
+            // parts the second one, which is still written to
+            final List<MailContent> contents = new ArrayList<>();
+            final List<byte[]> messages = new ArrayList<>();
+            for (int i = 0; i < 3; i++)
+            {
+                final byte[] message = RandomStringUtils.randomAlphanumeric(400).getBytes();
+                final byte[] part = RandomStringUtils.randomAlphanumeric(400).getBytes();
+
+                final MailContent content = new MailContent();
+                content.setMessage(message);
+                content.addPart(RandomStringUtils.randomAlphanumeric(64), 100,
+                                MessageCodec.encodePart(new ByteArrayInputStream(part), part.length, 0, 0),
+                                MessageCodec.getEncodedPartLength(part.length, 0, 0));
+                contents.add(content);
+
+                final byte[] fullMessage = new byte[800];
+                System.arraycopy(message, 0, fullMessage, 0, 100);
+                System.arraycopy(part, 0, fullMessage, 100, 400);
+                System.arraycopy(message, 100, fullMessage, 500, 300);
+                messages.add(fullMessage);
+            }
+            MailContent.insertAll(contents);
+
+            final long keptId = contents.get(0).getId();
+            final MailContent kept = DB.find(MailContent.class, keptId);
+            assertNull(kept.getMessage());
+            assertNotNull(kept.getSegmentId());
+            for (int i = 0; i < 3; i++)
+            {
+                assertArrayEquals(messages.get(i), MailContent.getMessage(contents.get(i).getId()));
+            }
+
+            // only the first content is still referenced, so the sealed segment is mostly unused
+            DB.sqlUpdate("UPDATE mail_content SET ref_count = 1 WHERE id = :id").setParameter("id", keptId).execute();
+            MailContent.deleteUnreferenced();
+            MailPart.deleteUnreferenced();
+            assertEquals(1, store.getSealedSegments().size());
+
+            assertEquals(1, MailContent.compactMessageStore());
+            assertNotEquals(kept.getSegmentId(), DB.find(MailContent.class, keptId).getSegmentId());
+            assertArrayEquals(messages.get(0), MailContent.getMessage(keptId));
+            assertTrue(new File(storeDir, "segment-" + kept.getSegmentId() + ".dat").exists());
+
+            // the retired segment is deleted with the next run, which compacts the segment of the parts sealed
+            // meanwhile
+            assertEquals(1, MailContent.compactMessageStore());
+            assertFalse(new File(storeDir, "segment-" + kept.getSegmentId() + ".dat").exists());
+            assertArrayEquals(messages.get(0), MailContent.getMessage(keptId));
+
+            DB.sqlUpdate("UPDATE mail_content SET ref_count = 0 WHERE id = :id").setParameter("id", keptId).execute();
+            MailContent.deleteUnreferenced();
+            MailPart.deleteUnreferenced();
+        }
+        finally
+        {
+            MailContent.setMessageStore(new DatabaseMessageStore());
+            MailContent.setSegmentStore(null);
+            store.close();
+            FileUtils.deleteDirectory(storeDir);
+        }
+    }
+}
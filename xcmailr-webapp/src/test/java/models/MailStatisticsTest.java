@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import etc.StatisticsEntry;
+import io.ebean.DB;
+import ninja.NinjaTest;
+
+public class MailStatisticsTest extends NinjaTest
+{
+    @Test
+    public void testAddAll()
+    {
+        // a recent date, so the entries aren't deleted by the expiration job meanwhile
+        final Date date = new Date(DateTime.now().withTimeAtStartOfDay().getMillis());
+        final MailStatisticsKey key = new MailStatisticsKey(date, 41, "example.org", "xcmailr.test");
+        final MailStatisticsKey otherKey = new MailStatisticsKey(date, 42, "example.org", "xcmailr.test");
+
+        final Map<MailStatisticsKey, StatisticsEntry> counts = new HashMap<>();
+        counts.put(key, entry(2, 1, 0));
+        MailStatistics.addAll(counts);
+
+        // the counts are added to the existing entry, a new entry is created for the other key
+        counts.put(key, entry(1, 1, 3));
+        counts.put(otherKey, entry(5, 0, 0));
+        MailStatistics.addAll(counts);
+
+        final MailStatistics stored = find(key);
+        assertEquals(3, stored.getDropCount());
+        assertEquals(2, stored.getForwardCount());
+        assertEquals(3, stored.getThrottleCount());
+        assertEquals(5, find(otherKey).getDropCount());
+    }
+
+    private static MailStatistics find(MailStatisticsKey key)
+    {
+        return DB.find(MailStatistics.class).where() //
+                 .eq("DATE", key.getDate()) //
+                 .eq("QUARTER_HOUR", key.getQuarterHour()) //
+                 .eq("FROM_DOMAIN", key.getFromDomain()) //
+                 .eq("TARGET_DOMAIN", key.getTargetDomain()) //
+                 .findOne();
+    }
+
+    private static StatisticsEntry entry(int dropCount, int forwardCount, int throttleCount)
+    {
+        final StatisticsEntry entry = new StatisticsEntry();
+        entry.setDropCount(dropCount);
+        entry.setForwardCount(forwardCount);
+        entry.setThrottleCount(throttleCount);
+        return entry;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import io.ebean.DB;
+import ninja.NinjaTest;
+
+public class MailTransactionTest extends NinjaTest
+{
+    @Test
+    public void testSaveAndDeleteInBatches()
+    {
+        MailTransaction.deleteTxInPeriod(null, 100);
+
+        // recent ones, so they aren't deleted by the expiration job meanwhile
+        final long now = System.currentTimeMillis();
+        final List<MailTransaction> mtxs = new ArrayList<>();
+        for (int i = 0; i < 250; i++)
+        {
+            final MailTransaction mtx = new MailTransaction(200, "sender@example.org", "box@xcmailr.test", null);
+            mtx.setTs(now + i);
+            mtxs.add(mtx);
+        }
+        MailTransaction.saveMultipleTx(mtxs, 100);
+
+        // all stored with distinct IDs, also distinct from the ones assigned by Ebean
+        final MailTransaction single = new MailTransaction(500, "sender@example.org", "box@xcmailr.test", null);
+        single.setTs(now + 1000);
+        single.save();
+
+        final Set<Long> ids = new HashSet<>();
+        for (final MailTransaction mtx : DB.find(MailTransaction.class).findList())
+        {
+            ids.add(mtx.getId());
+        }
+        assertEquals(251, ids.size());
+        assertNotNull(MailTransaction.getById(mtxs.get(249).getId()));
+        assertEquals(200, MailTransaction.getById(mtxs.get(249).getId()).getStatus());
+
+        // the older ones are deleted in chunks
+        assertEquals(150, MailTransaction.deleteTxInPeriod(now + 150, 100));
+        assertEquals(101, DB.find(MailTransaction.class).findCount());
+
+        assertEquals(101, MailTransaction.deleteTxInPeriod(null, 100));
+        assertEquals(0, DB.find(MailTransaction.class).findCount());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import ninja.NinjaTest;
+
+public class MailboxExpiryQueueTest extends NinjaTest
+{
+    User user;
+
+    @Before
+    public void setUp()
+    {
+        user = new User("forename", "surname", RandomStringUtils.randomAlphabetic(10) + "@localhost.com", "1234",
+                        "en");
+        user.save();
+    }
+
+    @Test
+    public void testExpiresAtDeadline() throws Exception
+    {
+        final MBox mailbox = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), "xcmailr.test",
+                                      System.currentTimeMillis() + 500, false, user);
+        mailbox.save();
+        assertFalse(MailboxRoutingIndex.lookup(mailbox.getAddress(), mailbox.getDomain()).isExpired());
+
+        waitUntilExpired(mailbox, 10000);
+        assertTrue(MBox.getById(mailbox.getId()).isExpired());
+    }
+
+    @Test
+    public void testFollowsChanges() throws Exception
+    {
+        final int size = MailboxExpiryQueue.size();
+        final MBox mailbox = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), "xcmailr.test",
+                                      System.currentTimeMillis() + 500, false, user);
+        mailbox.save();
+        assertEquals(size + 1, MailboxExpiryQueue.size());
+
+        // unlimited now
+        mailbox.setTs_Active(0);
+        mailbox.update();
+        assertEquals(size, MailboxExpiryQueue.size());
+
+        Thread.sleep(1000);
+        assertFalse(MBox.getById(mailbox.getId()).isExpired());
+
+        // limited again, set by a bulk statement
+        MBox.setNewDateForListOfBoxes(user.getId(), Arrays.asList(mailbox.getId()),
+                                      System.currentTimeMillis() + 500);
+        waitUntilExpired(mailbox, 10000);
+        assertTrue(MBox.getById(mailbox.getId()).isExpired());
+    }
+
+    /**
+     * Waits until the routing index knows the mailbox as expired, which happens after it was updated in the database.
+     */
+    private static void waitUntilExpired(final MBox mailbox, final long timeout) throws InterruptedException
+    {
+        final long end = System.currentTimeMillis() + timeout;
+        while (!MailboxRoutingIndex.lookup(mailbox.getAddress(), mailbox.getDomain()).isExpired()
+               && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(50);
+        }
+        assertTrue(MailboxRoutingIndex.lookup(mailbox.getAddress(), mailbox.getDomain()).isExpired());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ebean.DB;
+import io.ebean.Query;
+import io.ebean.Transaction;
+import ninja.NinjaTest;
+
+/**
+ * Checks that the lookups of the models are answered by an index, so they don't degrade to table scans as the tables
+ * grow. The plans are taken of the SQL that Ebean generates for the queries the models' finders are built on.
+ */
+public class QueryPlanTest extends NinjaTest
+{
+    private static final int SEED_SIZE = 5000;
+
+    private User user;
+
+    @Before
+    public void setUp()
+    {
+        user = new User("forename", "surname", "QueryPlan@Localhost.com", "1234", "en");
+        user.save();
+
+        final List<MBox> boxes = new ArrayList<>(SEED_SIZE);
+        for (int i = 0; i < SEED_SIZE; i++)
+        {
+            boxes.add(new MBox("Box" + i, "xcmailr.test", i % 2 == 0 ? 0 : System.currentTimeMillis() + 3600000L,
+                               false, user));
+        }
+        try (final Transaction transaction = DB.beginTransaction())
+        {
+            transaction.setBatchMode(true);
+            DB.saveAll(boxes);
+            transaction.commit();
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        DB.sqlUpdate("DELETE FROM mailboxes WHERE usr_id = :id").setParameter("id", user.getId()).execute();
+        user.delete();
+    }
+
+    @Test
+    public void testCaseInsensitiveLookups()
+    {
+        final MBox box = MBox.getByName("BOX42", "XCMailr.Test");
+        assertEquals("Box42", box.getAddress());
+        assertEquals("box42@xcmailr.test", box.getNormalizedAddress());
+        assertEquals(box.getId(), MBox.getByAddress("bOx42@xcmailr.test").getId());
+
+        assertEquals(user.getId(), User.getUsrByMail("queryplan@localhost.com").getId());
+        assertTrue(User.mailExists("QUERYPLAN@LOCALHOST.COM"));
+    }
+
+    @Test
+    public void testMailboxQueriesUseIndexes()
+    {
+        assertIndexUsed("UQ_MAILBOXES_NORMALIZED_ADDRESS", MBox.queryByName("BOX42", "XCMailr.Test").query(),
+                        "box42@xcmailr.test");
+        assertIndexUsed("IX_MAILBOXES_TS_ACTIVE", MBox.queryActiveUntilBefore(1000).query(), false, 1000L, 0L);
+        assertIndexUsed("IX_MAILBOXES_USR", MBox.queryByUser(user.getId()).query(), user.getId());
+    }
+
+    @Test
+    public void testUserQueriesUseIndexes()
+    {
+        assertIndexUsed("UQ_USERS_NORMALIZED_MAIL", User.queryByMail("QueryPlan@Localhost.com").query(),
+                        "queryplan@localhost.com");
+        assertIndexUsed("IX_USERS_APITOKEN", User.queryByToken("token").query(), "token");
+    }
+
+    @Test
+    public void testMailQueriesUseIndexes()
+    {
+        assertIndexUsed("IX_MAIL_UUID", Mail.queryByUuid("uuid"), "uuid");
+        assertIndexUsed("IX_MAIL_RECEIVE_TIME", Mail.queryReceivedBefore(1000).setMaxRows(100), 1000L);
+        assertIndexUsed("IX_MAIL_MAILBOX_2", Mail.queryByMailbox(1), 1L);
+    }
+
+    @Test
+    public void testMailTransactionQueriesUseIndexes()
+    {
+        assertIndexUsed("IX_MAILTRANSACTIONS_TS", MailTransaction.querySince(1000), 1000L);
+        assertIndexUsed("IX_MAILTRANSACTIONS_TARGETADDR", MailTransaction.queryByAddress("targetaddr", "box42@xcmailr.test"),
+                        "box42@xcmailr.test");
+        assertIndexUsed("IX_MAILTRANSACTIONS_RELAYADDR", MailTransaction.queryByAddress("relayaddr", "box42@xcmailr.test"),
+                        "box42@xcmailr.test");
+        assertIndexUsed("IX_MAILTRANSACTIONS_SOURCEADDR", MailTransaction.queryByAddress("sourceaddr", "box42@xcmailr.test"),
+                        "box42@xcmailr.test");
+    }
+
+    /**
+     * Runs the given query past the bean cache, so Ebean generates its SQL, and checks the plan of that SQL.
+     */
+    private static void assertIndexUsed(String indexName, Query<?> query, Object... bindValues)
+    {
+        query.setUseCache(false).findList();
+        final String plan = DB.sqlQuery("EXPLAIN " + query.getGeneratedSql()).setParameters(bindValues)
+                              .mapToScalar(String.class).findOne();
+        assertTrue("No index " + indexName + " used by: " + plan, plan.toUpperCase().contains(indexName));
+    }
+}
@@ -15,17 +15,47 @@
  */
 package services;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 
+import jakarta.persistence.PersistenceException;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.RejectException;
+
+import io.ebean.DB;
 
 import conf.XCMailrConf;
+import etc.MailSpool;
+import etc.MessageCodec;
+import etc.StatisticsEntry;
 import models.MBox;
+import models.Mail;
+import models.MailContent;
+import models.MailMetadata;
+import models.MailPart;
+import models.MailStatisticsKey;
 import models.MailTransaction;
+import models.MailboxCounters;
+import models.MailboxRoutingIndex;
 import models.User;
 import ninja.NinjaTest;
 import ninja.utils.NinjaMode;
@@ -60,8 +90,8 @@ public class MessageListenerDeliverTest extends NinjaTest
 
         final MessageListener ml = new MessageListener();
         ml.xcmConfiguration = xcmConf;
-        ml.jobController = new MailService();
-        final ConcurrentLinkedQueue<MailTransaction> clq = ml.jobController.mtxQueue;
+        ml.jobController = new MailService(xcmConf);
+        final BlockingQueue<MailTransaction> clq = ml.jobController.mtxQueue;
 
         // create an user
         final String usrLocalMailPart = RandomStringUtils.randomAlphabetic(10);
@@ -70,16 +100,16 @@ public class MessageListenerDeliverTest extends NinjaTest
         user.save();
 
         // check malformed mail address
-        MBox result = ml.doMboxPreconditionChecks(local, local);
+        MailboxRoutingIndex.Route result = ml.doMboxPreconditionChecks(local, local);
         assertNull(result);
         assertEquals(1, clq.size());
         assertEquals(0, clq.poll().getStatus());
 
-        // check unexisting mbox
-        result = ml.doMboxPreconditionChecks(local, testAddress);
+        // check unexisting mbox, the drop is counted but not stored
+        result = ml.doMboxPreconditionChecks("sender@example.org", testAddress);
         assertNull(result);
-        assertEquals(1, clq.size());
-        assertEquals(100, clq.poll().getStatus());
+        assertTrue(clq.isEmpty());
+        assertDropCounted(ml.jobController);
 
         // create an expired mbox
         MBox mbx = new MBox(local, domain, 0, true, user);
@@ -90,6 +120,7 @@ public class MessageListenerDeliverTest extends NinjaTest
         assertNull(result);
         assertEquals(1, clq.size());
         assertEquals(200, clq.poll().getStatus());
+        MailboxCounters.flush();
         assertEquals(1, MBox.getById(mbx.getId()).getSuppressions());
 
         // enable mbox, disable user
@@ -103,17 +134,389 @@ public class MessageListenerDeliverTest extends NinjaTest
         assertNull(result);
         assertEquals(1, clq.size());
         assertEquals(600, clq.poll().getStatus());
+        MailboxCounters.flush();
         assertEquals(2, MBox.getById(mbx.getId()).getSuppressions());
 
         // enable user, check for success
         user.setActive(true);
         user.update();
         result = ml.doMboxPreconditionChecks(local, testAddress);
-        assertEquals(user, result.getUsr());
+        assertEquals(mbx.getId(), result.getId());
+        assertEquals(user.getId(), result.getOwnerId());
+        assertEquals(user.getMail(), result.getOwnerMail());
 
         // finally, test case-insensitive handling of mail addresses
         result = ml.doMboxPreconditionChecks(local, StringUtils.capitalize(local) + "@" + domain.toUpperCase());
         assertEquals(mbx.getId(), result.getId());
-        assertEquals(user, result.getUsr());
+        assertEquals(user.getId(), result.getOwnerId());
+
+        // bulk changes are visible as well
+        MBox.disableListOfBoxes(user.getId(), Arrays.asList(mbx.getId()));
+        assertNull(ml.doMboxPreconditionChecks(local, testAddress));
+        assertEquals(200, clq.poll().getStatus());
+
+        MBox.removeListOfBoxes(user.getId(), Arrays.asList(mbx.getId()));
+        assertNull(ml.doMboxPreconditionChecks("sender@example.org", testAddress));
+        assertTrue(clq.isEmpty());
+        assertDropCounted(ml.jobController);
+    }
+
+    /**
+     * Test that recipients without an active mailbox are rejected at RCPT TO if configured, and that the drop is
+     * logged anyway.
+     */
+    @Test
+    public void testRejectUnknownRecipients() throws Exception
+    {
+        final NinjaPropertiesImpl props = NinjaPropertiesImpl.builder().withMode(NinjaMode.test).build();
+        final String domain = new XCMailrConf(props).DOMAIN_LIST[0];
+
+        final String local = RandomStringUtils.randomAlphabetic(10).toLowerCase();
+        final String testAddress = local + "@" + domain;
+
+        final MessageListener ml = new MessageListener();
+        ml.jobController = new MailService(new XCMailrConf(props));
+        final BlockingQueue<MailTransaction> clq = ml.jobController.mtxQueue;
+
+        // disabled by default -> all addresses of our domains are accepted
+        ml.xcmConfiguration = new XCMailrConf(props);
+        assertTrue(ml.accept(local, testAddress));
+        assertTrue(clq.isEmpty());
+
+        props.setProperty("mbox.rejectUnknownRecipients", "true");
+        ml.xcmConfiguration = new XCMailrConf(props);
+
+        // unknown mailbox
+        assertFalse(ml.accept("sender@example.org", testAddress));
+        assertTrue(clq.isEmpty());
+        assertDropCounted(ml.jobController);
+
+        // expired mailbox
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+        final MBox mbx = new MBox(local, domain, 0, true, user);
+        mbx.save();
+
+        assertFalse(ml.accept(local, testAddress));
+        assertEquals(200, clq.poll().getStatus());
+
+        // active mailbox
+        mbx.enable();
+        assertTrue(ml.accept(local, testAddress));
+        assertTrue(clq.isEmpty());
+    }
+
+    /**
+     * Test that a received mail is stored completely, no matter whether it is kept in memory or spooled to a file.
+     */
+    @Test
+    public void testDeliverStoresMail() throws Exception
+    {
+        final NinjaPropertiesImpl props = NinjaPropertiesImpl.builder().withMode(NinjaMode.test).build();
+        final XCMailrConf xcmConf = new XCMailrConf(props);
+        final byte[] rawMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/multiPart.eml"));
+
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+        final MBox mbx = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), xcmConf.DOMAIN_LIST[0], 0,
+                                  false, user);
+        mbx.save();
+
+        // in memory
+        final MessageListener ml = new MessageListener();
+        ml.xcmConfiguration = xcmConf;
+        ml.mailrSenderFactory = getInjector().getInstance(MailrMessageSenderFactory.class);
+        ml.jobController = getInjector().getInstance(MailService.class);
+        ml.mailWriter = getInjector().getInstance(MailWriter.class);
+        ml.log = LoggerFactory.getLogger(MessageListener.class);
+        ml.mailWriter.takeStatistics();
+        assertTrue(rawMail.length < xcmConf.MAIL_SPOOL_THRESHOLD);
+        ml.deliver("sender@example.org", mbx.getFullAddress(), new ByteArrayInputStream(rawMail));
+
+        // spooled to a file
+        props.setProperty("mbox.mail.spool.threshold", "1024");
+        ml.xcmConfiguration = new XCMailrConf(props);
+        ml.deliver("sender@example.org", mbx.getFullAddress(), new ByteArrayInputStream(rawMail));
+
+        final List<Mail> mails = Mail.findAndSort(mbx.getId());
+        assertEquals(2, mails.size());
+        for (final Mail mail : mails)
+        {
+            assertArrayEquals(rawMail, mail.getMessage());
+            assertNotNull(mail.getUuid());
+        }
+
+        // each report covers the mails stored since the previous one
+        final MailWriter.Statistics statistics = ml.mailWriter.takeStatistics();
+        assertEquals(2, statistics.getWrittenCount());
+        assertTrue(statistics.getMinCommitMillis() <= statistics.getMaxCommitMillis());
+        assertEquals(0, ml.mailWriter.takeStatistics().getWrittenCount());
+    }
+
+    /**
+     * Test that a mail that could not be stored is rejected with a transient reply, so the client tries again later.
+     */
+    @Test
+    public void testDeliverRejectsMailThatWasNotStored() throws Exception
+    {
+        final NinjaPropertiesImpl props = NinjaPropertiesImpl.builder().withMode(NinjaMode.test).build();
+        final XCMailrConf xcmConf = new XCMailrConf(props);
+        final byte[] rawMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/multiPart.eml"));
+
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+        final MBox mbx = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), xcmConf.DOMAIN_LIST[0], 0,
+                                  false, user);
+        mbx.save();
+
+        final MessageListener ml = new MessageListener();
+        ml.xcmConfiguration = xcmConf;
+        ml.mailrSenderFactory = getInjector().getInstance(MailrMessageSenderFactory.class);
+        ml.jobController = getInjector().getInstance(MailService.class);
+        ml.log = LoggerFactory.getLogger(MessageListener.class);
+        ml.mailWriter = new MailWriter()
+        {
+            @Override
+            public void store(List<Mail> mails, MailSpool spool)
+            {
+                throw new PersistenceException("database unavailable");
+            }
+        };
+
+        try
+        {
+            ml.deliver("sender@example.org", mbx.getFullAddress(), new ByteArrayInputStream(rawMail));
+            fail("mail was accepted although it was not stored");
+        }
+        catch (RejectException e)
+        {
+            assertEquals(451, e.getCode());
+        }
+        assertTrue(Mail.findAndSort(mbx.getId()).isEmpty());
+    }
+
+    /**
+     * Test that a mail sent to several mailboxes is stored only once and that its content is removed when the last
+     * mail referring to it was deleted.
+     */
+    @Test
+    public void testDeliverToMultipleRecipients() throws Exception
+    {
+        final MessageListener ml = getInjector().getInstance(MessageListener.class);
+        final String domain = ml.xcmConfiguration.DOMAIN_LIST[0];
+        final byte[] rawMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/multiPart.eml"));
+
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+        final MBox mbx1 = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), domain, 0, false, user);
+        mbx1.save();
+        final MBox mbx2 = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), domain, 0, false, user);
+        mbx2.save();
+
+        ml.deliver("sender@example.org", Arrays.asList(mbx1.getFullAddress(), "unknown@" + domain,
+                                                       mbx2.getFullAddress()),
+                   new ByteArrayInputStream(rawMail));
+
+        final Mail mail1 = Mail.findAndSort(mbx1.getId()).get(0);
+        final Mail mail2 = Mail.findAndSort(mbx2.getId()).get(0);
+        assertNotNull(mail1.getContentId());
+        assertEquals(mail1.getContentId(), mail2.getContentId());
+        assertArrayEquals(rawMail, mail1.getMessage());
+        assertArrayEquals(rawMail, mail2.getMessage());
+
+        final long contentId = mail1.getContentId();
+        assertEquals(2, DB.find(MailContent.class, contentId).getRefCount());
+
+        // the metadata was extracted once for both
+        final MailMetadata metadata = MailMetadata.findByContentIds(Arrays.asList(contentId)).get(contentId);
+        assertNotNull(metadata);
+        assertTrue(metadata.getHtmlContent().contains("<html"));
+        assertTrue(metadata.getHeaders().contains("Subject: "));
+
+        // the message is stored without its large body part, which is stored compressed
+        final byte[] storedMessage = DB.find(MailContent.class, contentId).getMessage();
+        assertTrue(storedMessage.length < rawMail.length);
+        final MailPart part = DB.find(MailPart.class).findOne();
+        assertNotNull(part);
+        assertTrue(MessageCodec.isEncoded(part.getData()));
+
+        // the content is kept as long as it is referenced
+        mail1.delete();
+        MailContent.deleteUnreferenced();
+        assertEquals(1, DB.find(MailContent.class, contentId).getRefCount());
+
+        mail2.delete();
+        MailContent.deleteUnreferenced();
+        assertNull(DB.find(MailContent.class, contentId));
+        assertNull(DB.find(MailMetadata.class, metadata.getId()));
+    }
+
+    /**
+     * Test that deleting expired mails in chunks releases their shared content once per deleted mail.
+     */
+    @Test
+    public void testDeleteExpiredMailsReleasesContent() throws Exception
+    {
+        final MessageListener ml = getInjector().getInstance(MessageListener.class);
+        final String domain = ml.xcmConfiguration.DOMAIN_LIST[0];
+        final byte[] rawMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/multiPart.eml"));
+
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+        final List<MBox> boxes = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+        {
+            final MBox mbx = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), domain, 0, false, user);
+            mbx.save();
+            boxes.add(mbx);
+        }
+
+        ml.deliver("sender@example.org", Arrays.asList(boxes.get(0).getFullAddress(), boxes.get(1).getFullAddress(),
+                                                       boxes.get(2).getFullAddress()),
+                   new ByteArrayInputStream(rawMail));
+
+        final Mail kept = Mail.findAndSort(boxes.get(2).getId()).get(0);
+        final long contentId = kept.getContentId();
+        assertEquals(3, DB.find(MailContent.class, contentId).getRefCount());
+
+        // let the mails of the first two boxes expire and delete them one by one
+        DB.sqlUpdate("UPDATE mail SET receive_time = 1000 WHERE mailbox_id IN (:ids)")
+          .setParameter("ids", Arrays.asList(boxes.get(0).getId(), boxes.get(1).getId())).execute();
+        assertEquals(2, Mail.deleteReceivedBefore(2000, 1));
+
+        assertTrue(Mail.findAndSort(boxes.get(0).getId()).isEmpty());
+        assertTrue(Mail.findAndSort(boxes.get(1).getId()).isEmpty());
+        assertNotNull(Mail.find(kept.getId()));
+        assertEquals(1, DB.find(MailContent.class, contentId).getRefCount());
+    }
+
+    /**
+     * Test that a large MIME part contained in several mails is stored only once and that it is removed when the last
+     * mail containing it was deleted.
+     */
+    @Test
+    public void testDeliverSharesLargeParts() throws Exception
+    {
+        final MessageListener ml = getInjector().getInstance(MessageListener.class);
+        final String domain = ml.xcmConfiguration.DOMAIN_LIST[0];
+        final byte[] rawMail = IOUtils.toByteArray(getClass().getResourceAsStream("/testmails/multiPart.eml"));
+        final byte[] otherMail = new String(rawMail, StandardCharsets.ISO_8859_1).replaceFirst("Subject: ",
+                                                                                               "Subject: Re: ")
+                                                                                 .getBytes(StandardCharsets.ISO_8859_1);
+
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+        final MBox mbx = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), domain, 0, false, user);
+        mbx.save();
+
+        DB.find(MailPart.class).delete();
+        ml.deliver("sender@example.org", mbx.getFullAddress(), new ByteArrayInputStream(rawMail));
+        ml.deliver("sender@example.org", mbx.getFullAddress(), new ByteArrayInputStream(otherMail));
+
+        // two contents, but only one part
+        final List<Mail> mails = Mail.findAndSort(mbx.getId());
+        assertEquals(2, mails.size());
+        assertNotEquals(mails.get(0).getContentId(), mails.get(1).getContentId());
+
+        final List<MailPart> parts = DB.find(MailPart.class).findList();
+        assertEquals(1, parts.size());
+        assertEquals(2, parts.get(0).getRefCount());
+
+        // the mails are reassembled byte by byte
+        final Mail mail = mails.get(0).getContentId() < mails.get(1).getContentId() ? mails.get(0) : mails.get(1);
+        final Mail other = mail == mails.get(0) ? mails.get(1) : mails.get(0);
+        assertArrayEquals(rawMail, Mail.find(mail.getId()).getMessage());
+        assertArrayEquals(otherMail, Mail.find(other.getId()).getMessage());
+
+        // the part is kept as long as it is referenced
+        mail.delete();
+        MailContent.deleteUnreferenced();
+        MailPart.deleteUnreferenced();
+        assertEquals(1, DB.find(MailPart.class, parts.get(0).getId()).getRefCount());
+
+        other.delete();
+        MailContent.deleteUnreferenced();
+        MailPart.deleteUnreferenced();
+        assertNull(DB.find(MailPart.class, parts.get(0).getId()));
+    }
+
+    /**
+     * Test that a binary part, which is stored uncompressed and happens to start like a compressed one, is read back
+     * as it was received.
+     */
+    @Test
+    public void testDeliverStoresBinaryPartsAsTheyAre() throws Exception
+    {
+        final NinjaPropertiesImpl props = NinjaPropertiesImpl.builder().withMode(NinjaMode.test).build();
+        props.setProperty("mbox.mail.compression.level", "0");
+        props.setProperty("mbox.mail.dedup.minsize", "1024");
+        final XCMailrConf xcmConf = new XCMailrConf(props);
+
+        final byte[] body = new byte[8000];
+        for (int i = 2; i < body.length; i++)
+        {
+            body[i] = (byte) (i * 31);
+            if (body[i] == '\r' || body[i] == '\n' || body[i] == '-')
+            {
+                body[i] = 0;
+            }
+        }
+        body[1] = 1;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("From: sender@example.org\r\nSubject: binary\r\nMIME-Version: 1.0\r\n"
+                   + "Content-Type: multipart/mixed; boundary=\"b1\"\r\n\r\n--b1\r\nContent-Type: text/plain\r\n\r\nHello\r\n"
+                   + "--b1\r\nContent-Type: application/octet-stream\r\nContent-Transfer-Encoding: binary\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.write("\r\n--b1--\r\n".getBytes(StandardCharsets.US_ASCII));
+        final byte[] rawMail = out.toByteArray();
+
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+        final MBox mbx = new MBox(RandomStringUtils.randomAlphabetic(10).toLowerCase(), xcmConf.DOMAIN_LIST[0], 0,
+                                  false, user);
+        mbx.save();
+
+        final MessageListener ml = new MessageListener();
+        ml.xcmConfiguration = xcmConf;
+        ml.mailrSenderFactory = getInjector().getInstance(MailrMessageSenderFactory.class);
+        ml.jobController = getInjector().getInstance(MailService.class);
+        ml.log = LoggerFactory.getLogger(MessageListener.class);
+        ml.mailWriter = new MailWriter();
+        ml.mailWriter.xcmConfiguration = xcmConf;
+        ml.mailWriter.log = LoggerFactory.getLogger(MailWriter.class);
+
+        DB.find(MailPart.class).delete();
+        ml.deliver("sender@example.org", mbx.getFullAddress(), new ByteArrayInputStream(rawMail));
+
+        // the part was cut out and stored uncompressed
+        final List<MailPart> parts = DB.find(MailPart.class).findList();
+        assertEquals(1, parts.size());
+        assertEquals(body.length + 2, parts.get(0).getData().length);
+
+        final List<Mail> mails = Mail.findAndSort(mbx.getId());
+        assertEquals(1, mails.size());
+        assertArrayEquals(rawMail, Mail.find(mails.get(0).getId()).getMessage());
+        assertArrayEquals(rawMail, IOUtils.toByteArray(MailContent.openMessage(mails.get(0).getContentId())));
+    }
+
+    private static void assertDropCounted(final MailService jobController)
+    {
+        final Map<MailStatisticsKey, StatisticsEntry> statistics = jobController.statistics.drain();
+        assertEquals(1, statistics.size());
+        assertEquals(1, statistics.values().iterator().next().getDropCount());
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.server.SMTPServer;
+
+import conf.XCMailrConf;
+import ninja.utils.NinjaMode;
+import ninja.utils.NinjaPropertiesImpl;
+
+/**
+ * Drives the SMTP listener over its high-water mark and checks that new mails are rejected.
+ */
+public class MessageListenerOverloadTest
+{
+    private SMTPServer smtpServer;
+
+    private int writeQueueSize;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        final NinjaPropertiesImpl props = NinjaPropertiesImpl.builder().withMode(NinjaMode.test).build();
+        props.setProperty("mbox.smtp.highwatermark", "50");
+        props.setProperty("mbox.mail.write.queuesize", "10");
+
+        final MessageListener messageListener = new MessageListener();
+        messageListener.xcmConfiguration = new XCMailrConf(props);
+        messageListener.log = LoggerFactory.getLogger(MessageListener.class);
+        messageListener.mailrSenderFactory = new MailrMessageSenderFactory();
+        messageListener.mailWriter = new MailWriter()
+        {
+            @Override
+            public int getQueueSize()
+            {
+                return writeQueueSize;
+            }
+        };
+
+        final int port;
+        try (final ServerSocket socket = new ServerSocket(0))
+        {
+            port = socket.getLocalPort();
+        }
+        smtpServer = new SMTPServer(new MessageListenerHandlerFactory(messageListener));
+        smtpServer.setPort(port);
+        smtpServer.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        smtpServer.stop();
+    }
+
+    @Test
+    public void testMailsAreRejectedWhenOverloaded() throws Exception
+    {
+        // below the high-water mark
+        writeQueueSize = 4;
+        try (final Socket socket = new Socket("localhost", smtpServer.getPort()))
+        {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                                                               StandardCharsets.US_ASCII));
+            final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue(in.readLine().startsWith("220"));
+            sendCommand(out, "HELO localhost");
+            assertTrue(in.readLine().startsWith("250"));
+            sendCommand(out, "MAIL FROM:<sender@xcmailr.test>");
+            assertTrue(in.readLine().startsWith("250"));
+        }
+
+        // the write queue is filled up to the high-water mark
+        writeQueueSize = 5;
+        try (final Socket socket = new Socket("localhost", smtpServer.getPort()))
+        {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                                                               StandardCharsets.US_ASCII));
+            final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue(in.readLine().startsWith("220"));
+            sendCommand(out, "HELO localhost");
+            assertTrue(in.readLine().startsWith("250"));
+            sendCommand(out, "MAIL FROM:<sender@xcmailr.test>");
+            assertTrue(in.readLine().startsWith("421"));
+
+            // the server closed the connection
+            socket.setSoTimeout(5000);
+            assertNull(in.readLine());
+        }
+    }
+
+    private static void sendCommand(PrintWriter out, String command)
+    {
+        out.print(command + "\r\n");
+        out.flush();
+    }
+}
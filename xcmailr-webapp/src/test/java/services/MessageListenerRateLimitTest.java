@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.server.SMTPServer;
+
+import conf.XCMailrConf;
+import ninja.utils.NinjaMode;
+import ninja.utils.NinjaPropertiesImpl;
+
+/**
+ * Checks that only accepted recipients count towards the rate limits of the SMTP listener.
+ */
+public class MessageListenerRateLimitTest
+{
+    private SMTPServer smtpServer;
+
+    private final List<Integer> transactions = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        final NinjaPropertiesImpl props = NinjaPropertiesImpl.builder().withMode(NinjaMode.test).build();
+        props.setProperty("mbox.ratelimit.client", "1");
+        props.setProperty("mbox.rejectUnknownRecipients", "false");
+
+        final MessageListener messageListener = new MessageListener();
+        messageListener.xcmConfiguration = new XCMailrConf(props);
+        messageListener.log = LoggerFactory.getLogger(MessageListener.class);
+        messageListener.jobController = new MailService(messageListener.xcmConfiguration)
+        {
+            @Override
+            public void addTransaction(int status, String source, String relay, String target)
+            {
+                transactions.add(status);
+            }
+        };
+
+        final int port;
+        try (final ServerSocket socket = new ServerSocket(0))
+        {
+            port = socket.getLocalPort();
+        }
+        smtpServer = new SMTPServer(new MessageListenerHandlerFactory(messageListener));
+        smtpServer.setPort(port);
+        smtpServer.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        smtpServer.stop();
+    }
+
+    @Test
+    public void testRejectedRecipientsDoNotCount() throws Exception
+    {
+        try (final Socket socket = new Socket("localhost", smtpServer.getPort()))
+        {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                                                               StandardCharsets.US_ASCII));
+            final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue(in.readLine().startsWith("220"));
+            sendCommand(out, "HELO localhost");
+            assertTrue(in.readLine().startsWith("250"));
+            sendCommand(out, "MAIL FROM:<sender@example.com>");
+            assertTrue(in.readLine().startsWith("250"));
+
+            // relay denied, doesn't use up the client's rate
+            sendCommand(out, "RCPT TO:<someone@example.com>");
+            assertTrue(in.readLine().startsWith("553"));
+
+            sendCommand(out, "RCPT TO:<first@xcmailr.test>");
+            assertTrue(in.readLine().startsWith("250"));
+
+            // the client's rate is used up now
+            sendCommand(out, "RCPT TO:<second@xcmailr.test>");
+            assertTrue(in.readLine().startsWith("450"));
+        }
+
+        assertEquals(Arrays.asList(500, 700), transactions);
+    }
+
+    private static void sendCommand(PrintWriter out, String command)
+    {
+        out.print(command + "\r\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import conf.XCMailrConf;
+import etc.MessageCodec;
+import io.ebean.DB;
+import models.MailContent;
+import models.MailPart;
+import ninja.NinjaTest;
+import ninja.utils.NinjaMode;
+import ninja.utils.NinjaPropertiesImpl;
+
+public class MessageStoreServiceTest extends NinjaTest
+{
+    /**
+     * Test that messages stored in segments can still be read and compacted after the store was switched back to the
+     * database.
+     */
+    @Test
+    public void testSegmentDataIsReadAfterSwitchingToDatabase() throws Exception
+    {
+        final File storeDir = Files.createTempDirectory("messagestoreservicetest").toFile();
+        final NinjaPropertiesImpl props = NinjaPropertiesImpl.builder().withMode(NinjaMode.test).build();
+        props.setProperty("mbox.mail.store.dir", storeDir.getAbsolutePath());
+
+        final MessageStoreService service = new MessageStoreService();
+        service.log = LoggerFactory.getLogger(MessageStoreService.class);
+        try
+        {
+            // store a message with a part in a segment
+            props.setProperty("mbox.mail.store", "segments");
+            service.xcmConfiguration = new XCMailrConf(props);
+            service.start();
+
+            final byte[] message = RandomStringUtils.randomAlphanumeric(400).getBytes();
+            final byte[] part = RandomStringUtils.randomAlphanumeric(400).getBytes();
+            final MailContent segmentContent = new MailContent();
+            segmentContent.setMessage(message);
+            segmentContent.addPart(RandomStringUtils.randomAlphanumeric(64), 100,
+                                   MessageCodec.encodePart(new ByteArrayInputStream(part), part.length, 0, 0),
+                                   MessageCodec.getEncodedPartLength(part.length, 0, 0));
+            MailContent.insertAll(List.of(segmentContent));
+            service.stop();
+
+            final byte[] fullMessage = new byte[800];
+            System.arraycopy(message, 0, fullMessage, 0, 100);
+            System.arraycopy(part, 0, fullMessage, 100, 400);
+            System.arraycopy(message, 100, fullMessage, 500, 300);
+
+            // switch back to the database, new messages go there
+            props.setProperty("mbox.mail.store", "database");
+            service.xcmConfiguration = new XCMailrConf(props);
+            service.start();
+
+            final MailContent databaseContent = new MailContent();
+            databaseContent.setMessage(message);
+            MailContent.insertAll(List.of(databaseContent));
+            assertNull(DB.find(MailContent.class, databaseContent.getId()).getSegmentId());
+            assertArrayEquals(message, MailContent.getMessage(databaseContent.getId()));
+
+            // the old message is still read from its segment
+            assertNotNull(DB.find(MailContent.class, segmentContent.getId()).getSegmentId());
+            assertArrayEquals(fullMessage, MailContent.getMessage(segmentContent.getId()));
+            assertArrayEquals(fullMessage, IOUtils.toByteArray(MailContent.openMessage(segmentContent.getId())));
+
+            // and compacted once it isn't referenced anymore
+            DB.sqlUpdate("UPDATE mail_content SET ref_count = 0 WHERE id IN (:ids)")
+              .setParameter("ids", List.of(segmentContent.getId(), databaseContent.getId())).execute();
+            MailContent.deleteUnreferenced();
+            MailPart.deleteUnreferenced();
+            assertEquals(1, MailContent.compactMessageStore());
+        }
+        finally
+        {
+            service.stop();
+            FileUtils.deleteDirectory(storeDir);
+        }
+    }
+}
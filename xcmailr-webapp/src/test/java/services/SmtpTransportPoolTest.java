@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2013-2023 Xceptance Software Technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import conf.XCMailrConf;
+import ninja.utils.NinjaMode;
+import ninja.utils.NinjaPropertiesImpl;
+
+public class SmtpTransportPoolTest
+{
+    private SmtpTransportPool pool;
+
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        FakeTransport.instances.clear();
+        FakeTransport.failNextSend = false;
+        FakeTransport.failNextSendUnexpectedly = false;
+
+        session = Session.getInstance(new Properties());
+        session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", FakeTransport.class.getName(), "test", "1"));
+
+        final XCMailrConf xcmConf = new XCMailrConf(NinjaPropertiesImpl.builder().withMode(NinjaMode.test).build());
+        pool = new SmtpTransportPool(session, xcmConf);
+    }
+
+    @Test
+    public void testTransportIsReused() throws Exception
+    {
+        pool.send(createMail());
+        pool.send(createMail());
+
+        assertEquals(1, FakeTransport.instances.size());
+        assertEquals(2, FakeTransport.instances.get(0).sentCount);
+        assertEquals(1, pool.getIdleCount());
+
+        pool.close();
+        assertEquals(0, pool.getIdleCount());
+        assertTrue(FakeTransport.instances.get(0).closed);
+    }
+
+    @Test
+    public void testDisconnectedTransportIsReplaced() throws Exception
+    {
+        pool.send(createMail());
+        final FakeTransport first = FakeTransport.instances.get(0);
+        first.connected = false;
+
+        pool.send(createMail());
+
+        assertEquals(2, FakeTransport.instances.size());
+        assertTrue(first.closed);
+        assertEquals(1, FakeTransport.instances.get(1).sentCount);
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testTransportIsDroppedAfterFailedSend() throws Exception
+    {
+        pool.send(createMail());
+        final FakeTransport first = FakeTransport.instances.get(0);
+
+        FakeTransport.failNextSend = true;
+        try
+        {
+            pool.send(createMail());
+            fail("MessagingException expected");
+        }
+        catch (MessagingException e)
+        {
+            // expected
+        }
+        assertTrue(first.closed);
+        assertEquals(0, pool.getIdleCount());
+
+        pool.send(createMail());
+        assertEquals(2, FakeTransport.instances.size());
+    }
+
+    @Test
+    public void testIdleTransportIsClosed() throws Exception
+    {
+        final NinjaPropertiesImpl props = NinjaPropertiesImpl.builder().withMode(NinjaMode.test).build();
+        props.setProperty("mail.smtp.pool.maxidle", "0");
+        pool = new SmtpTransportPool(session, new XCMailrConf(props));
+
+        pool.send(createMail());
+        assertEquals(1, pool.getIdleCount());
+
+        Thread.sleep(10);
+        // the background reaper may have been faster
+        pool.closeExpired();
+        assertEquals(0, pool.getIdleCount());
+        assertTrue(FakeTransport.instances.get(0).closed);
+        pool.close();
+    }
+
+    @Test
+    public void testTransportIsDroppedAfterUnexpectedError() throws Exception
+    {
+        pool.send(createMail());
+        final FakeTransport first = FakeTransport.instances.get(0);
+
+        FakeTransport.failNextSendUnexpectedly = true;
+        try
+        {
+            pool.send(createMail());
+            fail("IllegalStateException expected");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        assertTrue(first.closed);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    private MimeMessage createMail() throws MessagingException
+    {
+        final MimeMessage mail = new MimeMessage(session);
+        mail.setFrom(new InternetAddress("sender@xcmailr.test"));
+        mail.setRecipient(Message.RecipientType.TO, new InternetAddress("target@xcmailr.test"));
+        mail.setSubject("test");
+        mail.setText("test");
+        return mail;
+    }
+
+    /**
+     * A transport that records what happens to it instead of talking to a server.
+     */
+    public static class FakeTransport extends Transport
+    {
+        private static final List<FakeTransport> instances = new ArrayList<>();
+
+        private static boolean failNextSend;
+
+        private static boolean failNextSendUnexpectedly;
+
+        private boolean connected;
+
+        private boolean closed;
+
+        private int sentCount;
+
+        public FakeTransport(Session session, URLName urlname)
+        {
+            super(session, urlname);
+            instances.add(this);
+        }
+
+        @Override
+        protected boolean protocolConnect(String host, int port, String user, String password)
+        {
+            connected = true;
+            return true;
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return connected && !closed;
+        }
+
+        @Override
+        public void sendMessage(Message msg, Address[] addresses) throws MessagingException
+        {
+            if (failNextSend)
+            {
+                failNextSend = false;
+                throw new MessagingException("connection lost");
+            }
+            if (failNextSendUnexpectedly)
+            {
+                failNextSendUnexpectedly = false;
+                throw new IllegalStateException("broken message");
+            }
+            sentCount++;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package testutils;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
@@ -62,7 +63,8 @@ public class RestApiClient
 
     // --- generic ---------------------------------------------
 
-    public HttpResponse executeRequest(final String method, final String relativeUrl, final String jsonBody)
+    public HttpResponse executeRequest(final String method, final String relativeUrl, final String jsonBody,
+                                       final Header... headers)
         throws Exception
     {
         final String url = ninjaTestServer.getBaseUrl() + "/api/v1/" + relativeUrl;
@@ -88,6 +90,10 @@ public class RestApiClient
         }
 
         request.addHeader("Accept", "application/json, */*");
+        for (final Header header : headers)
+        {
+            request.addHeader(header);
+        }
 
         if (apiToken != null)
         {
@@ -187,9 +193,11 @@ public class RestApiClient
         return executeRequest(HttpGet.METHOD_NAME, "mails/" + mailId, null);
     }
 
-    public HttpResponse getMailAttachment(final String mailId, final String attachmentName) throws Exception
+    public HttpResponse getMailAttachment(final String mailId, final String attachmentName, final Header... headers)
+        throws Exception
     {
-        return executeRequest(HttpGet.METHOD_NAME, "mails/" + mailId + "/attachments/" + attachmentName, null);
+        return executeRequest(HttpGet.METHOD_NAME, "mails/" + mailId + "/attachments/" + attachmentName, null,
+                              headers);
     }
 
     public HttpResponse deleteMail(final String mailId) throws Exception